@@ -0,0 +1,225 @@
+package nl.headease.koppeltaal;
+
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpResponseInterceptor;
+import nl.koppeltaal.api.ErrorResponseCode;
+import nl.koppeltaal.api.KoppeltaalClientException;
+import nl.koppeltaal.api.responsehandler.ErrorResponseCodeResponseHandler;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.StringReader;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client side rate limiting per domain and {@link ClientOperation}, adapting to the server (AIMD):
+ * <ul>
+ *     <li>every fast, successful response increases the rate a little (additive increase)</li>
+ *     <li>slow responses, 5xx responses (also when reported as {@link ErrorResponseCode}), timeouts and 429/503 halve
+ *     the rate (multiplicative decrease), at most once per latency target</li>
+ *     <li>a Retry-After on a 429 or 503 stops all requests of that domain and operation until the given time</li>
+ * </ul>
+ * Posts and puts fail with an {@link HttpResponseException}, the other requests (claims, searches, fetches) with a
+ * {@link KoppeltaalClientException} that has no headers; the Retry-After of those is taken from the response before the
+ * connector handles it.
+ * Register with {@link ExtendedKoppeltaalClient.Builder#listener(ClientOperationListener)}, one limiter can be shared by
+ * the clients of a {@link KoppeltaalClientRegistry}. The current rates are available from {@link #getCurrentRates()}.
+ */
+public class AdaptiveRateLimiter implements ClientOperationListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AdaptiveRateLimiter.class);
+
+    private static final double ADDITIVE_INCREASE_PER_SECOND = 1.0;
+    private static final double MULTIPLICATIVE_DECREASE = 0.5;
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+    private static final int HTTP_SERVICE_UNAVAILABLE = 503;
+    private static final int HTTP_SERVER_ERROR = 500;
+
+    /** Retry-After of the last response on the calling thread, the listener callbacks run on the calling thread */
+    private static final ThreadLocal<String> RETRY_AFTER = new ThreadLocal<>();
+
+    private final double initialRate;
+    private final double minRate;
+    private final double maxRate;
+    private final long latencyTargetNanos;
+
+    private final ConcurrentMap<String, Limit> limits = new ConcurrentHashMap<>();
+
+    private class Limit {
+        final TokenBucket bucket;
+        long lastDecrease = System.nanoTime() - latencyTargetNanos;
+
+        Limit() {
+            // a burst of one second worth of requests
+            bucket = new TokenBucket(initialRate, Math.max(1, initialRate));
+        }
+
+        synchronized void increase() {
+            final double rate = bucket.getRate();
+            // about ADDITIVE_INCREASE_PER_SECOND per second when requests are sent at the current rate
+            bucket.setRate(Math.min(maxRate, rate + ADDITIVE_INCREASE_PER_SECOND / rate));
+        }
+
+        synchronized boolean decrease() {
+            final long now = System.nanoTime();
+            // requests in flight fail together, count them as one signal
+            if (now - lastDecrease < latencyTargetNanos) {
+                return false;
+            }
+            lastDecrease = now;
+            bucket.setRate(Math.max(minRate, bucket.getRate() * MULTIPLICATIVE_DECREASE));
+            return true;
+        }
+    }
+
+    /**
+     * @param initialRate   requests per second to start with
+     * @param minRate       the rate is never decreased below this
+     * @param maxRate       the rate is never increased above this
+     * @param latencyTarget responses slower than this decrease the rate
+     */
+    public AdaptiveRateLimiter(double initialRate, double minRate, double maxRate, Duration latencyTarget) {
+        this.initialRate = initialRate;
+        this.minRate = minRate;
+        this.maxRate = maxRate;
+        this.latencyTargetNanos = latencyTarget.toNanos();
+    }
+
+    @Override
+    public void beforeRequest(String domain, ClientOperation operation, HttpRequest request) throws IOException {
+        RETRY_AFTER.remove();
+        if (request != null) {
+            final HttpResponseInterceptor interceptor = request.getResponseInterceptor();
+            request.setResponseInterceptor(response -> {
+                RETRY_AFTER.set(response.getHeaders().getFirstHeaderStringValue("Retry-After"));
+                if (interceptor != null) {
+                    interceptor.interceptResponse(response);
+                }
+            });
+        }
+
+        try {
+            limit(domain, operation).bucket.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for rate limit of: " + key(domain, operation));
+        }
+    }
+
+    @Override
+    public void afterResponse(String domain, ClientOperation operation, HttpRequest request, long durationNanos) {
+        RETRY_AFTER.remove();
+        final Limit limit = limit(domain, operation);
+        if (durationNanos > latencyTargetNanos) {
+            decrease(limit, domain, operation, "slow response " + TimeUnit.NANOSECONDS.toMillis(durationNanos) + "ms");
+        } else {
+            limit.increase();
+        }
+    }
+
+    @Override
+    public void onError(String domain, ClientOperation operation, HttpRequest request, long durationNanos, IOException exception) {
+        final String retryAfter = RETRY_AFTER.get();
+        RETRY_AFTER.remove();
+        final Limit limit = limit(domain, operation);
+
+        if (exception instanceof HttpResponseException) {
+            final HttpResponseException responseException = (HttpResponseException) exception;
+            onStatus(limit, domain, operation, getStatus(responseException), responseException.getHeaders().getFirstHeaderStringValue("Retry-After"));
+        } else if (exception instanceof KoppeltaalClientException) {
+            onStatus(limit, domain, operation, ((KoppeltaalClientException) exception).getStatus(), retryAfter);
+        } else if (exception instanceof SocketTimeoutException || !(exception instanceof InterruptedIOException)) {
+            // timeouts and connection failures, not our own interrupts
+            decrease(limit, domain, operation, exception.toString());
+        }
+    }
+
+    private void onStatus(Limit limit, String domain, ClientOperation operation, int status, String retryAfterHeader) {
+        if (status == HTTP_TOO_MANY_REQUESTS || status == HTTP_SERVICE_UNAVAILABLE) {
+            final Duration retryAfter = parseRetryAfter(retryAfterHeader);
+            if (retryAfter != null) {
+                limit.bucket.blockUntil(System.nanoTime() + retryAfter.toNanos());
+            }
+            decrease(limit, domain, operation, "status " + status + (retryAfter == null ? "" : ", retry after " + retryAfter));
+        } else if (status >= HTTP_SERVER_ERROR) {
+            decrease(limit, domain, operation, "status " + status);
+        }
+    }
+
+    public double getCurrentRate(String domain, ClientOperation operation) {
+        final Limit limit = limits.get(key(domain, operation));
+        return limit == null ? initialRate : limit.bucket.getRate();
+    }
+
+    /**
+     * @return the current rate (requests per second) per {@code <domain>/<operation>}
+     */
+    public Map<String, Double> getCurrentRates() {
+        final Map<String, Double> rates = new TreeMap<>();
+        limits.forEach((key, limit) -> rates.put(key, limit.bucket.getRate()));
+        return rates;
+    }
+
+    private void decrease(Limit limit, String domain, ClientOperation operation, String reason) {
+        if (limit.decrease()) {
+            LOG.info("Rate of {} decreased to {}/s: {}", key(domain, operation), String.format("%.2f", limit.bucket.getRate()), reason);
+        }
+    }
+
+    private Limit limit(String domain, ClientOperation operation) {
+        return limits.computeIfAbsent(key(domain, operation), key -> new Limit());
+    }
+
+    private static String key(String domain, ClientOperation operation) {
+        return domain + "/" + operation;
+    }
+
+    /**
+     * The status from the {@link ErrorResponseCode} in the body when there is one, the HTTP status otherwise.
+     */
+    private static int getStatus(HttpResponseException exception) {
+        final String content = exception.getContent();
+        if (StringUtils.startsWith(StringUtils.trimToEmpty(content), "{")) {
+            try {
+                final ErrorResponseCode errorResponseCode = new ErrorResponseCodeResponseHandler().handleResponse(new StringReader(content));
+                if (errorResponseCode != null && errorResponseCode.getStatus() > 0) {
+                    return errorResponseCode.getStatus();
+                }
+            } catch (IOException | RuntimeException e) {
+                LOG.debug("Error response is not an ErrorResponseCode: " + content, e);
+            }
+        }
+        return exception.getStatusCode();
+    }
+
+    /**
+     * @param retryAfter delay in seconds or an HTTP date
+     */
+    static Duration parseRetryAfter(String retryAfter) {
+        if (StringUtils.isBlank(retryAfter)) {
+            return null;
+        }
+        if (StringUtils.isNumeric(retryAfter.trim())) {
+            return Duration.ofSeconds(Long.parseLong(retryAfter.trim()));
+        }
+        try {
+            final Duration duration = Duration.between(ZonedDateTime.now(), ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME));
+            return duration.isNegative() ? Duration.ZERO : duration;
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package nl.headease.koppeltaal;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import nl.koppeltaal.api.KoppeltaalClientException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class AdaptiveRateLimiterTest {
+
+    private static final String DOMAIN = "default";
+
+    @Test
+    public void fastResponsesIncreaseTheRateAdditively() {
+        final AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(10, 1, 10.5, Duration.ofSeconds(1));
+
+        limiter.afterResponse(DOMAIN, ClientOperation.CLAIM, null, 0);
+        assertEquals(10.1, limiter.getCurrentRate(DOMAIN, ClientOperation.CLAIM), 0.001);
+
+        for (int i = 0; i < 10; i++) {
+            limiter.afterResponse(DOMAIN, ClientOperation.CLAIM, null, 0);
+        }
+        assertEquals(10.5, limiter.getCurrentRate(DOMAIN, ClientOperation.CLAIM), 0.001);
+        assertEquals(10, limiter.getCurrentRate(DOMAIN, ClientOperation.FETCH), 0.001);
+    }
+
+    @Test
+    public void slowResponsesAndTimeoutsDecreaseTheRateOncePerLatencyTarget() throws Exception {
+        final AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(8, 3, 10, Duration.ofMillis(100));
+
+        limiter.afterResponse(DOMAIN, ClientOperation.CLAIM, null, TimeUnit.MILLISECONDS.toNanos(150));
+        assertEquals(4, limiter.getCurrentRate(DOMAIN, ClientOperation.CLAIM), 0.001);
+
+        // failing together with the slow response
+        limiter.onError(DOMAIN, ClientOperation.CLAIM, null, 0, new SocketTimeoutException());
+        assertEquals(4, limiter.getCurrentRate(DOMAIN, ClientOperation.CLAIM), 0.001);
+
+        Thread.sleep(150);
+        limiter.onError(DOMAIN, ClientOperation.CLAIM, null, 0, new SocketTimeoutException());
+        assertEquals(3, limiter.getCurrentRate(DOMAIN, ClientOperation.CLAIM), 0.001);
+    }
+
+    @Test
+    public void clientErrorsDoNotDecreaseTheRate() {
+        final AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(8, 1, 10, Duration.ofSeconds(1));
+
+        limiter.onError(DOMAIN, ClientOperation.FETCH, null, 0, new KoppeltaalClientException(404, "Not found"));
+
+        assertEquals(8, limiter.getCurrentRate(DOMAIN, ClientOperation.FETCH), 0.001);
+    }
+
+    @Test
+    public void tooManyRequestsOnAClaimHonoursRetryAfter() throws Exception {
+        final AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(8, 1, 10, Duration.ofSeconds(1));
+        final MockHttpTransport server = new MockHttpTransport.Builder()
+                .setLowLevelHttpResponse(new MockLowLevelHttpResponse().setStatusCode(429).addHeader("Retry-After", "1"))
+                .build();
+        final HttpRequest request = server.createRequestFactory().buildGetRequest(new GenericUrl("https://localhost/FHIR/Koppeltaal/MessageHeader"));
+        // as the connector sends GETs
+        request.setThrowExceptionOnExecuteError(false);
+
+        limiter.beforeRequest(DOMAIN, ClientOperation.CLAIM, request);
+        assertEquals(429, request.execute().getStatusCode());
+        limiter.onError(DOMAIN, ClientOperation.CLAIM, request, 0, new KoppeltaalClientException(429, "Too many requests"));
+
+        assertEquals(4, limiter.getCurrentRate(DOMAIN, ClientOperation.CLAIM), 0.001);
+        final long start = System.nanoTime();
+        limiter.beforeRequest(DOMAIN, ClientOperation.CLAIM, null);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(900));
+    }
+
+    @Test
+    public void parsesRetryAfter() {
+        assertNull(AdaptiveRateLimiter.parseRetryAfter(null));
+        assertNull(AdaptiveRateLimiter.parseRetryAfter(" "));
+        assertNull(AdaptiveRateLimiter.parseRetryAfter("soon"));
+        assertEquals(Duration.ofSeconds(120), AdaptiveRateLimiter.parseRetryAfter(" 120 "));
+        assertEquals(Duration.ZERO, AdaptiveRateLimiter.parseRetryAfter("Wed, 21 Oct 2015 07:28:00 GMT"));
+
+        final Duration inAMinute = AdaptiveRateLimiter.parseRetryAfter(DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now().plusMinutes(1)));
+        assertTrue(inAMinute.getSeconds() > 50 && inAMinute.getSeconds() <= 60);
+    }
+
+    @Test
+    public void serviceUnavailableResponseExceptionDecreasesTheRate() throws IOException {
+        final AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(8, 1, 10, Duration.ofSeconds(1));
+        final MockHttpTransport server = new MockHttpTransport.Builder()
+                .setLowLevelHttpResponse(new MockLowLevelHttpResponse().setStatusCode(503).addHeader("Retry-After", "30"))
+                .build();
+        final HttpRequest request = server.createRequestFactory().buildGetRequest(new GenericUrl("https://localhost/FHIR/Koppeltaal/Mailbox"));
+
+        limiter.beforeRequest(DOMAIN, ClientOperation.POST_MESSAGE, request);
+        try {
+            request.execute();
+            fail("Expected an HttpResponseException");
+        } catch (HttpResponseException e) {
+            limiter.onError(DOMAIN, ClientOperation.POST_MESSAGE, request, 0, e);
+        }
+
+        assertEquals(4, limiter.getCurrentRate(DOMAIN, ClientOperation.POST_MESSAGE), 0.001);
+    }
+}
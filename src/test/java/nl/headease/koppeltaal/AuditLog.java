@@ -0,0 +1,451 @@
+package nl.headease.koppeltaal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Audit log of request and response bodies that does not block the calling threads on disk I/O.
+ * <p>
+ * {@link #append} hands the payload to a lock-free ring buffer ({@link MpscRingBuffer}) and returns, a single writer
+ * thread compresses the payloads and writes them to memory-mapped segment files in the log directory. A segment is
+ * rolled when it is full or older than the maximum age. When the ring buffer is full the record is dropped and counted
+ * ({@link #getDroppedCount()}), the caller is never blocked.
+ * <p>
+ * Every record is compressed on its own and indexed by message id, so {@link #get(String)} reads the records of a
+ * message directly at their offset. The index is kept in memory and rebuilt from the segment headers when the log is
+ * opened again.
+ * <p>
+ * Segment record layout: {@code int length, long timestamp, byte direction, short idLength, byte[] id,
+ * int payloadLength, byte[] deflatedPayload}. A length of 0 marks the end of a segment.
+ */
+public class AuditLog implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AuditLog.class);
+
+    private static final String SEGMENT_PREFIX = "audit-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final long DEFAULT_MAX_SEGMENT_BYTES = 64L * 1024 * 1024;
+    private static final Duration DEFAULT_MAX_SEGMENT_AGE = Duration.ofHours(1);
+    private static final int DEFAULT_BUFFER_CAPACITY = 8192;
+
+    /** record length, timestamp, direction, id length and payload length */
+    private static final int HEADER_BYTES = 4 + 8 + 1 + 2 + 4;
+    private static final long FORCE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    public enum Direction {
+        SENT, RECEIVED
+    }
+
+    public static class Record {
+
+        private final String messageId;
+        private final Direction direction;
+        private final long timestamp;
+        private final byte[] payload;
+
+        Record(String messageId, Direction direction, long timestamp, byte[] payload) {
+            this.messageId = messageId;
+            this.direction = direction;
+            this.timestamp = timestamp;
+            this.payload = payload;
+        }
+
+        public String getMessageId() {
+            return messageId;
+        }
+
+        public Direction getDirection() {
+            return direction;
+        }
+
+        /**
+         * @return milliseconds since the epoch
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+
+        public String getPayloadAsString() {
+            return new String(payload, StandardCharsets.UTF_8);
+        }
+    }
+
+    /** where a record is stored, enough to read it without parsing the header */
+    private static class Location {
+        final long segment;
+        final Direction direction;
+        final long timestamp;
+        final long offset;
+        final int compressedLength;
+        final int payloadLength;
+
+        Location(long segment, Direction direction, long timestamp, long offset, int compressedLength, int payloadLength) {
+            this.segment = segment;
+            this.direction = direction;
+            this.timestamp = timestamp;
+            this.offset = offset;
+            this.compressedLength = compressedLength;
+            this.payloadLength = payloadLength;
+        }
+    }
+
+    private static class Segment {
+        final long number;
+        final Path path;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        final long createdNanos = System.nanoTime();
+
+        Segment(long number, Path path, long size) throws IOException {
+            this.number = number;
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private final Path directory;
+    private final long maxSegmentBytes;
+    private final long maxSegmentAgeNanos;
+
+    private final MpscRingBuffer<Record> ringBuffer;
+    private final ConcurrentMap<String, List<Location>> index = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Long, FileChannel> readChannels = new ConcurrentHashMap<>();
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    private final Thread writer;
+    private volatile boolean running = true;
+    private volatile boolean writerParked;
+
+    // writer thread only
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    private final byte[] deflateBuffer = new byte[8192];
+    private Segment segment;
+    private long nextSegmentNumber;
+    private boolean dirty;
+    private long lastForceNanos = System.nanoTime();
+
+    public AuditLog(Path directory) throws IOException {
+        this(directory, DEFAULT_MAX_SEGMENT_BYTES, DEFAULT_MAX_SEGMENT_AGE, DEFAULT_BUFFER_CAPACITY);
+    }
+
+    /**
+     * @param directory       directory of the segment files, existing segments are indexed
+     * @param maxSegmentBytes size of a segment, a larger record gets a segment of its own
+     * @param maxSegmentAge   a segment older than this is rolled
+     * @param bufferCapacity  number of records waiting for the writer, further records are dropped
+     */
+    public AuditLog(Path directory, long maxSegmentBytes, Duration maxSegmentAge, int bufferCapacity) throws IOException {
+        this.directory = directory;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.maxSegmentAgeNanos = maxSegmentAge.toNanos();
+        this.ringBuffer = new MpscRingBuffer<>(bufferCapacity);
+
+        Files.createDirectories(directory);
+        for (Path path : listSegments()) {
+            final long number = getSegmentNumber(path);
+            indexSegment(number, path);
+            nextSegmentNumber = Math.max(nextSegmentNumber, number + 1);
+        }
+
+        writer = new Thread(this::write, "audit-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public boolean append(String messageId, Direction direction, String payload) {
+        return append(messageId, direction, payload.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return false when the record is dropped because the writer cannot keep up or the log is closed
+     */
+    public boolean append(String messageId, Direction direction, byte[] payload) {
+        if (!running || !ringBuffer.offer(new Record(messageId, direction, System.currentTimeMillis(), payload))) {
+            droppedCount.incrementAndGet();
+            return false;
+        }
+        if (writerParked) {
+            LockSupport.unpark(writer);
+        }
+        return true;
+    }
+
+    /**
+     * @return the written records of the message, in the order they were appended
+     */
+    public List<Record> get(String messageId) throws IOException {
+        final List<Location> locations = index.getOrDefault(messageId, Collections.emptyList());
+        final List<Record> records = new ArrayList<>(locations.size());
+
+        for (Location location : locations) {
+            final ByteBuffer buffer = ByteBuffer.allocate(location.compressedLength);
+            final FileChannel channel = getReadChannel(location.segment);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, location.offset + buffer.position()) < 0) {
+                    throw new IOException("Unexpected end of audit segment " + location.segment + " for message: " + messageId);
+                }
+            }
+            records.add(new Record(messageId, location.direction, location.timestamp, inflate(buffer.array(), location.payloadLength)));
+        }
+        return records;
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Writes the records still in the buffer, then stops the writer.
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.MINUTES.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (FileChannel channel : readChannels.values()) {
+            channel.close();
+        }
+        readChannels.clear();
+    }
+
+    private void write() {
+        while (running || !ringBuffer.isEmpty()) {
+            final Record record = ringBuffer.poll();
+            if (record != null) {
+                try {
+                    write(record);
+                } catch (IOException | RuntimeException e) {
+                    droppedCount.incrementAndGet();
+                    LOG.error("Cannot write audit record of message: " + record.getMessageId(), e);
+                }
+                continue;
+            }
+
+            try {
+                idle();
+            } catch (IOException | RuntimeException e) {
+                LOG.error("Cannot roll audit segment", e);
+            }
+
+            writerParked = true;
+            if (running && ringBuffer.isEmpty()) {
+                LockSupport.parkNanos(this, Math.min(maxSegmentAgeNanos, FORCE_INTERVAL_NANOS));
+            }
+            writerParked = false;
+        }
+
+        try {
+            closeSegment();
+        } catch (IOException e) {
+            LOG.error("Cannot close audit segment", e);
+        }
+        deflater.end();
+    }
+
+    private void write(Record record) throws IOException {
+        final byte[] id = record.getMessageId().getBytes(StandardCharsets.UTF_8);
+        final byte[] payload = deflate(record.getPayload());
+        final int recordBytes = HEADER_BYTES + id.length + payload.length;
+
+        // room for the end marker
+        if (segment == null || segment.buffer.remaining() < recordBytes + 4 || isExpired(segment)) {
+            closeSegment();
+            openSegment(Math.max(maxSegmentBytes, recordBytes + 4));
+        }
+
+        final MappedByteBuffer buffer = segment.buffer;
+        buffer.putInt(recordBytes - 4);
+        buffer.putLong(record.getTimestamp());
+        buffer.put((byte) record.getDirection().ordinal());
+        buffer.putShort((short) id.length);
+        buffer.put(id);
+        buffer.putInt(record.getPayload().length);
+        final long offset = buffer.position();
+        buffer.put(payload);
+        dirty = true;
+
+        addToIndex(record.getMessageId(), new Location(segment.number, record.getDirection(), record.getTimestamp(), offset,
+                payload.length, record.getPayload().length));
+
+        if (System.nanoTime() - lastForceNanos > FORCE_INTERVAL_NANOS) {
+            force();
+        }
+    }
+
+    private void idle() throws IOException {
+        if (segment != null && isExpired(segment)) {
+            closeSegment();
+        } else if (dirty) {
+            force();
+        }
+    }
+
+    private boolean isExpired(Segment segment) {
+        return System.nanoTime() - segment.createdNanos > maxSegmentAgeNanos;
+    }
+
+    private void force() {
+        if (segment != null) {
+            segment.buffer.force();
+        }
+        dirty = false;
+        lastForceNanos = System.nanoTime();
+    }
+
+    private void openSegment(long size) throws IOException {
+        final long number = nextSegmentNumber++;
+        segment = new Segment(number, directory.resolve(getSegmentName(number)), size);
+        LOG.debug("Opened audit segment: " + segment.path);
+    }
+
+    /**
+     * Writes the end marker and flushes the segment. The file keeps its mapped size, unwritten pages take no space on
+     * file systems with sparse files.
+     */
+    private void closeSegment() throws IOException {
+        if (segment == null) {
+            return;
+        }
+        if (segment.buffer.remaining() >= 4) {
+            segment.buffer.putInt(0);
+        }
+        segment.buffer.force();
+        segment.channel.close();
+        LOG.debug("Closed audit segment: " + segment.path);
+
+        segment = null;
+        dirty = false;
+    }
+
+    private void indexSegment(long number, Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            while (buffer.remaining() >= HEADER_BYTES) {
+                final int length = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining()) {
+                    break;
+                }
+                final int end = buffer.position() + length;
+
+                final long timestamp = buffer.getLong();
+                final Direction direction = Direction.values()[buffer.get()];
+                final byte[] id = new byte[buffer.getShort()];
+                buffer.get(id);
+                final int payloadLength = buffer.getInt();
+                final long offset = buffer.position();
+
+                addToIndex(new String(id, StandardCharsets.UTF_8), new Location(number, direction, timestamp, offset, end - buffer.position(), payloadLength));
+                buffer.position(end);
+            }
+        }
+    }
+
+    private void addToIndex(String messageId, Location location) {
+        index.merge(messageId, Collections.singletonList(location), (current, added) -> {
+            final List<Location> locations = new ArrayList<>(current.size() + 1);
+            locations.addAll(current);
+            locations.addAll(added);
+            return locations;
+        });
+    }
+
+    private FileChannel getReadChannel(long number) throws IOException {
+        FileChannel channel = readChannels.get(number);
+        if (channel == null) {
+            channel = FileChannel.open(directory.resolve(getSegmentName(number)), StandardOpenOption.READ);
+            final FileChannel existing = readChannels.putIfAbsent(number, channel);
+            if (existing != null) {
+                channel.close();
+                channel = existing;
+            }
+        }
+        return channel;
+    }
+
+    private byte[] deflate(byte[] payload) {
+        deflater.reset();
+        deflater.setInput(payload);
+        deflater.finish();
+
+        compressed.reset();
+        while (!deflater.finished()) {
+            final int length = deflater.deflate(deflateBuffer);
+            compressed.write(deflateBuffer, 0, length);
+        }
+        return compressed.toByteArray();
+    }
+
+    private static byte[] inflate(byte[] compressed, int payloadLength) throws IOException {
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            final byte[] payload = new byte[payloadLength];
+            int length = 0;
+            while (length < payloadLength && !inflater.finished()) {
+                final int inflated = inflater.inflate(payload, length, payloadLength - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated audit record");
+                }
+                length += inflated;
+            }
+            return payload;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt audit record", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private List<Path> listSegments() throws IOException {
+        final List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            stream.forEach(segments::add);
+        }
+        segments.sort(Comparator.comparingLong(AuditLog::getSegmentNumber));
+        return segments;
+    }
+
+    private static String getSegmentName(long number) {
+        return String.format("%s%010d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX);
+    }
+
+    private static long getSegmentNumber(Path path) {
+        final String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+}
@@ -0,0 +1,69 @@
+package nl.headease.koppeltaal;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AuditLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recordsAreFoundByMessageIdAfterRollingAndReopening() throws Exception {
+        final Path directory = folder.newFolder("audit").toPath();
+
+        try (AuditLog auditLog = new AuditLog(directory, 4096, Duration.ofHours(1), 1024)) {
+            final ExecutorService executor = Executors.newFixedThreadPool(4);
+            for (int i = 0; i < 200; i++) {
+                final String messageId = "message-" + i;
+                executor.execute(() -> {
+                    auditLog.append(messageId, AuditLog.Direction.SENT, "<feed>" + messageId + "</feed>");
+                    auditLog.append(messageId, AuditLog.Direction.RECEIVED, "<feed>response " + messageId + "</feed>");
+                });
+            }
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+            assertEquals(0, auditLog.getDroppedCount());
+        }
+
+        try (Stream<Path> segments = Files.list(directory)) {
+            assertTrue(segments.count() > 1);
+        }
+
+        try (AuditLog auditLog = new AuditLog(directory, 4096, Duration.ofHours(1), 1024)) {
+            final List<AuditLog.Record> records = auditLog.get("message-42");
+
+            assertEquals(2, records.size());
+            assertEquals(AuditLog.Direction.SENT, records.get(0).getDirection());
+            assertEquals("<feed>message-42</feed>", records.get(0).getPayloadAsString());
+            assertEquals("<feed>response message-42</feed>", records.get(1).getPayloadAsString());
+        }
+    }
+
+    @Test
+    public void recordsCanBeReadWhileTheSegmentIsOpen() throws Exception {
+        try (AuditLog auditLog = new AuditLog(folder.newFolder("open").toPath())) {
+            auditLog.append("message", AuditLog.Direction.RECEIVED, "payload");
+
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (auditLog.get("message").isEmpty() && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+
+            assertEquals("payload", auditLog.get("message").get(0).getPayloadAsString());
+        }
+    }
+}
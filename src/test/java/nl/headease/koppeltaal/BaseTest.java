@@ -1,6 +1,5 @@
 package nl.headease.koppeltaal;
 
-import com.google.api.client.testing.util.LogRecordingHandler;
 import nl.koppeltaal.api.*;
 import nl.koppeltaal.api.model.ActivityDefinitionParams;
 import nl.koppeltaal.api.model.ActivityStatusParams;
@@ -15,7 +14,8 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.slf4j.LoggerFactory;
 
-import javax.xml.bind.DatatypeConverter;
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
@@ -38,8 +38,11 @@ public abstract class BaseTest {
 
     static final Path RESOURCE_LOG_OUTPUT_PATH = Paths.get("target/test-koppeltaal-integration");
 
+    static final int WIRE_CAPTURE_CAPACITY = 64;
+    static final int WIRE_CAPTURE_MAX_BODY_BYTES = 1024 * 1024;
+
     // initialized every @Test
-    LogRecordingHandler logRecordingHandler;
+    WireCapture wireCapture;
 
     static final String APP_SOURCE_ENDPOINT = "http://dev.myapplication.nl";
     static final String APP_SOURCE_SOFTWARE = "MyApp";
@@ -94,14 +97,17 @@ public abstract class BaseTest {
         clientId = properties.getProperty("client.id");
         clientSecret = properties.getProperty("client.secret");
 
-        xmlKoppeltaalClient = new KoppeltaalClient(server, username, password, Format.XML);
-        jsonKoppeltaalClient = new KoppeltaalClient(server, username, password, Format.JSON);
+        // captures the recent http exchanges of both clients
+        wireCapture = new WireCapture(WIRE_CAPTURE_CAPACITY, 1, WIRE_CAPTURE_MAX_BODY_BYTES);
 
-        // initialize recorder for http transport logs
-        logRecordingHandler = new LogRecordingHandler();
-        Logger httpLogger = Logger.getLogger("com.google.api.client.http.HttpTransport");
-        httpLogger.setLevel(Level.ALL);
-        httpLogger.addHandler(logRecordingHandler);
+        xmlKoppeltaalClient = ExtendedKoppeltaalClient.builder(server, username, password)
+                .format(Format.XML)
+                .wireCapture(wireCapture)
+                .build();
+        jsonKoppeltaalClient = ExtendedKoppeltaalClient.builder(server, username, password)
+                .format(Format.JSON)
+                .wireCapture(wireCapture)
+                .build();
     }
 
     Other createActivityDefinitionResource(String activityId) {
@@ -152,7 +158,11 @@ public abstract class BaseTest {
 
     static Date convertDateTimeTypeToDate(DateTimeType dateTimeType) {
         final String lexicalXSDDateTime = dateTimeType.getValue().toString();
-        return DatatypeConverter.parseDateTime(lexicalXSDDateTime).getTime();
+        try {
+            return DatatypeFactory.newInstance().newXMLGregorianCalendar(lexicalXSDDateTime).toGregorianCalendar().getTime();
+        } catch (DatatypeConfigurationException e) {
+            throw new IllegalStateException(e);
+        }
     }
 
     static void writeStringToFile(String fileName, String resource) throws IOException {
@@ -162,16 +172,18 @@ public abstract class BaseTest {
 
     void writeLastPostedMessageBundleToFile(String fileName, boolean isBundledResource) throws IOException {
 
-        final String lastPostedBundle = logRecordingHandler.messages().stream()
-                .filter(recording -> startsWith(recording, "<?xml version")) // filter xml recordings
-                .filter(recording -> !isBundledResource || contains(recording, "<feed xmlns")) // filter feeds (message bundles)
-                .reduce((first, last) -> last)
+        final String lastPostedBundle = wireCapture.findLast(exchange -> {
+                    final String body = exchange.getRequestBodyAsString();
+                    return startsWith(body, "<?xml version") // filter xml requests
+                            && (!isBundledResource || contains(body, "<feed xmlns")); // filter feeds (message bundles)
+                })
+                .map(WireCapture.Exchange::getRequestBodyAsString)
                 .orElse("");
 
         writeStringToFile(fileName, lastPostedBundle);
     }
 
-    private static Properties loadTestProperties() throws IOException {
+    static Properties loadTestProperties() throws IOException {
 
         Properties properties = new Properties();
 
@@ -0,0 +1,542 @@
+package nl.headease.koppeltaal;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.api.client.http.HttpResponseException;
+import nl.koppeltaal.api.Event;
+import nl.koppeltaal.api.KoppeltaalBundle;
+import nl.koppeltaal.api.KoppeltaalBundleBuilder;
+import nl.koppeltaal.api.KoppeltaalClient;
+import nl.koppeltaal.api.KoppeltaalClientException;
+import nl.koppeltaal.api.model.*;
+import nl.koppeltaal.api.model.enums.CarePlanParticipantRole;
+import org.hl7.fhir.instance.model.CarePlan;
+import org.hl7.fhir.instance.model.DateAndTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static nl.headease.koppeltaal.BaseTest.*;
+
+/**
+ * Imports records from an NDJSON ({@code .ndjson}) or CSV file (other extensions, with a header line) as messages. A
+ * {@link RecordMapper} maps a record, a map of field names to values, to a bundle, e.g. {@link #carePlanMapper}.
+ * <p>
+ * Bundles are built on one pool (a thread per core by default) and posted on another, with a maximum number of
+ * concurrent posts. The records that are done are written to a checkpoint file regularly. A restarted import with the
+ * same checkpoint file skips those records, and posts the others with the same message ids as before, so a message
+ * posted just before a crash is not posted as a new message.
+ * <p>
+ * Records that cannot be parsed or mapped, and posts the server rejects with a 4xx status, are logged to
+ * {@code <checkpoint>.failed} and count as done. Other failures (5xx, 408, 429, timeouts and connection errors) are
+ * logged too, but not checkpointed, so a resumed import posts them again.
+ */
+public class BulkImporter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BulkImporter.class);
+
+    private static final int CHECKPOINT_INTERVAL = 100;
+
+    /**
+     * Maps a record to a message bundle with the given message id.
+     */
+    @FunctionalInterface
+    public interface RecordMapper {
+        KoppeltaalBundle map(String messageId, Map<String, String> record) throws Exception;
+    }
+
+    private final KoppeltaalClient client;
+    private final RecordMapper mapper;
+    private final Path checkpointFile;
+    private final int buildThreads;
+    private final int maxConcurrentPosts;
+
+    public BulkImporter(KoppeltaalClient client, RecordMapper mapper, Path checkpointFile, int maxConcurrentPosts) {
+        this(client, mapper, checkpointFile, Runtime.getRuntime().availableProcessors(), maxConcurrentPosts);
+    }
+
+    public BulkImporter(KoppeltaalClient client, RecordMapper mapper, Path checkpointFile, int buildThreads, int maxConcurrentPosts) {
+        this.client = client;
+        this.mapper = mapper;
+        this.checkpointFile = checkpointFile;
+        this.buildThreads = buildThreads;
+        this.maxConcurrentPosts = maxConcurrentPosts;
+    }
+
+    public Report importFile(Path input) throws IOException {
+        final long start = System.nanoTime();
+        final Checkpoint checkpoint = Checkpoint.load(checkpointFile, input);
+        final Path failedFile = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".failed");
+
+        // records in flight, bounds the memory use when building is faster than posting
+        final int window = maxConcurrentPosts * 2;
+        final Semaphore inFlight = new Semaphore(window);
+        final AtomicInteger imported = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        int skipped = 0;
+
+        final ExecutorService builders = Executors.newFixedThreadPool(buildThreads);
+        final ExecutorService posters = Executors.newFixedThreadPool(maxConcurrentPosts);
+        try (RecordReader reader = RecordReader.open(input);
+             Writer failures = Files.newBufferedWriter(failedFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+
+            while (true) {
+                final Map<String, String> record;
+                try {
+                    record = reader.next();
+                } catch (MalformedRecordException e) {
+                    if (checkpoint.isDone(e.getRecordNumber())) {
+                        skipped++;
+                    } else {
+                        failed.incrementAndGet();
+                        logFailure(failures, e.getRecordNumber(), e);
+                        checkpoint.complete(e.getRecordNumber());
+                    }
+                    continue;
+                }
+                if (record == null) {
+                    break;
+                }
+
+                final long recordNumber = reader.getRecordNumber();
+                if (checkpoint.isDone(recordNumber)) {
+                    skipped++;
+                    continue;
+                }
+
+                inFlight.acquire();
+                final Map<String, String> fields = record;
+                final String messageId = checkpoint.messageId(recordNumber);
+                CompletableFuture
+                        .supplyAsync(() -> map(messageId, fields), builders)
+                        .thenAcceptAsync(this::post, posters)
+                        .whenComplete((result, error) -> {
+                            try {
+                                final Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                                if (error == null) {
+                                    imported.incrementAndGet();
+                                } else {
+                                    failed.incrementAndGet();
+                                    logFailure(failures, recordNumber, cause);
+                                }
+                                if (error == null || isPermanent(cause)) {
+                                    checkpoint.complete(recordNumber);
+                                }
+                            } finally {
+                                inFlight.release();
+                            }
+                        });
+            }
+
+            inFlight.acquire(window);
+            checkpoint.save();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while importing: " + input);
+        } finally {
+            builders.shutdownNow();
+            posters.shutdownNow();
+        }
+
+        final Report report = new Report(imported.get(), failed.get(), skipped, System.nanoTime() - start);
+        LOG.info("Imported {}: {}", input, report);
+        return report;
+    }
+
+    private KoppeltaalBundle map(String messageId, Map<String, String> record) {
+        try {
+            return mapper.map(messageId, record);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private void post(KoppeltaalBundle bundle) {
+        try {
+            client.postMessage(bundle);
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * @return false for failures a later attempt may not have: 5xx, 408 and 429 responses, timeouts and connection errors
+     */
+    static boolean isPermanent(Throwable error) {
+        final int status;
+        if (error instanceof HttpResponseException) {
+            status = ((HttpResponseException) error).getStatusCode();
+        } else if (error instanceof KoppeltaalClientException) {
+            status = ((KoppeltaalClientException) error).getStatus();
+        } else {
+            // the mapper and the validator reject the record itself
+            return !(error instanceof IOException) || error instanceof ResourceVersionRegistry.ConflictException;
+        }
+        return status >= 400 && status < 500 && status != 408 && status != 429;
+    }
+
+    private static void logFailure(Writer failures, long recordNumber, Throwable error) {
+        LOG.warn("Import of record " + recordNumber + " failed", error);
+        synchronized (failures) {
+            try {
+                failures.write(recordNumber + "\t" + String.valueOf(error).replace('\n', ' ') + "\n");
+                failures.flush();
+            } catch (IOException e) {
+                LOG.error("Unable to log failed record " + recordNumber, e);
+            }
+        }
+    }
+
+    /**
+     * Maps records with the fields {@code patient.id}, {@code patient.given}, {@code patient.family},
+     * {@code practitioner.id}, {@code practitioner.given}, {@code practitioner.family}, {@code careplan.id} and
+     * {@code activity.definition} to a CreateOrUpdateCarePlan message. With a {@code relatedperson.id} the message also
+     * contains a RelatedPerson ({@code relatedperson.given}, {@code relatedperson.family}).
+     */
+    public static RecordMapper carePlanMapper(String domain, String baseUrl) {
+        return (messageId, record) -> {
+            final PatientParams patient = new PatientParams(required(record, "patient.id"), baseUrl, NEW_RESOURCE_VERSION,
+                    new NameParams(record.get("patient.given"), record.get("patient.family")));
+            final PractitionerParams practitioner = new PractitionerParams(required(record, "practitioner.id"), baseUrl, NEW_RESOURCE_VERSION,
+                    new NameParams(record.get("practitioner.given"), record.get("practitioner.family")));
+            final CarePlanParams carePlan = new CarePlanParams(required(record, "careplan.id"), baseUrl, NEW_RESOURCE_VERSION,
+                    CarePlan.CarePlanStatus.active);
+
+            final List<ParticipantParams> participants = new ArrayList<>();
+            participants.add(new ParticipantParams(practitioner.getUrl(), null, CarePlanParticipantRole.CAREGIVER));
+            final ActivityParams activity = new ActivityParams(carePlan.getId() + "-activity", required(record, "activity.definition"),
+                    "Available", new DateAndTime(new Date()), participants, null);
+
+            final KoppeltaalBundleBuilder builder = new KoppeltaalBundleBuilder(messageId, domain, APP_SOURCE_SOFTWARE, APP_SOURCE_ENDPOINT, APP_SOURCE_NAME, APP_SOURCE_VERSION,
+                    Event.CREATE_OR_UPDATE_CARE_PLAN, patient.getUrl(), carePlan.getUrl())
+                    .addCarePlan(carePlan)
+                    .addActivity(activity)
+                    .addParticipant("Assigner", practitioner.getUrl()).setPatientReference(patient.getUrl())
+                    .and()
+                    .addPatient(patient)
+                    .and()
+                    .addPractitioner(practitioner);
+
+            final String relatedPersonId = record.get("relatedperson.id");
+            if (relatedPersonId != null && !relatedPersonId.isEmpty()) {
+                builder.addRelatedPerson(new RelatedPersonParams(relatedPersonId, baseUrl, NEW_RESOURCE_VERSION, patient.getUrl(),
+                        new NameParams(record.get("relatedperson.given"), record.get("relatedperson.family"))));
+            }
+            return builder.build();
+        };
+    }
+
+    private static String required(Map<String, String> record, String field) {
+        final String value = record.get(field);
+        if (value == null || value.isEmpty()) {
+            throw new IllegalArgumentException("Missing field: " + field);
+        }
+        return value;
+    }
+
+    /**
+     * The records that are done: all records up to the watermark, and the records after it that completed out of order.
+     */
+    static class Checkpoint {
+
+        private final Path file;
+        private final String input;
+        private final String importId;
+        private final TreeSet<Long> doneAfterWatermark = new TreeSet<>();
+        private long watermark;
+        private int completedSinceSave;
+
+        private Checkpoint(Path file, String input, String importId) {
+            this.file = file;
+            this.input = input;
+            this.importId = importId;
+        }
+
+        static Checkpoint load(Path file, Path input) throws IOException {
+            final String inputName = input.toAbsolutePath().normalize().toString();
+            if (!Files.exists(file)) {
+                // the import id has to survive a crash before the first interval, the message ids are derived from it
+                final Checkpoint checkpoint = new Checkpoint(file, inputName, UUID.randomUUID().toString());
+                checkpoint.save();
+                return checkpoint;
+            }
+
+            final Properties properties = new Properties();
+            try (InputStream inputStream = Files.newInputStream(file)) {
+                properties.load(inputStream);
+            }
+            if (!inputName.equals(properties.getProperty("input"))) {
+                throw new IllegalStateException("Checkpoint " + file + " belongs to another input: " + properties.getProperty("input"));
+            }
+
+            final Checkpoint checkpoint = new Checkpoint(file, inputName, properties.getProperty("importId"));
+            checkpoint.watermark = Long.parseLong(properties.getProperty("watermark"));
+            for (String recordNumber : properties.getProperty("done", "").split(",")) {
+                if (!recordNumber.isEmpty()) {
+                    checkpoint.doneAfterWatermark.add(Long.parseLong(recordNumber));
+                }
+            }
+            LOG.info("Resuming import of {} after record {}", inputName, checkpoint.watermark);
+            return checkpoint;
+        }
+
+        /**
+         * @return the same message id for the record in every run of the import
+         */
+        String messageId(long recordNumber) {
+            return UUID.nameUUIDFromBytes((importId + "/" + recordNumber).getBytes(StandardCharsets.UTF_8)).toString();
+        }
+
+        synchronized boolean isDone(long recordNumber) {
+            return recordNumber <= watermark || doneAfterWatermark.contains(recordNumber);
+        }
+
+        synchronized void complete(long recordNumber) {
+            doneAfterWatermark.add(recordNumber);
+            while (!doneAfterWatermark.isEmpty() && doneAfterWatermark.first() == watermark + 1) {
+                watermark = doneAfterWatermark.pollFirst();
+            }
+
+            if (++completedSinceSave >= CHECKPOINT_INTERVAL) {
+                try {
+                    save();
+                } catch (IOException e) {
+                    LOG.warn("Unable to save checkpoint: " + file, e);
+                }
+            }
+        }
+
+        synchronized void save() throws IOException {
+            final Properties properties = new Properties();
+            properties.setProperty("input", input);
+            properties.setProperty("importId", importId);
+            properties.setProperty("watermark", String.valueOf(watermark));
+            properties.setProperty("done", doneAfterWatermark.stream().map(String::valueOf).collect(Collectors.joining(",")));
+
+            final Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+            try (OutputStream outputStream = Files.newOutputStream(temporary)) {
+                properties.store(outputStream, null);
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            completedSinceSave = 0;
+        }
+
+        synchronized long getWatermark() {
+            return watermark;
+        }
+    }
+
+    /**
+     * Reads records one by one, numbered from 1.
+     */
+    abstract static class RecordReader implements Closeable {
+
+        private final BufferedReader reader;
+        private long recordNumber;
+
+        RecordReader(BufferedReader reader) {
+            this.reader = reader;
+        }
+
+        static RecordReader open(Path input) throws IOException {
+            final BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8);
+            return input.getFileName().toString().endsWith(".ndjson") ? new NdjsonReader(reader) : new CsvReader(reader);
+        }
+
+        /**
+         * @return null at the end of the input
+         * @throws MalformedRecordException when the record cannot be parsed, the next call reads the next record
+         */
+        Map<String, String> next() throws IOException {
+            for (String line; (line = reader.readLine()) != null; ) {
+                if (!line.trim().isEmpty()) {
+                    recordNumber++;
+                    try {
+                        return parse(line);
+                    } catch (IOException e) {
+                        throw new MalformedRecordException(recordNumber, e);
+                    }
+                }
+            }
+            return null;
+        }
+
+        long getRecordNumber() {
+            return recordNumber;
+        }
+
+        String readLine() throws IOException {
+            return reader.readLine();
+        }
+
+        abstract Map<String, String> parse(String line) throws IOException;
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+
+    static class MalformedRecordException extends IOException {
+
+        private final long recordNumber;
+
+        MalformedRecordException(long recordNumber, IOException cause) {
+            super("Record " + recordNumber + " is malformed: " + cause.getMessage(), cause);
+            this.recordNumber = recordNumber;
+        }
+
+        long getRecordNumber() {
+            return recordNumber;
+        }
+    }
+
+    static class NdjsonReader extends RecordReader {
+
+        private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+        NdjsonReader(BufferedReader reader) {
+            super(reader);
+        }
+
+        @Override
+        Map<String, String> parse(String line) throws IOException {
+            final Map<String, String> record = new HashMap<>();
+            try (JsonParser parser = JSON_FACTORY.createParser(line)) {
+                if (parser.nextToken() != JsonToken.START_OBJECT) {
+                    throw new IOException("Record " + getRecordNumber() + " is not a JSON object");
+                }
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    final String name = parser.getCurrentName();
+                    final JsonToken value = parser.nextToken();
+                    if (value == JsonToken.START_OBJECT || value == JsonToken.START_ARRAY) {
+                        parser.skipChildren();
+                    } else if (value != JsonToken.VALUE_NULL) {
+                        record.put(name, parser.getValueAsString());
+                    }
+                }
+            }
+            return record;
+        }
+    }
+
+    /**
+     * CSV with a header line, quoted values may contain commas and doubled quotes but no line breaks.
+     */
+    static class CsvReader extends RecordReader {
+
+        private List<String> header;
+
+        CsvReader(BufferedReader reader) {
+            super(reader);
+        }
+
+        @Override
+        Map<String, String> next() throws IOException {
+            if (header == null) {
+                final String line = readLine();
+                if (line == null) {
+                    return null;
+                }
+                header = split(line);
+            }
+            return super.next();
+        }
+
+        @Override
+        Map<String, String> parse(String line) throws IOException {
+            final List<String> values = split(line);
+            if (values.size() > header.size()) {
+                throw new IOException("Record " + getRecordNumber() + " has more values than the header");
+            }
+            final Map<String, String> record = new HashMap<>();
+            for (int i = 0; i < values.size(); i++) {
+                if (!values.get(i).isEmpty()) {
+                    record.put(header.get(i), values.get(i));
+                }
+            }
+            return record;
+        }
+
+        static List<String> split(String line) {
+            final List<String> values = new ArrayList<>();
+            final StringBuilder value = new StringBuilder();
+            boolean quoted = false;
+            for (int i = 0; i < line.length(); i++) {
+                final char c = line.charAt(i);
+                if (quoted) {
+                    if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        value.append('"');
+                        i++;
+                    } else if (c == '"') {
+                        quoted = false;
+                    } else {
+                        value.append(c);
+                    }
+                } else if (c == '"') {
+                    quoted = true;
+                } else if (c == ',') {
+                    values.add(value.toString().trim());
+                    value.setLength(0);
+                } else {
+                    value.append(c);
+                }
+            }
+            values.add(value.toString().trim());
+            return values;
+        }
+    }
+
+    public static class Report {
+
+        private final int imported;
+        private final int failed;
+        private final int skipped;
+        private final long durationNanos;
+
+        Report(int imported, int failed, int skipped, long durationNanos) {
+            this.imported = imported;
+            this.failed = failed;
+            this.skipped = skipped;
+            this.durationNanos = durationNanos;
+        }
+
+        public int getImported() {
+            return imported;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        /**
+         * @return the records done in a previous run
+         */
+        public int getSkipped() {
+            return skipped;
+        }
+
+        public long getDurationMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(durationNanos);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("imported=%d, failed=%d, skipped=%d, duration=%dms, %.1f records/s", imported, failed, skipped,
+                    getDurationMillis(), imported / Math.max(1e-9, durationNanos / 1e9));
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package nl.headease.koppeltaal;
+
+import nl.koppeltaal.api.Format;
+import nl.koppeltaal.api.KoppeltaalBundle;
+import nl.koppeltaal.api.KoppeltaalClient;
+import nl.koppeltaal.api.KoppeltaalClientException;
+import org.hl7.fhir.instance.model.AtomFeed;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class BulkImporterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsCsvWithQuotedValues() {
+        assertEquals(Arrays.asList("a", "b, c", "say \"hi\"", ""), BulkImporter.CsvReader.split("a,\"b, c\",\"say \"\"hi\"\"\","));
+    }
+
+    @Test
+    public void importsNdjsonAndResumesWithoutDuplicates() throws Exception {
+        final Path input = folder.getRoot().toPath().resolve("patients.ndjson");
+        Files.write(input, Arrays.asList(
+                "{\"id\": \"1\", \"name\": {\"nested\": true}}",
+                "",
+                "{\"id\": \"2\", \"fail\": \"yes\"}",
+                "{\"id\": \"3\", \"empty\": null}",
+                "{\"id\": \"4\"}"), StandardCharsets.UTF_8);
+        final Path checkpoint = folder.getRoot().toPath().resolve("import.checkpoint");
+
+        final RecordingClient client = new RecordingClient();
+        final Map<String, String> messageIds = new ConcurrentHashMap<>();
+        final BulkImporter.RecordMapper mapper = (messageId, record) -> {
+            if (record.containsKey("fail")) {
+                throw new IllegalArgumentException("Invalid record " + record.get("id"));
+            }
+            assertFalse(record.containsKey("name"));
+            assertFalse(record.containsKey("empty"));
+            messageIds.put(record.get("id"), messageId);
+            return new KoppeltaalBundle(new AtomFeed());
+        };
+
+        final BulkImporter.Report first = new BulkImporter(client, mapper, checkpoint, 2, 2).importFile(input);
+        assertEquals(3, first.getImported());
+        assertEquals(1, first.getFailed());
+        assertEquals(3, client.posted.size());
+        assertTrue(new String(Files.readAllBytes(checkpoint.resolveSibling("import.checkpoint.failed")), StandardCharsets.UTF_8).startsWith("2\t"));
+
+        // a new record is appended, the resumed import only imports that one, with a new stable message id
+        Files.write(input, Collections.singletonList("{\"id\": \"5\"}"), StandardCharsets.UTF_8, java.nio.file.StandardOpenOption.APPEND);
+        final Map<String, String> firstMessageIds = new HashMap<>(messageIds);
+
+        final BulkImporter.Report resumed = new BulkImporter(client, mapper, checkpoint, 2, 2).importFile(input);
+        assertEquals(1, resumed.getImported());
+        assertEquals(4, resumed.getSkipped());
+        assertEquals(4, client.posted.size());
+        assertEquals(firstMessageIds.get("1"), messageIds.get("1"));
+    }
+
+    @Test
+    public void resumesWithTheSameMessageIdsAfterACrashBeforeTheFirstCheckpoint() throws Exception {
+        final Path input = folder.getRoot().toPath().resolve("patients.ndjson");
+        Files.write(input, Arrays.asList("{\"id\": \"1\"}", "{\"id\": \"2\"}", "{\"id\": \"3\"}"), StandardCharsets.UTF_8);
+        final Path checkpoint = folder.getRoot().toPath().resolve("import.checkpoint");
+
+        final Map<String, String> messageIds = new ConcurrentHashMap<>();
+        final BulkImporter.RecordMapper mapper = (messageId, record) -> {
+            messageIds.put(record.get("id"), messageId);
+            final AtomFeed feed = new AtomFeed();
+            feed.setId(record.get("id"));
+            return new KoppeltaalBundle(feed);
+        };
+
+        // the post of record 2 hangs until the import is killed
+        final CountDownLatch hanging = new CountDownLatch(1);
+        final KoppeltaalClient hangingClient = new KoppeltaalClient("https://localhost", "user", "password", Format.XML) {
+            @Override
+            public KoppeltaalBundle postMessage(KoppeltaalBundle bundle) throws IOException {
+                if (bundle.getFeed().getId().equals("2")) {
+                    hanging.countDown();
+                    try {
+                        new CountDownLatch(1).await();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException("Killed");
+                    }
+                }
+                return bundle;
+            }
+        };
+        final AtomicReference<Throwable> crash = new AtomicReference<>();
+        final Thread importer = new Thread(() -> {
+            try {
+                new BulkImporter(hangingClient, mapper, checkpoint, 1, 1).importFile(input);
+            } catch (Throwable e) {
+                crash.set(e);
+            }
+        });
+        importer.start();
+        assertTrue(hanging.await(10, TimeUnit.SECONDS));
+        importer.interrupt();
+        importer.join(10_000);
+        assertTrue(crash.get() instanceof InterruptedIOException);
+        final Map<String, String> crashedMessageIds = new HashMap<>(messageIds);
+
+        final RecordingClient client = new RecordingClient();
+        final BulkImporter.Report resumed = new BulkImporter(client, mapper, checkpoint, 1, 1).importFile(input);
+        assertEquals(3, resumed.getImported());
+        assertEquals(crashedMessageIds.get("1"), messageIds.get("1"));
+        assertEquals(crashedMessageIds.get("2"), messageIds.get("2"));
+    }
+
+    @Test
+    public void malformedRecordsAreCheckpointedAndSkippedOnResume() throws Exception {
+        final Path input = folder.getRoot().toPath().resolve("patients.ndjson");
+        Files.write(input, Arrays.asList(
+                "{\"id\": \"1\"}",
+                "{\"id\": ",
+                "[\"2\"]",
+                "{\"id\": \"3\"}"), StandardCharsets.UTF_8);
+        final Path checkpoint = folder.getRoot().toPath().resolve("import.checkpoint");
+        final RecordingClient client = new RecordingClient();
+        final BulkImporter.RecordMapper mapper = (messageId, record) -> new KoppeltaalBundle(new AtomFeed());
+
+        final BulkImporter.Report first = new BulkImporter(client, mapper, checkpoint, 2, 2).importFile(input);
+        assertEquals(2, first.getImported());
+        assertEquals(2, first.getFailed());
+        final List<String> failures = Files.readAllLines(checkpoint.resolveSibling("import.checkpoint.failed"), StandardCharsets.UTF_8);
+        assertEquals(2, failures.size());
+
+        final BulkImporter.Report resumed = new BulkImporter(client, mapper, checkpoint, 2, 2).importFile(input);
+        assertEquals(0, resumed.getImported());
+        assertEquals(0, resumed.getFailed());
+        assertEquals(4, resumed.getSkipped());
+    }
+
+    @Test
+    public void onlyPermanentFailuresAreCheckpointed() throws Exception {
+        final Path input = folder.getRoot().toPath().resolve("patients.ndjson");
+        Files.write(input, Arrays.asList("{\"id\": \"1\"}", "{\"id\": \"2\"}", "{\"id\": \"3\"}", "{\"id\": \"4\"}"), StandardCharsets.UTF_8);
+        final Path checkpoint = folder.getRoot().toPath().resolve("import.checkpoint");
+
+        final Map<String, Integer> attempts = new ConcurrentHashMap<>();
+        final KoppeltaalClient client = new KoppeltaalClient("https://localhost", "user", "password", Format.XML) {
+            @Override
+            public KoppeltaalBundle postMessage(KoppeltaalBundle bundle) throws IOException {
+                final String id = bundle.getFeed().getId();
+                final int attempt = attempts.merge(id, 1, Integer::sum);
+                if (id.equals("2")) {
+                    throw new KoppeltaalClientException(400, "Bad request");
+                }
+                if (id.equals("3") && attempt == 1) {
+                    throw new KoppeltaalClientException(503, "Service unavailable");
+                }
+                if (id.equals("4") && attempt == 1) {
+                    throw new SocketTimeoutException("Read timed out");
+                }
+                return bundle;
+            }
+        };
+        final BulkImporter.RecordMapper mapper = (messageId, record) -> {
+            final AtomFeed feed = new AtomFeed();
+            feed.setId(record.get("id"));
+            return new KoppeltaalBundle(feed);
+        };
+
+        final BulkImporter.Report first = new BulkImporter(client, mapper, checkpoint, 2, 2).importFile(input);
+        assertEquals(1, first.getImported());
+        assertEquals(3, first.getFailed());
+
+        final BulkImporter.Report resumed = new BulkImporter(client, mapper, checkpoint, 2, 2).importFile(input);
+        assertEquals(2, resumed.getImported());
+        assertEquals(0, resumed.getFailed());
+        assertEquals(2, resumed.getSkipped());
+        assertEquals(Integer.valueOf(1), attempts.get("2"));
+    }
+
+    @Test
+    public void classifiesFailures() {
+        assertTrue(BulkImporter.isPermanent(new KoppeltaalClientException(404, "Not found")));
+        assertTrue(BulkImporter.isPermanent(new IllegalArgumentException("Missing field: patient.id")));
+        assertFalse(BulkImporter.isPermanent(new KoppeltaalClientException(429, "Too many requests")));
+        assertFalse(BulkImporter.isPermanent(new KoppeltaalClientException(500, "Internal server error")));
+        assertFalse(BulkImporter.isPermanent(new IOException("Connection reset")));
+    }
+
+    @Test
+    public void checkpointTracksRecordsCompletedOutOfOrder() throws Exception {
+        final Path file = folder.getRoot().toPath().resolve("checkpoint");
+        final Path input = folder.newFile("input.csv").toPath();
+
+        final BulkImporter.Checkpoint checkpoint = BulkImporter.Checkpoint.load(file, input);
+        checkpoint.complete(2);
+        checkpoint.complete(4);
+        assertEquals(0, checkpoint.getWatermark());
+        checkpoint.complete(1);
+        assertEquals(2, checkpoint.getWatermark());
+        checkpoint.save();
+
+        final BulkImporter.Checkpoint loaded = BulkImporter.Checkpoint.load(file, input);
+        assertTrue(loaded.isDone(1));
+        assertTrue(loaded.isDone(2));
+        assertFalse(loaded.isDone(3));
+        assertTrue(loaded.isDone(4));
+        assertEquals(checkpoint.messageId(3), loaded.messageId(3));
+    }
+
+    private static class RecordingClient extends KoppeltaalClient {
+
+        private final List<KoppeltaalBundle> posted = Collections.synchronizedList(new ArrayList<>());
+
+        RecordingClient() {
+            super("https://localhost", "user", "password", Format.XML);
+        }
+
+        @Override
+        public KoppeltaalBundle postMessage(KoppeltaalBundle bundle) {
+            posted.add(bundle);
+            return bundle;
+        }
+    }
+}
@@ -0,0 +1,321 @@
+package nl.headease.koppeltaal;
+
+import nl.koppeltaal.api.Event;
+import nl.koppeltaal.api.KoppeltaalBundle;
+import nl.koppeltaal.api.ResourceURL;
+import nl.koppeltaal.api.model.enums.CarePlanActivityStatus;
+import nl.koppeltaal.api.model.enums.CareTeamStatus;
+import nl.koppeltaal.api.model.enums.MessageKind;
+import nl.koppeltaal.api.model.enums.UrlExtensionField;
+import nl.koppeltaal.api.model.enums.UrlExtensionType;
+import nl.koppeltaal.api.util.UrlBuilder;
+import nl.koppeltaal.api.util.UrlUtil;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.*;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Checks message bundles in memory before they are posted, so bundles that the server (or the receiving application)
+ * will reject do not cost a round trip and retries.
+ * <p>
+ * The rules are compiled once per {@link Event} and per kind of resource (resource type, or the code of an
+ * {@link Other} resource) when the validator is created. A bundle is checked in a single pass over its entries:
+ * <ul>
+ * <li>one MessageHeader with a known event, whose focal resources (data) are in the bundle and of the expected kind
+ * for the event</li>
+ * <li>every entry has an id, versions in ids and references are numbers, and a reference to a resource in the bundle
+ * has the version of that entry</li>
+ * <li>the extensions the connector always sets on UserMessage, CarePlanActivityStatus, CareTeam, ActivityDefinition
+ * and CarePlan activities are present, and coded values are known {@link MessageKind}, {@link CarePlanActivityStatus}
+ * or {@link CareTeamStatus} codes</li>
+ * </ul>
+ * The validator is immutable and can be shared between threads.
+ */
+public class BundleValidator {
+
+    private static final String USER_MESSAGE = "UserMessage";
+    private static final String CARE_TEAM = "CareTeam";
+
+    private final Map<String, Event> events = new HashMap<>();
+    private final Map<Event, String> focalKinds = new EnumMap<>(Event.class);
+    private final Map<String, List<ResourceRule>> resourceRules = new HashMap<>();
+
+    public BundleValidator() {
+        for (Event event : Event.values()) {
+            events.put(event.toString(), event);
+        }
+
+        focalKinds.put(Event.CREATE_OR_UPDATE_PATIENT, ResourceType.Patient.name());
+        focalKinds.put(Event.CREATE_OR_UPDATE_PRACTITIONER, ResourceType.Practitioner.name());
+        focalKinds.put(Event.CREATE_OR_UPDATE_RELATED_PERSON, ResourceType.RelatedPerson.name());
+        focalKinds.put(Event.CREATE_OR_UPDATE_CARE_PLAN, ResourceType.CarePlan.name());
+        focalKinds.put(Event.UPDATE_CARE_PLAN_ACTIVITY_STATUS, UrlUtil.TYPE__CARE_PLAN_ACTIVITY_STATUS);
+        focalKinds.put(Event.CREATE_OR_UPDATE_USER_MESSAGE, USER_MESSAGE);
+        focalKinds.put(Event.CREATE_OR_UPDATE_ACTIVITY_DEFINITION, UrlUtil.TYPE__ACTIVITY_DEFINITION);
+
+        rule(USER_MESSAGE, codeableConcept(userMessageExtension(UrlExtensionField.MESSAGE_KIND), codes(MessageKind.values(), MessageKind::getValue)));
+        rule(USER_MESSAGE, required(userMessageExtension(UrlExtensionField.FROM)));
+        rule(USER_MESSAGE, required(userMessageExtension(UrlExtensionField.TO)));
+        rule(USER_MESSAGE, required(userMessageExtension(UrlExtensionField.SUBJECT_STRING)));
+        rule(USER_MESSAGE, required(userMessageExtension(UrlExtensionField.CONTENT)));
+
+        rule(UrlUtil.TYPE__CARE_PLAN_ACTIVITY_STATUS, required(UrlUtil.ACTIVITY_STATUS_ACTIVITY_IDENTIFIER_EXTENSION));
+        rule(UrlUtil.TYPE__CARE_PLAN_ACTIVITY_STATUS, coding(UrlUtil.ACTIVITY_STATUS_STATUS_EXTENSION,
+                codes(CarePlanActivityStatus.values(), CarePlanActivityStatus::toCode)));
+
+        rule(CARE_TEAM, coding(UrlUtil.CARE_TEAM_STATUS_EXTENSION, codes(CareTeamStatus.values(), CareTeamStatus::getCode)));
+
+        rule(UrlUtil.TYPE__ACTIVITY_DEFINITION, required(UrlUtil.ACTIVITY_DEFINITION_IDENTIFIER_EXTENSION));
+        rule(UrlUtil.TYPE__ACTIVITY_DEFINITION, required(UrlUtil.ACTIVITY_DEFINITION_ACTIVITY_NAME_EXTENSION));
+        rule(UrlUtil.TYPE__ACTIVITY_DEFINITION, required(UrlUtil.ACTIVITY_DEFINITION_ACTIVITY_KIND_EXTENSION));
+
+        rule(ResourceType.CarePlan.name(), (resource, violations) -> {
+            final List<CarePlan.CarePlanActivityComponent> activities = ((CarePlan) resource).getActivity();
+            for (int i = 0; i < activities.size(); i++) {
+                final List<Extension> extensions = activities.get(i).getExtensions();
+                if (find(extensions, UrlUtil.CARE_PLAN_ACTIVITY_IDENTIFIER_EXTENSION) == null) {
+                    violations.add("Activity " + i + " requires extension: " + UrlUtil.CARE_PLAN_ACTIVITY_IDENTIFIER_EXTENSION);
+                }
+                if (find(extensions, UrlUtil.CARE_PLAN_ACTIVITY_DEFINITION_EXTENSION) == null) {
+                    violations.add("Activity " + i + " requires extension: " + UrlUtil.CARE_PLAN_ACTIVITY_DEFINITION_EXTENSION);
+                }
+            }
+        });
+    }
+
+    /**
+     * @throws InvalidBundleException with all violations when the bundle is not valid
+     */
+    public void check(KoppeltaalBundle bundle) {
+        check(bundle.getFeed());
+    }
+
+    public void check(AtomFeed feed) {
+        final List<String> violations = validate(feed);
+        if (!violations.isEmpty()) {
+            throw new InvalidBundleException(violations);
+        }
+    }
+
+    /**
+     * @return the violations, empty when the bundle is valid
+     */
+    public List<String> validate(AtomFeed feed) {
+        final List<String> violations = new ArrayList<>(0);
+        final Map<String, AtomEntry<? extends Resource>> entries = new HashMap<>();
+        MessageHeader header = null;
+
+        for (AtomEntry<? extends Resource> entry : feed.getEntryList()) {
+            final String id = entry.getId();
+            if (StringUtils.isBlank(id)) {
+                violations.add("Entry without id: " + kind(entry.getResource()));
+                continue;
+            }
+            checkVersion(id, violations);
+            entries.put(ResourceVersionRegistry.withoutVersion(id), entry);
+
+            final Resource resource = entry.getResource();
+            if (resource instanceof MessageHeader) {
+                if (header != null) {
+                    violations.add("More than one MessageHeader: " + id);
+                }
+                header = (MessageHeader) resource;
+            } else if (resource != null) {
+                final List<ResourceRule> rules = resourceRules.get(kind(resource));
+                if (rules != null) {
+                    final int before = violations.size();
+                    for (ResourceRule rule : rules) {
+                        rule.check(resource, violations);
+                    }
+                    prefix(violations, before, id);
+                }
+            }
+        }
+
+        if (header == null) {
+            violations.add("MessageHeader is required");
+            return violations;
+        }
+
+        final Event event = header.getEvent() == null || !UrlUtil.EVENT_CODE_SYSTEM.equals(header.getEvent().getSystemSimple())
+                ? null : events.get(header.getEvent().getCodeSimple());
+        if (event == null) {
+            violations.add("Unknown event: " + (header.getEvent() == null ? null : header.getEvent().getCodeSimple()));
+        }
+
+        final List<ResourceReference> data = header.getData();
+        if (data == null || data.isEmpty()) {
+            violations.add("MessageHeader has no focal resource");
+        } else {
+            final String focalKind = event == null ? null : focalKinds.get(event);
+            for (ResourceReference reference : data) {
+                final AtomEntry<? extends Resource> focal = checkReference(reference.getReferenceSimple(), entries, violations);
+                if (focal == null) {
+                    violations.add("Focal resource not in bundle: " + reference.getReferenceSimple());
+                } else if (focalKind != null && !focalKind.equals(kind(focal.getResource()))) {
+                    violations.add("Focal resource of " + event + " should be a " + focalKind + ": " + reference.getReferenceSimple());
+                }
+            }
+        }
+
+        for (AtomEntry<? extends Resource> entry : entries.values()) {
+            if (entry.getResource() instanceof CarePlan && ((CarePlan) entry.getResource()).getPatient() != null) {
+                checkReference(((CarePlan) entry.getResource()).getPatient().getReferenceSimple(), entries, violations);
+            }
+        }
+        return violations;
+    }
+
+    /**
+     * Checks the version of the reference, also against the entry in the bundle when the reference has a version.
+     *
+     * @return the referenced entry, null when it is not in the bundle
+     */
+    private static AtomEntry<? extends Resource> checkReference(String reference, Map<String, AtomEntry<? extends Resource>> entries, List<String> violations) {
+        if (StringUtils.isBlank(reference)) {
+            violations.add("Empty reference");
+            return null;
+        }
+        checkVersion(reference, violations);
+
+        final AtomEntry<? extends Resource> entry = entries.get(ResourceVersionRegistry.withoutVersion(reference));
+        if (entry != null) {
+            final String version = version(reference);
+            final String entryVersion = entry.getLinks() != null && entry.getLinks().get("self") != null
+                    ? version(entry.getLinks().get("self")) : version(entry.getId());
+            if (!version.isEmpty() && !entryVersion.isEmpty() && !version.equals(entryVersion)) {
+                violations.add("Reference " + reference + " does not match the version of the entry in the bundle: " + entryVersion);
+            }
+        }
+        return entry;
+    }
+
+    private static String version(String url) {
+        final int separator = url.indexOf(ResourceURL.RESOURCE_VERSION_SEPARATOR);
+        return separator < 0 ? "" : url.substring(separator + ResourceURL.RESOURCE_VERSION_SEPARATOR.length());
+    }
+
+    private static void checkVersion(String url, List<String> violations) {
+        final int separator = url.indexOf(ResourceURL.RESOURCE_VERSION_SEPARATOR);
+        if (separator < 0) {
+            return;
+        }
+        final int start = separator + ResourceURL.RESOURCE_VERSION_SEPARATOR.length();
+        if (start == url.length()) {
+            violations.add("Empty version: " + url);
+            return;
+        }
+        for (int i = start; i < url.length(); i++) {
+            if (!Character.isDigit(url.charAt(i))) {
+                violations.add("Version is not a number: " + url);
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the resource type, or the code of an {@link Other} resource (UserMessage, CareTeam, ...)
+     */
+    private static String kind(Resource resource) {
+        if (resource == null) {
+            return null;
+        }
+        if (resource instanceof Other) {
+            final String code = code(((Other) resource).getCode());
+            return code == null ? ResourceType.Other.name() : code;
+        }
+        return resource.getResourceType().name();
+    }
+
+    private static String code(CodeableConcept concept) {
+        return concept == null || concept.getCoding() == null || concept.getCoding().isEmpty() ? null : concept.getCoding().get(0).getCodeSimple();
+    }
+
+    private static Extension find(List<Extension> extensions, String url) {
+        if (extensions != null) {
+            for (Extension extension : extensions) {
+                if (url.equals(extension.getUrlSimple())) {
+                    return extension;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String userMessageExtension(UrlExtensionField field) {
+        return new UrlBuilder(UrlUtil.KOPPELTAAL_NAMESPACE).setResource(UrlExtensionType.USER_MESSAGE).setField(field).build();
+    }
+
+    private static void prefix(List<String> violations, int from, String id) {
+        for (int i = from; i < violations.size(); i++) {
+            violations.set(i, id + ": " + violations.get(i));
+        }
+    }
+
+    private static <T> Set<String> codes(T[] values, Function<T, String> code) {
+        final Set<String> codes = new HashSet<>();
+        for (T value : values) {
+            codes.add(code.apply(value));
+        }
+        return codes;
+    }
+
+    private void rule(String kind, ResourceRule rule) {
+        resourceRules.computeIfAbsent(kind, k -> new ArrayList<>()).add(rule);
+    }
+
+    private static ResourceRule required(String url) {
+        return (resource, violations) -> {
+            final Extension extension = find(resource.getExtensions(), url);
+            if (extension == null || extension.getValue() == null) {
+                violations.add("Required extension not found: " + url);
+            }
+        };
+    }
+
+    private static ResourceRule coding(String url, Set<String> codes) {
+        return (resource, violations) -> {
+            final Extension extension = find(resource.getExtensions(), url);
+            if (extension == null || !(extension.getValue() instanceof Coding)) {
+                violations.add("Required coding extension not found: " + url);
+            } else if (!codes.contains(((Coding) extension.getValue()).getCodeSimple())) {
+                violations.add("Unknown code " + ((Coding) extension.getValue()).getCodeSimple() + " for: " + url);
+            }
+        };
+    }
+
+    private static ResourceRule codeableConcept(String url, Set<String> codes) {
+        return (resource, violations) -> {
+            final Extension extension = find(resource.getExtensions(), url);
+            if (extension == null || !(extension.getValue() instanceof CodeableConcept)) {
+                violations.add("Required extension not found: " + url);
+            } else if (!codes.contains(code((CodeableConcept) extension.getValue()))) {
+                violations.add("Unknown code " + code((CodeableConcept) extension.getValue()) + " for: " + url);
+            }
+        };
+    }
+
+    @FunctionalInterface
+    private interface ResourceRule {
+        void check(Resource resource, List<String> violations);
+    }
+
+    /**
+     * Thrown for a bundle that can never be accepted, so it should not be retried.
+     */
+    public static class InvalidBundleException extends IllegalArgumentException {
+
+        private final List<String> violations;
+
+        InvalidBundleException(List<String> violations) {
+            super("Invalid bundle: " + String.join("; ", violations));
+            this.violations = Collections.unmodifiableList(violations);
+        }
+
+        public List<String> getViolations() {
+            return violations;
+        }
+    }
+}
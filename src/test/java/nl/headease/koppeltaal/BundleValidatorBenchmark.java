@@ -0,0 +1,65 @@
+package nl.headease.koppeltaal;
+
+import org.hl7.fhir.instance.model.AtomFeed;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link BundleValidator#validate(AtomFeed)} for the sample bundles, to check that validating a bundle before
+ * posting it costs microseconds, not a noticeable part of a round trip.
+ * <p>
+ * Run from the IDE or with {@code exec:java}; optional argument: measured seconds per case (default 10).
+ */
+public class BundleValidatorBenchmark {
+
+    private interface Case {
+        int run();
+    }
+
+    public static void main(String[] args) throws Exception {
+        final long seconds = args.length > 0 ? Long.parseLong(args[0]) : 10;
+        final BundleValidator validator = new BundleValidator();
+
+        final AtomFeed carePlan = SampleBundles.newCreateOrUpdateCarePlanBundle(UUID.randomUUID().toString(), "benchmark").getFeed();
+        final AtomFeed activityStatus = SampleBundles.newUpdateCarePlanActivityStatus(UUID.randomUUID().toString(), "benchmark").getFeed();
+        final AtomFeed userMessage = SampleBundles.newUserMessageBundle(UUID.randomUUID().toString(), "benchmark").getFeed();
+        for (AtomFeed feed : new AtomFeed[]{carePlan, activityStatus, userMessage}) {
+            validator.check(feed);
+        }
+
+        System.out.printf("%-24s %12s %12s%n", "case", "ops/s", "us/op");
+
+        measure("care plan", seconds, () -> validator.validate(carePlan).size());
+        measure("activity status", seconds, () -> validator.validate(activityStatus).size());
+        measure("user message", seconds, () -> validator.validate(userMessage).size());
+    }
+
+    private static double measure(String name, long seconds, Case benchmarkCase) {
+        // warm up
+        run(benchmarkCase, TimeUnit.SECONDS.toNanos(Math.max(1, seconds / 2)));
+
+        final long start = System.nanoTime();
+        final long operations = run(benchmarkCase, TimeUnit.SECONDS.toNanos(seconds));
+        final long elapsed = System.nanoTime() - start;
+
+        final double opsPerSecond = operations / (elapsed / 1e9);
+        System.out.printf("%-24s %12.1f %12.2f%n", name, opsPerSecond, elapsed / 1e3 / operations);
+        return opsPerSecond;
+    }
+
+    private static long run(Case benchmarkCase, long durationNanos) {
+        final long end = System.nanoTime() + durationNanos;
+        long operations = 0;
+        int hash = 0;
+        while (System.nanoTime() < end) {
+            hash += benchmarkCase.run();
+            operations++;
+        }
+        // keep the result alive
+        if (hash == 42) {
+            System.out.println();
+        }
+        return operations;
+    }
+}
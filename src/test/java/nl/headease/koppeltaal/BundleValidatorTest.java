@@ -0,0 +1,182 @@
+package nl.headease.koppeltaal;
+
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.testing.http.MockHttpTransport;
+import nl.koppeltaal.api.KoppeltaalBundle;
+import nl.koppeltaal.api.ResourceURL;
+import nl.koppeltaal.api.model.ActivityParams;
+import nl.koppeltaal.api.util.UrlUtil;
+import org.hl7.fhir.instance.model.*;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class BundleValidatorTest {
+
+    private final BundleValidator validator = new BundleValidator();
+
+    @Test
+    public void sampleBundlesAreValid() {
+        assertEquals(0, validator.validate(SampleBundles.newCreateOrUpdateCarePlanBundle(UUID.randomUUID().toString(), "test").getFeed()).size());
+        assertEquals(0, validator.validate(SampleBundles.newUpdateCarePlanActivityStatus(UUID.randomUUID().toString(), "test").getFeed()).size());
+        assertEquals(0, validator.validate(SampleBundles.newUserMessageBundle(UUID.randomUUID().toString(), "test").getFeed()).size());
+    }
+
+    @Test
+    public void reportsMissingMessageKind() {
+        final KoppeltaalBundle bundle = SampleBundles.newUserMessageBundle(UUID.randomUUID().toString(), "test");
+        for (AtomEntry<? extends Resource> entry : bundle.getFeed().getEntryList()) {
+            if (entry.getResource() instanceof Other) {
+                entry.getResource().getExtensions().removeIf(extension -> extension.getUrlSimple().endsWith("#MessageKind"));
+            }
+        }
+
+        try {
+            validator.check(bundle);
+            fail("MessageKind is required");
+        } catch (BundleValidator.InvalidBundleException e) {
+            assertEquals(1, e.getViolations().size());
+            assertTrue(e.getViolations().get(0), e.getViolations().get(0).endsWith("UserMessage#MessageKind"));
+        }
+    }
+
+    @Test
+    public void reportsFocalResourceNotInBundle() {
+        final KoppeltaalBundle bundle = SampleBundles.newUpdateCarePlanActivityStatus(UUID.randomUUID().toString(), "test");
+        bundle.getFeed().getEntryList().removeIf(entry -> entry.getResource() instanceof Other);
+
+        final List<String> violations = validator.validate(bundle.getFeed());
+        assertEquals(1, violations.size());
+        assertTrue(violations.get(0), violations.get(0).startsWith("Focal resource not in bundle"));
+    }
+
+    @Test
+    public void reportsReferenceToAnotherVersion() {
+        final KoppeltaalBundle bundle = SampleBundles.newUpdateCarePlanActivityStatus(UUID.randomUUID().toString(), "test");
+        final AtomEntry<? extends Resource> focal = focal(bundle);
+        final String url = ResourceVersionRegistry.withoutVersion(focal.getId());
+        focal.setId(url + ResourceURL.RESOURCE_VERSION_SEPARATOR + "2");
+        focal.getLinks().put("self", url + ResourceURL.RESOURCE_VERSION_SEPARATOR + "2");
+        header(bundle).getData().get(0).setReferenceSimple(url + ResourceURL.RESOURCE_VERSION_SEPARATOR + "1");
+
+        final List<String> violations = validator.validate(bundle.getFeed());
+        assertEquals(1, violations.size());
+        assertTrue(violations.get(0), violations.get(0).contains("does not match the version of the entry"));
+    }
+
+    @Test
+    public void reportsVersionThatIsNotANumber() {
+        final KoppeltaalBundle bundle = SampleBundles.newUpdateCarePlanActivityStatus(UUID.randomUUID().toString(), "test");
+        final AtomEntry<? extends Resource> focal = focal(bundle);
+        final String url = ResourceVersionRegistry.withoutVersion(focal.getId());
+        focal.setId(url + ResourceURL.RESOURCE_VERSION_SEPARATOR + "latest");
+        focal.getLinks().remove("self");
+        header(bundle).getData().get(0).setReferenceSimple(url);
+
+        final List<String> violations = validator.validate(bundle.getFeed());
+        assertEquals(1, violations.size());
+        assertTrue(violations.get(0), violations.get(0).startsWith("Version is not a number"));
+    }
+
+    @Test
+    public void reportsUnknownActivityStatus() {
+        final KoppeltaalBundle bundle = SampleBundles.newUpdateCarePlanActivityStatus(UUID.randomUUID().toString(), "test");
+        ((Coding) extension(focal(bundle).getResource(), UrlUtil.ACTIVITY_STATUS_STATUS_EXTENSION).getValue()).setCodeSimple("Paused");
+
+        final List<String> violations = validator.validate(bundle.getFeed());
+        assertEquals(1, violations.size());
+        assertTrue(violations.get(0), violations.get(0).contains("Unknown code Paused for: " + UrlUtil.ACTIVITY_STATUS_STATUS_EXTENSION));
+    }
+
+    @Test
+    public void reportsUnknownCareTeamStatus() {
+        final ActivityParams activity = new ActivityParams(UUID.randomUUID().toString(), UUID.randomUUID().toString(), "Active",
+                new DateAndTime(new Date()), new ArrayList<>(), null);
+        final Identifier careTeamIdentifier = new Identifier();
+        careTeamIdentifier.setValueSimple(UUID.randomUUID().toString());
+        final KoppeltaalBundle bundle = SampleBundles.newCreateOrUpdateCarePlanBundle(UUID.randomUUID().toString(), "test", activity, careTeamIdentifier);
+        for (AtomEntry<? extends Resource> entry : bundle.getFeed().getEntryList()) {
+            final Extension status = extension(entry.getResource(), UrlUtil.CARE_TEAM_STATUS_EXTENSION);
+            if (status != null) {
+                ((Coding) status.getValue()).setCodeSimple("disbanded");
+            }
+        }
+
+        final List<String> violations = validator.validate(bundle.getFeed());
+        assertEquals(1, violations.size());
+        assertTrue(violations.get(0), violations.get(0).contains("Unknown code disbanded for: " + UrlUtil.CARE_TEAM_STATUS_EXTENSION));
+    }
+
+    @Test
+    public void reportsDuplicateMessageHeader() {
+        final KoppeltaalBundle bundle = SampleBundles.newUserMessageBundle(UUID.randomUUID().toString(), "test");
+        final AtomEntry<MessageHeader> duplicate = new AtomEntry<>();
+        duplicate.setId(ResourceURL.create(BaseTest.BASE_URL, ResourceType.MessageHeader, UUID.randomUUID().toString()));
+        duplicate.setResource(header(bundle));
+        bundle.getFeed().getEntryList().add(duplicate);
+
+        final List<String> violations = validator.validate(bundle.getFeed());
+        assertEquals(1, violations.size());
+        assertTrue(violations.get(0), violations.get(0).startsWith("More than one MessageHeader"));
+    }
+
+    @Test
+    public void clientDoesNotPostInvalidBundle() throws Exception {
+        final AtomicInteger requests = new AtomicInteger();
+        final MockHttpTransport server = new MockHttpTransport() {
+            @Override
+            public LowLevelHttpRequest buildRequest(String method, String url) throws IOException {
+                requests.incrementAndGet();
+                return super.buildRequest(method, url);
+            }
+        };
+        final KoppeltaalBundle bundle = SampleBundles.newUpdateCarePlanActivityStatus(UUID.randomUUID().toString(), "test");
+        bundle.getFeed().getEntryList().removeIf(entry -> entry.getResource() instanceof Other);
+
+        try (ExtendedKoppeltaalClient client = ExtendedKoppeltaalClient.builder("https://localhost", "user", "password")
+                .transport(server)
+                .validator(validator)
+                .build()) {
+            client.postMessage(bundle, new Conformance());
+            fail("Invalid bundle was posted");
+        } catch (BundleValidator.InvalidBundleException e) {
+            assertTrue(e.getViolations().get(0), e.getViolations().get(0).startsWith("Focal resource not in bundle"));
+        }
+        assertEquals(0, requests.get());
+    }
+
+    private static AtomEntry<? extends Resource> focal(KoppeltaalBundle bundle) {
+        final String reference = ResourceVersionRegistry.withoutVersion(header(bundle).getData().get(0).getReferenceSimple());
+        for (AtomEntry<? extends Resource> entry : bundle.getFeed().getEntryList()) {
+            if (reference.equals(ResourceVersionRegistry.withoutVersion(entry.getId()))) {
+                return entry;
+            }
+        }
+        throw new AssertionError("Focal resource not in bundle: " + reference);
+    }
+
+    private static MessageHeader header(KoppeltaalBundle bundle) {
+        for (AtomEntry<? extends Resource> entry : bundle.getFeed().getEntryList()) {
+            if (entry.getResource() instanceof MessageHeader) {
+                return (MessageHeader) entry.getResource();
+            }
+        }
+        throw new AssertionError("MessageHeader not in bundle");
+    }
+
+    private static Extension extension(Resource resource, String url) {
+        for (Extension extension : resource.getExtensions()) {
+            if (url.equals(extension.getUrlSimple())) {
+                return extension;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,338 @@
+package nl.headease.koppeltaal;
+
+import nl.koppeltaal.api.Event;
+import nl.koppeltaal.api.KoppeltaalBundle;
+import nl.koppeltaal.api.KoppeltaalClient;
+import nl.koppeltaal.api.KoppeltaalMessageHeader;
+import nl.koppeltaal.api.ProcessingStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link Flow.Publisher} of claimed messages that claims only as many messages as its subscribers requested, so a
+ * slow pipeline does not leave claimed messages waiting (and timing out) in front of it.
+ * <p>
+ * Every subscriber gets its own subscription; subscribers compete for the messages in the mailbox, a message is
+ * claimed for one of them. When the mailbox is empty, or the server could not be reached, the subscription claims
+ * again after {@code idleBackoff} as long as there is demand. The stream completes when the publisher is closed.
+ * <p>
+ * A message that is claimed but cannot be fetched (or admitted to the memory budget) is set back to NEW.
+ * <p>
+ * The subscriber acknowledges every message with {@link ClaimedMessage#complete()} or
+ * {@link ClaimedMessage#fail(Throwable)} when it is done with it, which sets the status to SUCCESS or FAILED on the
+ * server.
+ * <p>
+ * With a {@link MemoryBudget} the subscriptions stop claiming while the budget is in use, and large messages that wait
+ * for the subscriber can be spilled to disk, see {@link MemoryBudget#admit}.
+ */
+public class ClaimedMessagePublisher implements Flow.Publisher<ClaimedMessagePublisher.ClaimedMessage>, Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ClaimedMessagePublisher.class);
+
+    private final KoppeltaalClient client;
+    private final String patientUrl;
+    private final Event event;
+    private final Duration idleBackoff;
+    private final MemoryBudget memoryBudget;
+    private final ScheduledExecutorService executor;
+    private final Set<ClaimSubscription> subscriptions = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean closed;
+
+    /**
+     * Publishes all new messages.
+     */
+    public ClaimedMessagePublisher(KoppeltaalClient client, Duration idleBackoff, int threads) {
+        this(client, null, null, idleBackoff, threads);
+    }
+
+    /**
+     * Publishes the new messages for the patient and/or of the event.
+     *
+     * @param patientUrl null for the messages of all patients
+     * @param event      null for the messages of all events
+     * @param threads    number of threads that claim messages and call the subscribers, for all subscriptions
+     */
+    public ClaimedMessagePublisher(KoppeltaalClient client, String patientUrl, Event event, Duration idleBackoff, int threads) {
+        this(client, patientUrl, event, idleBackoff, threads, null);
+    }
+
+    /**
+     * @param memoryBudget claiming waits while the budget is in use, null to only limit on demand
+     */
+    public ClaimedMessagePublisher(KoppeltaalClient client, String patientUrl, Event event, Duration idleBackoff, int threads, MemoryBudget memoryBudget) {
+        this.client = client;
+        this.patientUrl = patientUrl;
+        this.event = event;
+        this.idleBackoff = idleBackoff;
+        this.memoryBudget = memoryBudget;
+        this.executor = Executors.newScheduledThreadPool(threads);
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ClaimedMessage> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber");
+        }
+
+        final ClaimSubscription subscription = new ClaimSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+        if (closed) {
+            subscription.cancel();
+            subscriber.onError(new IllegalStateException("Publisher is closed"));
+            return;
+        }
+        subscriptions.add(subscription);
+    }
+
+    /**
+     * Stops claiming and completes the subscriptions. Messages that were already published stay CLAIMED until they are
+     * acknowledged.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (ClaimSubscription subscription : subscriptions) {
+            subscription.drain(0);
+        }
+
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param reservation the provisional reservation of the claim, null without memory budget
+     * @return the next claimed message, null when there is none
+     */
+    private ClaimedMessage claim(MemoryBudget.Reservation reservation) throws IOException {
+        final KoppeltaalBundle claimed = patientUrl == null && event == null ? client.getNextNewAndClaim() : client.getNextNewAndClaim(patientUrl, event);
+        if (claimed.getFeed().getEntryList().isEmpty()) {
+            return null;
+        }
+
+        final KoppeltaalMessageHeader header = claimed.getMessageHeader();
+        try {
+            // the claim normally returns the complete message, only fetch when it returned the header alone
+            final KoppeltaalBundle bundle = claimed.getFeed().getEntryList().size() > 1 ? claimed : client.getMessageBundleByHeader(header);
+            if (reservation == null) {
+                return new ClaimedMessage(bundle, null, header);
+            }
+            final long contentLength = client instanceof ExtendedKoppeltaalClient ? ((ExtendedKoppeltaalClient) client).getLastContentLength() : -1;
+            return new ClaimedMessage(null, memoryBudget.admit(reservation, bundle, contentLength), header);
+        } catch (IOException | RuntimeException e) {
+            unclaim(header, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Sets a message that could not be published back to NEW, so it is claimed again instead of staying CLAIMED.
+     */
+    private void unclaim(KoppeltaalMessageHeader header, Exception cause) {
+        try {
+            client.updateMessageStatus(header, ProcessingStatus.NEW);
+        } catch (IOException | RuntimeException e) {
+            cause.addSuppressed(e);
+        }
+    }
+
+    /**
+     * Claims while there is demand. Runs on the executor, one drain at a time per subscription, so the subscriber is
+     * signalled serially.
+     */
+    private final class ClaimSubscription implements Flow.Subscription, Runnable {
+
+        private final Flow.Subscriber<? super ClaimedMessage> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger work = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile Throwable error;
+
+        ClaimSubscription(Flow.Subscriber<? super ClaimedMessage> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                error = new IllegalArgumentException("Requested number of messages must be positive: " + n);
+            } else {
+                demand.accumulateAndGet(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+            }
+            drain(0);
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            subscriptions.remove(this);
+        }
+
+        void drain(long delayMillis) {
+            if (work.getAndIncrement() == 0) {
+                schedule(delayMillis);
+            }
+        }
+
+        private void schedule(long delayMillis) {
+            try {
+                executor.schedule(this, delayMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // closed, the drain that is running completes the subscriber
+                work.set(0);
+            }
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                if (terminate()) {
+                    return;
+                }
+                while (demand.get() > 0 && !cancelled && !closed) {
+                    final MemoryBudget.Reservation reservation = memoryBudget == null ? null : memoryBudget.tryReservation();
+                    if (memoryBudget != null && reservation == null) {
+                        work.set(1);
+                        schedule(idleBackoff.toMillis());
+                        return;
+                    }
+
+                    ClaimedMessage message;
+                    try {
+                        message = claim(reservation);
+                    } catch (IOException | RuntimeException e) {
+                        LOG.warn("Unable to claim next message", e);
+                        message = null;
+                    } finally {
+                        // replaced by the admission of the claimed message, released when nothing was claimed
+                        if (reservation != null) {
+                            reservation.close();
+                        }
+                    }
+                    if (message == null) {
+                        // keep the work count, so requests in the mean time do not start a second drain
+                        work.set(1);
+                        schedule(idleBackoff.toMillis());
+                        return;
+                    }
+
+                    demand.decrementAndGet();
+                    subscriber.onNext(message);
+                }
+                if (terminate()) {
+                    return;
+                }
+                missed = work.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        /**
+         * @return true when the subscription ended, after the subscriber was signalled
+         */
+        private boolean terminate() {
+            if (cancelled) {
+                return true;
+            }
+            if (error != null) {
+                cancel();
+                subscriber.onError(error);
+                return true;
+            }
+            if (closed) {
+                cancel();
+                subscriber.onComplete();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A claimed message, to be acknowledged once. Its reservation in the memory budget is released when it was
+     * acknowledged.
+     */
+    public final class ClaimedMessage {
+
+        private final KoppeltaalBundle bundle;
+        private final MemoryBudget.Admission admission;
+        private final KoppeltaalMessageHeader header;
+        private final AtomicBoolean acknowledged = new AtomicBoolean();
+
+        ClaimedMessage(KoppeltaalBundle bundle, MemoryBudget.Admission admission, KoppeltaalMessageHeader header) {
+            this.bundle = bundle;
+            this.admission = admission;
+            this.header = header;
+        }
+
+        /**
+         * @throws UncheckedIOException when a spilled message could not be read back
+         */
+        public KoppeltaalBundle getBundle() {
+            if (admission == null) {
+                return bundle;
+            }
+            try {
+                return admission.getBundle();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        public String getMessageId() {
+            return MessageLatencyTracker.getMessageId(header);
+        }
+
+        /**
+         * Sets the status to SUCCESS, does nothing when the message was already acknowledged.
+         */
+        public void complete() throws IOException {
+            acknowledge(ProcessingStatus.SUCCESS);
+        }
+
+        /**
+         * Sets the status to FAILED, does nothing when the message was already acknowledged.
+         */
+        public void fail(Throwable cause) throws IOException {
+            LOG.warn("Processing failed for message: " + getMessageId(), cause);
+            acknowledge(ProcessingStatus.FAILED);
+        }
+
+        private void acknowledge(ProcessingStatus status) throws IOException {
+            if (acknowledged.compareAndSet(false, true)) {
+                try {
+                    client.updateMessageStatus(header, status);
+                } catch (IOException | RuntimeException e) {
+                    // allow a retry
+                    acknowledged.set(false);
+                    throw e;
+                }
+                if (admission != null) {
+                    admission.close();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package nl.headease.koppeltaal;
+
+import nl.koppeltaal.api.*;
+import org.hl7.fhir.instance.model.AtomEntry;
+import org.hl7.fhir.instance.model.AtomFeed;
+import org.hl7.fhir.instance.model.MessageHeader;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class ClaimedMessagePublisherTest {
+
+    @Test
+    public void claimsOnlyWhenRequested() throws Exception {
+        final EmptyMailboxClient client = new EmptyMailboxClient();
+        final RecordingSubscriber subscriber = new RecordingSubscriber();
+
+        try (ClaimedMessagePublisher publisher = new ClaimedMessagePublisher(client, null, Event.CREATE_OR_UPDATE_CARE_PLAN, Duration.ofMillis(10), 2)) {
+            publisher.subscribe(subscriber);
+            Thread.sleep(100);
+            assertEquals(0, client.claims.get());
+
+            subscriber.subscription.request(1);
+            client.claimed.await(5, TimeUnit.SECONDS);
+            assertEquals(Event.CREATE_OR_UPDATE_CARE_PLAN, client.event.get());
+        }
+
+        // the mailbox stays empty, the demand is never met and the stream completes on close
+        assertTrue(subscriber.completed.await(5, TimeUnit.SECONDS));
+        assertEquals(0, subscriber.messages.get());
+        assertNull(subscriber.error.get());
+    }
+
+    @Test
+    public void invalidRequestEndsSubscription() throws Exception {
+        final EmptyMailboxClient client = new EmptyMailboxClient();
+        final RecordingSubscriber subscriber = new RecordingSubscriber();
+
+        try (ClaimedMessagePublisher publisher = new ClaimedMessagePublisher(client, Duration.ofMillis(10), 1)) {
+            publisher.subscribe(subscriber);
+            subscriber.subscription.request(0);
+            assertTrue(subscriber.completed.await(5, TimeUnit.SECONDS));
+        }
+
+        assertTrue(subscriber.error.get() instanceof IllegalArgumentException);
+        assertEquals(0, client.claims.get());
+    }
+
+    @Test
+    public void deliversRequestedMessagesAndAcknowledgesThemOnce() throws Exception {
+        final MailboxClient client = new MailboxClient(message("1", true), message("2", true), message("3", true));
+        final RecordingSubscriber subscriber = new RecordingSubscriber();
+
+        try (ClaimedMessagePublisher publisher = new ClaimedMessagePublisher(client, Duration.ofMillis(10), 2)) {
+            publisher.subscribe(subscriber);
+            subscriber.subscription.request(2);
+            assertTrue(subscriber.delivered.await(5, TimeUnit.SECONDS));
+            Thread.sleep(50);
+        }
+
+        assertEquals(2, subscriber.messages.get());
+        assertEquals(1, client.mailbox.size());
+        final ClaimedMessagePublisher.ClaimedMessage first = subscriber.items.get(0);
+        final ClaimedMessagePublisher.ClaimedMessage second = subscriber.items.get(1);
+        assertEquals("1", first.getMessageId());
+        assertEquals(2, first.getBundle().getFeed().getEntryList().size());
+
+        first.complete();
+        first.complete();
+        first.fail(new IllegalStateException("too late"));
+        second.fail(new IllegalStateException("handler failed"));
+        second.complete();
+
+        assertEquals(List.of("1=SUCCESS", "2=FAILED"), client.statusUpdates);
+    }
+
+    @Test
+    public void failedAcknowledgementCanBeRetried() throws Exception {
+        final MailboxClient client = new MailboxClient(message("1", true));
+        client.failNextStatusUpdate = true;
+        final RecordingSubscriber subscriber = new RecordingSubscriber();
+
+        try (ClaimedMessagePublisher publisher = new ClaimedMessagePublisher(client, Duration.ofMillis(10), 1)) {
+            publisher.subscribe(subscriber);
+            subscriber.subscription.request(1);
+            assertTrue(subscriber.delivered.await(5, TimeUnit.SECONDS));
+        }
+
+        final ClaimedMessagePublisher.ClaimedMessage message = subscriber.items.get(0);
+        try {
+            message.complete();
+            fail("Expected the status update to fail");
+        } catch (IOException expected) {
+        }
+        message.complete();
+
+        assertEquals(List.of("1=SUCCESS"), client.statusUpdates);
+    }
+
+    @Test
+    public void messageThatCannotBeFetchedIsSetBackToNew() throws Exception {
+        // only the header is claimed, the fetch of the complete message fails
+        final MailboxClient client = new MailboxClient(message("1", false));
+        final RecordingSubscriber subscriber = new RecordingSubscriber();
+
+        try (ClaimedMessagePublisher publisher = new ClaimedMessagePublisher(client, Duration.ofMillis(10), 1)) {
+            publisher.subscribe(subscriber);
+            subscriber.subscription.request(1);
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (client.statusUpdates.isEmpty() && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+        }
+
+        assertEquals(0, subscriber.messages.get());
+        assertEquals("1=NEW", client.statusUpdates.get(0));
+    }
+
+    /**
+     * @param complete false for a claim that only returns the message header
+     */
+    private static KoppeltaalBundle message(String messageId, boolean complete) {
+        final MessageHeader messageHeader = new MessageHeader();
+        messageHeader.setIdentifierSimple(messageId);
+        final AtomEntry<MessageHeader> headerEntry = new AtomEntry<>();
+        headerEntry.setId("https://localhost/FHIR/Koppeltaal/MessageHeader/" + messageId);
+        headerEntry.setResource(messageHeader);
+
+        final AtomFeed feed = new AtomFeed();
+        feed.getEntryList().add(headerEntry);
+        if (complete) {
+            feed.getEntryList().add(new AtomEntry<MessageHeader>());
+        }
+        return new KoppeltaalBundle(feed);
+    }
+
+    private static class MailboxClient extends KoppeltaalClient {
+
+        private final Queue<KoppeltaalBundle> mailbox = new ConcurrentLinkedQueue<>();
+        private final List<String> statusUpdates = Collections.synchronizedList(new ArrayList<>());
+        private volatile boolean failNextStatusUpdate;
+
+        MailboxClient(KoppeltaalBundle... messages) {
+            super("https://localhost", "user", "password", Format.XML);
+            Collections.addAll(mailbox, messages);
+        }
+
+        @Override
+        public KoppeltaalBundle getNextNewAndClaim() {
+            final KoppeltaalBundle message = mailbox.poll();
+            return message == null ? new KoppeltaalBundle(new AtomFeed()) : message;
+        }
+
+        @Override
+        public KoppeltaalBundle getMessageBundleByHeader(KoppeltaalMessageHeader header) throws IOException {
+            throw new IOException("Connection reset");
+        }
+
+        @Override
+        public void updateMessageStatus(KoppeltaalMessageHeader header, ProcessingStatus status) throws IOException {
+            if (failNextStatusUpdate) {
+                failNextStatusUpdate = false;
+                throw new IOException("Connection reset");
+            }
+            statusUpdates.add(MessageLatencyTracker.getMessageId(header) + "=" + status.name());
+        }
+    }
+
+    private static class EmptyMailboxClient extends KoppeltaalClient {
+
+        private final AtomicInteger claims = new AtomicInteger();
+        private final AtomicReference<Event> event = new AtomicReference<>();
+        private final CountDownLatch claimed = new CountDownLatch(3);
+
+        EmptyMailboxClient() {
+            super("https://localhost", "user", "password", Format.XML);
+        }
+
+        @Override
+        public KoppeltaalBundle getNextNewAndClaim() {
+            return getNextNewAndClaim(null, null);
+        }
+
+        @Override
+        public KoppeltaalBundle getNextNewAndClaim(String patientUrl, Event event) {
+            this.event.set(event);
+            claims.incrementAndGet();
+            claimed.countDown();
+            return new KoppeltaalBundle(new AtomFeed());
+        }
+    }
+
+    private static class RecordingSubscriber implements Flow.Subscriber<ClaimedMessagePublisher.ClaimedMessage> {
+
+        private final AtomicInteger messages = new AtomicInteger();
+        private final List<ClaimedMessagePublisher.ClaimedMessage> items = Collections.synchronizedList(new ArrayList<>());
+        private final CountDownLatch delivered = new CountDownLatch(1);
+        private final AtomicReference<Throwable> error = new AtomicReference<>();
+        private final CountDownLatch completed = new CountDownLatch(1);
+        private volatile Flow.Subscription subscription;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(ClaimedMessagePublisher.ClaimedMessage item) {
+            items.add(item);
+            messages.incrementAndGet();
+            delivered.countDown();
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error.set(throwable);
+            completed.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            completed.countDown();
+        }
+    }
+}
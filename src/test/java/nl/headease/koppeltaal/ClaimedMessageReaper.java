@@ -0,0 +1,285 @@
+package nl.headease.koppeltaal;
+
+import nl.koppeltaal.api.GetMessageParameters;
+import nl.koppeltaal.api.KoppeltaalBundle;
+import nl.koppeltaal.api.KoppeltaalClient;
+import nl.koppeltaal.api.KoppeltaalMessageHeader;
+import nl.koppeltaal.api.ProcessingStatus;
+import org.hl7.fhir.instance.model.DateAndTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Finds messages that stay CLAIMED longer than a lease timeout, e.g. because the consumer that claimed them crashed,
+ * and puts them back to NEW so they are claimed again. A message that was requeued {@code maxRequeues} times is set to
+ * FAILED instead.
+ * <p>
+ * A run first pages through all CLAIMED headers and then updates the stale ones in parallel, so the updates do not
+ * shift the pages that are still to be read. The time of the claim is the updated time of the header entry; when the
+ * server does not return it, the time the reaper first saw the message CLAIMED. Requeue counts are kept in memory and
+ * forgotten when a message is not claimed again within two lease timeouts after it was requeued.
+ */
+public class ClaimedMessageReaper implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ClaimedMessageReaper.class);
+
+    private static final int DEFAULT_PAGE_SIZE = 100;
+
+    private final KoppeltaalClient client;
+    private final Duration leaseTimeout;
+    private final int maxRequeues;
+    private final int pageSize;
+    private final ExecutorService updaters;
+
+    /** message id to time first seen CLAIMED, for headers without updated time */
+    private final Map<String, Long> firstSeen = new ConcurrentHashMap<>();
+    /** message id to number of requeues and time of the last requeue */
+    private final Map<String, long[]> requeues = new ConcurrentHashMap<>();
+
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong scanned = new AtomicLong();
+    private final AtomicLong requeued = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    private ScheduledExecutorService scheduler;
+
+    public ClaimedMessageReaper(KoppeltaalClient client, Duration leaseTimeout, int maxRequeues, int parallelism) {
+        this(client, leaseTimeout, maxRequeues, parallelism, DEFAULT_PAGE_SIZE);
+    }
+
+    /**
+     * @param pageSize number of headers per page, at most {@link MailboxExporter#MAX_PAGE_SIZE}
+     */
+    public ClaimedMessageReaper(KoppeltaalClient client, Duration leaseTimeout, int maxRequeues, int parallelism, int pageSize) {
+        if (pageSize < 1 || pageSize > MailboxExporter.MAX_PAGE_SIZE) {
+            // a short page marks the last page
+            throw new IllegalArgumentException("Page size must be between 1 and " + MailboxExporter.MAX_PAGE_SIZE + ": " + pageSize);
+        }
+        this.client = client;
+        this.leaseTimeout = leaseTimeout;
+        this.maxRequeues = maxRequeues;
+        this.pageSize = pageSize;
+        this.updaters = Executors.newFixedThreadPool(parallelism);
+    }
+
+    /**
+     * Runs the reaper every {@code interval}, until it is closed.
+     */
+    public synchronized void start(Duration interval) {
+        if (scheduler != null) {
+            throw new IllegalStateException("Reaper already started");
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                final Report report = reap();
+                if (report.getRequeued() > 0 || report.getFailed() > 0 || report.getErrors() > 0) {
+                    LOG.info("Reaped claimed messages: " + report);
+                }
+            } catch (Exception e) {
+                LOG.warn("Unable to reap claimed messages", e);
+            }
+        }, 0, interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Requeues or fails the messages claimed longer than the lease timeout ago.
+     */
+    public Report reap() throws IOException {
+        final long start = System.nanoTime();
+        final long now = System.currentTimeMillis();
+
+        final List<KoppeltaalMessageHeader> claimed = findClaimed();
+        final List<KoppeltaalMessageHeader> stale = new ArrayList<>();
+        final Set<String> claimedIds = new HashSet<>();
+        for (KoppeltaalMessageHeader header : claimed) {
+            final String messageId = MessageLatencyTracker.getMessageId(header);
+            claimedIds.add(messageId);
+            if (now - claimedAt(header, messageId, now) >= leaseTimeout.toMillis()) {
+                stale.add(header);
+            }
+        }
+        // forget messages that are no longer claimed
+        firstSeen.keySet().retainAll(claimedIds);
+        requeues.entrySet().removeIf(entry -> !claimedIds.contains(entry.getKey()) && now - entry.getValue()[1] > 2 * leaseTimeout.toMillis());
+
+        final List<Future<ProcessingStatus>> updates = new ArrayList<>(stale.size());
+        for (KoppeltaalMessageHeader header : stale) {
+            updates.add(updaters.submit(() -> release(header)));
+        }
+
+        int requeuedInRun = 0;
+        int failedInRun = 0;
+        int errorsInRun = 0;
+        for (Future<ProcessingStatus> update : updates) {
+            try {
+                if (update.get() == ProcessingStatus.NEW) {
+                    requeuedInRun++;
+                } else {
+                    failedInRun++;
+                }
+            } catch (ExecutionException e) {
+                LOG.warn("Unable to release claimed message", e.getCause());
+                errorsInRun++;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while releasing claimed messages", e);
+            }
+        }
+
+        runs.incrementAndGet();
+        scanned.addAndGet(claimed.size());
+        requeued.addAndGet(requeuedInRun);
+        failed.addAndGet(failedInRun);
+        errors.addAndGet(errorsInRun);
+
+        return new Report(claimed.size(), stale.size(), requeuedInRun, failedInRun, errorsInRun,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    private List<KoppeltaalMessageHeader> findClaimed() throws IOException {
+        final List<KoppeltaalMessageHeader> claimed = new ArrayList<>();
+        for (int page = 1; ; page++) {
+            final GetMessageParameters parameters = new GetMessageParameters();
+            parameters.setProcessingStatus(ProcessingStatus.CLAIMED);
+            parameters.setCount(pageSize);
+            parameters.setPage(page);
+
+            final KoppeltaalBundle bundle = client.getMessageHeaders(parameters);
+            final List<KoppeltaalMessageHeader> headers = bundle.getMessageHeaderEntries();
+            for (KoppeltaalMessageHeader header : headers) {
+                // the status can change between the pages
+                if (header.getProcessingStatus() == ProcessingStatus.CLAIMED) {
+                    claimed.add(header);
+                }
+            }
+            if (headers.size() < pageSize) {
+                return claimed;
+            }
+        }
+    }
+
+    private long claimedAt(KoppeltaalMessageHeader header, String messageId, long now) {
+        final DateAndTime updated = header.getEntry().getUpdated();
+        if (updated != null) {
+            return updated.toCalendar().getTimeInMillis();
+        }
+        return firstSeen.computeIfAbsent(messageId, id -> now);
+    }
+
+    private ProcessingStatus release(KoppeltaalMessageHeader header) throws IOException {
+        final String messageId = MessageLatencyTracker.getMessageId(header);
+        final long[] requeue = requeues.merge(messageId, new long[]{1, System.currentTimeMillis()},
+                (previous, next) -> new long[]{previous[0] + 1, next[1]});
+
+        final ProcessingStatus status = requeue[0] > maxRequeues ? ProcessingStatus.FAILED : ProcessingStatus.NEW;
+        client.updateMessageStatus(header, status);
+
+        firstSeen.remove(messageId);
+        if (status == ProcessingStatus.FAILED) {
+            requeues.remove(messageId);
+            LOG.warn("Message " + messageId + " stayed claimed after " + maxRequeues + " requeues, set to FAILED");
+        }
+        return status;
+    }
+
+    public long getRuns() {
+        return runs.get();
+    }
+
+    public long getScanned() {
+        return scanned.get();
+    }
+
+    public long getRequeued() {
+        return requeued.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        updaters.shutdown();
+        try {
+            if (!updaters.awaitTermination(1, TimeUnit.MINUTES)) {
+                updaters.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            updaters.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The result of one run.
+     */
+    public static class Report {
+
+        private final int claimed;
+        private final int stale;
+        private final int requeued;
+        private final int failed;
+        private final int errors;
+        private final long durationMillis;
+
+        Report(int claimed, int stale, int requeued, int failed, int errors, long durationMillis) {
+            this.claimed = claimed;
+            this.stale = stale;
+            this.requeued = requeued;
+            this.failed = failed;
+            this.errors = errors;
+            this.durationMillis = durationMillis;
+        }
+
+        public int getClaimed() {
+            return claimed;
+        }
+
+        public int getStale() {
+            return stale;
+        }
+
+        public int getRequeued() {
+            return requeued;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        public int getErrors() {
+            return errors;
+        }
+
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "claimed=" + claimed + ", stale=" + stale + ", requeued=" + requeued + ", failed=" + failed
+                    + ", errors=" + errors + ", duration=" + durationMillis + "ms";
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package nl.headease.koppeltaal;
+
+import nl.koppeltaal.api.Format;
+import nl.koppeltaal.api.GetMessageParameters;
+import nl.koppeltaal.api.KoppeltaalBundle;
+import nl.koppeltaal.api.KoppeltaalClient;
+import nl.koppeltaal.api.KoppeltaalMessageHeader;
+import nl.koppeltaal.api.ProcessingStatus;
+import org.hl7.fhir.instance.model.AtomEntry;
+import org.hl7.fhir.instance.model.AtomFeed;
+import org.hl7.fhir.instance.model.DateAndTime;
+import org.hl7.fhir.instance.model.MessageHeader;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.*;
+
+public class ClaimedMessageReaperTest {
+
+    @Test
+    public void requeuesMessagesClaimedLongerThanTheLease() throws Exception {
+        final MailboxClient client = new MailboxClient();
+        client.claim("stale", Duration.ofMinutes(10));
+        client.claim("recent", Duration.ofSeconds(10));
+        client.statuses.put("done", ProcessingStatus.SUCCESS);
+
+        try (ClaimedMessageReaper reaper = new ClaimedMessageReaper(client, Duration.ofMinutes(1), 3, 2)) {
+            final ClaimedMessageReaper.Report report = reaper.reap();
+            assertEquals(2, report.getClaimed());
+            assertEquals(1, report.getStale());
+            assertEquals(1, report.getRequeued());
+        }
+        assertEquals(List.of("stale=NEW"), client.statusUpdates);
+    }
+
+    @Test
+    public void failsMessageThatStaysClaimedAfterMaxRequeues() throws Exception {
+        final MailboxClient client = new MailboxClient();
+
+        try (ClaimedMessageReaper reaper = new ClaimedMessageReaper(client, Duration.ofMinutes(1), 2, 1)) {
+            for (int run = 0; run < 3; run++) {
+                // claimed again by a consumer that crashes
+                client.claim("poison", Duration.ofMinutes(10));
+                reaper.reap();
+            }
+            assertEquals(2, reaper.getRequeued());
+            assertEquals(1, reaper.getFailed());
+        }
+        assertEquals(List.of("poison=NEW", "poison=NEW", "poison=FAILED"), client.statusUpdates);
+    }
+
+    @Test
+    public void readsAllPages() throws Exception {
+        final MailboxClient client = new MailboxClient();
+        for (int i = 0; i < 5; i++) {
+            client.claim(String.valueOf(i), Duration.ofMinutes(10));
+        }
+
+        try (ClaimedMessageReaper reaper = new ClaimedMessageReaper(client, Duration.ofMinutes(1), 3, 2, 2)) {
+            assertEquals(5, reaper.reap().getRequeued());
+        }
+        assertEquals(3, client.pages);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void pageSizeAboveTheLimitOfTheConnectorIsRejected() {
+        new ClaimedMessageReaper(new MailboxClient(), Duration.ofMinutes(1), 3, 1, MailboxExporter.MAX_PAGE_SIZE + 1);
+    }
+
+    /**
+     * Keeps the status of the messages, the headers are returned in the order they were claimed.
+     */
+    private static class MailboxClient extends KoppeltaalClient {
+
+        private final Map<String, ProcessingStatus> statuses = Collections.synchronizedMap(new LinkedHashMap<>());
+        private final Map<String, Date> claimedAt = new ConcurrentHashMap<>();
+        private final List<String> statusUpdates = Collections.synchronizedList(new ArrayList<>());
+        private int pages;
+
+        MailboxClient() {
+            super("https://localhost", "user", "password", Format.XML);
+        }
+
+        void claim(String messageId, Duration ago) {
+            statuses.put(messageId, ProcessingStatus.CLAIMED);
+            claimedAt.put(messageId, new Date(System.currentTimeMillis() - ago.toMillis()));
+        }
+
+        @Override
+        public KoppeltaalBundle getMessageHeaders(GetMessageParameters parameters) {
+            pages++;
+            final List<KoppeltaalMessageHeader> headers = new ArrayList<>();
+            synchronized (statuses) {
+                statuses.forEach((messageId, status) -> {
+                    if (status == parameters.getProcessingStatus()) {
+                        headers.add(header(messageId, status));
+                    }
+                });
+            }
+            final int from = (parameters.getPage() - 1) * parameters.getCount();
+            final List<KoppeltaalMessageHeader> page = headers.subList(Math.min(from, headers.size()), Math.min(from + parameters.getCount(), headers.size()));
+            return new KoppeltaalBundle(new AtomFeed()) {
+                @Override
+                public List<KoppeltaalMessageHeader> getMessageHeaderEntries() {
+                    return page;
+                }
+            };
+        }
+
+        @Override
+        public void updateMessageStatus(KoppeltaalMessageHeader header, ProcessingStatus status) {
+            final String messageId = MessageLatencyTracker.getMessageId(header);
+            statuses.put(messageId, status);
+            statusUpdates.add(messageId + "=" + status.name());
+        }
+
+        private KoppeltaalMessageHeader header(String messageId, ProcessingStatus status) {
+            final MessageHeader messageHeader = new MessageHeader();
+            messageHeader.setIdentifierSimple(messageId);
+            final AtomEntry<MessageHeader> entry = new AtomEntry<>();
+            entry.setId("https://localhost/FHIR/Koppeltaal/MessageHeader/" + messageId);
+            entry.setUpdated(new DateAndTime(claimedAt.get(messageId)));
+            entry.setResource(messageHeader);
+            // the processing status is an extension of the header, set by the server
+            return new KoppeltaalMessageHeader(entry) {
+                @Override
+                public ProcessingStatus getProcessingStatus() {
+                    return status;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package nl.headease.koppeltaal;
+
+/**
+ * The kinds of requests the {@link ExtendedKoppeltaalClient} sends, see {@link ExtendedKoppeltaalClient#classify}.
+ */
+public enum ClientOperation {
+    METADATA,
+    ACTIVITY_DEFINITION,
+    POST_MESSAGE,
+    HEADER_SEARCH,
+    CLAIM,
+    FETCH,
+    STATUS_UPDATE,
+    RESOURCE,
+    OAUTH,
+    OTHER
+}
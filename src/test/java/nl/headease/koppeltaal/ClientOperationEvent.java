@@ -0,0 +1,41 @@
+package nl.headease.koppeltaal;
+
+import jdk.jfr.*;
+
+/**
+ * JFR event for every request of an {@link ExtendedKoppeltaalClient}, see {@link FlightRecorderEvents}.
+ */
+@Name("nl.headease.koppeltaal.ClientOperation")
+@Label("Koppeltaal Client Operation")
+@Category({"Koppeltaal", "Client"})
+@Description("A request of the Koppeltaal client")
+@StackTrace(false)
+public class ClientOperationEvent extends Event {
+
+    @Label("Domain")
+    String domain;
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Message Event")
+    @Description("Event code of the message sent or received")
+    String messageEvent;
+
+    @Label("Patient Hash")
+    String patientHash;
+
+    @Label("Request Bytes")
+    @DataAmount
+    long requestBytes;
+
+    @Label("Response Bytes")
+    @DataAmount
+    long responseBytes;
+
+    @Label("Status Code")
+    int statusCode;
+
+    @Label("Success")
+    boolean success;
+}
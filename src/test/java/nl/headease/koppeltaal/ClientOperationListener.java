@@ -0,0 +1,30 @@
+package nl.headease.koppeltaal;
+
+import com.google.api.client.http.HttpRequest;
+
+import java.io.IOException;
+
+/**
+ * Callbacks around every request sent by an {@link ExtendedKoppeltaalClient}, registered with
+ * {@link ExtendedKoppeltaalClient.Builder#listener(ClientOperationListener)}. Callbacks run on the calling thread.
+ */
+public interface ClientOperationListener {
+
+    /**
+     * Called before the request is sent, may block (e.g. to rate limit) or throw to abort the request.
+     */
+    default void beforeRequest(String domain, ClientOperation operation, HttpRequest request) throws IOException {
+    }
+
+    /**
+     * Called after the response was handled successfully.
+     */
+    default void afterResponse(String domain, ClientOperation operation, HttpRequest request, long durationNanos) {
+    }
+
+    /**
+     * Called when sending the request or handling the response failed.
+     */
+    default void onError(String domain, ClientOperation operation, HttpRequest request, long durationNanos, IOException exception) {
+    }
+}
@@ -0,0 +1,231 @@
+package nl.headease.koppeltaal;
+
+import nl.koppeltaal.api.Format;
+import nl.koppeltaal.api.KoppeltaalBundle;
+import org.hl7.fhir.instance.formats.XmlComposer;
+import org.hl7.fhir.instance.formats.XmlParser;
+import org.hl7.fhir.instance.model.AtomFeed;
+import org.hl7.fhir.instance.model.Conformance;
+import org.hl7.fhir.instance.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Warms up a freshly created client before it handles real traffic:
+ * <ol>
+ *     <li>loads the metadata and activity definitions persisted by a previous start into the client, when available,
+ *     so they are served when the server cannot be reached</li>
+ *     <li>in parallel: opens connections, fetches the metadata and the activity definitions into the client</li>
+ *     <li>composes and parses the {@link SampleBundles} a number of times, to load the FHIR model classes and get the
+ *     parse/compose code paths compiled</li>
+ *     <li>persists the fetched metadata and activity definitions for the next start</li>
+ * </ol>
+ * Enable with {@link ExtendedKoppeltaalClient.Builder#warmUp(ClientWarmUp)}, the client is returned by the builder when
+ * the warm up is done. A failing step is logged and reported, it does not fail the client.
+ */
+public class ClientWarmUp {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ClientWarmUp.class);
+
+    private static final long TIMEOUT_SECONDS = 60;
+
+    private final Path cacheDirectory;
+    private final int connections;
+    private final int cycles;
+
+    /**
+     * @param cacheDirectory directory to persist metadata and activity definitions in, null to not persist
+     * @param connections    number of connections to open
+     * @param cycles         number of compose/parse cycles over the sample bundles
+     */
+    public ClientWarmUp(Path cacheDirectory, int connections, int cycles) {
+        this.cacheDirectory = cacheDirectory;
+        this.connections = connections;
+        this.cycles = cycles;
+    }
+
+    public Report warmUp(ExtendedKoppeltaalClient client) {
+        final Report report = new Report();
+        final long start = System.nanoTime();
+
+        loadFromDisk(client, report);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(connections + 2);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+
+            futures.add(executor.submit(() -> step(report, "metadata", () -> report.conformance = client.refreshMetadata())));
+            futures.add(executor.submit(() -> step(report, "activity definitions", () -> report.activityDefinitions = client.refreshActivityDefinitions().getFeed())));
+
+            // concurrent requests leave their connections in the keep-alive pool
+            for (int i = 0; i < connections; i++) {
+                futures.add(executor.submit(() -> step(report, "connection", client::testAuthentication)));
+            }
+
+            // the model classes are loaded while the requests are in flight
+            step(report, "compose/parse", () -> composeAndParse(client));
+
+            for (Future<?> future : futures) {
+                future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            report.errors.add("interrupted");
+        } catch (ExecutionException | TimeoutException e) {
+            report.errors.add(e.toString());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        saveToDisk(client, report);
+
+        report.durationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        LOG.info("Warm up of {} done in {} ms, steps: {}, errors: {}", client.getServer(), report.durationMillis, report.stepMillis, report.errors);
+        return report;
+    }
+
+    private void composeAndParse(ExtendedKoppeltaalClient client) throws Exception {
+        final JsonFeedCodec codec = new JsonFeedCodec();
+
+        for (int cycle = 0; cycle < cycles; cycle++) {
+            final String messageId = UUID.randomUUID().toString();
+            final List<KoppeltaalBundle> bundles = Arrays.asList(
+                    SampleBundles.newCreateOrUpdateCarePlanBundle(messageId, client.getDomain()),
+                    SampleBundles.newUpdateCarePlanActivityStatus(messageId, client.getDomain()),
+                    SampleBundles.newUserMessageBundle(messageId, client.getDomain()));
+
+            for (KoppeltaalBundle bundle : bundles) {
+                for (Format format : Format.values()) {
+                    final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                    format.getComposer().compose(outputStream, bundle.getFeed(), false);
+                    format.getParser().parseGeneral(new ByteArrayInputStream(outputStream.toByteArray()));
+                }
+
+                final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                codec.compose(outputStream, bundle.getFeed(), false);
+                codec.parse(new ByteArrayInputStream(outputStream.toByteArray()));
+            }
+        }
+    }
+
+    private void loadFromDisk(ExtendedKoppeltaalClient client, Report report) {
+        if (cacheDirectory == null) {
+            return;
+        }
+
+        step(report, "load cache", () -> {
+            final Path metadata = getCacheFile(client, "metadata.xml");
+            if (Files.exists(metadata) && client.getMetadataCache() != null) {
+                client.getMetadataCache().put(client.getServer(), (Conformance) read(metadata));
+            }
+
+            final Path activityDefinitions = getCacheFile(client, "activity-definitions.xml");
+            if (Files.exists(activityDefinitions)) {
+                try (InputStream inputStream = Files.newInputStream(activityDefinitions)) {
+                    client.putActivityDefinitions(new XmlParser().parseGeneral(inputStream).getFeed());
+                }
+            }
+        });
+    }
+
+    private void saveToDisk(ExtendedKoppeltaalClient client, Report report) {
+        if (cacheDirectory == null) {
+            return;
+        }
+
+        step(report, "save cache", () -> {
+            Files.createDirectories(cacheDirectory);
+            if (report.conformance != null) {
+                write(getCacheFile(client, "metadata.xml"), outputStream -> new XmlComposer().compose(outputStream, report.conformance, false));
+            }
+            if (report.activityDefinitions != null) {
+                write(getCacheFile(client, "activity-definitions.xml"), outputStream -> new XmlComposer().compose(outputStream, report.activityDefinitions, false));
+            }
+        });
+    }
+
+    private Path getCacheFile(ExtendedKoppeltaalClient client, String name) {
+        final String server = client.getServer().replaceAll("[^A-Za-z0-9.-]", "_");
+        return cacheDirectory.resolve(server + "-" + name);
+    }
+
+    private static Resource read(Path path) throws Exception {
+        try (InputStream inputStream = Files.newInputStream(path)) {
+            return new XmlParser().parse(inputStream);
+        }
+    }
+
+    private interface Writer {
+        void write(OutputStream outputStream) throws Exception;
+    }
+
+    /**
+     * Writes to a temporary file first, a crash while writing does not leave a broken cache behind.
+     */
+    private static void write(Path path, Writer writer) throws Exception {
+        final Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (OutputStream outputStream = Files.newOutputStream(temporary)) {
+            writer.write(outputStream);
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private interface Step {
+        void run() throws Exception;
+    }
+
+    private static void step(Report report, String name, Step step) {
+        final long start = System.nanoTime();
+        try {
+            step.run();
+        } catch (Exception e) {
+            LOG.warn("Warm up step failed: " + name, e);
+            report.errors.add(name + ": " + e);
+        } finally {
+            report.stepMillis.merge(name, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), Math::max);
+        }
+    }
+
+    public static class Report {
+
+        private final Map<String, Long> stepMillis = new ConcurrentHashMap<>();
+        private final List<String> errors = new CopyOnWriteArrayList<>();
+
+        private volatile Conformance conformance;
+        private volatile AtomFeed activityDefinitions;
+        private long durationMillis;
+
+        public boolean isReady() {
+            return errors.isEmpty();
+        }
+
+        public Map<String, Long> getStepMillis() {
+            return new TreeMap<>(stepMillis);
+        }
+
+        public List<String> getErrors() {
+            return errors;
+        }
+
+        /**
+         * @return the activity definitions fetched from the server, null when the fetch failed
+         */
+        public AtomFeed getActivityDefinitions() {
+            return activityDefinitions;
+        }
+
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+    }
+}
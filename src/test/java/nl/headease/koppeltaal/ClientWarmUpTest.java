@@ -0,0 +1,111 @@
+package nl.headease.koppeltaal;
+
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import nl.koppeltaal.api.Format;
+import org.hl7.fhir.instance.model.Other;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+public class ClientWarmUpTest {
+
+    private static final String METADATA = "{\"resourceType\":\"Conformance\"}";
+    private static final String ACTIVITY_DEFINITIONS = "{\"resourceType\":\"Bundle\",\"entry\":[{\"id\":\"https://localhost/FHIR/Koppeltaal/Other/ActivityDefinition:1\","
+            + "\"content\":{\"resourceType\":\"Other\",\"code\":{\"coding\":[{\"code\":\"ActivityDefinition\"}]}}}]}";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void activityDefinitionsOfTheWarmUpAreServedByTheClient() throws Exception {
+        final Server server = new Server();
+        final ExtendedKoppeltaalClient client = build(server, new ClientWarmUp(null, 0, 0));
+
+        assertTrue(client.getWarmUpReport().getErrors().toString(), client.getWarmUpReport().isReady());
+        assertEquals(1, server.count("ActivityDefinition"));
+        assertEquals(1, client.getActivityDefinitions().getFeed().getEntryList().size());
+        assertEquals(1, client.getActivityDefinitions().getFeed().getEntryList().size());
+        assertEquals(1, server.count("ActivityDefinition"));
+        assertEquals(1, server.count("metadata"));
+        assertNotNull(client.getMetadata());
+        assertEquals(1, server.count("metadata"));
+    }
+
+    @Test
+    public void activityDefinitionsAreFetchedAgainAfterAnActivityDefinitionIsPut() throws Exception {
+        final Server server = new Server();
+        final ExtendedKoppeltaalClient client = build(server, new ClientWarmUp(null, 0, 0));
+
+        client.putResource(new Other(), "https://localhost/FHIR/Koppeltaal/Other/ActivityDefinition:1", null);
+        client.getActivityDefinitions();
+        assertEquals(2, server.count("code=ActivityDefinition"));
+    }
+
+    @Test
+    public void cachedMetadataIsServedWhenTheServerCannotBeReached() throws Exception {
+        final Path cacheDirectory = folder.newFolder().toPath();
+        final Server server = new Server();
+        build(server, new ClientWarmUp(cacheDirectory, 0, 0));
+
+        // the next start fetches again, also with the metadata on disk
+        final Server next = new Server();
+        build(next, new ClientWarmUp(cacheDirectory, 0, 0));
+        assertEquals(1, next.count("metadata"));
+
+        final Server down = new Server();
+        down.status = 503;
+        final ExtendedKoppeltaalClient client = build(down, new ClientWarmUp(cacheDirectory, 0, 0));
+        assertFalse(client.getWarmUpReport().isReady());
+        assertNull(client.getWarmUpReport().getActivityDefinitions());
+        final int requests = down.requests.size();
+        assertNotNull(client.getMetadata());
+        assertEquals(1, client.getActivityDefinitions().getFeed().getEntryList().size());
+        assertEquals(requests, down.requests.size());
+    }
+
+    private static ExtendedKoppeltaalClient build(Server server, ClientWarmUp warmUp) {
+        return ExtendedKoppeltaalClient.builder("https://localhost", "user", "password")
+                .format(Format.JSON)
+                .jsonFeedCodec(true)
+                .transport(server)
+                .warmUp(warmUp)
+                .build();
+    }
+
+    private static class Server extends MockHttpTransport {
+
+        private final List<String> requests = new CopyOnWriteArrayList<>();
+        private volatile int status = 200;
+
+        @Override
+        public LowLevelHttpRequest buildRequest(String method, String url) {
+            requests.add(method + " " + url);
+            return new MockLowLevelHttpRequest(url) {
+                @Override
+                public LowLevelHttpResponse execute() throws IOException {
+                    getContentAsString();
+                    final MockLowLevelHttpResponse response = new MockLowLevelHttpResponse().setStatusCode(status).setContentType(Format.JSON.getMediaType());
+                    if (!"GET".equals(method)) {
+                        response.addHeader("Location", url + "/_history/2");
+                    }
+                    return response.setContent(url.contains("metadata") ? METADATA : url.contains("ActivityDefinition") ? ACTIVITY_DEFINITIONS : "{}");
+                }
+            };
+        }
+
+        int count(String url) {
+            return (int) requests.stream().filter(request -> request.startsWith("GET ") && request.contains(url)).count();
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package nl.headease.koppeltaal;
+
+import jdk.jfr.*;
+
+/**
+ * JFR event for every stage of a message processed by the {@link MailboxConsumer}: claim, fetch, handler and ack, see
+ * {@link FlightRecorderEvents}. The client requests within a stage are recorded as {@link ClientOperationEvent}s.
+ */
+@Name("nl.headease.koppeltaal.ConsumerStage")
+@Label("Koppeltaal Consumer Stage")
+@Category({"Koppeltaal", "Consumer"})
+@Description("A stage of a message processed by the mailbox consumer")
+@StackTrace(false)
+public class ConsumerStageEvent extends Event {
+
+    @Label("Stage")
+    String stage;
+
+    @Label("Message Id")
+    String messageId;
+
+    @Label("Message Event")
+    String messageEvent;
+
+    @Label("Patient Hash")
+    String patientHash;
+
+    @Label("Success")
+    boolean success;
+}
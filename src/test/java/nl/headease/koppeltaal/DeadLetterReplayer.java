@@ -0,0 +1,158 @@
+package nl.headease.koppeltaal;
+
+import nl.koppeltaal.api.KoppeltaalBundle;
+import nl.koppeltaal.api.KoppeltaalClient;
+import nl.koppeltaal.api.ProcessingStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.Predicate;
+
+/**
+ * Replays dead letters from a {@link DeadLetterStore} through a {@link MessageHandler}, e.g. after the bug that made
+ * them fail was fixed. Messages are replayed in parallel, at a maximum rate.
+ * <p>
+ * A message that is handled successfully is removed from the store and, when a client is given, set to SUCCESS on the
+ * server. A message that fails again stays in the store with the new error and one more attempt. A message is marked
+ * handled before its status is updated, when the update fails the next replay only updates the status.
+ */
+public class DeadLetterReplayer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DeadLetterReplayer.class);
+
+    private final DeadLetterStore store;
+    private final MessageHandler handler;
+    private final KoppeltaalClient client;
+    private final int parallelism;
+    private final double ratePerSecond;
+
+    /**
+     * @param client        updates the status of replayed messages on the server, null to leave it FAILED
+     * @param ratePerSecond the maximum number of messages replayed per second
+     */
+    public DeadLetterReplayer(DeadLetterStore store, MessageHandler handler, KoppeltaalClient client, int parallelism, double ratePerSecond) {
+        this.store = store;
+        this.handler = handler;
+        this.client = client;
+        this.parallelism = parallelism;
+        this.ratePerSecond = ratePerSecond;
+    }
+
+    /**
+     * Replays the matching dead letters, oldest failure first.
+     */
+    public Report replay(Predicate<DeadLetterStore.DeadLetter> filter) throws IOException {
+        final long start = System.nanoTime();
+        final List<DeadLetterStore.DeadLetter> deadLetters = store.find(filter);
+        final TokenBucket rateLimit = new TokenBucket(ratePerSecond, Math.max(1, parallelism));
+
+        final ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            final List<Future<Boolean>> replays = new ArrayList<>(deadLetters.size());
+            for (DeadLetterStore.DeadLetter deadLetter : deadLetters) {
+                replays.add(executor.submit(() -> {
+                    rateLimit.acquire();
+                    return replay(deadLetter);
+                }));
+            }
+
+            final Report report = new Report(deadLetters.size());
+            for (Future<Boolean> replay : replays) {
+                try {
+                    if (replay.get()) {
+                        report.succeeded++;
+                    } else {
+                        report.failed++;
+                    }
+                } catch (ExecutionException e) {
+                    LOG.warn("Unable to replay dead letter", e.getCause());
+                    report.errors++;
+                }
+            }
+            report.durationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            LOG.info("Replayed dead letters: " + report);
+            return report;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while replaying dead letters");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return false when the handler failed again
+     */
+    private boolean replay(DeadLetterStore.DeadLetter deadLetter) throws IOException {
+        final KoppeltaalBundle bundle = store.load(deadLetter);
+        if (!deadLetter.isHandled()) {
+            try {
+                handler.handle(bundle);
+            } catch (Exception e) {
+                LOG.debug("Replay failed for message: " + deadLetter.getMessageId(), e);
+                store.add(bundle, e);
+                return false;
+            }
+        }
+
+        if (client != null) {
+            if (!deadLetter.isHandled()) {
+                store.markHandled(deadLetter.getMessageId());
+            }
+            client.updateMessageStatus(bundle.getMessageHeader(), ProcessingStatus.SUCCESS);
+        }
+        store.remove(deadLetter.getMessageId());
+        return true;
+    }
+
+    public static class Report {
+
+        private final int selected;
+        private int succeeded;
+        private int failed;
+        private int errors;
+        private long durationMillis;
+
+        Report(int selected) {
+            this.selected = selected;
+        }
+
+        public int getSelected() {
+            return selected;
+        }
+
+        public int getSucceeded() {
+            return succeeded;
+        }
+
+        /**
+         * @return the number of messages the handler failed on again
+         */
+        public int getFailed() {
+            return failed;
+        }
+
+        /**
+         * @return the number of messages that could not be loaded, or of which the status could not be updated; those
+         * are marked handled and not handled again by the next replay
+         */
+        public int getErrors() {
+            return errors;
+        }
+
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "selected=" + selected + ", succeeded=" + succeeded + ", failed=" + failed + ", errors=" + errors
+                    + ", duration=" + durationMillis + "ms";
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package nl.headease.koppeltaal;
+
+import nl.koppeltaal.api.Format;
+import nl.koppeltaal.api.KoppeltaalClient;
+import nl.koppeltaal.api.KoppeltaalMessageHeader;
+import nl.koppeltaal.api.ProcessingStatus;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class DeadLetterReplayerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replayedMessagesAreAcknowledgedAndRemoved() throws Exception {
+        final DeadLetterStore store = new DeadLetterStore(folder.getRoot().toPath());
+        store.add(DeadLetterStoreTest.message("1"), new IOException("Connection reset"));
+        store.add(DeadLetterStoreTest.message("2"), new IOException("Connection reset"));
+        final StatusClient client = new StatusClient();
+
+        final DeadLetterReplayer.Report report = new DeadLetterReplayer(store, bundle -> {
+            if ("2".equals(MessageLatencyTracker.getMessageId(bundle.getMessageHeader()))) {
+                throw new IllegalStateException("Still broken");
+            }
+        }, client, 2, 1000).replay(deadLetter -> true);
+
+        assertEquals(1, report.getSucceeded());
+        assertEquals(1, report.getFailed());
+        assertEquals(List.of("1=SUCCESS"), client.statusUpdates);
+        assertFalse(store.get("1").isPresent());
+        assertEquals(2, store.get("2").orElseThrow().getAttempts());
+    }
+
+    @Test
+    public void messageIsNotHandledAgainWhenTheAcknowledgementFailed() throws Exception {
+        final DeadLetterStore store = new DeadLetterStore(folder.getRoot().toPath());
+        store.add(DeadLetterStoreTest.message("1"), new IOException("Connection reset"));
+        final StatusClient client = new StatusClient();
+        client.failures.set(1);
+        final AtomicInteger handled = new AtomicInteger();
+        final DeadLetterReplayer replayer = new DeadLetterReplayer(store, bundle -> handled.incrementAndGet(), client, 1, 1000);
+
+        final DeadLetterReplayer.Report first = replayer.replay(deadLetter -> true);
+        assertEquals(1, first.getErrors());
+        assertTrue(store.get("1").orElseThrow().isHandled());
+
+        // also after a restart
+        final DeadLetterReplayer.Report second = new DeadLetterReplayer(new DeadLetterStore(folder.getRoot().toPath()),
+                bundle -> handled.incrementAndGet(), client, 1, 1000).replay(deadLetter -> true);
+        assertEquals(1, second.getSucceeded());
+        assertEquals(1, handled.get());
+        assertEquals(List.of("1=SUCCESS"), client.statusUpdates);
+    }
+
+    private static class StatusClient extends KoppeltaalClient {
+
+        private final List<String> statusUpdates = Collections.synchronizedList(new ArrayList<>());
+        private final AtomicInteger failures = new AtomicInteger();
+
+        StatusClient() {
+            super("https://localhost", "user", "password", Format.XML);
+        }
+
+        @Override
+        public void updateMessageStatus(KoppeltaalMessageHeader header, ProcessingStatus status) throws IOException {
+            if (failures.getAndDecrement() > 0) {
+                throw new IOException("Connection reset");
+            }
+            statusUpdates.add(MessageLatencyTracker.getMessageId(header) + "=" + status.name());
+        }
+    }
+}
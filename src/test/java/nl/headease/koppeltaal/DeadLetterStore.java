@@ -0,0 +1,275 @@
+package nl.headease.koppeltaal;
+
+import nl.koppeltaal.api.KoppeltaalBundle;
+import org.hl7.fhir.instance.formats.XmlComposer;
+import org.hl7.fhir.instance.formats.XmlParser;
+import org.hl7.fhir.instance.model.Coding;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Local store of messages that failed, to investigate and replay them with {@link DeadLetterReplayer}.
+ * <p>
+ * Every message is kept in two files in the directory: the bundle as gzip compressed XML and a properties file with
+ * the message id, event, last error, number of attempts and whether a replay handled it. The properties are indexed in
+ * memory when the store is opened, so finding dead letters does not read the bundles.
+ */
+public class DeadLetterStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DeadLetterStore.class);
+
+    private static final String BUNDLE_SUFFIX = ".xml.gz";
+    private static final String PROPERTIES_SUFFIX = ".properties";
+    private static final int LOCK_STRIPES = 64;
+
+    private final Path directory;
+    private final ConcurrentMap<String, DeadLetter> index = new ConcurrentHashMap<>();
+    /** serializes writes of the same message */
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    public DeadLetterStore(Path directory) throws IOException {
+        this.directory = directory;
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+        Files.createDirectories(directory);
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + PROPERTIES_SUFFIX)) {
+            for (Path file : files) {
+                try {
+                    final DeadLetter deadLetter = readProperties(file);
+                    index.put(deadLetter.messageId, deadLetter);
+                } catch (IOException | RuntimeException e) {
+                    LOG.warn("Skipping unreadable dead letter: " + file, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stores a failed message, or updates the error and attempts when it is already stored.
+     */
+    public DeadLetter add(KoppeltaalBundle bundle, Throwable error) throws IOException {
+        final String messageId = MessageLatencyTracker.getMessageId(bundle.getMessageHeader());
+        if (messageId == null) {
+            // the message id names the files and is the key to replay and remove the dead letter
+            throw new IllegalArgumentException("Unable to store a message without id", error);
+        }
+        final Coding event = bundle.getEvent();
+        final Instant now = Instant.now();
+
+        synchronized (lock(messageId)) {
+            final DeadLetter previous = index.get(messageId);
+            final DeadLetter deadLetter = new DeadLetter(messageId, event == null ? null : event.getCodeSimple(), String.valueOf(error),
+                    previous == null ? 1 : previous.attempts + 1, previous == null ? now : previous.firstFailed, now, false);
+
+            final String fileName = fileName(messageId);
+            write(directory.resolve(fileName + BUNDLE_SUFFIX), outputStream -> {
+                try (OutputStream gzip = new GZIPOutputStream(outputStream)) {
+                    new XmlComposer().compose(gzip, bundle.getFeed(), false);
+                }
+            });
+            write(directory.resolve(fileName + PROPERTIES_SUFFIX), outputStream -> deadLetter.toProperties().store(outputStream, null));
+
+            index.put(messageId, deadLetter);
+            return deadLetter;
+        }
+    }
+
+    public Optional<DeadLetter> get(String messageId) {
+        return messageId == null ? Optional.empty() : Optional.ofNullable(index.get(messageId));
+    }
+
+    /**
+     * Marks a dead letter as handled by a replay whose status is not yet updated on the server, so the message is not
+     * handled again when that update fails.
+     *
+     * @return the marked dead letter, empty when it is not stored
+     */
+    public Optional<DeadLetter> markHandled(String messageId) throws IOException {
+        if (messageId == null) {
+            return Optional.empty();
+        }
+        synchronized (lock(messageId)) {
+            final DeadLetter previous = index.get(messageId);
+            if (previous == null) {
+                return Optional.empty();
+            }
+            final DeadLetter deadLetter = new DeadLetter(previous.messageId, previous.event, previous.error, previous.attempts,
+                    previous.firstFailed, previous.lastFailed, true);
+            write(directory.resolve(fileName(messageId) + PROPERTIES_SUFFIX), outputStream -> deadLetter.toProperties().store(outputStream, null));
+            index.put(messageId, deadLetter);
+            return Optional.of(deadLetter);
+        }
+    }
+
+    /**
+     * @return the matching dead letters, oldest failure first
+     */
+    public List<DeadLetter> find(Predicate<DeadLetter> filter) {
+        return index.values().stream()
+                .filter(filter)
+                .sorted(Comparator.comparing(DeadLetter::getFirstFailed))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Reads the bundle of a dead letter.
+     */
+    public KoppeltaalBundle load(DeadLetter deadLetter) throws IOException {
+        try (InputStream inputStream = new GZIPInputStream(Files.newInputStream(directory.resolve(fileName(deadLetter.messageId) + BUNDLE_SUFFIX)))) {
+            return new KoppeltaalBundle(new XmlParser().parseGeneral(inputStream).getFeed());
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Unable to parse dead letter: " + deadLetter.messageId, e);
+        }
+    }
+
+    /**
+     * Removes a dead letter, e.g. after a successful replay.
+     */
+    public void remove(String messageId) throws IOException {
+        if (messageId == null) {
+            return;
+        }
+        synchronized (lock(messageId)) {
+            final String fileName = fileName(messageId);
+            // the properties first, a crash in between leaves an unindexed bundle instead of a dead letter without bundle
+            Files.deleteIfExists(directory.resolve(fileName + PROPERTIES_SUFFIX));
+            Files.deleteIfExists(directory.resolve(fileName + BUNDLE_SUFFIX));
+            index.remove(messageId);
+        }
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    private Object lock(String messageId) {
+        return locks[(messageId.hashCode() & Integer.MAX_VALUE) % locks.length];
+    }
+
+    private static String fileName(String messageId) {
+        return messageId.replaceAll("[^A-Za-z0-9.-]", "_") + "-" + Integer.toHexString(messageId.hashCode());
+    }
+
+    private static DeadLetter readProperties(Path file) throws IOException {
+        final Properties properties = new Properties();
+        try (InputStream inputStream = Files.newInputStream(file)) {
+            properties.load(inputStream);
+        }
+        return new DeadLetter(properties.getProperty("messageId"), properties.getProperty("event"), properties.getProperty("error"),
+                Integer.parseInt(properties.getProperty("attempts")), Instant.parse(properties.getProperty("firstFailed")),
+                Instant.parse(properties.getProperty("lastFailed")), Boolean.parseBoolean(properties.getProperty("handled")));
+    }
+
+    private interface Writer {
+        void write(OutputStream outputStream) throws Exception;
+    }
+
+    /**
+     * Writes to a temporary file first, a crash while writing does not leave a broken file behind.
+     */
+    private static void write(Path path, Writer writer) throws IOException {
+        final Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (OutputStream outputStream = new BufferedOutputStream(Files.newOutputStream(temporary))) {
+            writer.write(outputStream);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Unable to write dead letter: " + path, e);
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static class DeadLetter {
+
+        private final String messageId;
+        private final String event;
+        private final String error;
+        private final int attempts;
+        private final Instant firstFailed;
+        private final Instant lastFailed;
+        private final boolean handled;
+
+        DeadLetter(String messageId, String event, String error, int attempts, Instant firstFailed, Instant lastFailed, boolean handled) {
+            this.messageId = messageId;
+            this.event = event;
+            this.error = error;
+            this.attempts = attempts;
+            this.firstFailed = firstFailed;
+            this.lastFailed = lastFailed;
+            this.handled = handled;
+        }
+
+        public String getMessageId() {
+            return messageId;
+        }
+
+        /**
+         * @return the event code, e.g. {@code CreateOrUpdateCarePlan}
+         */
+        public String getEvent() {
+            return event;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        public Instant getFirstFailed() {
+            return firstFailed;
+        }
+
+        public Instant getLastFailed() {
+            return lastFailed;
+        }
+
+        /**
+         * @return true when a replay handled the message, but could not update its status on the server
+         */
+        public boolean isHandled() {
+            return handled;
+        }
+
+        private Properties toProperties() {
+            final Properties properties = new Properties();
+            properties.setProperty("messageId", messageId);
+            if (event != null) {
+                properties.setProperty("event", event);
+            }
+            properties.setProperty("error", error);
+            properties.setProperty("attempts", String.valueOf(attempts));
+            properties.setProperty("firstFailed", firstFailed.toString());
+            properties.setProperty("lastFailed", lastFailed.toString());
+            if (handled) {
+                properties.setProperty("handled", "true");
+            }
+            return properties;
+        }
+
+        @Override
+        public String toString() {
+            return messageId + " (" + event + ", attempts=" + attempts + "): " + error;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package nl.headease.koppeltaal;
+
+import nl.koppeltaal.api.KoppeltaalBundle;
+import org.hl7.fhir.instance.model.AtomEntry;
+import org.hl7.fhir.instance.model.AtomFeed;
+import org.hl7.fhir.instance.model.MessageHeader;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class DeadLetterStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void deadLettersAreKeptWhenTheStoreIsReopened() throws Exception {
+        final Path directory = folder.getRoot().toPath().resolve("dead-letters");
+        final DeadLetterStore store = new DeadLetterStore(directory);
+        store.add(message("1"), new IOException("Connection reset"));
+        store.add(message("2"), new IllegalStateException("No care plan"));
+        final DeadLetterStore.DeadLetter again = store.add(message("1"), new IOException("Read timed out"));
+
+        assertEquals(2, again.getAttempts());
+        assertEquals("java.io.IOException: Read timed out", again.getError());
+        assertFalse(again.getFirstFailed().isAfter(again.getLastFailed()));
+
+        final DeadLetterStore reopened = new DeadLetterStore(directory);
+        assertEquals(2, reopened.size());
+        final DeadLetterStore.DeadLetter deadLetter = reopened.get("1").orElseThrow();
+        assertEquals(2, deadLetter.getAttempts());
+        assertEquals(again.getFirstFailed(), deadLetter.getFirstFailed());
+        assertEquals("1", MessageLatencyTracker.getMessageId(reopened.load(deadLetter).getMessageHeader()));
+    }
+
+    @Test
+    public void findsOldestFailureFirst() throws Exception {
+        final DeadLetterStore store = new DeadLetterStore(folder.getRoot().toPath());
+        store.add(message("1"), new IOException("Connection reset"));
+        Thread.sleep(5);
+        store.add(message("2"), new IllegalStateException("No care plan"));
+        Thread.sleep(5);
+        store.add(message("3"), new IllegalStateException("No patient"));
+
+        assertEquals(List.of("1", "2", "3"), ids(store.find(deadLetter -> true)));
+        assertEquals(List.of("2", "3"), ids(store.find(deadLetter -> deadLetter.getError().startsWith("java.lang.IllegalStateException"))));
+    }
+
+    @Test
+    public void removedDeadLettersAreGoneAfterReopening() throws Exception {
+        final Path directory = folder.getRoot().toPath();
+        final DeadLetterStore store = new DeadLetterStore(directory);
+        store.add(message("1"), new IOException("Connection reset"));
+        store.add(message("2"), new IOException("Connection reset"));
+        store.markHandled("2");
+
+        store.remove("1");
+        store.remove("unknown");
+        assertFalse(store.get("1").isPresent());
+
+        final DeadLetterStore reopened = new DeadLetterStore(directory);
+        assertEquals(List.of("2"), ids(reopened.find(deadLetter -> true)));
+        assertTrue(reopened.get("2").orElseThrow().isHandled());
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(2, files.count());
+        }
+    }
+
+    @Test
+    public void messageWithoutIdIsRejected() throws Exception {
+        final DeadLetterStore store = new DeadLetterStore(folder.getRoot().toPath());
+        try {
+            store.add(message(null), new IOException("Connection reset"));
+            fail("Message without id was stored");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(0, store.size());
+        assertFalse(store.get(null).isPresent());
+        store.remove(null);
+    }
+
+    static KoppeltaalBundle message(String messageId) {
+        final MessageHeader messageHeader = new MessageHeader();
+        messageHeader.setIdentifierSimple(messageId);
+        final AtomEntry<MessageHeader> headerEntry = new AtomEntry<>();
+        headerEntry.setId("https://localhost/FHIR/Koppeltaal/MessageHeader/" + messageId);
+        headerEntry.setResource(messageHeader);
+
+        final AtomFeed feed = new AtomFeed();
+        feed.getEntryList().add(headerEntry);
+        return new KoppeltaalBundle(feed);
+    }
+
+    private static List<String> ids(List<DeadLetterStore.DeadLetter> deadLetters) {
+        return deadLetters.stream().map(DeadLetterStore.DeadLetter::getMessageId).collect(Collectors.toList());
+    }
+}
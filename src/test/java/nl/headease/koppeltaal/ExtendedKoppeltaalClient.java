@@ -0,0 +1,739 @@
+package nl.headease.koppeltaal;
+
+import com.google.api.client.http.AbstractHttpContent;
+import com.google.api.client.http.GZipEncoding;
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpTransport;
+import jdk.jfr.EventType;
+import nl.koppeltaal.api.*;
+import nl.koppeltaal.api.responsehandler.AtomFeedResponseHandler;
+import nl.koppeltaal.api.responsehandler.ResponseHandler;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.formats.XmlComposer;
+import org.hl7.fhir.instance.model.AtomEntry;
+import org.hl7.fhir.instance.model.AtomFeed;
+import org.hl7.fhir.instance.model.Coding;
+import org.hl7.fhir.instance.model.Conformance;
+import org.hl7.fhir.instance.model.Resource;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * {@link KoppeltaalClient} with optional behaviour on top of the connector, configured through {@link Builder}.
+ * <p>
+ * Request bodies for posted messages, posted and put resources and message status updates are composed straight into
+ * the request stream ({@link FhirStreamingContent}), so no String or byte array copy of the payload is kept in memory.
+ * Bodies can optionally be gzip compressed.
+ * <p>
+ * With {@link Builder#jsonFeedCodec(boolean)} and {@link Format#JSON} bundles are parsed and composed with the
+ * {@link JsonFeedCodec}, which also reads {@code totalResults}.
+ * <p>
+ * With {@link Builder#stringInterner(StringInterner)} the urls, codes and references in received feeds are interned,
+ * by the {@link JsonFeedCodec} while it parses, otherwise after the FHIR parser is done.
+ * <p>
+ * Clients can share an {@link HttpTransport} and a {@link MetadataCache}, see {@link KoppeltaalClientRegistry}. A
+ * shared transport is not shut down when the client is closed.
+ * <p>
+ * Every request is classified as a {@link ClientOperation} and passed to the registered
+ * {@link ClientOperationListener}s, e.g. an {@link AdaptiveRateLimiter}. With {@link Builder#phaseTimer(RequestPhaseTimer)}
+ * the time of every request is split into phases (network, server, parsing). Every request is also recorded as a
+ * {@link ClientOperationEvent} in Java Flight Recordings, when the event is enabled.
+ * <p>
+ * With {@link Builder#warmUp(ClientWarmUp)} the builder returns the client after connections are opened, the metadata
+ * and activity definitions are fetched and the FHIR parsers and composers are warmed up. The client then keeps the
+ * activity definitions for ten minutes, until it posts or puts a resource or posts an activity definition message.
+ * <p>
+ * With {@link Builder#wireCapture(WireCapture)} recent requests and responses are captured, tagged with the ids of the
+ * messages that were sent or received. With {@link Builder#trafficRecorder(TrafficRecorder)} all exchanges are recorded,
+ * for a {@link TrafficReplayer}.
+ * <p>
+ * With {@link Builder#versionRegistry(ResourceVersionRegistry)} the resource versions returned by the server are
+ * recorded. Puts of a resource send the latest known version ({@code Content-Location}), and posted messages and puts
+ * that update an older version fail with a {@link ResourceVersionRegistry.ConflictException} before they are sent.
+ * <p>
+ * With {@link Builder#validator(BundleValidator)} posted messages are validated first, an invalid bundle fails with a
+ * {@link BundleValidator.InvalidBundleException} without a request to the server.
+ */
+public class ExtendedKoppeltaalClient extends KoppeltaalClient {
+
+    /** media type the connector uses for resources posted or put with {@code createHttpPost/Put(Resource, ...)} */
+    private static final String RESOURCE_MEDIA_TYPE = "application/fhir+xml";
+
+    /** createHttpTransport() is called from the super constructor, before the fields of this class are set */
+    private static final ThreadLocal<Builder> CONSTRUCTING = new ThreadLocal<>();
+
+    private static final Duration WARM_UP_TIME_TO_LIVE = Duration.ofMinutes(10);
+
+    /** id of the message sent by the request being created, tagged on the captured exchange after execution */
+    private static final ThreadLocal<String> SENT_MESSAGE_ID = new ThreadLocal<>();
+
+    /** header of the message sent by the request being created, for the {@link ClientOperationEvent} */
+    private static final ThreadLocal<KoppeltaalMessageHeader> SENT_HEADER = new ThreadLocal<>();
+
+    /** Content-Length of the last message claimed or fetched by the thread, for the {@link MemoryBudget} */
+    private static final ThreadLocal<Long> LAST_CONTENT_LENGTH = ThreadLocal.withInitial(() -> -1L);
+
+    private static final EventType CLIENT_OPERATION_EVENT = EventType.getEventType(ClientOperationEvent.class);
+
+    private final boolean gzip;
+    private final JsonFeedCodec jsonFeedCodec;
+    private final boolean sharedTransport;
+    private final MetadataCache metadataCache;
+    private final String domain;
+    private final List<ClientOperationListener> listeners;
+    private final WireCapture wireCapture;
+    private final ResourceVersionRegistry versionRegistry;
+    private final BundleValidator validator;
+    private final StringInterner stringInterner;
+    private final boolean cacheActivityDefinitions;
+    private ClientWarmUp.Report warmUpReport;
+
+    /** the activity definitions and the time they were loaded, only kept with {@link Builder#warmUp(ClientWarmUp)} */
+    private volatile CachedFeed activityDefinitions;
+
+    protected ExtendedKoppeltaalClient(Builder builder) {
+        super(builder.server, builder.username, builder.password, builder.format);
+        this.gzip = builder.gzip;
+        this.sharedTransport = builder.transport != null;
+        this.metadataCache = builder.metadataCache;
+        this.domain = builder.domain;
+        this.listeners = new ArrayList<>(builder.listeners);
+        this.wireCapture = builder.wireCapture;
+        this.versionRegistry = builder.versionRegistry;
+        this.validator = builder.validator;
+        this.stringInterner = builder.stringInterner;
+        this.cacheActivityDefinitions = builder.warmUp != null;
+        this.jsonFeedCodec = builder.jsonFeedCodec && builder.format == Format.JSON ? new JsonFeedCodec(builder.stringInterner) : null;
+    }
+
+    public static Builder builder(String server, String username, String password) {
+        return new Builder(server, username, password);
+    }
+
+    @Override
+    protected HttpTransport createHttpTransport() {
+        final Builder builder = CONSTRUCTING.get();
+        if (builder == null) {
+            return FlightRecorderEvents.wrap(super.createHttpTransport());
+        }
+        HttpTransport transport = builder.transport != null ? builder.transport
+                : builder.phaseTimer != null ? builder.phaseTimer.newTransport() : super.createHttpTransport();
+        if (builder.phaseTimer != null) {
+            transport = builder.phaseTimer.wrap(transport);
+        }
+        transport = FlightRecorderEvents.wrap(transport);
+        if (builder.trafficRecorder != null) {
+            transport = builder.trafficRecorder.wrap(transport);
+        }
+        if (builder.wireCapture != null) {
+            return builder.wireCapture.wrap(transport);
+        }
+        return transport;
+    }
+
+    @Override
+    public Conformance getMetadata() throws IOException {
+        if (metadataCache == null) {
+            return super.getMetadata();
+        }
+        return metadataCache.get(getServer(), super::getMetadata);
+    }
+
+    /**
+     * Fetches the metadata from the server, also when it is cached, and caches it.
+     */
+    Conformance refreshMetadata() throws IOException {
+        final Conformance conformance = super.getMetadata();
+        if (metadataCache != null) {
+            metadataCache.put(getServer(), conformance);
+        }
+        return conformance;
+    }
+
+    /**
+     * @return the activity definitions, kept by a client built with {@link Builder#warmUp(ClientWarmUp)}; the feed is
+     * shared by the callers and should not be changed
+     */
+    @Override
+    public KoppeltaalBundle getActivityDefinitions() throws IOException {
+        final CachedFeed cached = activityDefinitions;
+        if (cached != null && System.nanoTime() - cached.loadedAt < WARM_UP_TIME_TO_LIVE.toNanos()) {
+            return new KoppeltaalBundle(cached.feed);
+        }
+        return refreshActivityDefinitions();
+    }
+
+    /**
+     * Fetches the activity definitions from the server, also when they are kept, and keeps them.
+     */
+    KoppeltaalBundle refreshActivityDefinitions() throws IOException {
+        final KoppeltaalBundle bundle = super.getActivityDefinitions();
+        putActivityDefinitions(bundle.getFeed());
+        return bundle;
+    }
+
+    /**
+     * Keeps activity definitions loaded elsewhere, e.g. from disk.
+     */
+    void putActivityDefinitions(AtomFeed feed) {
+        if (cacheActivityDefinitions) {
+            activityDefinitions = new CachedFeed(feed);
+        }
+    }
+
+    /**
+     * @return the server url, also the key of the conformance statement in the {@link MetadataCache}
+     */
+    public String getServer() {
+        return serverUri.toString();
+    }
+
+    /**
+     * @return the Content-Length of the last message claimed or fetched by the calling thread, -1 when unknown (chunked)
+     * or when the response was compressed, the length then says little about the size of the message
+     */
+    public long getLastContentLength() {
+        return LAST_CONTENT_LENGTH.get();
+    }
+
+    public MetadataCache getMetadataCache() {
+        return metadataCache;
+    }
+
+    /**
+     * @return the report of the warm up, null when the client was built without {@link Builder#warmUp(ClientWarmUp)}
+     */
+    public ClientWarmUp.Report getWarmUpReport() {
+        return warmUpReport;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!sharedTransport) {
+            super.close();
+        }
+    }
+
+    @Override
+    protected HttpRequest createPostMessage(KoppeltaalBundle bundle, OAuthTokenDetails tokenDetails, Conformance conformance) throws KoppeltaalException, IOException {
+        if (validator != null) {
+            validator.check(bundle);
+        }
+        final String mailboxUrl = getMailboxUrl(conformance);
+        checkSchemeMatchesServerScheme(mailboxUrl);
+        setSentMessageId(bundle.getMessageHeader());
+        if (versionRegistry != null) {
+            checkLatestVersions(bundle.getFeed());
+        }
+
+        final HttpRequest request = createHttpPost(mailboxUrl, tokenDetails, null);
+        if (jsonFeedCodec != null) {
+            return setContent(request, new JsonFeedContent(format.getMediaType(), jsonFeedCodec, bundle.getFeed()));
+        }
+        return setContent(request, new FhirStreamingContent(format.getMediaType(), format.getComposer(), bundle.getFeed(), false));
+    }
+
+    @Override
+    protected KoppeltaalBundle internalPostMessage(KoppeltaalBundle bundle, OAuthTokenDetails tokenDetails, Conformance conformance) throws IOException, KoppeltaalException {
+        try {
+            return super.internalPostMessage(bundle, tokenDetails, conformance);
+        } finally {
+            clearSentMessage();
+            if (bundle.getEvent() != null && Event.CREATE_OR_UPDATE_ACTIVITY_DEFINITION.toString().equals(bundle.getEvent().getCodeSimple())) {
+                activityDefinitions = null;
+            }
+        }
+    }
+
+    @Override
+    public Resource postResource(Resource resource, String url, OAuthTokenDetails tokenDetails) throws IOException {
+        try {
+            return super.postResource(resource, url, tokenDetails);
+        } finally {
+            // activity definitions are resources as well
+            activityDefinitions = null;
+        }
+    }
+
+    @Override
+    protected HttpRequest createHttpPost(Resource resource, String url, OAuthTokenDetails tokenDetails) {
+        final HttpRequest request = createHttpPost(url, tokenDetails, null);
+        return setContent(request, new FhirStreamingContent(RESOURCE_MEDIA_TYPE, new XmlComposer(), resource, true));
+    }
+
+    @Override
+    public Resource putResource(Resource resource, String url, OAuthTokenDetails tokenDetails) throws IOException {
+        if (versionRegistry != null) {
+            versionRegistry.checkLatest(url);
+        }
+        try {
+            return super.putResource(resource, url, tokenDetails);
+        } finally {
+            activityDefinitions = null;
+        }
+    }
+
+    @Override
+    protected HttpRequest createHttpPut(Resource resource, String url, OAuthTokenDetails tokenDetails) {
+        final HttpRequest request = createHttpPut(url, tokenDetails);
+        if (versionRegistry != null) {
+            final String versionedUrl = versionRegistry.versioned(url);
+            if (!versionedUrl.equals(url)) {
+                // version aware update
+                request.getHeaders().set("Content-Location", versionedUrl);
+            }
+        }
+        return setContent(request, new FhirStreamingContent(RESOURCE_MEDIA_TYPE, new XmlComposer(), resource, true));
+    }
+
+    @Override
+    protected HttpRequest createUpdateMessageStatusRequest(KoppeltaalMessageHeader header, ProcessingStatus status, OAuthTokenDetails tokenDetails) {
+        header.setProcessingStatus(status);
+        setSentMessageId(header);
+
+        final HttpRequest request = createHttpPut(header.getEntry().getId(), tokenDetails);
+        return setContent(request, new FhirStreamingContent(format.getMediaType(), format.getComposer(), header.getEntry().getResource(), false));
+    }
+
+    @Override
+    protected void internalUpdateMessageStatus(KoppeltaalMessageHeader header, ProcessingStatus status, OAuthTokenDetails tokenDetails) throws IOException {
+        try {
+            super.internalUpdateMessageStatus(header, status, tokenDetails);
+        } finally {
+            clearSentMessage();
+        }
+    }
+
+    @Override
+    protected <T> T handle(HttpRequest request, ResponseHandler<T> handler) throws IOException {
+        final ClientOperation operation = classify(request);
+        return execute(operation, request, () -> super.handle(request, recordContentLength(operation, replaceResponseHandler(operation, request, handler))));
+    }
+
+    @Override
+    protected <T> T handle(HttpRequest request, ResponseHandler<T> handler, Coding event) throws IOException {
+        // only used to post messages
+        return execute(ClientOperation.POST_MESSAGE, request, () -> super.handle(request, replaceResponseHandler(ClientOperation.POST_MESSAGE, request, handler), event));
+    }
+
+    /**
+     * Determines the operation from the method and url of the request.
+     */
+    protected ClientOperation classify(HttpRequest request) {
+        final String method = request.getRequestMethod();
+        final String url = request.getUrl().build();
+
+        if ("GET".equals(method)) {
+            if (url.startsWith(metaDataUrl)) {
+                return ClientOperation.METADATA;
+            }
+            if (url.startsWith(activityDefinitionUrl)) {
+                return ClientOperation.ACTIVITY_DEFINITION;
+            }
+            if (url.startsWith(messageHeaderUrl)) {
+                if (request.getUrl().getFirst("_query") != null) {
+                    return ClientOperation.CLAIM;
+                }
+                if (request.getUrl().getFirst("_id") != null) {
+                    return ClientOperation.FETCH;
+                }
+                return ClientOperation.HEADER_SEARCH;
+            }
+        }
+        if ("PUT".equals(method) && url.contains("/MessageHeader/")) {
+            return ClientOperation.STATUS_UPDATE;
+        }
+        if (url.contains("/OAuth2/") || url.startsWith(oauthLaunchUrl)) {
+            return ClientOperation.OAUTH;
+        }
+        if ("POST".equals(method) || "PUT".equals(method)) {
+            return ClientOperation.RESOURCE;
+        }
+        return ClientOperation.OTHER;
+    }
+
+    public String getDomain() {
+        return domain;
+    }
+
+    private <T> T execute(ClientOperation operation, HttpRequest request, Call<T> call) throws IOException {
+        final ClientOperationEvent event = new ClientOperationEvent();
+        if (!event.isEnabled()) {
+            return process(operation, request, call);
+        }
+
+        final KoppeltaalMessageHeader sentHeader = SENT_HEADER.get();
+        SENT_HEADER.remove();
+        event.begin();
+        FlightRecorderEvents.CURRENT.set(event);
+        T result = null;
+        boolean success = false;
+        try {
+            result = process(operation, request, call);
+            success = true;
+            return result;
+        } finally {
+            FlightRecorderEvents.CURRENT.remove();
+            if (event.shouldCommit()) {
+                event.domain = domain;
+                event.operation = operation.name();
+                event.success = success;
+                if (sentHeader != null) {
+                    FlightRecorderEvents.setMessage(event, sentHeader);
+                } else {
+                    final List<KoppeltaalMessageHeader> received = getReceivedHeaders(operation, result);
+                    if (!received.isEmpty()) {
+                        FlightRecorderEvents.setMessage(event, received.get(0));
+                    }
+                }
+                event.commit();
+            }
+        }
+    }
+
+    private <T> T process(ClientOperation operation, HttpRequest request, Call<T> call) throws IOException {
+        final T result = notify(operation, request, wireCapture != null ? () -> tagExchange(operation, call) : call);
+        // handle() returns the feed of the response handler, the connector wraps it in a KoppeltaalBundle afterwards
+        if (versionRegistry != null && result instanceof AtomFeed
+                && (operation == ClientOperation.POST_MESSAGE || operation == ClientOperation.CLAIM || operation == ClientOperation.FETCH)) {
+            versionRegistry.recordAll((AtomFeed) result);
+        }
+        if (stringInterner != null && jsonFeedCodec == null && result instanceof AtomFeed) {
+            stringInterner.internStrings(result);
+        }
+        return result;
+    }
+
+    private <T> T notify(ClientOperation operation, HttpRequest request, Call<T> call) throws IOException {
+        if (listeners.isEmpty()) {
+            return call.call();
+        }
+
+        for (ClientOperationListener listener : listeners) {
+            listener.beforeRequest(domain, operation, request);
+        }
+
+        final long start = System.nanoTime();
+        try {
+            final T result = call.call();
+            final long duration = System.nanoTime() - start;
+            for (ClientOperationListener listener : listeners) {
+                listener.afterResponse(domain, operation, request, duration);
+            }
+            return result;
+        } catch (IOException e) {
+            final long duration = System.nanoTime() - start;
+            for (ClientOperationListener listener : listeners) {
+                listener.onError(domain, operation, request, duration, e);
+            }
+            throw e;
+        }
+    }
+
+    private <T> T tagExchange(ClientOperation operation, Call<T> call) throws IOException {
+        final String sentMessageId = SENT_MESSAGE_ID.get();
+        SENT_MESSAGE_ID.remove();
+        try {
+            final T result = call.call();
+            for (KoppeltaalMessageHeader header : getReceivedHeaders(operation, result)) {
+                wireCapture.tag(MessageLatencyTracker.getMessageId(header), AuditLog.Direction.RECEIVED);
+            }
+            return result;
+        } finally {
+            if (sentMessageId != null) {
+                wireCapture.tag(sentMessageId, AuditLog.Direction.SENT);
+            }
+        }
+    }
+
+    /**
+     * @return the headers of the messages claimed or fetched, handle() returns the feed before the connector wraps it
+     * in a KoppeltaalBundle
+     */
+    private static List<KoppeltaalMessageHeader> getReceivedHeaders(ClientOperation operation, Object result) {
+        if (result instanceof AtomFeed && (operation == ClientOperation.CLAIM || operation == ClientOperation.FETCH)) {
+            return new KoppeltaalBundle((AtomFeed) result).getMessageHeaderEntries();
+        }
+        return Collections.emptyList();
+    }
+
+    private void setSentMessageId(KoppeltaalMessageHeader header) {
+        if (wireCapture != null) {
+            SENT_MESSAGE_ID.set(MessageLatencyTracker.getMessageId(header));
+        }
+        if (CLIENT_OPERATION_EVENT.isEnabled()) {
+            SENT_HEADER.set(header);
+        }
+    }
+
+    /**
+     * The sent message is not taken by handle() when the request could not be created or failed before it was sent, it
+     * must not be tagged on the next request of the thread.
+     */
+    private static void clearSentMessage() {
+        SENT_MESSAGE_ID.remove();
+        SENT_HEADER.remove();
+    }
+
+    @FunctionalInterface
+    private interface Call<T> {
+        T call() throws IOException;
+    }
+
+    private void checkLatestVersions(AtomFeed feed) throws ResourceVersionRegistry.ConflictException {
+        for (AtomEntry<? extends Resource> entry : feed.getEntryList()) {
+            if (entry.getLinks() != null) {
+                versionRegistry.checkLatest(entry.getLinks().get("self"));
+            }
+            versionRegistry.checkLatest(entry.getId());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> ResponseHandler<T> replaceResponseHandler(ClientOperation operation, HttpRequest request, ResponseHandler<T> handler) {
+        if (jsonFeedCodec != null && handler instanceof AtomFeedResponseHandler) {
+            return (ResponseHandler<T>) jsonFeedCodec.responseHandler();
+        }
+        if (versionRegistry != null && operation == ClientOperation.RESOURCE) {
+            return recordVersion(request, handler);
+        }
+        return handler;
+    }
+
+    /**
+     * Records the Content-Length of claimed and fetched messages that were not compressed, see
+     * {@link #getLastContentLength()}.
+     */
+    private static <T> ResponseHandler<T> recordContentLength(ClientOperation operation, ResponseHandler<T> handler) {
+        if (operation != ClientOperation.CLAIM && operation != ClientOperation.FETCH) {
+            return handler;
+        }
+        return response -> {
+            final Long contentLength = response.getHeaders().getContentLength();
+            final String contentEncoding = response.getContentEncoding();
+            final boolean identity = contentEncoding == null || contentEncoding.isEmpty() || "identity".equalsIgnoreCase(contentEncoding);
+            LAST_CONTENT_LENGTH.set(contentLength == null || !identity ? -1 : contentLength);
+            return handler.handleResponse(response);
+        };
+    }
+
+    /**
+     * Records the version of a posted or put resource from the location in the response, or forgets the version of
+     * the resource when the response has none.
+     */
+    private <T> ResponseHandler<T> recordVersion(HttpRequest request, ResponseHandler<T> handler) {
+        return response -> {
+            final T result = handler.handleResponse(response);
+
+            String location = response.getHeaders().getFirstHeaderStringValue("Content-Location");
+            if (location == null) {
+                location = response.getHeaders().getLocation();
+            }
+            if (StringUtils.contains(location, ResourceURL.RESOURCE_VERSION_SEPARATOR)) {
+                versionRegistry.record(location);
+            } else {
+                versionRegistry.remove(request.getUrl().build());
+            }
+            return result;
+        };
+    }
+
+    protected HttpRequest setContent(HttpRequest request, HttpContent content) {
+        request.setContent(content);
+        if (gzip) {
+            request.setEncoding(new GZipEncoding());
+        }
+        return request;
+    }
+
+    public static class Builder {
+
+        private final String server;
+        private final String username;
+        private final String password;
+
+        private Format format = Format.XML;
+        private boolean gzip;
+        private boolean jsonFeedCodec;
+        private HttpTransport transport;
+        private MetadataCache metadataCache;
+        private String domain = "default";
+        private final List<ClientOperationListener> listeners = new ArrayList<>();
+        private ClientWarmUp warmUp;
+        private WireCapture wireCapture;
+        private TrafficRecorder trafficRecorder;
+        private RequestPhaseTimer phaseTimer;
+        private ResourceVersionRegistry versionRegistry;
+        private BundleValidator validator;
+        private StringInterner stringInterner;
+
+        Builder(String server, String username, String password) {
+            this.server = server;
+            this.username = username;
+            this.password = password;
+        }
+
+        public Builder format(Format format) {
+            this.format = format;
+            return this;
+        }
+
+        /**
+         * Compress request bodies with gzip ({@code Content-Encoding: gzip}), the server has to support this.
+         */
+        public Builder gzip(boolean gzip) {
+            this.gzip = gzip;
+            return this;
+        }
+
+        /**
+         * Parse and compose bundles with the {@link JsonFeedCodec}, only applies to {@link Format#JSON}.
+         */
+        public Builder jsonFeedCodec(boolean jsonFeedCodec) {
+            this.jsonFeedCodec = jsonFeedCodec;
+            return this;
+        }
+
+        /**
+         * Use a transport (connection pool) shared with other clients instead of a new one per client.
+         */
+        public Builder transport(HttpTransport transport) {
+            this.transport = transport;
+            return this;
+        }
+
+        /**
+         * Share the conformance statement with other clients of the same server.
+         */
+        public Builder metadataCache(MetadataCache metadataCache) {
+            this.metadataCache = metadataCache;
+            return this;
+        }
+
+        /**
+         * The domain the client connects to, passed to the listeners.
+         */
+        public Builder domain(String domain) {
+            this.domain = domain;
+            return this;
+        }
+
+        public Builder listener(ClientOperationListener listener) {
+            this.listeners.add(listener);
+            return this;
+        }
+
+        /**
+         * Time the phases of every request: connect, TLS, compose, upload, time to first byte, download and parse.
+         */
+        public Builder phaseTimer(RequestPhaseTimer phaseTimer) {
+            this.phaseTimer = phaseTimer;
+            return listener(phaseTimer);
+        }
+
+        /**
+         * Warm up the client before {@link #build()} returns it. Without a {@link #metadataCache(MetadataCache)} the
+         * client gets its own, to keep the prefetched conformance statement.
+         */
+        public Builder warmUp(ClientWarmUp warmUp) {
+            this.warmUp = warmUp;
+            return this;
+        }
+
+        /**
+         * Capture recent requests and responses, also those of a shared {@link #transport(HttpTransport)}.
+         */
+        public Builder wireCapture(WireCapture wireCapture) {
+            this.wireCapture = wireCapture;
+            return this;
+        }
+
+        /**
+         * Record all requests and responses to replay them later, also those of a shared {@link #transport(HttpTransport)}.
+         */
+        public Builder trafficRecorder(TrafficRecorder trafficRecorder) {
+            this.trafficRecorder = trafficRecorder;
+            return this;
+        }
+
+        /**
+         * Record the resource versions returned by the server, can be shared with other clients of the same server.
+         */
+        public Builder versionRegistry(ResourceVersionRegistry versionRegistry) {
+            this.versionRegistry = versionRegistry;
+            return this;
+        }
+
+        /**
+         * Validate posted messages before they are sent, can be shared with other clients.
+         */
+        public Builder validator(BundleValidator validator) {
+            this.validator = validator;
+            return this;
+        }
+
+        /**
+         * Intern the repeated strings of received feeds, can be shared with other clients.
+         */
+        public Builder stringInterner(StringInterner stringInterner) {
+            this.stringInterner = stringInterner;
+            return this;
+        }
+
+        public ExtendedKoppeltaalClient build() {
+            if (warmUp != null && metadataCache == null) {
+                metadataCache = new MetadataCache(WARM_UP_TIME_TO_LIVE);
+            }
+
+            final ExtendedKoppeltaalClient client;
+            CONSTRUCTING.set(this);
+            try {
+                client = new ExtendedKoppeltaalClient(this);
+            } finally {
+                CONSTRUCTING.remove();
+            }
+
+            if (warmUp != null) {
+                client.warmUpReport = warmUp.warmUp(client);
+            }
+            return client;
+        }
+    }
+
+    private static class CachedFeed {
+        final AtomFeed feed;
+        final long loadedAt = System.nanoTime();
+
+        CachedFeed(AtomFeed feed) {
+            this.feed = feed;
+        }
+    }
+
+    private static class JsonFeedContent extends AbstractHttpContent {
+
+        private final JsonFeedCodec codec;
+        private final AtomFeed feed;
+
+        JsonFeedContent(String mediaType, JsonFeedCodec codec, AtomFeed feed) {
+            super(mediaType);
+            this.codec = codec;
+            this.feed = feed;
+        }
+
+        @Override
+        public long getLength() {
+            return -1;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            codec.compose(out, feed, false);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package nl.headease.koppeltaal;
+
+import nl.koppeltaal.api.util.ResourceUtil;
+import org.hl7.fhir.instance.model.*;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * The extensions of one element, indexed by url, with the typed accessors of {@link ResourceUtil}.
+ * <p>
+ * {@code ResourceUtil} scans the extension list of the element and compares the full urls on every call, and matches
+ * enum values with regular expressions. Handlers that read many extensions of the same element build the index once
+ * with {@link #of(Element)} instead. The urls are interned, so lookups with the url constants of the connector
+ * ({@code UrlUtil}) find the key by reference.
+ * <p>
+ * The accessors keep the semantics and error messages of {@code ResourceUtil}: a missing required extension throws a
+ * RuntimeException, a missing optional extension returns the value of an empty primitive (null, or 0 for integers),
+ * the first extension with a url wins, and enum constants are matched on their name without non alphanumeric
+ * characters, ignoring case.
+ * <p>
+ * The index is a snapshot: extensions added to the element later are not seen.
+ */
+public final class ExtensionIndex {
+
+    private static final ExtensionIndex EMPTY = new ExtensionIndex(Collections.emptyMap());
+
+    /** enum constants by sanitized, lower case {@code toString()}, first constant wins */
+    private static final ClassValue<Map<String, Object>> ENUM_CONSTANTS = new ClassValue<Map<String, Object>>() {
+        @Override
+        protected Map<String, Object> computeValue(Class<?> type) {
+            final Map<String, Object> constants = new HashMap<>();
+            for (Object constant : type.getEnumConstants()) {
+                constants.putIfAbsent(sanitize(constant.toString()), constant);
+            }
+            return constants;
+        }
+    };
+
+    private final Map<String, Extension> extensions;
+
+    private ExtensionIndex(Map<String, Extension> extensions) {
+        this.extensions = extensions;
+    }
+
+    public static ExtensionIndex of(Element element) {
+        final List<Extension> list = element.getExtensions();
+        if (list == null || list.isEmpty()) {
+            return EMPTY;
+        }
+
+        final Map<String, Extension> extensions = new HashMap<>(list.size() * 2);
+        for (Extension extension : list) {
+            final String url = extension.getUrlSimple();
+            if (url != null) {
+                extensions.putIfAbsent(url.intern(), extension);
+            }
+        }
+        return new ExtensionIndex(extensions);
+    }
+
+    public boolean hasExtension(String url) {
+        return extensions.containsKey(url);
+    }
+
+    public Extension getExtension(String url) {
+        return extensions.get(url);
+    }
+
+    public Type getOptionalValue(String url) {
+        return getValue(url, ResourceUtil.IS_NOT_REQUIRED);
+    }
+
+    public Type getRequiredValue(String url) {
+        return getValue(url, ResourceUtil.IS_REQUIRED);
+    }
+
+    public String getOptionalString(String url) {
+        return getPrimitive(StringType.class, StringType::new, url, ResourceUtil.IS_NOT_REQUIRED).getValue();
+    }
+
+    public String getRequiredString(String url) {
+        return getPrimitive(StringType.class, StringType::new, url, ResourceUtil.IS_REQUIRED).getValue();
+    }
+
+    public Integer getOptionalInteger(String url) {
+        return getPrimitive(IntegerType.class, IntegerType::new, url, ResourceUtil.IS_NOT_REQUIRED).getValue();
+    }
+
+    public Integer getRequiredInteger(String url) {
+        return getPrimitive(IntegerType.class, IntegerType::new, url, ResourceUtil.IS_REQUIRED).getValue();
+    }
+
+    public Boolean getOptionalBoolean(String url) {
+        return getPrimitive(BooleanType.class, BooleanType::new, url, ResourceUtil.IS_NOT_REQUIRED).getValue();
+    }
+
+    public Boolean getRequiredBoolean(String url) {
+        return getPrimitive(BooleanType.class, BooleanType::new, url, ResourceUtil.IS_REQUIRED).getValue();
+    }
+
+    public String getOptionalUri(String url) {
+        return getPrimitive(UriType.class, UriType::new, url, ResourceUtil.IS_NOT_REQUIRED).getValue();
+    }
+
+    public String getRequiredUri(String url) {
+        return getPrimitive(UriType.class, UriType::new, url, ResourceUtil.IS_REQUIRED).getValue();
+    }
+
+    public Period getOptionalPeriod(String url) {
+        return getType(Period.class, url, ResourceUtil.IS_NOT_REQUIRED);
+    }
+
+    public Period getRequiredPeriod(String url) {
+        return getType(Period.class, url, ResourceUtil.IS_REQUIRED);
+    }
+
+    public <T extends Enum<T>> T getOptionalEnumFromCoding(Class<T> type, String url) {
+        return getEnumFromCoding(type, url, ResourceUtil.IS_NOT_REQUIRED);
+    }
+
+    public <T extends Enum<T>> T getRequiredEnumFromCoding(Class<T> type, String url) {
+        return getEnumFromCoding(type, url, ResourceUtil.IS_REQUIRED);
+    }
+
+    /**
+     * {@link ResourceUtil#getEnumConstantFromString(Class, String)} without the regular expressions.
+     */
+    public static <T extends Enum<T>> T getEnumConstant(Class<T> type, String value) {
+        return value == null ? null : type.cast(ENUM_CONSTANTS.get(type).get(sanitize(value)));
+    }
+
+    private Type getValue(String url, boolean required) {
+        final Extension extension = extensions.get(url);
+        if (extension != null) {
+            return extension.getValue();
+        }
+        if (required) {
+            throw new RuntimeException(String.format(ResourceUtil.ERR__REQUIRED_EXTENSION_NOT_FOUND_ON_RESOURCE, url));
+        }
+        return null;
+    }
+
+    private <T extends Type> T getType(Class<T> type, String url, boolean required) {
+        final Type value = getValue(url, required);
+        if (value != null && !type.isInstance(value)) {
+            throw new RuntimeException(String.format(ResourceUtil.ERR__EXTENSION_NOT_TYPE, url, type.getSimpleName()));
+        }
+        return type.cast(value);
+    }
+
+    private <T extends PrimitiveType> T getPrimitive(Class<T> type, Supplier<T> empty, String url, boolean required) {
+        final Type value = getValue(url, required);
+        if (value == null) {
+            return empty.get();
+        }
+        if (value instanceof ResourceReference && type == StringType.class) {
+            // references (e.g. UserMessage#From) are read as strings
+            return type.cast(((ResourceReference) value).getReference());
+        }
+        if (!type.isInstance(value)) {
+            throw new RuntimeException(String.format(ResourceUtil.ERR__EXTENSION_NOT_TYPE, url, type.getSimpleName()));
+        }
+        return type.cast(value);
+    }
+
+    private <T extends Enum<T>> T getEnumFromCoding(Class<T> type, String url, boolean required) {
+        final Type value = getValue(url, required);
+        if (value == null) {
+            return null;
+        }
+        if (!(value instanceof Coding)) {
+            throw new RuntimeException(String.format(ResourceUtil.ERR__EXTENSION_IS_NOT_A_CODING, url));
+        }
+
+        final String code = ((Coding) value).getCodeSimple();
+        final T constant = getEnumConstant(type, code);
+        if (constant == null) {
+            throw new RuntimeException(String.format(ResourceUtil.ERR__NO_ENUM_CONSTANT_WAS_FOUND_FOR_VALUE, code));
+        }
+        return constant;
+    }
+
+    /**
+     * @return the value with only the letters and digits, in lower case
+     */
+    private static String sanitize(String value) {
+        final StringBuilder sanitized = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c >= 'a' && c <= 'z' || c >= '0' && c <= '9') {
+                sanitized.append(c);
+            } else if (c >= 'A' && c <= 'Z') {
+                sanitized.append((char) (c + ('a' - 'A')));
+            }
+        }
+        return sanitized.toString();
+    }
+}
@@ -0,0 +1,98 @@
+package nl.headease.koppeltaal;
+
+import nl.koppeltaal.api.ActivityDefinitionBuilder;
+import nl.koppeltaal.api.model.enums.ActivityKind;
+import nl.koppeltaal.api.model.enums.ActivityPerformer;
+import nl.koppeltaal.api.util.ResourceUtil;
+import nl.koppeltaal.api.util.UrlUtil;
+import org.hl7.fhir.instance.model.Other;
+
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares reading all extensions of an ActivityDefinition with {@link ResourceUtil} and with an
+ * {@link ExtensionIndex}, built once per resource as a handler would.
+ * <p>
+ * Run from the IDE or with {@code exec:java}; optional argument: measured seconds per case (default 10).
+ */
+public class ExtensionIndexBenchmark {
+
+    private interface Case {
+        int run();
+    }
+
+    public static void main(String[] args) throws Exception {
+        final long seconds = args.length > 0 ? Long.parseLong(args[0]) : 10;
+
+        final Other activityDefinition = new ActivityDefinitionBuilder(UUID.randomUUID().toString(), "Benchmark activity", "An activity with all extensions",
+                ActivityKind.E_LEARNING, ActivityPerformer.PATIENT, true, false, false).build();
+        if (readWithResourceUtil(activityDefinition) != readWithIndex(activityDefinition)) {
+            throw new IllegalStateException("ExtensionIndex reads other values than ResourceUtil");
+        }
+
+        System.out.printf("ActivityDefinition with %d extensions%n", activityDefinition.getExtensions().size());
+        System.out.printf("%-24s %12s %12s%n", "case", "ops/s", "ns/op");
+
+        final double resourceUtilOps = measure("resource util", seconds, () -> readWithResourceUtil(activityDefinition));
+        final double indexOps = measure("extension index", seconds, () -> readWithIndex(activityDefinition));
+
+        System.out.printf("speed up %.1fx%n", indexOps / resourceUtilOps);
+    }
+
+    private static int readWithResourceUtil(Other resource) {
+        return Objects.hash(
+                ResourceUtil.getRequiredStringValueFromExtension(resource, UrlUtil.ACTIVITY_DEFINITION_IDENTIFIER_EXTENSION),
+                ResourceUtil.getRequiredStringValueFromExtension(resource, UrlUtil.ACTIVITY_DEFINITION_ACTIVITY_NAME_EXTENSION),
+                ResourceUtil.getOptionalStringValueFromExtension(resource, UrlUtil.ACTIVITY_DEFINITION_DESCRIPTION_EXTENSION),
+                ResourceUtil.getRequiredEnumValueFromCodingExtension(ActivityKind.class, resource, UrlUtil.ACTIVITY_DEFINITION_ACTIVITY_KIND_EXTENSION),
+                ResourceUtil.getOptionalEnumValueFromCodingExtension(ActivityPerformer.class, resource, UrlUtil.ACTIVITY_DEFINITION_DEFAULT_PERFORMER_EXTENSION),
+                ResourceUtil.getOptionalBooleanValueFromExtension(resource, UrlUtil.ACTIVITY_DEFINITION_IS_ACTIVE_EXTENSION),
+                ResourceUtil.getOptionalBooleanValueFromExtension(resource, UrlUtil.ACTIVITY_DEFINITION_IS_DOMAIN_SPECIFIC_EXTENSION),
+                ResourceUtil.getOptionalBooleanValueFromExtension(resource, UrlUtil.ACTIVITY_DEFINITION_IS_ARCHIVED_EXTENSION),
+                ResourceUtil.getOptionalIntegerValueFromExtension(resource, UrlUtil.PRACTITIONER_AGE_EXTENSION));
+    }
+
+    private static int readWithIndex(Other resource) {
+        final ExtensionIndex index = ExtensionIndex.of(resource);
+        return Objects.hash(
+                index.getRequiredString(UrlUtil.ACTIVITY_DEFINITION_IDENTIFIER_EXTENSION),
+                index.getRequiredString(UrlUtil.ACTIVITY_DEFINITION_ACTIVITY_NAME_EXTENSION),
+                index.getOptionalString(UrlUtil.ACTIVITY_DEFINITION_DESCRIPTION_EXTENSION),
+                index.getRequiredEnumFromCoding(ActivityKind.class, UrlUtil.ACTIVITY_DEFINITION_ACTIVITY_KIND_EXTENSION),
+                index.getOptionalEnumFromCoding(ActivityPerformer.class, UrlUtil.ACTIVITY_DEFINITION_DEFAULT_PERFORMER_EXTENSION),
+                index.getOptionalBoolean(UrlUtil.ACTIVITY_DEFINITION_IS_ACTIVE_EXTENSION),
+                index.getOptionalBoolean(UrlUtil.ACTIVITY_DEFINITION_IS_DOMAIN_SPECIFIC_EXTENSION),
+                index.getOptionalBoolean(UrlUtil.ACTIVITY_DEFINITION_IS_ARCHIVED_EXTENSION),
+                index.getOptionalInteger(UrlUtil.PRACTITIONER_AGE_EXTENSION));
+    }
+
+    private static double measure(String name, long seconds, Case benchmarkCase) {
+        // warm up
+        run(benchmarkCase, TimeUnit.SECONDS.toNanos(Math.max(1, seconds / 2)));
+
+        final long start = System.nanoTime();
+        final long operations = run(benchmarkCase, TimeUnit.SECONDS.toNanos(seconds));
+        final long elapsed = System.nanoTime() - start;
+
+        final double opsPerSecond = operations / (elapsed / 1e9);
+        System.out.printf("%-24s %12.1f %12.1f%n", name, opsPerSecond, (double) elapsed / operations);
+        return opsPerSecond;
+    }
+
+    private static long run(Case benchmarkCase, long durationNanos) {
+        final long end = System.nanoTime() + durationNanos;
+        long operations = 0;
+        int hash = 0;
+        while (System.nanoTime() < end) {
+            hash += benchmarkCase.run();
+            operations++;
+        }
+        // keep the result alive
+        if (hash == 42) {
+            System.out.println();
+        }
+        return operations;
+    }
+}
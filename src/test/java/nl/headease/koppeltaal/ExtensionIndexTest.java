@@ -0,0 +1,37 @@
+package nl.headease.koppeltaal;
+
+import nl.koppeltaal.api.model.enums.CarePlanActivityStatus;
+import nl.koppeltaal.api.model.enums.MessageKind;
+import nl.koppeltaal.api.util.ResourceUtil;
+import nl.koppeltaal.api.util.UrlUtil;
+import org.hl7.fhir.instance.model.Other;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ExtensionIndexTest {
+
+    @Test
+    public void matchesEnumConstantsLikeResourceUtil() {
+        for (String value : new String[]{"InProgress", "in-progress", "IN_PROGRESS", "skipped by user", "Null", "unknown", ""}) {
+            assertEquals(value, ResourceUtil.getEnumConstantFromString(CarePlanActivityStatus.class, value),
+                    ExtensionIndex.getEnumConstant(CarePlanActivityStatus.class, value));
+        }
+        assertEquals(MessageKind.NOTIFICATION, ExtensionIndex.getEnumConstant(MessageKind.class, "Notification"));
+    }
+
+    @Test
+    public void missingExtensions() {
+        final ExtensionIndex index = ExtensionIndex.of(new Other());
+        assertFalse(index.hasExtension(UrlUtil.CARE_TEAM_NAME_EXTENSION));
+        assertNull(index.getOptionalString(UrlUtil.CARE_TEAM_NAME_EXTENSION));
+        assertNull(index.getOptionalEnumFromCoding(CarePlanActivityStatus.class, UrlUtil.ACTIVITY_STATUS_STATUS_EXTENSION));
+
+        try {
+            index.getRequiredString(UrlUtil.CARE_TEAM_NAME_EXTENSION);
+            fail("Extension is required");
+        } catch (RuntimeException e) {
+            assertEquals(String.format(ResourceUtil.ERR__REQUIRED_EXTENSION_NOT_FOUND_ON_RESOURCE, UrlUtil.CARE_TEAM_NAME_EXTENSION), e.getMessage());
+        }
+    }
+}
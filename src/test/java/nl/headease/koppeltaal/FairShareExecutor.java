@@ -0,0 +1,171 @@
+package nl.headease.koppeltaal;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Runs tasks of many tenants on one shared pool of workers. Tenants with queued tasks take turns (round robin) and a
+ * single tenant never has more than {@code perTenantLimit} tasks running, so a busy tenant cannot starve the others.
+ * <p>
+ * Only as many tasks as there are workers are handed to the pool, everything else waits in the per tenant queues.
+ */
+public class FairShareExecutor implements Closeable {
+
+    private static class Tenant {
+        final String name;
+        final Deque<Task<?>> pending = new ArrayDeque<>();
+        int running;
+        boolean scheduled;
+
+        Tenant(String name) {
+            this.name = name;
+        }
+    }
+
+    private static class Task<T> implements Runnable {
+        final Callable<T> callable;
+        final CompletableFuture<T> result = new CompletableFuture<>();
+
+        Task(Callable<T> callable) {
+            this.callable = callable;
+        }
+
+        @Override
+        public void run() {
+            try {
+                result.complete(callable.call());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        }
+    }
+
+    private final ExecutorService workers;
+    private final int workerCount;
+    private final int perTenantLimit;
+    private final int perTenantQueueLimit;
+
+    private final Map<String, Tenant> tenants = new HashMap<>();
+    private final Deque<Tenant> turns = new ArrayDeque<>();
+    private int running;
+    private boolean closed;
+
+    /**
+     * @param workerCount         number of worker threads shared by all tenants
+     * @param perTenantLimit      maximum number of running tasks per tenant
+     * @param perTenantQueueLimit maximum number of waiting tasks per tenant, further tasks are rejected
+     */
+    public FairShareExecutor(int workerCount, int perTenantLimit, int perTenantQueueLimit) {
+        this.workerCount = workerCount;
+        this.perTenantLimit = perTenantLimit;
+        this.perTenantQueueLimit = perTenantQueueLimit;
+        this.workers = Executors.newFixedThreadPool(workerCount);
+    }
+
+    public <T> CompletableFuture<T> submit(String tenantName, Callable<T> callable) {
+        final Task<T> task = new Task<>(callable);
+
+        synchronized (this) {
+            if (closed) {
+                throw new RejectedExecutionException("Executor is closed");
+            }
+
+            final Tenant tenant = tenants.computeIfAbsent(tenantName, Tenant::new);
+            if (tenant.pending.size() >= perTenantQueueLimit) {
+                throw new RejectedExecutionException("Too many queued tasks for: " + tenantName);
+            }
+
+            tenant.pending.add(task);
+
+            if (!tenant.scheduled) {
+                tenant.scheduled = true;
+                turns.add(tenant);
+            }
+
+            dispatch();
+        }
+
+        return task.result;
+    }
+
+    /**
+     * @return the number of running and waiting tasks of the tenant
+     */
+    public synchronized int getLoad(String tenantName) {
+        final Tenant tenant = tenants.get(tenantName);
+        return tenant == null ? 0 : tenant.running + tenant.pending.size();
+    }
+
+    private synchronized void dispatch() {
+        int skipped = 0;
+
+        while (running < workerCount && !turns.isEmpty() && skipped < turns.size()) {
+            final Tenant tenant = turns.poll();
+
+            if (tenant.running >= perTenantLimit) {
+                // keep its turn for when one of its tasks finishes
+                turns.add(tenant);
+                skipped++;
+                continue;
+            }
+            skipped = 0;
+
+            final Task<?> task = tenant.pending.poll();
+            tenant.running++;
+            running++;
+
+            if (tenant.pending.isEmpty()) {
+                tenant.scheduled = false;
+            } else {
+                turns.add(tenant);
+            }
+
+            workers.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    finished(tenant);
+                }
+            });
+        }
+    }
+
+    private synchronized void finished(Tenant tenant) {
+        tenant.running--;
+        running--;
+
+        if (tenant.running == 0 && tenant.pending.isEmpty()) {
+            tenants.remove(tenant.name, tenant);
+        }
+
+        if (!closed) {
+            dispatch();
+        }
+    }
+
+    /**
+     * Stops accepting tasks, waits for running tasks and drops the waiting ones.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            turns.clear();
+            tenants.values().forEach(tenant -> {
+                tenant.pending.forEach(task -> task.result.cancel(false));
+                tenant.pending.clear();
+            });
+        }
+
+        workers.shutdown();
+        try {
+            workers.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
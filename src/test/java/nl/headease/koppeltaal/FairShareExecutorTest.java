@@ -0,0 +1,41 @@
+package nl.headease.koppeltaal;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FairShareExecutorTest {
+
+    @Test
+    public void busyTenantDoesNotStarveOthers() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger busyRunning = new AtomicInteger();
+        final AtomicInteger maxBusyRunning = new AtomicInteger();
+
+        try (FairShareExecutor executor = new FairShareExecutor(4, 2, 100)) {
+            for (int i = 0; i < 50; i++) {
+                executor.submit("busy", () -> {
+                    maxBusyRunning.accumulateAndGet(busyRunning.incrementAndGet(), Math::max);
+                    release.await();
+                    busyRunning.decrementAndGet();
+                    return null;
+                });
+            }
+
+            // the busy tenant holds 2 of the 4 workers, the quiet tenant still gets through
+            final CompletableFuture<String> quiet = executor.submit("quiet", () -> "done");
+            assertEquals("done", quiet.get(5, TimeUnit.SECONDS));
+
+            assertEquals(50, executor.getLoad("busy"));
+            release.countDown();
+        }
+
+        assertTrue(maxBusyRunning.get() <= 2);
+    }
+}
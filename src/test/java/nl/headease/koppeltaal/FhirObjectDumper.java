@@ -0,0 +1,359 @@
+package nl.headease.koppeltaal;
+
+import org.apache.commons.lang3.ClassUtils;
+import org.apache.commons.lang3.builder.ReflectionToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringExclude;
+import org.apache.commons.lang3.builder.ToStringSummary;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.*;
+
+/**
+ * Dumps objects in exactly the format of {@link ReflectionToStringBuilder} with an
+ * {@link ExcludeNullValuesMultilineRecursiveToStringStyle}, without its overhead:
+ * <ul>
+ *     <li>the fields per class are looked up once and read with cached {@link MethodHandle}s</li>
+ *     <li>indentation strings are created once and reused</li>
+ *     <li>the output is written to an {@link Appendable} (in chunks), not to an intermediate buffer per nested object</li>
+ * </ul>
+ * The quirks of the style are kept, so existing dumps can be compared: {@link ExcludeNullValuesMultilineRecursiveToStringStyle}
+ * and its parent indent objects and arrays with separate counters and a trailing field separator is only removed when
+ * it has the current indent. See {@code FhirObjectDumperBenchmark} for the speed up.
+ */
+public final class FhirObjectDumper {
+
+    private static final int INDENT = 2;
+    private static final int FLUSH_SIZE = 8192;
+    private static final String NULL_TEXT = "<null>";
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+
+    private static final ClassValue<FieldAccessor[]> FIELDS = new ClassValue<FieldAccessor[]>() {
+        @Override
+        protected FieldAccessor[] computeValue(Class<?> type) {
+            return findFields(type);
+        }
+    };
+
+    /** whether instances can be equal without being the same, most FHIR classes keep {@link Object#equals(Object)} */
+    private static final ClassValue<Boolean> OVERRIDES_EQUALS = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            try {
+                return type.getMethod("equals", Object.class).getDeclaringClass() != Object.class;
+            } catch (NoSuchMethodException e) {
+                return true;
+            }
+        }
+    };
+
+    private static final class FieldAccessor {
+        final String name;
+        final MethodHandle getter;
+        final boolean detail;
+
+        FieldAccessor(String name, MethodHandle getter, boolean detail) {
+            this.name = name;
+            this.getter = getter;
+            this.detail = detail;
+        }
+    }
+
+    private static volatile String[] spaces = newSpaces(32);
+
+    private FhirObjectDumper() {
+    }
+
+    public static String toString(Object object) {
+        final StringBuilder builder = new StringBuilder(1024);
+        try {
+            dump(object, builder);
+        } catch (IOException e) {
+            // StringBuilder does not throw
+            throw new UncheckedIOException(e);
+        }
+        return builder.toString();
+    }
+
+    public static void dump(Object object, Appendable out) throws IOException {
+        if (object == null) {
+            out.append(NULL_TEXT);
+            return;
+        }
+
+        if (out instanceof StringBuilder) {
+            new Dump((StringBuilder) out, null).top(object);
+        } else {
+            final Dump dump = new Dump(new StringBuilder(FLUSH_SIZE * 2), out);
+            dump.top(object);
+            dump.flush();
+        }
+    }
+
+    /**
+     * State of a single dump, mirrors the state of the style while the builders run.
+     */
+    private static final class Dump {
+
+        /** written to directly, flushed to {@link #target} if there is one */
+        private final StringBuilder out;
+        private final Appendable target;
+
+        /** the counter of {@link ExcludeNullValuesMultilineRecursiveToStringStyle}, used for nested objects */
+        private int objectSpaces = INDENT;
+        /** the counter of the parent style, used for arrays and collections */
+        private int arraySpaces = INDENT;
+        /** indent of the separators, set by whichever counter changed last */
+        private int indent = INDENT;
+
+        /** objects being dumped, the registry of the style */
+        private final List<Object> registry = new ArrayList<>();
+        /** the objects of the registry that can be equal to another object, e.g. lists */
+        private final List<Object> equalsRegistry = new ArrayList<>();
+
+        Dump(StringBuilder out, Appendable target) {
+            this.out = out;
+            this.target = target;
+        }
+
+        void flush() throws IOException {
+            target.append(out);
+            out.setLength(0);
+        }
+
+        void top(Object object) throws IOException {
+            final boolean overridesEquals = register(object);
+            try {
+                object(object);
+            } finally {
+                unregister(overridesEquals);
+            }
+        }
+
+        private void object(Object object) throws IOException {
+            final Class<?> type = object.getClass();
+            out.append(type.getName()).append('@').append(Integer.toHexString(System.identityHashCode(object))).append('[').append(LINE_SEPARATOR).append(spaces(indent));
+
+            // the separator after the last field is removed only when it equals the current field separator
+            int pendingSeparator = -1;
+
+            if (type.isArray()) {
+                array(object);
+            } else {
+                for (FieldAccessor field : FIELDS.get(type)) {
+                    final Object value = get(field, object);
+                    if (value == null) {
+                        continue;
+                    }
+                    if (pendingSeparator >= 0) {
+                        separator(',', pendingSeparator);
+                    }
+                    out.append(field.name).append('=');
+                    value(value, field.detail);
+                    pendingSeparator = indent;
+                }
+            }
+
+            if (pendingSeparator >= 0 && pendingSeparator != indent) {
+                separator(',', pendingSeparator);
+            }
+            out.append(LINE_SEPARATOR).append(spaces(indent - INDENT)).append(']');
+
+            if (target != null && out.length() >= FLUSH_SIZE) {
+                flush();
+            }
+        }
+
+        private void value(Object value, boolean detail) throws IOException {
+            final Class<?> type = value.getClass();
+
+            // a String or primitive wrapper is never nested in an equal object, so cannot be registered
+            if (type == String.class || ClassUtils.isPrimitiveWrapper(type)) {
+                out.append(detail ? value.toString() : "<" + ClassUtils.getShortClassName(type) + ">");
+                return;
+            }
+
+            if (isRegistered(value)) {
+                out.append(type.getName()).append('@').append(Integer.toHexString(System.identityHashCode(value)));
+                return;
+            }
+
+            final boolean overridesEquals = register(value);
+            try {
+                if (value instanceof Collection) {
+                    if (detail) {
+                        out.append(type.getName()).append('@').append(Integer.toHexString(System.identityHashCode(value)));
+                        array(((Collection<?>) value).toArray());
+                    } else {
+                        size(((Collection<?>) value).size());
+                    }
+                } else if (value instanceof Map) {
+                    if (detail) {
+                        out.append(value.toString());
+                    } else {
+                        size(((Map<?, ?>) value).size());
+                    }
+                } else if (type.isArray()) {
+                    if (detail) {
+                        array(value);
+                    } else {
+                        size(Array.getLength(value));
+                    }
+                } else if (!detail) {
+                    out.append('<').append(ClassUtils.getShortClassName(type)).append('>');
+                } else {
+                    objectSpaces += INDENT;
+                    indent = objectSpaces;
+                    object(value);
+                    objectSpaces -= INDENT;
+                    indent = objectSpaces;
+                }
+            } finally {
+                unregister(overridesEquals);
+            }
+        }
+
+        private void array(Object array) throws IOException {
+            arraySpaces += INDENT;
+            indent = arraySpaces;
+
+            out.append('{').append(LINE_SEPARATOR).append(spaces(indent));
+
+            final int length = Array.getLength(array);
+            final Object[] objects = array instanceof Object[] ? (Object[]) array : null;
+            for (int i = 0; i < length; i++) {
+                if (i > 0) {
+                    separator(',', indent);
+                }
+                final Object item = objects != null ? objects[i] : Array.get(array, i);
+                if (item == null) {
+                    out.append(NULL_TEXT);
+                } else {
+                    value(item, true);
+                }
+            }
+
+            out.append(LINE_SEPARATOR).append(spaces(indent - INDENT)).append('}');
+
+            arraySpaces -= INDENT;
+            indent = arraySpaces;
+        }
+
+        private void size(int size) {
+            out.append("<size=").append(size).append('>');
+        }
+
+        private void separator(char separator, int spaces) {
+            out.append(separator).append(LINE_SEPARATOR).append(spaces(spaces));
+        }
+
+        private boolean register(Object value) {
+            registry.add(value);
+            final boolean overridesEquals = OVERRIDES_EQUALS.get(value.getClass());
+            if (overridesEquals) {
+                equalsRegistry.add(value);
+            }
+            return overridesEquals;
+        }
+
+        private void unregister(boolean overridesEquals) {
+            registry.remove(registry.size() - 1);
+            if (overridesEquals) {
+                equalsRegistry.remove(equalsRegistry.size() - 1);
+            }
+        }
+
+        /**
+         * The registry of the style is a map by equality. An object that keeps {@link Object#equals(Object)} is only
+         * equal to itself and, with a symmetric equals, an object that overrides equals is only equal to another object
+         * that overrides it.
+         */
+        private boolean isRegistered(Object value) {
+            for (int i = registry.size() - 1; i >= 0; i--) {
+                if (value == registry.get(i)) {
+                    return true;
+                }
+            }
+
+            if (OVERRIDES_EQUALS.get(value.getClass())) {
+                for (int i = equalsRegistry.size() - 1; i >= 0; i--) {
+                    final Object registered = equalsRegistry.get(i);
+                    if (value.equals(registered) && value.hashCode() == registered.hashCode()) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    private static Object get(FieldAccessor field, Object object) {
+        try {
+            return (Object) field.getter.invokeExact(object);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException("Cannot read field: " + field.name, e);
+        }
+    }
+
+    /**
+     * The fields {@link ReflectionToStringBuilder} outputs: per class sorted by name, starting at the class itself.
+     */
+    private static FieldAccessor[] findFields(Class<?> type) {
+        final List<FieldAccessor> accessors = new ArrayList<>();
+        final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+        for (Class<?> current = type; current != null; current = current.getSuperclass()) {
+            final Field[] fields = current.getDeclaredFields();
+            Arrays.sort(fields, Comparator.comparing(Field::getName));
+
+            for (Field field : fields) {
+                final int modifiers = field.getModifiers();
+                if (field.getName().indexOf('$') != -1 || Modifier.isTransient(modifiers) || Modifier.isStatic(modifiers)
+                        || field.isAnnotationPresent(ToStringExclude.class)) {
+                    continue;
+                }
+
+                field.setAccessible(true);
+                try {
+                    final MethodHandle getter = lookup.unreflectGetter(field).asType(GETTER_TYPE);
+                    accessors.add(new FieldAccessor(field.getName(), getter, !field.isAnnotationPresent(ToStringSummary.class)));
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException("Cannot access field: " + field, e);
+                }
+            }
+        }
+        return accessors.toArray(new FieldAccessor[0]);
+    }
+
+    private static String spaces(int count) {
+        if (count <= 0) {
+            return "";
+        }
+        String[] current = spaces;
+        if (count >= current.length) {
+            current = newSpaces(count * 2);
+            spaces = current;
+        }
+        return current[count];
+    }
+
+    private static String[] newSpaces(int size) {
+        final String[] result = new String[size];
+        final char[] chars = new char[size];
+        Arrays.fill(chars, ' ');
+        for (int i = 0; i < size; i++) {
+            result[i] = new String(chars, 0, i);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,79 @@
+package nl.headease.koppeltaal;
+
+import nl.koppeltaal.api.KoppeltaalBundle;
+import org.apache.commons.lang3.builder.ReflectionToStringBuilder;
+import org.hl7.fhir.instance.model.AtomFeed;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link FhirObjectDumper} with {@link ReflectionToStringBuilder} and
+ * {@link ExcludeNullValuesMultilineRecursiveToStringStyle}, dumping a feed of CarePlan bundles.
+ * <p>
+ * Run from the IDE or with {@code exec:java}; optional arguments: number of bundles in the feed (default 10) and
+ * measured seconds per case (default 10).
+ */
+public class FhirObjectDumperBenchmark {
+
+    private interface Case {
+        String run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int bundles = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        final long seconds = args.length > 1 ? Long.parseLong(args[1]) : 10;
+
+        final AtomFeed feed = newFeed(bundles);
+        final String reflection = ReflectionToStringBuilder.toString(feed, new ExcludeNullValuesMultilineRecursiveToStringStyle(), false, false, true, null);
+        if (!reflection.equals(FhirObjectDumper.toString(feed))) {
+            throw new IllegalStateException("Output of FhirObjectDumper differs from ReflectionToStringBuilder");
+        }
+
+        System.out.printf("Feed of %d entries, dump of %d characters%n", feed.getEntryList().size(), reflection.length());
+        System.out.printf("%-24s %12s %12s%n", "case", "ops/s", "us/op");
+
+        final double reflectionOps = measure("reflection", seconds,
+                () -> ReflectionToStringBuilder.toString(feed, new ExcludeNullValuesMultilineRecursiveToStringStyle(), false, false, true, null));
+        final double dumperOps = measure("dumper", seconds, () -> FhirObjectDumper.toString(feed));
+
+        System.out.printf("speed up %.1fx%n", dumperOps / reflectionOps);
+    }
+
+    private static double measure(String name, long seconds, Case benchmarkCase) throws Exception {
+        // warm up
+        run(benchmarkCase, TimeUnit.SECONDS.toNanos(Math.max(1, seconds / 2)));
+
+        final long start = System.nanoTime();
+        final long operations = run(benchmarkCase, TimeUnit.SECONDS.toNanos(seconds));
+        final long elapsed = System.nanoTime() - start;
+
+        final double opsPerSecond = operations / (elapsed / 1e9);
+        System.out.printf("%-24s %12.1f %12.1f%n", name, opsPerSecond, elapsed / 1e3 / operations);
+        return opsPerSecond;
+    }
+
+    private static long run(Case benchmarkCase, long durationNanos) throws Exception {
+        final long end = System.nanoTime() + durationNanos;
+        long operations = 0;
+        int length = 0;
+        while (System.nanoTime() < end) {
+            length += benchmarkCase.run().length();
+            operations++;
+        }
+        // keep the result alive
+        if (length == 42) {
+            System.out.println();
+        }
+        return operations;
+    }
+
+    private static AtomFeed newFeed(int bundles) {
+        final AtomFeed feed = SampleBundles.newCreateOrUpdateCarePlanBundle(UUID.randomUUID().toString(), "benchmark").getFeed();
+        for (int i = 1; i < bundles; i++) {
+            final KoppeltaalBundle bundle = SampleBundles.newCreateOrUpdateCarePlanBundle(UUID.randomUUID().toString(), "benchmark");
+            feed.getEntryList().addAll(bundle.getFeed().getEntryList());
+        }
+        return feed;
+    }
+}
@@ -0,0 +1,77 @@
+package nl.headease.koppeltaal;
+
+import nl.koppeltaal.api.KoppeltaalBundle;
+import org.apache.commons.lang3.builder.ReflectionToStringBuilder;
+import org.hl7.fhir.instance.model.AtomEntry;
+import org.hl7.fhir.instance.model.Resource;
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+public class FhirObjectDumperTest {
+
+    @Test
+    public void sameOutputAsReflectionToStringBuilderForSampleBundles() {
+        final String messageId = UUID.randomUUID().toString();
+        final List<KoppeltaalBundle> bundles = Arrays.asList(
+                SampleBundles.newCreateOrUpdateCarePlanBundle(messageId, "test"),
+                SampleBundles.newUpdateCarePlanActivityStatus(messageId, "test"),
+                SampleBundles.newUserMessageBundle(messageId, "test"));
+
+        for (KoppeltaalBundle bundle : bundles) {
+            for (AtomEntry<? extends Resource> entry : bundle.getFeed().getEntryList()) {
+                assertEquals(reflectionToString(entry.getResource()), FhirObjectDumper.toString(entry.getResource()));
+            }
+            assertEquals(reflectionToString(bundle.getFeed()), FhirObjectDumper.toString(bundle.getFeed()));
+        }
+    }
+
+    @Test
+    public void sameOutputForArraysCollectionsMapsAndCycles() {
+        final Node node = new Node();
+        node.self = node;
+        node.child = new Node();
+
+        assertEquals(reflectionToString(node), FhirObjectDumper.toString(node));
+    }
+
+    @Test
+    public void writesToAnyAppendable() throws Exception {
+        final Node node = new Node();
+        final StringWriter writer = new StringWriter();
+
+        FhirObjectDumper.dump(node, writer);
+
+        assertEquals(reflectionToString(node), writer.toString());
+    }
+
+    private static String reflectionToString(Object object) {
+        return ReflectionToStringBuilder.toString(object, new ExcludeNullValuesMultilineRecursiveToStringStyle(), false, false, true, null);
+    }
+
+    private static class Leaf {
+        private final String code = "code";
+        private final Integer number = 5;
+        private final Long missing = null;
+        private final double value = 1.5;
+    }
+
+    private static class Parent {
+        private final Leaf leaf = new Leaf();
+    }
+
+    private static class Node extends Parent {
+        private final String name = "node";
+        private final List<Leaf> leaves = new ArrayList<>(Arrays.asList(new Leaf(), null, new Leaf()));
+        private final List<String> empty = new ArrayList<>();
+        private final int[] numbers = {1, 2, 3};
+        private final Object[] mixed = {new Leaf(), "text", new int[]{4}, Collections.singletonList(new Leaf())};
+        private final Map<String, Integer> map = Collections.singletonMap("key", 1);
+        private transient String skipped = "skipped";
+        private Node self;
+        private Node child;
+    }
+}
@@ -0,0 +1,78 @@
+package nl.headease.koppeltaal;
+
+import com.google.api.client.http.AbstractHttpContent;
+import org.hl7.fhir.instance.formats.Composer;
+import org.hl7.fhir.instance.model.AtomFeed;
+import org.hl7.fhir.instance.model.Resource;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Request body that composes a {@link Resource} or {@link AtomFeed} straight into the request stream, instead of
+ * composing to a String and copying that into a byte array first. The length is unknown up front, so the request is
+ * sent with chunked transfer encoding.
+ */
+public class FhirStreamingContent extends AbstractHttpContent {
+
+    private final Composer composer;
+    private final Resource resource;
+    private final AtomFeed feed;
+    private final boolean pretty;
+
+    public FhirStreamingContent(String mediaType, Composer composer, Resource resource, boolean pretty) {
+        this(mediaType, composer, resource, null, pretty);
+    }
+
+    public FhirStreamingContent(String mediaType, Composer composer, AtomFeed feed, boolean pretty) {
+        this(mediaType, composer, null, feed, pretty);
+    }
+
+    private FhirStreamingContent(String mediaType, Composer composer, Resource resource, AtomFeed feed, boolean pretty) {
+        super(mediaType);
+        this.composer = composer;
+        this.resource = resource;
+        this.feed = feed;
+        this.pretty = pretty;
+    }
+
+    @Override
+    public long getLength() {
+        return -1;
+    }
+
+    @Override
+    public boolean retrySupported() {
+        return true;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        // the composers close the stream they write to, the transport owns it
+        final OutputStream stream = new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+
+        try {
+            if (feed != null) {
+                composer.compose(stream, feed, pretty);
+            } else {
+                composer.compose(stream, resource, pretty);
+            }
+            stream.flush();
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Unable to compose request body", e);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package nl.headease.koppeltaal;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.GZipEncoding;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import nl.koppeltaal.api.Format;
+import nl.koppeltaal.api.KoppeltaalBundle;
+import nl.koppeltaal.api.KoppeltaalMessageHeader;
+import nl.koppeltaal.api.ProcessingStatus;
+import org.hl7.fhir.instance.model.AtomEntry;
+import org.hl7.fhir.instance.model.MessageHeader;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * The connector composes a body to a String and sends its UTF-8 bytes, the streamed body has to be the same.
+ */
+public class FhirStreamingContentTest {
+
+    @Test
+    public void streamedFeedIsTheComposedString() throws Exception {
+        final KoppeltaalBundle bundle = SampleBundles.newCreateOrUpdateCarePlanBundle(UUID.randomUUID().toString(), "test");
+
+        for (Format format : Format.values()) {
+            final byte[] composed = format.getComposer().composeString(bundle.getFeed(), false).getBytes(StandardCharsets.UTF_8);
+
+            assertArrayEquals(format.name(), composed, write(new FhirStreamingContent(format.getMediaType(), format.getComposer(), bundle.getFeed(), false)));
+        }
+    }
+
+    @Test
+    public void streamedResourceIsTheComposedString() throws Exception {
+        final MessageHeader messageHeader = newHeader().getEntry().getResource();
+
+        for (Format format : Format.values()) {
+            final byte[] composed = format.getComposer().composeString(messageHeader, false).getBytes(StandardCharsets.UTF_8);
+
+            assertArrayEquals(format.name(), composed, write(new FhirStreamingContent(format.getMediaType(), format.getComposer(), messageHeader, false)));
+        }
+    }
+
+    @Test
+    public void clientSendsTheComposedString() throws Exception {
+        for (Format format : Format.values()) {
+            for (boolean gzip : new boolean[]{false, true}) {
+                final Server server = new Server();
+                final KoppeltaalMessageHeader header = newHeader();
+
+                try (ExtendedKoppeltaalClient client = ExtendedKoppeltaalClient.builder("https://localhost", "user", "password")
+                        .format(format)
+                        .gzip(gzip)
+                        .transport(server)
+                        .build()) {
+                    client.updateMessageStatus(header, ProcessingStatus.SUCCESS);
+                }
+
+                // the body the connector composes, encoded as the connector would
+                final ByteArrayContent composed = new ByteArrayContent(format.getMediaType(),
+                        format.getComposer().composeString(header.getEntry().getResource(), false).getBytes(StandardCharsets.UTF_8));
+                final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+                if (gzip) {
+                    new GZipEncoding().encode(composed, expected);
+                } else {
+                    composed.writeTo(expected);
+                }
+
+                final String name = format + (gzip ? " gzip" : "");
+                assertEquals(name, gzip ? "gzip" : null, server.contentEncoding);
+                assertEquals(name, format.getMediaType(), server.contentType);
+                assertArrayEquals(name, expected.toByteArray(), server.body);
+            }
+        }
+    }
+
+    /**
+     * @return a header with characters that are more than one byte in UTF-8
+     */
+    private static KoppeltaalMessageHeader newHeader() {
+        final MessageHeader messageHeader = new MessageHeader();
+        messageHeader.setIdentifierSimple("bericht-\u00eb-\u20ac-" + UUID.randomUUID());
+        final AtomEntry<MessageHeader> entry = new AtomEntry<>();
+        entry.setId("https://localhost/FHIR/Koppeltaal/MessageHeader/1");
+        entry.setResource(messageHeader);
+        return new KoppeltaalMessageHeader(entry) {
+            @Override
+            public void setProcessingStatus(ProcessingStatus status) {
+                // the processing status is an extension of the header, set by the server
+            }
+        };
+    }
+
+    private static byte[] write(FhirStreamingContent content) throws IOException {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        content.writeTo(outputStream);
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * Keeps the body of the last request as sent, compressed when it was compressed.
+     */
+    private static class Server extends MockHttpTransport {
+
+        private byte[] body;
+        private String contentEncoding;
+        private String contentType;
+
+        @Override
+        public LowLevelHttpRequest buildRequest(String method, String url) {
+            return new MockLowLevelHttpRequest(url) {
+                @Override
+                public LowLevelHttpResponse execute() throws IOException {
+                    final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                    getStreamingContent().writeTo(outputStream);
+                    body = outputStream.toByteArray();
+                    contentEncoding = getContentEncoding();
+                    contentType = getContentType();
+                    return new MockLowLevelHttpResponse().setStatusCode(200);
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package nl.headease.koppeltaal;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.util.StreamingContent;
+import nl.koppeltaal.api.KoppeltaalException;
+import nl.koppeltaal.api.KoppeltaalMessageHeader;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+/**
+ * Java Flight Recorder events of the Koppeltaal client, to correlate GC and CPU spikes in a flight recording with the
+ * operations and message types that caused them:
+ * <ul>
+ *     <li>{@link ClientOperationEvent} ({@code nl.headease.koppeltaal.ClientOperation}) for every request of an
+ *     {@link ExtendedKoppeltaalClient}: post message, claim, header search, status update, token requests, ...</li>
+ *     <li>{@link ConsumerStageEvent} ({@code nl.headease.koppeltaal.ConsumerStage}) for the claim, fetch, handler and
+ *     ack stages of the {@link MailboxConsumer}</li>
+ * </ul>
+ * Enable them with {@code -XX:StartFlightRecording} and a settings file that enables these names. The events are
+ * disabled by default; then the client skips all of this, and the transport only checks {@link #CURRENT}.
+ * The bytes and status code of a request are counted at the transport ({@link #wrap(HttpTransport)}). The patient is
+ * recorded as a keyed hash, see {@link #hash(String)}: it correlates the messages of a patient within a recording, but
+ * cannot be traced back to the patient.
+ * <p>
+ * The event classes only hold fields: JFR instruments them, code that refers to the connector belongs here.
+ */
+public final class FlightRecorderEvents {
+
+    /**
+     * random per process: patient references are easy to enumerate, a plain hash of them could be reversed by anyone
+     * with the recording
+     */
+    private static final byte[] PATIENT_HASH_KEY = newKey();
+
+    /** the event of the request that runs on the current thread, when enabled */
+    static final ThreadLocal<ClientOperationEvent> CURRENT = new ThreadLocal<>();
+
+    private FlightRecorderEvents() {
+    }
+
+    /**
+     * Counts the bytes and sets the status code of the requests that run inside a {@link #CURRENT} event.
+     */
+    public static HttpTransport wrap(HttpTransport transport) {
+        return new CountingTransport(transport);
+    }
+
+    static void setMessage(ClientOperationEvent event, KoppeltaalMessageHeader header) {
+        if (header != null) {
+            event.messageEvent = MessageLatencyTracker.getEventCode(header);
+            event.patientHash = patientHash(header);
+        }
+    }
+
+    static ConsumerStageEvent startStage() {
+        final ConsumerStageEvent event = new ConsumerStageEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * @param header the message, null when nothing was claimed
+     */
+    static void commitStage(ConsumerStageEvent event, MessageLatencyTracker.Stage stage, KoppeltaalMessageHeader header, boolean success) {
+        if (!event.shouldCommit()) {
+            return;
+        }
+        event.stage = stage.name();
+        event.success = success;
+        if (header != null) {
+            event.messageId = MessageLatencyTracker.getMessageId(header);
+            event.messageEvent = MessageLatencyTracker.getEventCode(header);
+            event.patientHash = patientHash(header);
+        }
+        event.commit();
+    }
+
+    static String patientHash(KoppeltaalMessageHeader header) {
+        try {
+            return hash(header.getPatientReference());
+        } catch (KoppeltaalException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the first 8 bytes of the HMAC-SHA256 of the reference with the key of this process in hex, the same for
+     * every message of the patient in a recording
+     */
+    static String hash(String reference) {
+        return hash(reference, PATIENT_HASH_KEY);
+    }
+
+    static String hash(String reference, byte[] key) {
+        if (reference == null) {
+            return null;
+        }
+        final byte[] digest;
+        try {
+            final Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            digest = mac.doFinal(reference.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+
+        final StringBuilder hash = new StringBuilder(16);
+        for (int i = 0; i < 8; i++) {
+            hash.append(Character.forDigit((digest[i] >> 4) & 0xf, 16)).append(Character.forDigit(digest[i] & 0xf, 16));
+        }
+        return hash.toString();
+    }
+
+    private static byte[] newKey() {
+        final byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        return key;
+    }
+
+    private static class CountingTransport extends ForwardingTransport {
+
+        CountingTransport(HttpTransport delegate) {
+            super(delegate);
+        }
+
+        @Override
+        protected LowLevelHttpRequest wrap(LowLevelHttpRequest request, String method, String url) {
+            final ClientOperationEvent event = CURRENT.get();
+            return event == null ? request : new CountingRequest(request, event);
+        }
+    }
+
+    private static class CountingRequest extends ForwardingTransport.Request {
+
+        private final ClientOperationEvent event;
+
+        CountingRequest(LowLevelHttpRequest delegate, ClientOperationEvent event) {
+            super(delegate);
+            this.event = event;
+        }
+
+        @Override
+        protected StreamingContent wrapContent(StreamingContent content) {
+            return out -> content.writeTo(new FilterOutputStream(out) {
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    event.requestBytes++;
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    event.requestBytes += len;
+                }
+            });
+        }
+
+        @Override
+        public LowLevelHttpResponse execute() throws IOException {
+            final LowLevelHttpResponse response = super.execute();
+            event.statusCode = response.getStatusCode();
+            return new CountingResponse(response, event);
+        }
+    }
+
+    private static class CountingResponse extends ForwardingTransport.Response {
+
+        private final ClientOperationEvent event;
+
+        CountingResponse(LowLevelHttpResponse delegate, ClientOperationEvent event) {
+            super(delegate);
+            this.event = event;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            final InputStream content = delegate.getContent();
+            return content == null ? null : new FilterInputStream(content) {
+                @Override
+                public int read() throws IOException {
+                    final int b = in.read();
+                    if (b != -1) {
+                        event.responseBytes++;
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    final int count = in.read(b, off, len);
+                    if (count > 0) {
+                        event.responseBytes += count;
+                    }
+                    return count;
+                }
+            };
+        }
+    }
+}
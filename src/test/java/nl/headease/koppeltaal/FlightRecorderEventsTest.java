@@ -0,0 +1,207 @@
+package nl.headease.koppeltaal;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import nl.koppeltaal.api.Format;
+import nl.koppeltaal.api.KoppeltaalBundle;
+import nl.koppeltaal.api.KoppeltaalClient;
+import nl.koppeltaal.api.KoppeltaalMessageHeader;
+import nl.koppeltaal.api.ProcessingStatus;
+import org.hl7.fhir.instance.model.AtomEntry;
+import org.hl7.fhir.instance.model.AtomFeed;
+import org.hl7.fhir.instance.model.MessageHeader;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class FlightRecorderEventsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void clientOperationEventCountsBytesAndStatus() throws Exception {
+        final MockHttpTransport server = new MockHttpTransport() {
+            @Override
+            public LowLevelHttpRequest buildRequest(String method, String url) {
+                return new MockLowLevelHttpRequest(url) {
+                    @Override
+                    public LowLevelHttpResponse execute() throws IOException {
+                        getContentAsString();
+                        return new MockLowLevelHttpResponse().setContent("<response/>").setStatusCode(201);
+                    }
+                };
+            }
+        };
+
+        final List<RecordedEvent> events = record("nl.headease.koppeltaal.ClientOperation", () -> {
+            final ClientOperationEvent event = new ClientOperationEvent();
+            event.begin();
+            FlightRecorderEvents.CURRENT.set(event);
+            try {
+                final HttpResponse response = FlightRecorderEvents.wrap(server).createRequestFactory()
+                        .buildPostRequest(new GenericUrl("https://localhost/FHIR/Koppeltaal/Mailbox"), ByteArrayContent.fromString("application/xml", "<request/>"))
+                        .execute();
+                response.parseAsString();
+                response.disconnect();
+            } finally {
+                FlightRecorderEvents.CURRENT.remove();
+            }
+            event.operation = ClientOperation.POST_MESSAGE.name();
+            event.success = true;
+            event.commit();
+        });
+
+        assertEquals(1, events.size());
+        assertEquals("POST_MESSAGE", events.get(0).getString("operation"));
+        assertEquals(10, events.get(0).getLong("requestBytes"));
+        assertEquals(11, events.get(0).getLong("responseBytes"));
+        assertEquals(201, events.get(0).getInt("statusCode"));
+    }
+
+    @Test
+    public void clientRecordsEventOfClaimedMessage() throws Exception {
+        final String claimResponse = "{\"resourceType\":\"Bundle\",\"entry\":[{\"id\":\"https://localhost/FHIR/Koppeltaal/MessageHeader/1\","
+                + "\"content\":{\"resourceType\":\"MessageHeader\",\"identifier\":\"1\",\"timestamp\":\"2020-01-01T00:00:00Z\","
+                + "\"event\":{\"system\":\"http://ggz.koppeltaal.nl/fhir/Koppeltaal/MessageEvents\",\"code\":\"CreateOrUpdateCarePlan\"},"
+                + "\"source\":{\"endpoint\":\"https://localhost\"}}}]}";
+        final MockHttpTransport server = new MockHttpTransport.Builder()
+                .setLowLevelHttpResponse(new MockLowLevelHttpResponse().setContent(claimResponse).setContentType(Format.JSON.getMediaType()))
+                .build();
+
+        final List<RecordedEvent> events = record("nl.headease.koppeltaal.ClientOperation", () -> {
+            try (ExtendedKoppeltaalClient client = ExtendedKoppeltaalClient.builder("https://localhost", "user", "password")
+                    .format(Format.JSON)
+                    .jsonFeedCodec(true)
+                    .transport(server)
+                    .build()) {
+                client.getNextNewAndClaim();
+            }
+        });
+
+        assertEquals(1, events.size());
+        assertEquals("CLAIM", events.get(0).getString("operation"));
+        assertTrue(events.get(0).getBoolean("success"));
+        assertEquals("CreateOrUpdateCarePlan", events.get(0).getString("messageEvent"));
+        assertEquals(claimResponse.length(), events.get(0).getLong("responseBytes"));
+    }
+
+    @Test
+    public void consumerRecordsFailedStage() throws Exception {
+        final KoppeltaalClient client = new KoppeltaalClient("https://localhost", "user", "password", Format.XML) {
+            @Override
+            public KoppeltaalBundle getNextNewAndClaim() {
+                final MessageHeader messageHeader = new MessageHeader();
+                messageHeader.setIdentifierSimple("1");
+                final AtomEntry<MessageHeader> headerEntry = new AtomEntry<>();
+                headerEntry.setId("https://localhost/FHIR/Koppeltaal/MessageHeader/1");
+                headerEntry.setResource(messageHeader);
+
+                final AtomFeed feed = new AtomFeed();
+                feed.getEntryList().add(headerEntry);
+                feed.getEntryList().add(new AtomEntry<MessageHeader>());
+                return new KoppeltaalBundle(feed);
+            }
+
+            @Override
+            public void updateMessageStatus(KoppeltaalMessageHeader header, ProcessingStatus status) throws IOException {
+                throw new IOException("Connection reset");
+            }
+        };
+        final MailboxConsumer consumer = new MailboxConsumer(client, bundle -> {
+        }, new MessageLatencyTracker(Duration.ofMinutes(1)));
+
+        final List<RecordedEvent> events = record("nl.headease.koppeltaal.ConsumerStage", () -> {
+            try {
+                consumer.processNext();
+                fail("Acknowledgement did not fail");
+            } catch (IOException e) {
+                // expected
+            }
+        });
+
+        assertEquals(List.of("CLAIM", "FETCH", "HANDLER", "ACK"), events.stream().map(event -> event.getString("stage")).collect(Collectors.toList()));
+        assertEquals(List.of(true, true, true, false), events.stream().map(event -> event.getBoolean("success")).collect(Collectors.toList()));
+        assertEquals("1", events.get(3).getString("messageId"));
+    }
+
+    @Test
+    public void consumerRecordsEmptyClaim() throws Exception {
+        final KoppeltaalClient client = new KoppeltaalClient("https://localhost", "user", "password", Format.XML) {
+            @Override
+            public KoppeltaalBundle getNextNewAndClaim() {
+                return new KoppeltaalBundle(new AtomFeed());
+            }
+        };
+        final MailboxConsumer consumer = new MailboxConsumer(client, bundle -> {
+        }, new MessageLatencyTracker(Duration.ofMinutes(1)));
+
+        final List<RecordedEvent> events = record("nl.headease.koppeltaal.ConsumerStage", () -> assertFalse(consumer.processNext()));
+
+        assertEquals(1, events.size());
+        assertEquals("CLAIM", events.get(0).getString("stage"));
+        assertNull(events.get(0).getString("messageId"));
+    }
+
+    @Test
+    public void patientHashIsStable() throws Exception {
+        assertEquals(16, FlightRecorderEvents.hash("Patient/1").length());
+        assertEquals(FlightRecorderEvents.hash("Patient/1"), FlightRecorderEvents.hash("Patient/1"));
+        assertNotEquals(FlightRecorderEvents.hash("Patient/1"), FlightRecorderEvents.hash("Patient/2"));
+        assertNull(FlightRecorderEvents.hash(null));
+
+        // keyed, stable for the same key only
+        final byte[] key = new byte[32];
+        final byte[] otherKey = new byte[32];
+        otherKey[0] = 1;
+
+        assertEquals(FlightRecorderEvents.hash("Patient/1", key), FlightRecorderEvents.hash("Patient/1", key));
+        assertNotEquals(FlightRecorderEvents.hash("Patient/1", key), FlightRecorderEvents.hash("Patient/1", otherKey));
+
+        // not the plain SHA-256, which can be reversed by hashing all patient ids
+        final byte[] sha256 = MessageDigest.getInstance("SHA-256").digest("Patient/1".getBytes(StandardCharsets.UTF_8));
+        final StringBuilder plain = new StringBuilder();
+        for (int i = 0; i < 8; i++) {
+            plain.append(String.format("%02x", sha256[i]));
+        }
+        assertNotEquals(plain.toString(), FlightRecorderEvents.hash("Patient/1"));
+    }
+
+    private List<RecordedEvent> record(String eventName, Action action) throws Exception {
+        final Path file = folder.getRoot().toPath().resolve("recording.jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(eventName).withThreshold(Duration.ZERO);
+            recording.start();
+            action.run();
+            recording.stop();
+            recording.dump(file);
+        }
+        return RecordingFile.readAllEvents(file).stream()
+                .filter(event -> event.getEventType().getName().equals(eventName))
+                .collect(Collectors.toList());
+    }
+
+    @FunctionalInterface
+    private interface Action {
+        void run() throws Exception;
+    }
+}
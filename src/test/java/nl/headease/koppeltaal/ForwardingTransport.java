@@ -0,0 +1,180 @@
+package nl.headease.koppeltaal;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.util.StreamingContent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+
+/**
+ * Transport that forwards everything to another transport, the base of the transport wrappers ({@link WireCapture},
+ * {@link TrafficRecorder}, {@link RequestPhaseTimer}, {@link FlightRecorderEvents}). A wrapper overrides
+ * {@link #wrap(LowLevelHttpRequest, String, String)} and extends {@link Request} and {@link Response} with only what it
+ * measures.
+ */
+abstract class ForwardingTransport extends HttpTransport {
+
+    /** {@link HttpTransport#buildRequest} is protected and the default transport is final */
+    private static final MethodHandle BUILD_REQUEST;
+
+    static {
+        try {
+            final Method method = HttpTransport.class.getDeclaredMethod("buildRequest", String.class, String.class);
+            method.setAccessible(true);
+            BUILD_REQUEST = MethodHandles.lookup().unreflect(method);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final HttpTransport delegate;
+
+    ForwardingTransport(HttpTransport delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * @return the request to execute instead of the request of the wrapped transport, or that request itself
+     */
+    protected abstract LowLevelHttpRequest wrap(LowLevelHttpRequest request, String method, String url) throws IOException;
+
+    @Override
+    public boolean supportsMethod(String method) throws IOException {
+        return delegate.supportsMethod(method);
+    }
+
+    @Override
+    protected LowLevelHttpRequest buildRequest(String method, String url) throws IOException {
+        final LowLevelHttpRequest request;
+        try {
+            request = (LowLevelHttpRequest) BUILD_REQUEST.invoke(delegate, method, url);
+        } catch (IOException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IOException(e);
+        }
+        return wrap(request, method, url);
+    }
+
+    @Override
+    public void shutdown() throws IOException {
+        delegate.shutdown();
+    }
+
+    /**
+     * Passes the headers, timeouts and content to the wrapped request, the content through
+     * {@link #wrapContent(StreamingContent)}.
+     */
+    static class Request extends LowLevelHttpRequest {
+
+        protected final LowLevelHttpRequest delegate;
+
+        Request(LowLevelHttpRequest delegate) {
+            this.delegate = delegate;
+        }
+
+        /**
+         * @return the content to write to the wrapped request, called once per execution when there is content
+         */
+        protected StreamingContent wrapContent(StreamingContent content) {
+            return content;
+        }
+
+        @Override
+        public void addHeader(String name, String value) throws IOException {
+            delegate.addHeader(name, value);
+        }
+
+        @Override
+        public void setTimeout(int connectTimeout, int readTimeout) throws IOException {
+            delegate.setTimeout(connectTimeout, readTimeout);
+        }
+
+        @Override
+        public void setWriteTimeout(int writeTimeout) throws IOException {
+            delegate.setWriteTimeout(writeTimeout);
+        }
+
+        @Override
+        public LowLevelHttpResponse execute() throws IOException {
+            delegate.setContentLength(getContentLength());
+            delegate.setContentEncoding(getContentEncoding());
+            delegate.setContentType(getContentType());
+
+            final StreamingContent content = getStreamingContent();
+            if (content != null) {
+                delegate.setStreamingContent(wrapContent(content));
+            }
+            return delegate.execute();
+        }
+    }
+
+    static class Response extends LowLevelHttpResponse {
+
+        protected final LowLevelHttpResponse delegate;
+
+        Response(LowLevelHttpResponse delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return delegate.getContent();
+        }
+
+        @Override
+        public String getContentEncoding() throws IOException {
+            return delegate.getContentEncoding();
+        }
+
+        @Override
+        public long getContentLength() throws IOException {
+            return delegate.getContentLength();
+        }
+
+        @Override
+        public String getContentType() throws IOException {
+            return delegate.getContentType();
+        }
+
+        @Override
+        public String getStatusLine() throws IOException {
+            return delegate.getStatusLine();
+        }
+
+        @Override
+        public int getStatusCode() throws IOException {
+            return delegate.getStatusCode();
+        }
+
+        @Override
+        public String getReasonPhrase() throws IOException {
+            return delegate.getReasonPhrase();
+        }
+
+        @Override
+        public int getHeaderCount() throws IOException {
+            return delegate.getHeaderCount();
+        }
+
+        @Override
+        public String getHeaderName(int index) throws IOException {
+            return delegate.getHeaderName(index);
+        }
+
+        @Override
+        public String getHeaderValue(int index) throws IOException {
+            return delegate.getHeaderValue(index);
+        }
+
+        @Override
+        public void disconnect() throws IOException {
+            delegate.disconnect();
+        }
+    }
+}
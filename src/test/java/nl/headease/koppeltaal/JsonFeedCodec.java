@@ -0,0 +1,323 @@
+package nl.headease.koppeltaal;
+
+import com.fasterxml.jackson.core.*;
+import nl.koppeltaal.api.responsehandler.ResponseHandler;
+import nl.koppeltaal.api.responsehandler.ResponseHandlerUtil;
+import org.hl7.fhir.instance.formats.JsonComposer;
+import org.hl7.fhir.instance.formats.JsonParser;
+import org.hl7.fhir.instance.model.*;
+import org.hl7.fhir.utilities.xhtml.XhtmlComposer;
+import org.hl7.fhir.utilities.xhtml.XhtmlParser;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streaming (Jackson) parser and composer for DSTU1 JSON bundles.
+ * <p>
+ * Unlike {@code org.hl7.fhir.instance.formats.JsonParserBase#parseAtom} this populates {@code totalResults}. Only the
+ * bundle envelope (links, categories, authors, dates, summaries) is streamed token by token: the {@code content} of
+ * each entry is copied to a buffer and parsed by the FHIR {@link JsonParser}, and composed by the FHIR
+ * {@link JsonComposer} into a buffer. The codec is not meant to be faster than {@link JsonParser#parseGeneral}, use
+ * {@link JsonFeedCodecBenchmark} to compare them.
+ * <p>
+ * With a {@link StringInterner} the repeated strings of a parsed feed (link relations and urls, categories, entry ids
+ * and the urls, codes and references in the resources) share one instance, which matters for large header searches
+ * and bundles that are kept in memory.
+ */
+public class JsonFeedCodec {
+
+    // the transport owns the streams, the codec must not close them
+    private static final JsonFactory JSON_FACTORY = new JsonFactory()
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+    private static final int HTTP_OK = 200;
+
+    private final StringInterner interner;
+
+    public JsonFeedCodec() {
+        this(null);
+    }
+
+    /**
+     * @param interner interns the repeated strings of parsed feeds, null to keep the strings as parsed
+     */
+    public JsonFeedCodec(StringInterner interner) {
+        this.interner = interner;
+    }
+
+    /**
+     * @return a response handler that can be used in place of {@code AtomFeedResponseHandler}
+     */
+    public ResponseHandler<AtomFeed> responseHandler() {
+        return response -> {
+            ResponseHandlerUtil.checkStatus(response, HTTP_OK);
+            try (InputStream content = response.getContent()) {
+                return parse(content);
+            }
+        };
+    }
+
+    public AtomFeed parse(InputStream inputStream) throws IOException {
+        try (com.fasterxml.jackson.core.JsonParser parser = JSON_FACTORY.createParser(inputStream)) {
+            expect(parser.nextToken(), JsonToken.START_OBJECT, parser);
+
+            final AtomFeed feed = new AtomFeed();
+            final JsonParser resourceParser = new JsonParser();
+            final ByteArrayOutputStream buffer = new ByteArrayOutputStream(4096);
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String name = parser.getCurrentName();
+                final JsonToken value = parser.nextToken();
+
+                switch (name) {
+                    case "resourceType":
+                        if (!"Bundle".equals(parser.getText())) {
+                            throw new JsonParseException(parser, "Not a Bundle: " + parser.getText());
+                        }
+                        break;
+                    case "totalResults":
+                        feed.setTotalResults(value == JsonToken.VALUE_NULL ? null : Integer.valueOf(parser.getValueAsString()));
+                        break;
+                    case "entry":
+                        expect(value, JsonToken.START_ARRAY, parser);
+                        while (parser.nextToken() == JsonToken.START_OBJECT) {
+                            feed.getEntryList().add(parseEntry(parser, resourceParser, buffer));
+                        }
+                        break;
+                    default:
+                        parseBase(name, feed, parser);
+                }
+            }
+
+            return feed;
+        }
+    }
+
+    public void compose(OutputStream outputStream, AtomFeed feed, boolean pretty) throws IOException {
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(outputStream, JsonEncoding.UTF8)) {
+            if (pretty) {
+                generator.useDefaultPrettyPrinter();
+            }
+
+            final JsonComposer resourceComposer = new JsonComposer();
+            final ByteArrayOutputStream buffer = new ByteArrayOutputStream(4096);
+
+            generator.writeStartObject();
+            generator.writeStringField("resourceType", "Bundle");
+            composeBase(feed, generator);
+            if (feed.getTotalResults() != null) {
+                generator.writeStringField("totalResults", feed.getTotalResults().toString());
+            }
+
+            generator.writeArrayFieldStart("entry");
+            for (AtomEntry<? extends Resource> entry : feed.getEntryList()) {
+                generator.writeStartObject();
+                composeBase(entry, generator);
+                writeDate(generator, "published", entry.getPublished());
+                if (entry.getSummary() != null) {
+                    try {
+                        final XhtmlComposer summaryComposer = new XhtmlComposer();
+                        summaryComposer.setXmlOnly(true);
+                        generator.writeStringField("summary", summaryComposer.compose(entry.getSummary()));
+                    } catch (Exception e) {
+                        throw new IOException("Unable to compose summary of entry: " + entry.getId(), e);
+                    }
+                }
+
+                if (entry.getResource() != null) {
+                    buffer.reset();
+                    try {
+                        resourceComposer.compose(buffer, entry.getResource(), false);
+                    } catch (Exception e) {
+                        throw new IOException("Unable to compose entry: " + entry.getId(), e);
+                    }
+                    generator.writeFieldName("content");
+                    generator.writeRawValue(new String(buffer.toByteArray(), StandardCharsets.UTF_8));
+                }
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+
+            generator.writeEndObject();
+        }
+    }
+
+    private AtomEntry<Resource> parseEntry(com.fasterxml.jackson.core.JsonParser parser, JsonParser resourceParser, ByteArrayOutputStream buffer) throws IOException {
+        final AtomEntry<Resource> entry = new AtomEntry<>();
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String name = parser.getCurrentName();
+            parser.nextToken();
+
+            switch (name) {
+                case "published":
+                    entry.setPublished(parseDate(parser));
+                    break;
+                case "summary":
+                    try {
+                        entry.setSummary(new XhtmlParser().parse(parser.getValueAsString(), "div").getChildNodes().get(0));
+                    } catch (Exception e) {
+                        throw new IOException("Unable to parse summary of entry: " + entry.getId(), e);
+                    }
+                    break;
+                case "content":
+                    buffer.reset();
+                    try (JsonGenerator copy = JSON_FACTORY.createGenerator(buffer, JsonEncoding.UTF8)) {
+                        copy.copyCurrentStructure(parser);
+                    }
+                    try {
+                        entry.setResource(resourceParser.parse(new ByteArrayInputStream(buffer.toByteArray())));
+                        if (interner != null) {
+                            interner.internStrings(entry.getResource());
+                        }
+                    } catch (IOException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        throw new IOException("Unable to parse content of entry: " + entry.getId(), e);
+                    }
+                    break;
+                default:
+                    parseBase(name, entry, parser);
+            }
+        }
+
+        return entry;
+    }
+
+    /**
+     * Parses the fields shared by the feed and its entries, skips unknown fields.
+     */
+    private void parseBase(String name, AtomBase base, com.fasterxml.jackson.core.JsonParser parser) throws IOException {
+        switch (name) {
+            case "id":
+                base.setId(intern(parser.getValueAsString()));
+                break;
+            case "title":
+                base.setTitle(parser.getValueAsString());
+                break;
+            case "updated":
+                base.setUpdated(parseDate(parser));
+                break;
+            case "link":
+                expect(parser.currentToken(), JsonToken.START_ARRAY, parser);
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    final Map<String, String> link = readStringObject(parser);
+                    base.getLinks().put(intern(link.get("rel")), intern(link.get("href")));
+                }
+                break;
+            case "category":
+                expect(parser.currentToken(), JsonToken.START_ARRAY, parser);
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    final Map<String, String> category = readStringObject(parser);
+                    base.getTags().add(new AtomCategory(intern(category.get("scheme")), intern(category.get("term")), intern(category.get("label"))));
+                }
+                break;
+            case "author":
+                expect(parser.currentToken(), JsonToken.START_ARRAY, parser);
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    final Map<String, String> author = readStringObject(parser);
+                    base.setAuthorName(intern(author.get("name")));
+                    base.setAuthorUri(intern(author.get("uri")));
+                }
+                break;
+            default:
+                parser.skipChildren();
+        }
+    }
+
+    private String intern(String value) {
+        return interner == null ? value : interner.intern(value);
+    }
+
+    private void composeBase(AtomBase base, JsonGenerator generator) throws IOException {
+        writeString(generator, "title", base.getTitle());
+        writeString(generator, "id", base.getId());
+
+        if (base.getLinks() != null && !base.getLinks().isEmpty()) {
+            generator.writeArrayFieldStart("link");
+            for (Map.Entry<String, String> link : base.getLinks().entrySet()) {
+                generator.writeStartObject();
+                writeString(generator, "rel", link.getKey());
+                writeString(generator, "href", link.getValue());
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+        }
+
+        writeDate(generator, "updated", base.getUpdated());
+
+        if (base.getAuthorName() != null || base.getAuthorUri() != null) {
+            generator.writeArrayFieldStart("author");
+            generator.writeStartObject();
+            writeString(generator, "name", base.getAuthorName());
+            writeString(generator, "uri", base.getAuthorUri());
+            generator.writeEndObject();
+            generator.writeEndArray();
+        }
+
+        final List<AtomCategory> tags = base.getTags();
+        if (tags != null && !tags.isEmpty()) {
+            generator.writeArrayFieldStart("category");
+            for (AtomCategory category : tags) {
+                generator.writeStartObject();
+                writeString(generator, "term", category.getTerm());
+                writeString(generator, "label", category.getLabel());
+                writeString(generator, "scheme", category.getScheme());
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+        }
+    }
+
+    private static Map<String, String> readStringObject(com.fasterxml.jackson.core.JsonParser parser) throws IOException {
+        final Map<String, String> values = new HashMap<>(4);
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String name = parser.getCurrentName();
+            if (parser.nextToken().isScalarValue()) {
+                values.put(name, parser.getValueAsString());
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return values;
+    }
+
+    private static DateAndTime parseDate(com.fasterxml.jackson.core.JsonParser parser) throws IOException {
+        final String value = parser.getValueAsString();
+        if (value == null) {
+            return null;
+        }
+        try {
+            return new DateAndTime(value);
+        } catch (ParseException e) {
+            throw new JsonParseException(parser, "Invalid date: " + value, e);
+        }
+    }
+
+    private static void writeDate(JsonGenerator generator, String name, DateAndTime value) throws IOException {
+        if (value != null) {
+            generator.writeStringField(name, value.toString());
+        }
+    }
+
+    private static void writeString(JsonGenerator generator, String name, String value) throws IOException {
+        if (value != null) {
+            generator.writeStringField(name, value);
+        }
+    }
+
+    private static void expect(JsonToken actual, JsonToken expected, com.fasterxml.jackson.core.JsonParser parser) throws JsonParseException {
+        if (actual != expected) {
+            throw new JsonParseException(parser, "Expected " + expected + " but was " + actual);
+        }
+    }
+}
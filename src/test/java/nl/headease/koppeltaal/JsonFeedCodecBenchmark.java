@@ -0,0 +1,92 @@
+package nl.headease.koppeltaal;
+
+import nl.koppeltaal.api.KoppeltaalBundle;
+import org.hl7.fhir.instance.formats.JsonComposer;
+import org.hl7.fhir.instance.formats.JsonParser;
+import org.hl7.fhir.instance.formats.XmlComposer;
+import org.hl7.fhir.instance.formats.XmlParser;
+import org.hl7.fhir.instance.model.AtomFeed;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares parse and compose throughput of {@link JsonFeedCodec} with the FHIR XML and JSON parsers and composers,
+ * using a feed of CarePlan bundles as returned by a message search. "parse json (fhir)" is
+ * {@link JsonParser#parseGeneral}, the path the codec replaces; the codec still parses every entry with the FHIR parser.
+ * <p>
+ * Run from the IDE or with {@code exec:java}; optional arguments: number of bundles in the feed (default 100) and
+ * measured seconds per case (default 10).
+ */
+public class JsonFeedCodecBenchmark {
+
+    private interface Case {
+        void run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int bundles = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        final long seconds = args.length > 1 ? Long.parseLong(args[1]) : 10;
+
+        final AtomFeed feed = newFeed(bundles);
+        final JsonFeedCodec codec = new JsonFeedCodec();
+
+        final byte[] xml = toBytes(out -> new XmlComposer().compose(out, feed, false));
+        final byte[] json = toBytes(out -> new JsonComposer().compose(out, feed, false));
+
+        System.out.printf("Feed of %d entries, xml %d bytes, json %d bytes%n", feed.getEntryList().size(), xml.length, json.length);
+        System.out.printf("%-24s %12s %10s%n", "case", "ops/s", "MB/s");
+
+        measure("parse xml (fhir)", xml.length, seconds, () -> new XmlParser().parseGeneral(new ByteArrayInputStream(xml)));
+        measure("parse json (fhir)", json.length, seconds, () -> new JsonParser().parseGeneral(new ByteArrayInputStream(json)));
+        measure("parse json (codec)", json.length, seconds, () -> codec.parse(new ByteArrayInputStream(json)));
+
+        measure("compose xml (fhir)", xml.length, seconds, () -> new XmlComposer().compose(new ByteArrayOutputStream(xml.length), feed, false));
+        measure("compose json (fhir)", json.length, seconds, () -> new JsonComposer().compose(new ByteArrayOutputStream(json.length), feed, false));
+        measure("compose json (codec)", json.length, seconds, () -> codec.compose(new ByteArrayOutputStream(json.length), feed, false));
+    }
+
+    private static void measure(String name, int bytes, long seconds, Case benchmarkCase) throws Exception {
+        // warm up
+        run(benchmarkCase, TimeUnit.SECONDS.toNanos(Math.max(1, seconds / 2)));
+
+        final long start = System.nanoTime();
+        final long operations = run(benchmarkCase, TimeUnit.SECONDS.toNanos(seconds));
+        final double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("%-24s %12.1f %10.1f%n", name, operations / elapsedSeconds, operations * (double) bytes / elapsedSeconds / (1024 * 1024));
+    }
+
+    private static long run(Case benchmarkCase, long durationNanos) throws Exception {
+        final long end = System.nanoTime() + durationNanos;
+        long operations = 0;
+        while (System.nanoTime() < end) {
+            benchmarkCase.run();
+            operations++;
+        }
+        return operations;
+    }
+
+    private static AtomFeed newFeed(int bundles) {
+        final AtomFeed feed = SampleBundles.newCreateOrUpdateCarePlanBundle(UUID.randomUUID().toString(), "benchmark").getFeed();
+        for (int i = 1; i < bundles; i++) {
+            final KoppeltaalBundle bundle = SampleBundles.newCreateOrUpdateCarePlanBundle(UUID.randomUUID().toString(), "benchmark");
+            feed.getEntryList().addAll(bundle.getFeed().getEntryList());
+        }
+        feed.setTotalResults(feed.getEntryList().size());
+        return feed;
+    }
+
+    private interface Writer {
+        void write(OutputStream out) throws Exception;
+    }
+
+    private static byte[] toBytes(Writer writer) throws Exception {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        writer.write(outputStream);
+        return outputStream.toByteArray();
+    }
+}
@@ -0,0 +1,115 @@
+package nl.headease.koppeltaal;
+
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import nl.koppeltaal.api.Format;
+import nl.koppeltaal.api.GetMessageParameters;
+import nl.koppeltaal.api.KoppeltaalBundle;
+import nl.koppeltaal.api.ProcessingStatus;
+import org.hl7.fhir.instance.model.AtomCategory;
+import org.hl7.fhir.instance.model.AtomEntry;
+import org.hl7.fhir.instance.model.AtomFeed;
+import org.hl7.fhir.instance.model.Resource;
+import org.hl7.fhir.utilities.xhtml.XhtmlComposer;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class JsonFeedCodecTest {
+
+    private final JsonFeedCodec codec = new JsonFeedCodec();
+
+    @Test
+    public void roundTripKeepsTotalResultsLinksAndCategories() throws Exception {
+        final AtomFeed feed = newFeed();
+
+        final AtomFeed parsed = codec.parse(new ByteArrayInputStream(compose(feed)));
+
+        assertEquals(Integer.valueOf(42), parsed.getTotalResults());
+        assertEquals(feed.getId(), parsed.getId());
+        assertEquals(feed.getLinks(), parsed.getLinks());
+        assertEquals(1, parsed.getTags().size());
+        assertEquals("urn:test:term", parsed.getTags().get(0).getTerm());
+        assertEquals(feed.getEntryList().size(), parsed.getEntryList().size());
+
+        for (int i = 0; i < feed.getEntryList().size(); i++) {
+            final AtomEntry<? extends Resource> expected = feed.getEntryList().get(i);
+            final AtomEntry<? extends Resource> actual = parsed.getEntryList().get(i);
+
+            assertEquals(expected.getId(), actual.getId());
+            assertNotNull(actual.getResource());
+            assertEquals(expected.getResource().getResourceType(), actual.getResource().getResourceType());
+        }
+    }
+
+    @Test
+    public void readsAndWritesTheFhirJsonFormat() throws Exception {
+        final AtomFeed feed = newFeed();
+
+        final ByteArrayOutputStream fhirJson = new ByteArrayOutputStream();
+        Format.JSON.getComposer().compose(fhirJson, feed, false);
+        assertEquals(feed.getEntryList().size(), codec.parse(new ByteArrayInputStream(fhirJson.toByteArray())).getEntryList().size());
+
+        final AtomFeed parsedByFhir = Format.JSON.getParser().parseGeneral(new ByteArrayInputStream(compose(feed))).getFeed();
+        assertEquals(feed.getEntryList().size(), parsedByFhir.getEntryList().size());
+        assertEquals(feed.getId(), parsedByFhir.getId());
+    }
+
+    @Test
+    public void roundTripKeepsSummaries() throws Exception {
+        final String summary = "<div xmlns=\"http://www.w3.org/1999/xhtml\">Zorgplan van <b>Jan</b></div>";
+        final String json = "{\"resourceType\":\"Bundle\",\"entry\":[{\"id\":\"https://localhost/FHIR/Koppeltaal/MessageHeader/1\","
+                + "\"summary\":\"" + summary.replace("\"", "\\\"") + "\","
+                + "\"content\":{\"resourceType\":\"MessageHeader\",\"identifier\":\"1\"}}]}";
+
+        final AtomFeed parsed = codec.parse(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+        final AtomFeed roundTripped = codec.parse(new ByteArrayInputStream(compose(parsed)));
+
+        assertNotNull(roundTripped.getEntryList().get(0).getSummary());
+        assertEquals(summary, new XhtmlComposer().compose(roundTripped.getEntryList().get(0).getSummary()));
+    }
+
+    @Test
+    public void clientReadsTotalResultsOfHeaderSearch() throws Exception {
+        final String headers = "{\"resourceType\":\"Bundle\",\"totalResults\":\"7\",\"entry\":[{\"id\":\"https://localhost/FHIR/Koppeltaal/MessageHeader/1\","
+                + "\"content\":{\"resourceType\":\"MessageHeader\",\"identifier\":\"1\",\"timestamp\":\"2020-01-01T00:00:00Z\","
+                + "\"event\":{\"system\":\"http://ggz.koppeltaal.nl/fhir/Koppeltaal/MessageEvents\",\"code\":\"CreateOrUpdateCarePlan\"},"
+                + "\"source\":{\"endpoint\":\"https://localhost\"}}}]}";
+        final MockHttpTransport server = new MockHttpTransport.Builder()
+                .setLowLevelHttpResponse(new MockLowLevelHttpResponse().setContent(headers).setContentType(Format.JSON.getMediaType()))
+                .build();
+
+        try (ExtendedKoppeltaalClient client = ExtendedKoppeltaalClient.builder("https://localhost", "user", "password")
+                .format(Format.JSON)
+                .jsonFeedCodec(true)
+                .transport(server)
+                .build()) {
+            final GetMessageParameters parameters = new GetMessageParameters();
+            parameters.setProcessingStatus(ProcessingStatus.NEW);
+            final KoppeltaalBundle bundle = client.getMessageHeaders(parameters);
+
+            assertEquals(Integer.valueOf(7), bundle.getFeed().getTotalResults());
+            assertEquals("1", MessageLatencyTracker.getMessageId(bundle.getMessageHeaderEntries().get(0)));
+        }
+    }
+
+    private byte[] compose(AtomFeed feed) throws Exception {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        codec.compose(outputStream, feed, false);
+        return outputStream.toByteArray();
+    }
+
+    private static AtomFeed newFeed() {
+        final AtomFeed feed = SampleBundles.newCreateOrUpdateCarePlanBundle(UUID.randomUUID().toString(), "test").getFeed();
+        feed.setTotalResults(42);
+        feed.getLinks().put("self", "https://example.org/FHIR/Koppeltaal/MessageHeader/_search?_count=10");
+        feed.getTags().add(new AtomCategory("urn:test:scheme", "urn:test:term", "label"));
+        return feed;
+    }
+}
@@ -0,0 +1,122 @@
+package nl.headease.koppeltaal;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import nl.koppeltaal.api.Format;
+import nl.koppeltaal.api.KoppeltaalClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Clients for many Koppeltaal domains in one JVM. All clients share one {@link HttpTransport} (and with it the
+ * connection pool), one {@link MetadataCache} and one pool of workers. Work submitted per domain is scheduled by a
+ * {@link FairShareExecutor}, so a busy domain cannot starve the others.
+ * <p>
+ * The default transport is a {@link NetHttpTransport}, its keep-alive pool is sized with the
+ * {@code http.maxConnections} system property (connections per destination).
+ */
+public class KoppeltaalClientRegistry implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(KoppeltaalClientRegistry.class);
+
+    private static final Duration DEFAULT_METADATA_TIME_TO_LIVE = Duration.ofMinutes(10);
+    private static final int DEFAULT_QUEUE_LIMIT_PER_DOMAIN = 10_000;
+
+    @FunctionalInterface
+    public interface ClientCall<T> {
+        T call(KoppeltaalClient client) throws Exception;
+    }
+
+    private final HttpTransport transport;
+    private final MetadataCache metadataCache;
+    private final FairShareExecutor executor;
+    private final Format format;
+
+    private final ConcurrentMap<String, ExtendedKoppeltaalClient> clients = new ConcurrentHashMap<>();
+
+    /**
+     * @param workerCount    number of worker threads shared by all domains
+     * @param perDomainLimit maximum number of concurrent calls per domain
+     */
+    public KoppeltaalClientRegistry(int workerCount, int perDomainLimit) {
+        this(new NetHttpTransport(), new MetadataCache(DEFAULT_METADATA_TIME_TO_LIVE),
+                new FairShareExecutor(workerCount, perDomainLimit, DEFAULT_QUEUE_LIMIT_PER_DOMAIN), Format.XML);
+    }
+
+    public KoppeltaalClientRegistry(HttpTransport transport, MetadataCache metadataCache, FairShareExecutor executor, Format format) {
+        this.transport = transport;
+        this.metadataCache = metadataCache;
+        this.executor = executor;
+        this.format = format;
+    }
+
+    public ExtendedKoppeltaalClient register(String domain, String server, String username, String password) {
+        return register(domain, ExtendedKoppeltaalClient.builder(server, username, password).format(format));
+    }
+
+    /**
+     * Registers a client built from {@code builder}, the domain, shared transport and metadata cache are set on the
+     * builder.
+     *
+     * @throws IllegalStateException when the domain is already registered
+     */
+    public ExtendedKoppeltaalClient register(String domain, ExtendedKoppeltaalClient.Builder builder) {
+        final ExtendedKoppeltaalClient client = builder
+                .domain(domain)
+                .transport(transport)
+                .metadataCache(metadataCache)
+                .build();
+
+        if (clients.putIfAbsent(domain, client) != null) {
+            throw new IllegalStateException("Domain already registered: " + domain);
+        }
+
+        LOG.info("Registered Koppeltaal client for domain: " + domain);
+        return client;
+    }
+
+    public void unregister(String domain) {
+        clients.remove(domain);
+    }
+
+    /**
+     * @throws IllegalArgumentException when the domain is not registered
+     */
+    public ExtendedKoppeltaalClient getClient(String domain) {
+        final ExtendedKoppeltaalClient client = clients.get(domain);
+        if (client == null) {
+            throw new IllegalArgumentException("Domain not registered: " + domain);
+        }
+        return client;
+    }
+
+    /**
+     * Runs {@code call} with the client of the domain on the shared workers, within the fair share of the domain.
+     */
+    public <T> CompletableFuture<T> submit(String domain, ClientCall<T> call) {
+        final ExtendedKoppeltaalClient client = getClient(domain);
+        return executor.submit(domain, () -> call.call(client));
+    }
+
+    public int getLoad(String domain) {
+        return executor.getLoad(domain);
+    }
+
+    public MetadataCache getMetadataCache() {
+        return metadataCache;
+    }
+
+    @Override
+    public void close() throws IOException {
+        executor.close();
+        clients.clear();
+        transport.shutdown();
+    }
+}
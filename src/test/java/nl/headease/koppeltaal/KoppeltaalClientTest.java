@@ -11,7 +11,6 @@ import nl.koppeltaal.api.util.ResourceUtil;
 import nl.koppeltaal.api.util.UrlBuilder;
 import nl.koppeltaal.api.util.UrlUtil;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.lang3.builder.ReflectionToStringBuilder;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.utils.URLEncodedUtils;
 import org.hl7.fhir.instance.model.*;
@@ -126,6 +125,30 @@ public class KoppeltaalClientTest extends BaseTest {
 		// assertEquals(activityDefinitions.getFeed().getTotalResults().intValue(), activityDefinitions.getFeed().getEntryList().size());
 	}
 
+	@Test
+	public void testPostGetHeadersJsonFeedCodec() throws Exception {
+		try (KoppeltaalClient koppeltaalClient = ExtendedKoppeltaalClient.builder(server, username, password).format(Format.JSON).jsonFeedCodec(true).build()) {
+			String messageId = UUID.randomUUID().toString();
+			KoppeltaalBundle bundle = newCreateOrUpdateCarePlanBundle(messageId);
+			koppeltaalClient.postMessage(bundle);
+
+			GetMessageParameters parameters = new GetMessageParameters();
+			parameters.setPatientUrl(bundle.getMessageHeader().getPatientReference());
+			parameters.setEvent(Event.CREATE_OR_UPDATE_CARE_PLAN);
+			parameters.setProcessingStatus(ProcessingStatus.NEW);
+			KoppeltaalBundle messageHeaders = koppeltaalClient.getMessageHeaders(parameters);
+
+			KoppeltaalMessageHeader postedMessageHeader = messageHeaders.getMessageHeaderByMessageId(messageId);
+			Assert.assertNotNull(postedMessageHeader);
+
+			// the codec does read totalResults, unlike the FHIR lib JSON parser
+			Assert.assertNotNull(messageHeaders.getFeed().getTotalResults());
+			Assert.assertTrue(messageHeaders.getFeed().getTotalResults() >= messageHeaders.getFeed().getEntryList().size());
+
+			koppeltaalClient.updateMessageStatus(postedMessageHeader, ProcessingStatus.SUCCESS);
+		}
+	}
+
 	@Test
 	public void testLaunch() throws IOException {
 		String baseUrl = BASE_URL;
@@ -1457,89 +1480,19 @@ public class KoppeltaalClientTest extends BaseTest {
 	}
 
 	private KoppeltaalBundle newCreateOrUpdateCarePlanBundle(String messageId) {
-		String baseUrl = BASE_URL;
-
-		PatientParams patient = new PatientParams(UUID.randomUUID().toString(), baseUrl, NEW_RESOURCE_VERSION,
-				new NameParams("Claes", "de Vries"));
-		CarePlanParams carePlan = new CarePlanParams(UUID.randomUUID().toString(), baseUrl, NEW_RESOURCE_VERSION,
-				CarePlan.CarePlanStatus.active);
-
-		List<ParticipantParams> participants = new ArrayList<>();
-		participants.add(new ParticipantParams("participant", null, CarePlanParticipantRole.CLIENT));
-
-		ActivityParams activity = new ActivityParams(UUID.randomUUID().toString(), UUID.randomUUID().toString(),
-				"Active", new DateAndTime(Calendar.getInstance()), participants,null);
-
-		PractitionerParams practitioner = new PractitionerParams(UUID.randomUUID().toString(), baseUrl, NEW_RESOURCE_VERSION,
-				new NameParams("John", "Doe"));
-
-		RelatedPersonParams relatedPerson = new RelatedPersonParams(UUID.randomUUID().toString(), baseUrl, NEW_RESOURCE_VERSION,
-				patient.getUrl(), new NameParams("Related", "Person"));
-
-		return new KoppeltaalBundleBuilder(messageId, domain, APP_SOURCE_SOFTWARE, APP_SOURCE_ENDPOINT, APP_SOURCE_NAME, APP_SOURCE_VERSION, Event.CREATE_OR_UPDATE_CARE_PLAN, patient.getUrl(),
-				carePlan.getUrl())
-				.addCarePlan(carePlan).addGoal("1", "Activity goal", null)
-				.addActivity(activity)
-				.addParticipant("Assigner", practitioner.getUrl()).setPatientReference(patient.getUrl())
-				.and()
-				.addPatient(patient)
-				.and()
-				.addPractitioner(practitioner)
-				.addRelatedPerson(relatedPerson)
-				.build();
+		return SampleBundles.newCreateOrUpdateCarePlanBundle(messageId, domain);
 	}
 
 	private KoppeltaalBundle newCreateOrUpdateCarePlanBundle(String messageId, ActivityParams activity, Identifier careTeamIdentifier) {
-		String baseUrl = BASE_URL;
-
-		PatientParams patient = new PatientParams(UUID.randomUUID().toString(), baseUrl, NEW_RESOURCE_VERSION,
-				new NameParams("Claes", "de Vries"));
-		CarePlanParams carePlan = new CarePlanParams(UUID.randomUUID().toString(), baseUrl, NEW_RESOURCE_VERSION,
-				CarePlan.CarePlanStatus.active);
-
-		PractitionerParams practitioner = new PractitionerParams(UUID.randomUUID().toString(), baseUrl, NEW_RESOURCE_VERSION,
-				new NameParams("John", "Doe"));
-
-		CareTeamParams careTeam = new CareTeamParams(careTeamIdentifier.getValueSimple(), baseUrl, CareTeamStatus.ACTIVE, "Team Awesome", getPeriod(), "", patient.getUrl(), UUID.randomUUID().toString());
-
-		KoppeltaalBundleBuilder koppeltaalBundleBuilder = new KoppeltaalBundleBuilder(messageId, domain, APP_SOURCE_SOFTWARE, APP_SOURCE_ENDPOINT, APP_SOURCE_NAME, APP_SOURCE_VERSION, Event.CREATE_OR_UPDATE_CARE_PLAN, patient.getUrl(),
-				carePlan.getUrl());
-
-		return koppeltaalBundleBuilder
-				.addCarePlan(carePlan)
-				.addGoal("1", "Activity goal", null)
-				.addActivity(activity)
-				.addParticipant("Assigner", practitioner.getUrl())
-				.setPatientReference(patient.getUrl())
-				.and()
-				.addPatient(patient)
-				.and()
-				.addPractitioner(practitioner)
-				.addCareTeam(careTeam)
-				.and()
-				.build();
+		return SampleBundles.newCreateOrUpdateCarePlanBundle(messageId, domain, activity, careTeamIdentifier);
 	}
 
 	private Period getPeriod() {
-		DateAndTime start = DateAndTime.now();
-
-		DateAndTime end = DateAndTime.now();
-		end.add(Calendar.YEAR, 1);
-
-		Period period = new Period();
-		period.setStartSimple(start);
-		period.setEndSimple(end);
-
-		return period;
+		return SampleBundles.newPeriod();
 	}
 
 	private KoppeltaalBundle newUpdateCarePlanActivityStatus(String messageId) {
-		String patientUrl = ResourceURL.create(BASE_URL, ResourceType.Patient, UUID.randomUUID().toString(), NEW_RESOURCE_VERSION);
-		ActivityStatusParams activityStatus = new ActivityStatusParams(UUID.randomUUID().toString(), UUID.randomUUID().toString(), BASE_URL, NEW_RESOURCE_VERSION,
-				CarePlanActivityStatus.InProgress);
-
-		return new KoppeltaalBundleBuilder(messageId, domain, APP_SOURCE_SOFTWARE, APP_SOURCE_ENDPOINT, APP_SOURCE_NAME, APP_SOURCE_VERSION, Event.UPDATE_CARE_PLAN_ACTIVITY_STATUS, patientUrl,
-				activityStatus.getUrl()).addActivityStatus(activityStatus).and().build();
+		return SampleBundles.newUpdateCarePlanActivityStatus(messageId, domain);
 	}
 
 	private Map<String, String> getParametersAsMap(String url) throws URISyntaxException {
@@ -1561,6 +1514,6 @@ public class KoppeltaalClientTest extends BaseTest {
 	}
 
 	private String toString(Resource resource) {
-		return ReflectionToStringBuilder.toString(resource, new ExcludeNullValuesMultilineRecursiveToStringStyle(), false, false,  true, null);
+		return FhirObjectDumper.toString(resource);
 	}
 }
@@ -0,0 +1,90 @@
+package nl.headease.koppeltaal;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thread safe set of HdrHistograms, one per key, recording latencies in nanoseconds.
+ * Reports percentiles in milliseconds.
+ */
+public class LatencyHistograms<K extends Comparable<K>> {
+
+    private static final int SIGNIFICANT_DIGITS = 3;
+
+    private final ConcurrentMap<K, Histogram> histograms = new ConcurrentHashMap<>();
+    private final ConcurrentMap<K, Histogram> errors = new ConcurrentHashMap<>();
+
+    public void record(K key, long latencyNanos) {
+        histogram(histograms, key).recordValue(Math.max(0, latencyNanos));
+    }
+
+    public void recordError(K key, long latencyNanos) {
+        histogram(errors, key).recordValue(Math.max(0, latencyNanos));
+    }
+
+    /**
+     * @return a copy of the histogram recorded for {@code key}, empty when nothing was recorded
+     */
+    public Histogram snapshot(K key) {
+        final Histogram histogram = histograms.get(key);
+        return histogram == null ? new Histogram(SIGNIFICANT_DIGITS) : histogram.copy();
+    }
+
+    public long getErrorCount(K key) {
+        final Histogram histogram = errors.get(key);
+        return histogram == null ? 0 : histogram.getTotalCount();
+    }
+
+    public void reset() {
+        histograms.values().forEach(Histogram::reset);
+        errors.values().forEach(Histogram::reset);
+    }
+
+    /**
+     * Formats a fixed width table with count, errors, throughput, p50, p99, p99.9 and max per key.
+     *
+     * @param elapsedNanos the wall clock time the measurements were taken over, used for throughput
+     */
+    public String report(long elapsedNanos) {
+        final Map<K, Histogram> sorted = new TreeMap<>(histograms);
+        errors.keySet().forEach(key -> sorted.putIfAbsent(key, new Histogram(SIGNIFICANT_DIGITS)));
+
+        final double elapsedSeconds = elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1);
+
+        final StringBuilder report = new StringBuilder();
+        report.append(String.format("%-32s %10s %8s %10s %10s %10s %10s %10s%n",
+                "key", "count", "errors", "ops/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms"));
+
+        sorted.forEach((key, live) -> {
+            final Histogram histogram = live.copy();
+            final long errorCount = getErrorCount(key);
+            final long total = histogram.getTotalCount() + errorCount;
+
+            report.append(String.format("%-32s %10d %8d %10.1f %10.2f %10.2f %10.2f %10.2f%n",
+                    key,
+                    total,
+                    errorCount,
+                    elapsedSeconds > 0 ? total / elapsedSeconds : 0d,
+                    toMillis(histogram.getValueAtPercentile(50)),
+                    toMillis(histogram.getValueAtPercentile(99)),
+                    toMillis(histogram.getValueAtPercentile(99.9)),
+                    toMillis(histogram.getMaxValue())));
+        });
+
+        return report.toString();
+    }
+
+    private Histogram histogram(ConcurrentMap<K, Histogram> map, K key) {
+        return map.computeIfAbsent(key, k -> new ConcurrentHistogram(SIGNIFICANT_DIGITS));
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1_000_000d;
+    }
+}
@@ -0,0 +1,306 @@
+package nl.headease.koppeltaal;
+
+import nl.koppeltaal.api.*;
+import org.hl7.fhir.instance.model.Conformance;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop load generator for a Koppeltaal server. Operations are started on a fixed schedule, independent of how
+ * long earlier operations take, and every latency is measured from the moment the operation was <em>intended</em> to
+ * start. Time spent waiting for a free worker is therefore part of the measurement (no coordinated omission).
+ * <p>
+ * Posted messages use the same bundle shapes as the integration tests, see {@link SampleBundles}.
+ * <p>
+ * Run with {@code mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=nl.headease.koppeltaal.LoadGenerator}
+ * or from the IDE. Settings are read from {@code KoppeltaalClientTest.properties}, an optional properties file passed
+ * as first argument and system properties, in that order:
+ * <ul>
+ *     <li>{@code load.rate} operations per second, default 10</li>
+ *     <li>{@code load.duration.seconds} measured duration, default 60</li>
+ *     <li>{@code load.warmup.seconds} unmeasured warm up before the measurement, default 10</li>
+ *     <li>{@code load.concurrency} maximum number of operations in flight, default 32</li>
+ *     <li>{@code load.mix} relative weights, default {@code POST_MESSAGE=4,HEADER_SEARCH=3,CLAIM=2,STATUS_UPDATE=1}</li>
+ * </ul>
+ */
+public class LoadGenerator implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LoadGenerator.class);
+
+    private static final int CLAIMED_BACKLOG_LIMIT = 10_000;
+    private static final int HEADER_SEARCH_COUNT = 50;
+
+    public enum Operation {
+        POST_MESSAGE,
+        HEADER_SEARCH,
+        CLAIM,
+        STATUS_UPDATE
+    }
+
+    private final Settings settings;
+    private final KoppeltaalClient client;
+    private final LatencyHistograms<Operation> histograms = new LatencyHistograms<>();
+
+    private final Operation[] operationWheel;
+    private final AtomicLong sequence = new AtomicLong();
+    private final Queue<KoppeltaalMessageHeader> claimed = new ConcurrentLinkedQueue<>();
+    private final LongAdder skippedStatusUpdates = new LongAdder();
+
+    private Conformance conformance;
+
+    public LoadGenerator(Settings settings) {
+        this(settings, new KoppeltaalClient(settings.server, settings.username, settings.password, Format.XML));
+    }
+
+    public LoadGenerator(Settings settings, KoppeltaalClient client) {
+        this.settings = settings;
+        this.client = client;
+        this.operationWheel = toWheel(settings.mix);
+    }
+
+    /**
+     * Runs the warm up and the measurement, blocks until all started operations are finished.
+     *
+     * @return the histograms of the measured period
+     */
+    public LatencyHistograms<Operation> run() throws IOException, InterruptedException {
+
+        // fetched once, postMessage(bundle) would otherwise fetch the metadata on every post
+        conformance = client.getMetadata();
+
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(settings.concurrency, settings.concurrency,
+                0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+
+        final long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / settings.rate);
+        final long start = System.nanoTime();
+        final long measureFrom = start + settings.warmUp.toNanos();
+        final long end = measureFrom + settings.duration.toNanos();
+
+        LOG.info("Starting load: {} ops/s, warm up {}, duration {}, concurrency {}, mix {}",
+                settings.rate, settings.warmUp, settings.duration, settings.concurrency, settings.mix);
+
+        try {
+            for (long i = 0; ; i++) {
+                final long intendedStart = start + i * intervalNanos;
+                if (intendedStart >= end) {
+                    break;
+                }
+
+                parkUntil(intendedStart);
+
+                final Operation operation = operationWheel[(int) (i % operationWheel.length)];
+                final boolean measured = intendedStart >= measureFrom;
+                executor.execute(() -> execute(operation, intendedStart, measured));
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+
+        final long elapsed = Math.min(System.nanoTime(), end) - measureFrom;
+        final String report = histograms.report(elapsed);
+        LOG.info("Load report ({} status updates skipped, nothing claimed):\n{}", skippedStatusUpdates.sum(), report);
+
+        writeReport(report);
+
+        return histograms;
+    }
+
+    private void execute(Operation operation, long intendedStart, boolean measured) {
+        try {
+            if (perform(operation) && measured) {
+                histograms.record(operation, System.nanoTime() - intendedStart);
+            }
+        } catch (Exception e) {
+            if (measured) {
+                histograms.recordError(operation, System.nanoTime() - intendedStart);
+            }
+            LOG.debug("{} failed", operation, e);
+        }
+    }
+
+    /**
+     * @return false when the operation was skipped, a status update without a claimed message
+     */
+    private boolean perform(Operation operation) throws IOException, KoppeltaalException {
+        switch (operation) {
+            case POST_MESSAGE:
+                client.postMessage(nextBundle(), conformance);
+                break;
+            case HEADER_SEARCH:
+                final GetMessageParameters parameters = new GetMessageParameters();
+                parameters.setProcessingStatus(ProcessingStatus.NEW);
+                parameters.setCount(HEADER_SEARCH_COUNT);
+                client.getMessageHeaders(parameters);
+                break;
+            case CLAIM:
+                final KoppeltaalBundle bundle = client.getNextNewAndClaim();
+                if (!bundle.getFeed().getEntryList().isEmpty() && claimed.size() < CLAIMED_BACKLOG_LIMIT) {
+                    claimed.add(bundle.getMessageHeader());
+                }
+                break;
+            case STATUS_UPDATE:
+                final KoppeltaalMessageHeader header = claimed.poll();
+                if (header == null) {
+                    skippedStatusUpdates.increment();
+                    return false;
+                }
+                client.updateMessageStatus(header, ProcessingStatus.SUCCESS);
+                break;
+            default:
+                throw new IllegalStateException("Unsupported operation: " + operation);
+        }
+        return true;
+    }
+
+    private KoppeltaalBundle nextBundle() {
+        final String messageId = UUID.randomUUID().toString();
+
+        switch ((int) (sequence.getAndIncrement() % 3)) {
+            case 0:
+                return SampleBundles.newCreateOrUpdateCarePlanBundle(messageId, settings.domain);
+            case 1:
+                return SampleBundles.newUpdateCarePlanActivityStatus(messageId, settings.domain);
+            default:
+                return SampleBundles.newUserMessageBundle(messageId, settings.domain);
+        }
+    }
+
+    private void writeReport(String report) {
+        try {
+            Files.createDirectories(BaseTest.RESOURCE_LOG_OUTPUT_PATH);
+            final Path path = BaseTest.RESOURCE_LOG_OUTPUT_PATH.resolve("load-report.txt");
+            Files.write(path, report.getBytes());
+            LOG.info("Load report written to: " + path);
+        } catch (IOException e) {
+            LOG.warn("Unable to write load report", e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        client.close();
+    }
+
+    /**
+     * Spreads the weighted operations evenly over a wheel, so that e.g. {@code A=2,B=1} becomes {@code A,B,A}.
+     */
+    static Operation[] toWheel(Map<Operation, Integer> mix) {
+        final int total = mix.values().stream().mapToInt(Integer::intValue).sum();
+        if (total <= 0) {
+            throw new IllegalArgumentException("The operation mix has no positive weights: " + mix);
+        }
+
+        final Operation[] wheel = new Operation[total];
+        final Map<Operation, Integer> current = new EnumMap<>(Operation.class);
+
+        // smooth weighted round robin
+        for (int slot = 0; slot < total; slot++) {
+            Operation selected = null;
+            for (Map.Entry<Operation, Integer> weight : mix.entrySet()) {
+                final int value = current.merge(weight.getKey(), weight.getValue(), Integer::sum);
+                if (selected == null || value > current.get(selected)) {
+                    selected = weight.getKey();
+                }
+            }
+            current.merge(selected, -total, Integer::sum);
+            wheel[slot] = selected;
+        }
+
+        return wheel;
+    }
+
+    private static void parkUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        final Properties properties = BaseTest.loadTestProperties();
+
+        if (args.length > 0) {
+            try (InputStream inputStream = new FileInputStream(args[0])) {
+                properties.load(inputStream);
+            }
+        }
+        properties.putAll(System.getProperties());
+
+        try (LoadGenerator loadGenerator = new LoadGenerator(Settings.fromProperties(properties))) {
+            loadGenerator.run();
+        }
+    }
+
+    public static class Settings {
+
+        String server;
+        String username;
+        String password;
+        String domain;
+
+        double rate = 10;
+        Duration duration = Duration.ofSeconds(60);
+        Duration warmUp = Duration.ofSeconds(10);
+        int concurrency = 32;
+        Map<Operation, Integer> mix = parseMix("POST_MESSAGE=4,HEADER_SEARCH=3,CLAIM=2,STATUS_UPDATE=1");
+
+        public static Settings fromProperties(Properties properties) {
+            final Settings settings = new Settings();
+
+            settings.server = properties.getProperty("server");
+            settings.username = properties.getProperty("username");
+            settings.password = properties.getProperty("password");
+            settings.domain = properties.getProperty("domain");
+
+            Optional.ofNullable(properties.getProperty("load.rate"))
+                    .ifPresent(value -> settings.rate = Double.parseDouble(value));
+            Optional.ofNullable(properties.getProperty("load.duration.seconds"))
+                    .ifPresent(value -> settings.duration = Duration.ofSeconds(Long.parseLong(value)));
+            Optional.ofNullable(properties.getProperty("load.warmup.seconds"))
+                    .ifPresent(value -> settings.warmUp = Duration.ofSeconds(Long.parseLong(value)));
+            Optional.ofNullable(properties.getProperty("load.concurrency"))
+                    .ifPresent(value -> settings.concurrency = Integer.parseInt(value));
+            Optional.ofNullable(properties.getProperty("load.mix"))
+                    .ifPresent(value -> settings.mix = parseMix(value));
+
+            if (settings.rate <= 0) {
+                throw new IllegalArgumentException("load.rate must be positive: " + settings.rate);
+            }
+
+            return settings;
+        }
+
+        static Map<Operation, Integer> parseMix(String mix) {
+            final Map<Operation, Integer> weights = new EnumMap<>(Operation.class);
+
+            for (String part : mix.split(",")) {
+                final String[] weight = part.trim().split("=");
+                if (weight.length != 2) {
+                    throw new IllegalArgumentException("Operation weight must be <operation>=<weight>: " + part);
+                }
+                // an unknown operation or a weight that is not a number is an IllegalArgumentException as well
+                final int value = Integer.parseInt(weight[1].trim());
+                if (value < 0) {
+                    throw new IllegalArgumentException("Operation weight must not be negative: " + part);
+                }
+                weights.put(Operation.valueOf(weight[0].trim()), value);
+            }
+
+            return weights;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package nl.headease.koppeltaal;
+
+import nl.headease.koppeltaal.LoadGenerator.Operation;
+import nl.koppeltaal.api.Format;
+import nl.koppeltaal.api.KoppeltaalBundle;
+import nl.koppeltaal.api.KoppeltaalClient;
+import org.hl7.fhir.instance.model.AtomFeed;
+import org.hl7.fhir.instance.model.Conformance;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Properties;
+
+import static nl.headease.koppeltaal.LoadGenerator.Operation.*;
+import static org.junit.Assert.*;
+
+public class LoadGeneratorTest {
+
+    @Test
+    public void parsesMix() {
+        final Map<Operation, Integer> mix = LoadGenerator.Settings.parseMix(" POST_MESSAGE = 4, CLAIM=2 ,STATUS_UPDATE=0");
+
+        assertEquals(Map.of(POST_MESSAGE, 4, CLAIM, 2, STATUS_UPDATE, 0), mix);
+    }
+
+    @Test
+    public void mixIsReadFromProperties() {
+        final Properties properties = new Properties();
+        properties.setProperty("load.mix", "HEADER_SEARCH=1");
+
+        assertEquals(Map.of(HEADER_SEARCH, 1), LoadGenerator.Settings.fromProperties(properties).mix);
+        assertEquals(4, (int) LoadGenerator.Settings.fromProperties(new Properties()).mix.get(POST_MESSAGE));
+    }
+
+    @Test
+    public void rejectsBadMix() {
+        for (String mix : Arrays.asList("", "POST_MESSAGE", "POST_MESSAGE=", "POST_MESSAGE=four", "POST=1", "POST_MESSAGE=1=2", "POST_MESSAGE=-1")) {
+            try {
+                LoadGenerator.Settings.parseMix(mix);
+                fail("Accepted mix: " + mix);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void spreadsWeightsEvenlyOverTheWheel() {
+        assertArrayEquals(new Operation[]{POST_MESSAGE, CLAIM, POST_MESSAGE}, LoadGenerator.toWheel(mix(POST_MESSAGE, 2, CLAIM, 1)));
+
+        final Operation[] wheel = LoadGenerator.toWheel(LoadGenerator.Settings.parseMix("POST_MESSAGE=4,HEADER_SEARCH=3,CLAIM=2,STATUS_UPDATE=1"));
+        assertEquals(10, wheel.length);
+        assertEquals(4, count(wheel, POST_MESSAGE));
+        assertEquals(3, count(wheel, HEADER_SEARCH));
+        assertEquals(2, count(wheel, CLAIM));
+        assertEquals(1, count(wheel, STATUS_UPDATE));
+        // smooth: the heaviest operation is never scheduled three times in a row
+        for (int i = 0; i < wheel.length; i++) {
+            assertFalse(wheel[i] == wheel[(i + 1) % wheel.length] && wheel[i] == wheel[(i + 2) % wheel.length]);
+        }
+    }
+
+    @Test
+    public void operationWithoutWeightIsNotOnTheWheel() {
+        assertArrayEquals(new Operation[]{CLAIM}, LoadGenerator.toWheel(mix(POST_MESSAGE, 0, CLAIM, 1)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mixWithoutWeightsIsRejected() {
+        LoadGenerator.toWheel(mix(POST_MESSAGE, 0, CLAIM, 0));
+    }
+
+    @Test
+    public void skippedStatusUpdatesAreNotRecorded() throws Exception {
+        final LoadGenerator.Settings settings = new LoadGenerator.Settings();
+        settings.rate = 200;
+        settings.warmUp = Duration.ZERO;
+        settings.duration = Duration.ofMillis(200);
+        settings.concurrency = 2;
+        settings.mix = mix(CLAIM, 1, STATUS_UPDATE, 1);
+
+        // nothing to claim, so there is nothing to acknowledge either
+        final KoppeltaalClient client = new KoppeltaalClient("https://localhost", "user", "password", Format.XML) {
+            @Override
+            public Conformance getMetadata() {
+                return new Conformance();
+            }
+
+            @Override
+            public KoppeltaalBundle getNextNewAndClaim() {
+                return new KoppeltaalBundle(new AtomFeed());
+            }
+        };
+
+        final LatencyHistograms<Operation> histograms = new LoadGenerator(settings, client).run();
+
+        assertTrue(histograms.snapshot(CLAIM).getTotalCount() > 0);
+        assertEquals(0, histograms.snapshot(STATUS_UPDATE).getTotalCount());
+        assertEquals(0, histograms.getErrorCount(STATUS_UPDATE));
+    }
+
+    private static Map<Operation, Integer> mix(Operation first, int firstWeight, Operation second, int secondWeight) {
+        final Map<Operation, Integer> mix = new EnumMap<>(Operation.class);
+        mix.put(first, firstWeight);
+        mix.put(second, secondWeight);
+        return mix;
+    }
+
+    private static long count(Operation[] wheel, Operation operation) {
+        return Arrays.stream(wheel).filter(slot -> slot == operation).count();
+    }
+}
@@ -0,0 +1,259 @@
+package nl.headease.koppeltaal;
+
+import nl.koppeltaal.api.KoppeltaalBundle;
+import nl.koppeltaal.api.KoppeltaalClient;
+import nl.koppeltaal.api.KoppeltaalMessageHeader;
+import nl.koppeltaal.api.ProcessingStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static nl.headease.koppeltaal.MessageLatencyTracker.Stage.*;
+
+/**
+ * Claims messages from the mailbox, passes them to a {@link MessageHandler} and acknowledges them with SUCCESS or
+ * FAILED. A message that cannot be fetched, or whose FAILED acknowledgement fails, is set to FAILED as well, when the
+ * server can be reached. A handled message whose SUCCESS acknowledgement fails stays CLAIMED, so the
+ * {@link ClaimedMessageReaper} requeues it instead of it being reported as failed.
+ * Every message is traced by the {@link MessageLatencyTracker}. Failed messages are kept in the
+ * {@link DeadLetterStore}, when one is given. With a {@link MemoryBudget} the workers only claim while the estimated size
+ * of the messages being processed is within the budget, and with a {@link PriorityClaimScheduler} urgent events are
+ * claimed before bulk traffic. The stages are also recorded as {@link ConsumerStageEvent} JFR events.
+ */
+public class MailboxConsumer implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MailboxConsumer.class);
+
+    private final KoppeltaalClient client;
+    private final MessageHandler handler;
+    private final MessageLatencyTracker tracker;
+    private final DeadLetterStore deadLetterStore;
+    private final MemoryBudget memoryBudget;
+    private final PriorityClaimScheduler claimScheduler;
+
+    private volatile boolean running;
+    private ExecutorService workers;
+
+    public MailboxConsumer(KoppeltaalClient client, MessageHandler handler, MessageLatencyTracker tracker) {
+        this(client, handler, tracker, null);
+    }
+
+    public MailboxConsumer(KoppeltaalClient client, MessageHandler handler, MessageLatencyTracker tracker, DeadLetterStore deadLetterStore) {
+        this(client, handler, tracker, deadLetterStore, null);
+    }
+
+    /**
+     * @param memoryBudget claiming waits while the budget is in use, null to only limit the number of workers
+     */
+    public MailboxConsumer(KoppeltaalClient client, MessageHandler handler, MessageLatencyTracker tracker, DeadLetterStore deadLetterStore, MemoryBudget memoryBudget) {
+        this(client, handler, tracker, deadLetterStore, memoryBudget, null);
+    }
+
+    /**
+     * @param claimScheduler claims per event by priority, null to claim whatever comes next
+     */
+    public MailboxConsumer(KoppeltaalClient client, MessageHandler handler, MessageLatencyTracker tracker, DeadLetterStore deadLetterStore, MemoryBudget memoryBudget,
+                           PriorityClaimScheduler claimScheduler) {
+        this.client = client;
+        this.handler = handler;
+        this.tracker = tracker;
+        this.deadLetterStore = deadLetterStore;
+        this.memoryBudget = memoryBudget;
+        this.claimScheduler = claimScheduler;
+    }
+
+    /**
+     * Claims and processes the next new message.
+     *
+     * @return false when there was no new message to claim
+     */
+    public boolean processNext() throws IOException {
+        final MemoryBudget.Reservation reservation;
+        try {
+            reservation = memoryBudget == null ? null : memoryBudget.awaitReservation();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for memory budget");
+        }
+        try {
+            return process(reservation);
+        } finally {
+            // replaced by the admission of the claimed message, released when nothing was claimed
+            if (reservation != null) {
+                reservation.close();
+            }
+        }
+    }
+
+    private boolean process(MemoryBudget.Reservation reservation) throws IOException {
+        final MessageLatencyTracker.Trace trace = tracker.begin();
+
+        // the stage events are committed when the stage fails as well
+        ConsumerStageEvent event = FlightRecorderEvents.startStage();
+        boolean success = false;
+        final KoppeltaalBundle claimed;
+        KoppeltaalMessageHeader header = null;
+        try {
+            claimed = claimScheduler == null ? client.getNextNewAndClaim() : claimScheduler.claimNext();
+            if (claimed != null && !claimed.getFeed().getEntryList().isEmpty()) {
+                header = claimed.getMessageHeader();
+            }
+            success = true;
+        } finally {
+            FlightRecorderEvents.commitStage(event, CLAIM, header, success);
+        }
+        if (header == null) {
+            return false;
+        }
+        trace.claimed(header);
+
+        // a message that is not acknowledged is set to FAILED, instead of staying CLAIMED until its lease expires,
+        // unless it was handled: then it is left to the reaper, FAILED would report a handled message as failed
+        boolean acknowledged = false;
+        boolean handled = false;
+        try {
+            // the claim normally returns the complete message, only fetch when it returned the header alone
+            event = FlightRecorderEvents.startStage();
+            success = false;
+            final KoppeltaalBundle bundle;
+            try {
+                bundle = claimed.getFeed().getEntryList().size() > 1 ? claimed : client.getMessageBundleByHeader(header);
+                success = true;
+            } finally {
+                FlightRecorderEvents.commitStage(event, FETCH, header, success);
+            }
+            trace.mark(FETCH);
+
+            final MemoryBudget.Admission admission = reservation == null ? null : memoryBudget.reserve(reservation, bundle, getLastContentLength());
+            try {
+                event = FlightRecorderEvents.startStage();
+                boolean failed = false;
+                try {
+                    handler.handle(bundle);
+                } catch (Exception e) {
+                    LOG.warn("Handler failed for message: " + trace.getMessageId(), e);
+                    failed = true;
+                    storeDeadLetter(bundle, e);
+                }
+                handled = !failed;
+                trace.mark(HANDLER);
+                FlightRecorderEvents.commitStage(event, HANDLER, header, !failed);
+
+                event = FlightRecorderEvents.startStage();
+                success = false;
+                try {
+                    client.updateMessageStatus(header, failed ? ProcessingStatus.FAILED : ProcessingStatus.SUCCESS);
+                    success = true;
+                } finally {
+                    FlightRecorderEvents.commitStage(event, ACK, header, success);
+                }
+                acknowledged = true;
+                trace.mark(ACK);
+
+                trace.finish(failed);
+            } finally {
+                if (admission != null) {
+                    admission.close();
+                }
+            }
+        } finally {
+            if (!acknowledged) {
+                trace.finish(true);
+                if (handled) {
+                    LOG.warn("Unable to acknowledge handled message, it stays CLAIMED: " + trace.getMessageId());
+                } else {
+                    releaseFailed(header);
+                }
+            }
+        }
+        return true;
+    }
+
+    private long getLastContentLength() {
+        return client instanceof ExtendedKoppeltaalClient ? ((ExtendedKoppeltaalClient) client).getLastContentLength() : -1;
+    }
+
+    /**
+     * Starts {@code workerCount} threads that keep processing messages, a worker waits {@code idleBackoff} when the
+     * mailbox is empty or the server could not be reached.
+     */
+    public synchronized void start(int workerCount, Duration idleBackoff) {
+        if (running) {
+            throw new IllegalStateException("Consumer already started");
+        }
+        running = true;
+        workers = Executors.newFixedThreadPool(workerCount);
+
+        for (int i = 0; i < workerCount; i++) {
+            workers.execute(() -> {
+                while (running) {
+                    try {
+                        if (!processNext()) {
+                            Thread.sleep(idleBackoff.toMillis());
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    } catch (Exception e) {
+                        LOG.warn("Unable to process next message", e);
+                        sleepQuietly(idleBackoff);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Stops the workers after they finish the message they are processing.
+     */
+    @Override
+    public synchronized void close() {
+        running = false;
+
+        if (workers != null) {
+            workers.shutdown();
+            try {
+                if (!workers.awaitTermination(1, TimeUnit.MINUTES)) {
+                    workers.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                workers.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void releaseFailed(KoppeltaalMessageHeader header) {
+        try {
+            client.updateMessageStatus(header, ProcessingStatus.FAILED);
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Unable to set message to FAILED, it stays CLAIMED: " + MessageLatencyTracker.getMessageId(header), e);
+        }
+    }
+
+    private void storeDeadLetter(KoppeltaalBundle bundle, Exception error) {
+        if (deadLetterStore == null) {
+            return;
+        }
+        try {
+            deadLetterStore.add(bundle, error);
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Unable to store dead letter of message: " + MessageLatencyTracker.getMessageId(bundle.getMessageHeader()), e);
+        }
+    }
+
+    private static void sleepQuietly(Duration duration) {
+        try {
+            Thread.sleep(duration.toMillis());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
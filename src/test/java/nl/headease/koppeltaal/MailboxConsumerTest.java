@@ -0,0 +1,157 @@
+package nl.headease.koppeltaal;
+
+import nl.koppeltaal.api.Format;
+import nl.koppeltaal.api.KoppeltaalBundle;
+import nl.koppeltaal.api.KoppeltaalClient;
+import nl.koppeltaal.api.KoppeltaalMessageHeader;
+import nl.koppeltaal.api.ProcessingStatus;
+import org.hl7.fhir.instance.model.AtomFeed;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static nl.headease.koppeltaal.MessageLatencyTracker.Stage.END_TO_END;
+import static org.junit.Assert.*;
+
+public class MailboxConsumerTest {
+
+    private static final String END_TO_END_KEY = "unknown/" + END_TO_END;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final MessageLatencyTracker tracker = new MessageLatencyTracker(Duration.ofMinutes(1));
+
+    @Test
+    public void handledMessageIsAcknowledgedWithSuccess() throws Exception {
+        final MailboxClient client = new MailboxClient();
+        final List<String> handled = new ArrayList<>();
+        final MailboxConsumer consumer = new MailboxConsumer(client, bundle -> handled.add(MessageLatencyTracker.getMessageId(bundle.getMessageHeader())), tracker);
+
+        assertTrue(consumer.processNext());
+        assertFalse(consumer.processNext());
+
+        assertEquals(List.of("1"), handled);
+        assertEquals(List.of("1=SUCCESS"), client.statusUpdates);
+        assertEquals(1, tracker.getHistograms().snapshot(END_TO_END_KEY).getTotalCount());
+        assertEquals(0, tracker.getHistograms().getErrorCount(END_TO_END_KEY));
+    }
+
+    @Test
+    public void failedHandlerIsAcknowledgedWithFailedAndStored() throws Exception {
+        final MailboxClient client = new MailboxClient();
+        final DeadLetterStore deadLetterStore = new DeadLetterStore(folder.getRoot().toPath());
+        final MailboxConsumer consumer = new MailboxConsumer(client, bundle -> {
+            throw new IllegalStateException("No care plan");
+        }, tracker, deadLetterStore);
+
+        assertTrue(consumer.processNext());
+
+        assertEquals(List.of("1=FAILED"), client.statusUpdates);
+        assertTrue(deadLetterStore.get("1").isPresent());
+        assertEquals(1, tracker.getHistograms().getErrorCount(END_TO_END_KEY));
+    }
+
+    @Test
+    public void messageThatCannotBeFetchedIsSetToFailed() {
+        final MailboxClient client = new MailboxClient();
+        client.fetchFailures = 1;
+        final MailboxConsumer consumer = new MailboxConsumer(client, bundle -> fail("Handler called"), tracker);
+
+        try {
+            consumer.processNext();
+            fail("Fetch did not fail");
+        } catch (IOException e) {
+            assertEquals("Connection reset", e.getMessage());
+        }
+
+        assertEquals(List.of("1=FAILED"), client.statusUpdates);
+        assertEquals(1, tracker.getHistograms().getErrorCount(END_TO_END_KEY));
+    }
+
+    @Test
+    public void handledMessageStaysClaimedWhenAcknowledgementFails() {
+        final MailboxClient client = new MailboxClient();
+        client.statusUpdateFailures = 1;
+        final MailboxConsumer consumer = new MailboxConsumer(client, bundle -> {
+        }, tracker);
+
+        try {
+            consumer.processNext();
+            fail("Acknowledgement did not fail");
+        } catch (IOException e) {
+            assertEquals("Connection reset", e.getMessage());
+        }
+
+        assertEquals(List.of("1=SUCCESS failed"), client.statusUpdates);
+        assertEquals(1, tracker.getHistograms().getErrorCount(END_TO_END_KEY));
+        assertEquals(0, tracker.getHistograms().snapshot(END_TO_END_KEY).getTotalCount());
+    }
+
+    @Test
+    public void failedAcknowledgementIsRetriedAsFailed() {
+        final MailboxClient client = new MailboxClient();
+        client.statusUpdateFailures = 1;
+        final MailboxConsumer consumer = new MailboxConsumer(client, bundle -> {
+            throw new IllegalStateException("Handler failed");
+        }, tracker);
+
+        try {
+            consumer.processNext();
+            fail("Acknowledgement did not fail");
+        } catch (IOException e) {
+            assertEquals("Connection reset", e.getMessage());
+        }
+
+        assertEquals(List.of("1=FAILED failed", "1=FAILED"), client.statusUpdates);
+        assertEquals(1, tracker.getHistograms().getErrorCount(END_TO_END_KEY));
+        assertEquals(0, tracker.getHistograms().snapshot(END_TO_END_KEY).getTotalCount());
+    }
+
+    /**
+     * A mailbox with one message, the claim returns the header alone.
+     */
+    private static class MailboxClient extends KoppeltaalClient {
+
+        private final List<String> statusUpdates = new ArrayList<>();
+        private boolean claimed;
+        private int fetchFailures;
+        private int statusUpdateFailures;
+
+        MailboxClient() {
+            super("https://localhost", "user", "password", Format.XML);
+        }
+
+        @Override
+        public KoppeltaalBundle getNextNewAndClaim() {
+            if (claimed) {
+                return new KoppeltaalBundle(new AtomFeed());
+            }
+            claimed = true;
+            return DeadLetterStoreTest.message("1");
+        }
+
+        @Override
+        public KoppeltaalBundle getMessageBundleByHeader(KoppeltaalMessageHeader header) throws IOException {
+            if (fetchFailures-- > 0) {
+                throw new IOException("Connection reset");
+            }
+            return DeadLetterStoreTest.message(MessageLatencyTracker.getMessageId(header));
+        }
+
+        @Override
+        public void updateMessageStatus(KoppeltaalMessageHeader header, ProcessingStatus status) throws IOException {
+            final String update = MessageLatencyTracker.getMessageId(header) + "=" + status.name();
+            if (statusUpdateFailures-- > 0) {
+                statusUpdates.add(update + " failed");
+                throw new IOException("Connection reset");
+            }
+            statusUpdates.add(update);
+        }
+    }
+}
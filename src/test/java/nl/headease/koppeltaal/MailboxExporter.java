@@ -0,0 +1,307 @@
+package nl.headease.koppeltaal;
+
+import nl.koppeltaal.api.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Exports all messages of the mailbox to gzip compressed NDJSON files, one message bundle (as composed by
+ * {@link JsonFeedCodec}) per line.
+ * <p>
+ * The headers are partitioned by {@link Event} and {@link ProcessingStatus}; the partitions are exported in parallel,
+ * and within a partition the bundles of a page of headers are fetched concurrently. At most one page of bundles per
+ * partition is held in memory, whatever the size of the mailbox.
+ * <p>
+ * Every partition is written to segments of about {@code messagesPerSegment} messages,
+ * {@code <event>-<status>-<number>.ndjson.gz}. A segment is written to a temporary file and renamed when it is
+ * complete, after which {@code manifest.properties} records the segment, its number of messages and the next page of
+ * the partition. An interrupted export resumes from the manifest; the pages of an incomplete segment are fetched
+ * again. A message that cannot be fetched fails its segment and partition, the other partitions are completed and the
+ * export fails; resuming it fetches the pages of the failed segment again.
+ * <p>
+ * The pages of partitions whose messages change status during the export (NEW, CLAIMED) can shift, so messages can
+ * be missed or exported twice in those partitions.
+ */
+public class MailboxExporter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MailboxExporter.class);
+
+    private static final String MANIFEST = "manifest.properties";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    /** the connector clamps the count of a header search to this */
+    static final int MAX_PAGE_SIZE = 1000;
+
+    private final KoppeltaalClient client;
+    private final Path directory;
+    private final int partitionThreads;
+    private final int fetchThreads;
+    private final int pageSize;
+    private final int messagesPerSegment;
+    private final JsonFeedCodec codec = new JsonFeedCodec();
+
+    private final Properties manifest = new Properties();
+
+    /**
+     * @param partitionThreads   number of partitions exported at the same time
+     * @param fetchThreads       number of bundles fetched at the same time, for all partitions
+     * @param pageSize           number of headers per page, at most {@link #MAX_PAGE_SIZE}
+     * @param messagesPerSegment a segment is completed at the first page boundary after this number of messages
+     */
+    public MailboxExporter(KoppeltaalClient client, Path directory, int partitionThreads, int fetchThreads, int pageSize, int messagesPerSegment) {
+        if (pageSize < 1 || pageSize > MAX_PAGE_SIZE) {
+            // a short page marks the end of a partition
+            throw new IllegalArgumentException("Page size must be between 1 and " + MAX_PAGE_SIZE + ": " + pageSize);
+        }
+        this.client = client;
+        this.directory = directory;
+        this.partitionThreads = partitionThreads;
+        this.fetchThreads = fetchThreads;
+        this.pageSize = pageSize;
+        this.messagesPerSegment = messagesPerSegment;
+    }
+
+    public Report export() throws IOException {
+        final long start = System.nanoTime();
+        prepare();
+
+        final AtomicLong messages = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final ExecutorService partitions = Executors.newFixedThreadPool(partitionThreads);
+        final ExecutorService fetchers = Executors.newFixedThreadPool(fetchThreads);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (Event event : Event.values()) {
+                for (ProcessingStatus status : ProcessingStatus.values()) {
+                    futures.add(partitions.submit(() -> {
+                        exportPartition(event, status, fetchers, messages, errors);
+                        return null;
+                    }));
+                }
+            }
+            // let the other partitions complete their segments when one fails
+            IOException failure = null;
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = new IOException("Export to " + directory + " failed", e.getCause());
+                    } else {
+                        failure.addSuppressed(e.getCause());
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while exporting to: " + directory);
+        } finally {
+            partitions.shutdownNow();
+            fetchers.shutdownNow();
+        }
+
+        final Report report = new Report(messages.get(), errors.get(), System.nanoTime() - start);
+        LOG.info("Exported mailbox to {}: {}", directory, report);
+        return report;
+    }
+
+    /**
+     * Reads the manifest of an earlier export and removes its incomplete segments.
+     */
+    private void prepare() throws IOException {
+        Files.createDirectories(directory);
+
+        final Path manifestFile = directory.resolve(MANIFEST);
+        if (Files.exists(manifestFile)) {
+            try (InputStream inputStream = Files.newInputStream(manifestFile)) {
+                manifest.load(inputStream);
+            }
+            LOG.info("Resuming export to {}", directory);
+        }
+
+        try (DirectoryStream<Path> temporaryFiles = Files.newDirectoryStream(directory, "*" + TEMPORARY_SUFFIX)) {
+            for (Path temporaryFile : temporaryFiles) {
+                Files.delete(temporaryFile);
+            }
+        }
+    }
+
+    private void exportPartition(Event event, ProcessingStatus status, ExecutorService fetchers, AtomicLong messages, AtomicLong errors) throws Exception {
+        final String partition = event.name() + "-" + status.name();
+        if (Boolean.parseBoolean(getManifest(partition + ".done", "false"))) {
+            return;
+        }
+
+        int page = Integer.parseInt(getManifest(partition + ".nextPage", "1"));
+        int segment = Integer.parseInt(getManifest(partition + ".segments", "0"));
+        Segment current = null;
+        try {
+            while (true) {
+                final GetMessageParameters parameters = new GetMessageParameters();
+                parameters.setEvent(event);
+                parameters.setProcessingStatus(status);
+                parameters.setCount(pageSize);
+                parameters.setPage(page);
+                final List<KoppeltaalMessageHeader> headers = client.getMessageHeaders(parameters).getMessageHeaderEntries();
+
+                if (!headers.isEmpty()) {
+                    if (current == null) {
+                        current = new Segment(directory.resolve(String.format("%s-%05d.ndjson.gz", partition, segment + 1)));
+                    }
+                    writePage(current, headers, fetchers, errors);
+                    messages.addAndGet(headers.size());
+                }
+                page++;
+
+                final boolean last = headers.size() < pageSize;
+                if (current != null && (last || current.count >= messagesPerSegment)) {
+                    current.commit();
+                    segment++;
+                    updateManifest(partition, page, segment, current, last);
+                    current = null;
+                } else if (last) {
+                    updateManifest(partition, page, segment, null, true);
+                }
+                if (last) {
+                    return;
+                }
+            }
+        } finally {
+            if (current != null) {
+                current.discard();
+            }
+        }
+    }
+
+    /**
+     * Fetches the bundles of the page concurrently and writes them in the order of the headers.
+     */
+    private void writePage(Segment segment, List<KoppeltaalMessageHeader> headers, ExecutorService fetchers, AtomicLong errors) throws Exception {
+        final List<Future<byte[]>> bundles = new ArrayList<>(headers.size());
+        for (KoppeltaalMessageHeader header : headers) {
+            bundles.add(fetchers.submit(() -> {
+                final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(8192);
+                codec.compose(outputStream, client.getMessageBundleByHeader(header).getFeed(), false);
+                return outputStream.toByteArray();
+            }));
+        }
+
+        for (int i = 0; i < bundles.size(); i++) {
+            try {
+                segment.write(bundles.get(i).get());
+            } catch (ExecutionException e) {
+                // the segment is not committed, so a resumed export fetches the page again
+                errors.incrementAndGet();
+                for (Future<byte[]> bundle : bundles.subList(i + 1, bundles.size())) {
+                    bundle.cancel(true);
+                }
+                throw new IOException("Unable to export message: " + MessageLatencyTracker.getMessageId(headers.get(i)), e.getCause());
+            }
+        }
+    }
+
+    private String getManifest(String key, String defaultValue) {
+        synchronized (manifest) {
+            return manifest.getProperty(key, defaultValue);
+        }
+    }
+
+    private void updateManifest(String partition, int nextPage, int segments, Segment segment, boolean done) throws IOException {
+        synchronized (manifest) {
+            manifest.setProperty(partition + ".nextPage", String.valueOf(nextPage));
+            manifest.setProperty(partition + ".segments", String.valueOf(segments));
+            manifest.setProperty(partition + ".done", String.valueOf(done));
+            if (segment != null) {
+                manifest.setProperty(segment.path.getFileName().toString(), String.valueOf(segment.count));
+            }
+
+            final Path manifestFile = directory.resolve(MANIFEST);
+            final Path temporary = manifestFile.resolveSibling(MANIFEST + TEMPORARY_SUFFIX);
+            try (OutputStream outputStream = Files.newOutputStream(temporary)) {
+                manifest.store(outputStream, "Mailbox export of " + client.getClass().getSimpleName());
+            }
+            Files.move(temporary, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private static class Segment {
+
+        private final Path path;
+        private final Path temporary;
+        private final OutputStream outputStream;
+        private int count;
+
+        Segment(Path path) throws IOException {
+            this.path = path;
+            this.temporary = path.resolveSibling(path.getFileName() + TEMPORARY_SUFFIX);
+            this.outputStream = new GZIPOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)), 65536);
+        }
+
+        void write(byte[] bundle) throws IOException {
+            outputStream.write(bundle);
+            outputStream.write('\n');
+            count++;
+        }
+
+        void commit() throws IOException {
+            outputStream.close();
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        void discard() {
+            try {
+                outputStream.close();
+                Files.deleteIfExists(temporary);
+            } catch (IOException e) {
+                LOG.warn("Unable to remove incomplete segment: " + temporary, e);
+            }
+        }
+    }
+
+    public static class Report {
+
+        private final long messages;
+        private final long errors;
+        private final long durationNanos;
+
+        Report(long messages, long errors, long durationNanos) {
+            this.messages = messages;
+            this.errors = errors;
+            this.durationNanos = durationNanos;
+        }
+
+        /**
+         * @return the number of headers read in this run, including the messages that could not be exported
+         */
+        public long getMessages() {
+            return messages;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public long getDurationMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(durationNanos);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("messages=%d, errors=%d, duration=%dms, %.1f messages/s", messages, errors, getDurationMillis(),
+                    messages / Math.max(1e-9, durationNanos / 1e9));
+        }
+    }
+}
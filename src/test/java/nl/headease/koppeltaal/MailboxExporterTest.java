@@ -0,0 +1,190 @@
+package nl.headease.koppeltaal;
+
+import nl.koppeltaal.api.*;
+import org.hl7.fhir.instance.model.AtomEntry;
+import org.hl7.fhir.instance.model.AtomFeed;
+import org.hl7.fhir.instance.model.MessageHeader;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+public class MailboxExporterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void completedPartitionsAreNotExportedAgain() throws Exception {
+        final Path directory = folder.getRoot().toPath().resolve("export");
+        final CountingClient client = new CountingClient();
+
+        final MailboxExporter.Report first = new MailboxExporter(client, directory, 4, 4, 50, 1000).export();
+        final int partitions = Event.values().length * ProcessingStatus.values().length;
+        assertEquals(0, first.getMessages());
+        assertEquals(partitions, client.pages.get());
+
+        final Properties manifest = new Properties();
+        try (InputStream inputStream = Files.newInputStream(directory.resolve("manifest.properties"))) {
+            manifest.load(inputStream);
+        }
+        assertEquals("true", manifest.getProperty("CREATE_OR_UPDATE_CARE_PLAN-NEW.done"));
+        assertEquals("2", manifest.getProperty("CREATE_OR_UPDATE_CARE_PLAN-NEW.nextPage"));
+
+        // an incomplete segment of an interrupted export is removed, the completed partitions are skipped
+        final Path incomplete = Files.createFile(directory.resolve("CREATE_OR_UPDATE_PATIENT-NEW-00001.ndjson.gz.tmp"));
+        new MailboxExporter(client, directory, 4, 4, 50, 1000).export();
+        assertFalse(Files.exists(incomplete));
+        assertEquals(partitions, client.pages.get());
+    }
+
+    @Test
+    public void writesSegmentsAndResumesAfterAFailedFetch() throws Exception {
+        final Path directory = folder.getRoot().toPath().resolve("export");
+        final MailboxClient client = new MailboxClient("1", "2", "3", "4", "5");
+        client.failingMessageId = "4";
+
+        try {
+            new MailboxExporter(client, directory, 4, 4, 2, 2).export();
+            fail("Export with a message that cannot be fetched succeeded");
+        } catch (IOException e) {
+            assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains("4"));
+        }
+        // the first page is committed, the failed segment is not
+        assertEquals(List.of("1", "2"), readSegment(directory, 1));
+        assertFalse(Files.exists(directory.resolve(PARTITION + "-00002.ndjson.gz")));
+        Properties manifest = readManifest(directory);
+        assertEquals("false", manifest.getProperty(PARTITION + ".done"));
+        assertEquals("2", manifest.getProperty(PARTITION + ".nextPage"));
+        // the other partitions are completed
+        assertEquals("true", manifest.getProperty("CREATE_OR_UPDATE_PATIENT-NEW.done"));
+
+        client.failingMessageId = null;
+        client.pages.set(0);
+        final MailboxExporter.Report resumed = new MailboxExporter(client, directory, 4, 4, 2, 2).export();
+        assertEquals(3, resumed.getMessages());
+        assertEquals(0, resumed.getErrors());
+        // only the pages of the partition that failed are fetched again
+        assertEquals(2, client.pages.get());
+
+        assertEquals(List.of("1", "2"), readSegment(directory, 1));
+        assertEquals(List.of("3", "4"), readSegment(directory, 2));
+        assertEquals(List.of("5"), readSegment(directory, 3));
+        manifest = readManifest(directory);
+        assertEquals("true", manifest.getProperty(PARTITION + ".done"));
+        assertEquals("3", manifest.getProperty(PARTITION + ".segments"));
+        assertEquals("1", manifest.getProperty(PARTITION + "-00003.ndjson.gz"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void pageSizeAboveTheLimitOfTheConnectorIsRejected() {
+        new MailboxExporter(new CountingClient(), folder.getRoot().toPath(), 1, 1, MailboxExporter.MAX_PAGE_SIZE + 1, 1000);
+    }
+
+    private static final String PARTITION = "CREATE_OR_UPDATE_CARE_PLAN-NEW";
+
+    /**
+     * @return the message ids of the bundles in the segment of {@link #PARTITION}
+     */
+    private static List<String> readSegment(Path directory, int segment) throws IOException {
+        final List<String> messageIds = new ArrayList<>();
+        final Path path = directory.resolve(String.format("%s-%05d.ndjson.gz", PARTITION, segment));
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(Files.newInputStream(path)), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String id = MailboxClient.HEADER_URL;
+                final int start = line.indexOf(id);
+                assertTrue(line, start >= 0);
+                messageIds.add(line.substring(start + id.length(), line.indexOf('"', start)));
+            }
+        }
+        return messageIds;
+    }
+
+    private static Properties readManifest(Path directory) throws IOException {
+        final Properties manifest = new Properties();
+        try (InputStream inputStream = Files.newInputStream(directory.resolve("manifest.properties"))) {
+            manifest.load(inputStream);
+        }
+        return manifest;
+    }
+
+    /**
+     * Holds NEW care plan messages, the other partitions are empty.
+     */
+    private static class MailboxClient extends KoppeltaalClient {
+
+        private static final String HEADER_URL = "https://localhost/FHIR/Koppeltaal/MessageHeader/";
+
+        private final List<String> messageIds;
+        private final AtomicInteger pages = new AtomicInteger();
+        private volatile String failingMessageId;
+
+        MailboxClient(String... messageIds) {
+            super("https://localhost", "user", "password", Format.XML);
+            this.messageIds = List.of(messageIds);
+        }
+
+        @Override
+        public KoppeltaalBundle getMessageHeaders(GetMessageParameters parameters) {
+            final AtomFeed feed = new AtomFeed();
+            if (parameters.getEvent() == Event.CREATE_OR_UPDATE_CARE_PLAN && parameters.getProcessingStatus() == ProcessingStatus.NEW) {
+                pages.incrementAndGet();
+                final int from = (parameters.getPage() - 1) * parameters.getCount();
+                for (String messageId : messageIds.subList(Math.min(from, messageIds.size()), Math.min(from + parameters.getCount(), messageIds.size()))) {
+                    feed.getEntryList().add(header(messageId));
+                }
+            }
+            return new KoppeltaalBundle(feed);
+        }
+
+        @Override
+        public KoppeltaalBundle getMessageBundleByHeader(KoppeltaalMessageHeader header) throws IOException {
+            final String messageId = MessageLatencyTracker.getMessageId(header);
+            if (messageId.equals(failingMessageId)) {
+                throw new IOException("Connection reset");
+            }
+            final AtomFeed feed = new AtomFeed();
+            feed.getEntryList().add(header(messageId));
+            return new KoppeltaalBundle(feed);
+        }
+
+        private static AtomEntry<MessageHeader> header(String messageId) {
+            final MessageHeader messageHeader = new MessageHeader();
+            messageHeader.setIdentifierSimple(messageId);
+            final AtomEntry<MessageHeader> entry = new AtomEntry<>();
+            entry.setId(HEADER_URL + messageId);
+            entry.setResource(messageHeader);
+            return entry;
+        }
+    }
+
+    private static class CountingClient extends KoppeltaalClient {
+
+        private final AtomicInteger pages = new AtomicInteger();
+
+        CountingClient() {
+            super("https://localhost", "user", "password", Format.XML);
+        }
+
+        @Override
+        public KoppeltaalBundle getMessageHeaders(GetMessageParameters parameters) {
+            pages.incrementAndGet();
+            return new KoppeltaalBundle(new AtomFeed());
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package nl.headease.koppeltaal;
+
+import nl.koppeltaal.api.KoppeltaalBundle;
+import org.hl7.fhir.instance.model.AtomEntry;
+import org.hl7.fhir.instance.model.CarePlan;
+import org.hl7.fhir.instance.model.Resource;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Admission control on the estimated heap size of claimed bundles, instead of only their number: a few CarePlan
+ * bundles with hundreds of activities arriving together can otherwise push the heap into full GCs.
+ * <p>
+ * The size of a bundle is not known before it is claimed, so consumers first reserve a provisional size
+ * ({@link #awaitReservation()}, {@link #tryReservation()}): the check and the reservation are one step, workers that
+ * claim at the same time cannot all pass the check before any of them reserved. After the claim the provisional size is
+ * replaced by the estimated size of the bundle, which stays reserved until the bundle is acknowledged. One bundle can
+ * take the budget over its maximum; claiming then stops until enough was released. A bundle larger than the budget is
+ * still processed, alone.
+ * <p>
+ * The estimate ({@link #estimate(KoppeltaalBundle, long)}) is the larger of the {@code Content-Length} of the response
+ * times {@link #HEAP_BYTES_PER_WIRE_BYTE}, and the number of entries and CarePlan activities times
+ * {@link #HEAP_BYTES_PER_ENTRY}. The length of a compressed response is not used, see
+ * {@link ExtendedKoppeltaalClient#getLastContentLength()}.
+ * <p>
+ * With a spill directory, bundles over the spill threshold that are admitted with {@link #admit} are composed to a
+ * memory-mapped file and dropped from the heap until a worker {@link Admission#getBundle() loads} them; they reserve
+ * their size from then on.
+ */
+public class MemoryBudget {
+
+    /** parsed FHIR objects take a multiple of their XML or JSON size */
+    public static final int HEAP_BYTES_PER_WIRE_BYTE = 4;
+
+    /** a typical entry (or CarePlan activity) when the Content-Length is unknown, e.g. for chunked responses */
+    public static final int HEAP_BYTES_PER_ENTRY = 16 * 1024;
+
+    /** reserved for a claim until the claimed bundle is estimated, the estimate of a bundle of 64 entries */
+    public static final long DEFAULT_PROVISIONAL_BYTES = 64L * HEAP_BYTES_PER_ENTRY;
+
+    private final long maxBytes;
+    private final long provisionalBytes;
+    private final long spillThreshold;
+    private final Path spillDirectory;
+    private final JsonFeedCodec codec = new JsonFeedCodec();
+
+    private long inUse;
+    private long spilled;
+
+    /**
+     * A budget without spilling.
+     */
+    public MemoryBudget(long maxBytes) {
+        this(maxBytes, Long.MAX_VALUE, null);
+    }
+
+    /**
+     * @param spillThreshold bundles with a larger estimate are spilled by {@link #admit}
+     * @param spillDirectory directory of the spill files, null to not spill
+     */
+    public MemoryBudget(long maxBytes, long spillThreshold, Path spillDirectory) {
+        this(maxBytes, DEFAULT_PROVISIONAL_BYTES, spillThreshold, spillDirectory);
+    }
+
+    /**
+     * @param provisionalBytes reserved for a claim until the claimed bundle is estimated
+     */
+    public MemoryBudget(long maxBytes, long provisionalBytes, long spillThreshold, Path spillDirectory) {
+        this.maxBytes = maxBytes;
+        this.provisionalBytes = provisionalBytes;
+        this.spillThreshold = spillThreshold;
+        this.spillDirectory = spillDirectory;
+    }
+
+    public synchronized boolean hasHeadroom() {
+        return inUse < maxBytes;
+    }
+
+    /**
+     * Waits until less than the maximum is in use.
+     */
+    public synchronized void awaitHeadroom() throws InterruptedException {
+        while (inUse >= maxBytes) {
+            wait();
+        }
+    }
+
+    /**
+     * Waits until the provisional size fits in the budget, or nothing is in use, and reserves it. Call before claiming,
+     * and pass the reservation to {@link #reserve(Reservation, KoppeltaalBundle, long)} or
+     * {@link #admit(Reservation, KoppeltaalBundle, long)} after the claim; close it when nothing was claimed.
+     */
+    public synchronized Reservation awaitReservation() throws InterruptedException {
+        while (!fits(provisionalBytes)) {
+            wait();
+        }
+        return newReservation();
+    }
+
+    /**
+     * @return the provisional reservation, null when it does not fit in the budget, see {@link #awaitReservation()}
+     */
+    public synchronized Reservation tryReservation() {
+        return fits(provisionalBytes) ? newReservation() : null;
+    }
+
+    private boolean fits(long bytes) {
+        return inUse == 0 || inUse + bytes <= maxBytes;
+    }
+
+    private Reservation newReservation() {
+        inUse += provisionalBytes;
+        return new Reservation(provisionalBytes);
+    }
+
+    /**
+     * @param contentLength the length of the uncompressed response the bundle was parsed from, -1 when unknown
+     * @return the estimated heap size of the parsed bundle
+     */
+    public long estimate(KoppeltaalBundle bundle, long contentLength) {
+        long entries = 0;
+        for (AtomEntry<? extends Resource> entry : bundle.getFeed().getEntryList()) {
+            entries++;
+            if (entry.getResource() instanceof CarePlan && ((CarePlan) entry.getResource()).getActivity() != null) {
+                entries += ((CarePlan) entry.getResource()).getActivity().size();
+            }
+        }
+        return Math.max(contentLength * HEAP_BYTES_PER_WIRE_BYTE, entries * HEAP_BYTES_PER_ENTRY);
+    }
+
+    /**
+     * Reserves the estimated size of a bundle that is processed right away.
+     */
+    public Admission reserve(KoppeltaalBundle bundle, long contentLength) {
+        final long estimate = estimate(bundle, contentLength);
+        acquire(estimate);
+        return new Admission(bundle, null, null, estimate);
+    }
+
+    /**
+     * Replaces the provisional reservation of the claim by the estimated size of the claimed bundle.
+     */
+    public Admission reserve(Reservation reservation, KoppeltaalBundle bundle, long contentLength) {
+        final long estimate = estimate(bundle, contentLength);
+        reservation.replace(estimate);
+        return new Admission(bundle, null, null, estimate);
+    }
+
+    /**
+     * Reserves the estimated size of a bundle that may wait for a worker, or spills it when it is over the threshold.
+     */
+    public Admission admit(KoppeltaalBundle bundle, long contentLength) throws IOException {
+        return admit(new Reservation(0), bundle, contentLength);
+    }
+
+    /**
+     * Like {@link #admit(KoppeltaalBundle, long)}, replaces the provisional reservation of the claim.
+     */
+    public Admission admit(Reservation reservation, KoppeltaalBundle bundle, long contentLength) throws IOException {
+        final long estimate = estimate(bundle, contentLength);
+        if (spillDirectory == null || estimate <= spillThreshold) {
+            reservation.replace(estimate);
+            return new Admission(bundle, null, null, estimate);
+        }
+        // a spilled bundle is reserved when it is loaded
+        reservation.close();
+        final Path file = spill(bundle);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new Admission(null, file, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), estimate);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getInUse() {
+        return inUse;
+    }
+
+    /**
+     * @return number of bundles that were spilled
+     */
+    public synchronized long getSpilled() {
+        return spilled;
+    }
+
+    private synchronized void acquire(long bytes) {
+        inUse += bytes;
+    }
+
+    private synchronized void release(long bytes) {
+        inUse -= bytes;
+        notifyAll();
+    }
+
+    private Path spill(KoppeltaalBundle bundle) throws IOException {
+        final Path file = Files.createTempFile(spillDirectory, "bundle-", ".json");
+        try (OutputStream outputStream = new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024)) {
+            codec.compose(outputStream, bundle.getFeed(), false);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+        synchronized (this) {
+            spilled++;
+        }
+        return file;
+    }
+
+    /**
+     * The provisional reservation of a claim, replaced by an {@link Admission} or closed when nothing was claimed.
+     */
+    public class Reservation implements Closeable {
+
+        private long bytes;
+        private boolean closed;
+
+        Reservation(long bytes) {
+            this.bytes = bytes;
+        }
+
+        private void replace(long estimatedBytes) {
+            synchronized (MemoryBudget.this) {
+                if (closed) {
+                    throw new IllegalStateException("Reservation is closed");
+                }
+                closed = true;
+                inUse += estimatedBytes - bytes;
+                if (estimatedBytes < bytes) {
+                    MemoryBudget.this.notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Releases the provisional size, does nothing when it was replaced.
+         */
+        @Override
+        public void close() {
+            synchronized (MemoryBudget.this) {
+                if (!closed) {
+                    closed = true;
+                    release(bytes);
+                }
+            }
+        }
+    }
+
+    /**
+     * The reservation of one bundle, closed when the bundle was processed (acknowledged).
+     */
+    public class Admission implements Closeable {
+
+        private final long estimatedBytes;
+        private final Path spillFile;
+        private final MappedByteBuffer mapped;
+
+        private KoppeltaalBundle bundle;
+        private boolean reserved;
+        private boolean closed;
+
+        Admission(KoppeltaalBundle bundle, Path spillFile, MappedByteBuffer mapped, long estimatedBytes) {
+            this.bundle = bundle;
+            this.spillFile = spillFile;
+            this.mapped = mapped;
+            this.estimatedBytes = estimatedBytes;
+            this.reserved = spillFile == null;
+        }
+
+        /**
+         * @return the bundle, parsed from the spill file (and reserved) on the first call when it was spilled
+         */
+        public synchronized KoppeltaalBundle getBundle() throws IOException {
+            if (closed) {
+                throw new IllegalStateException("Admission is closed");
+            }
+            if (bundle == null) {
+                final ByteBuffer buffer = mapped.duplicate();
+                bundle = new KoppeltaalBundle(codec.parse(new InputStream() {
+                    @Override
+                    public int read() {
+                        return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+                    }
+
+                    @Override
+                    public int read(byte[] b, int off, int len) {
+                        if (!buffer.hasRemaining()) {
+                            return -1;
+                        }
+                        final int count = Math.min(len, buffer.remaining());
+                        buffer.get(b, off, count);
+                        return count;
+                    }
+                }));
+                acquire(estimatedBytes);
+                reserved = true;
+            }
+            return bundle;
+        }
+
+        public long getEstimatedBytes() {
+            return estimatedBytes;
+        }
+
+        public boolean isSpilled() {
+            return spillFile != null;
+        }
+
+        /**
+         * Releases the reservation and deletes the spill file.
+         */
+        @Override
+        public synchronized void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            bundle = null;
+            if (reserved) {
+                release(estimatedBytes);
+            }
+            if (spillFile != null) {
+                Files.deleteIfExists(spillFile);
+            }
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package nl.headease.koppeltaal;
+
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import nl.koppeltaal.api.Format;
+import nl.koppeltaal.api.KoppeltaalBundle;
+import nl.koppeltaal.api.KoppeltaalClient;
+import nl.koppeltaal.api.KoppeltaalMessageHeader;
+import nl.koppeltaal.api.ProcessingStatus;
+import org.hl7.fhir.instance.model.AtomEntry;
+import org.hl7.fhir.instance.model.AtomFeed;
+import org.hl7.fhir.instance.model.CarePlan;
+import org.hl7.fhir.instance.model.MessageHeader;
+import org.hl7.fhir.instance.model.Resource;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+public class MemoryBudgetTest {
+
+    private static final String CLAIM_RESPONSE = "{\"resourceType\":\"Bundle\",\"entry\":[{\"id\":\"https://localhost/FHIR/Koppeltaal/MessageHeader/1\","
+            + "\"content\":{\"resourceType\":\"MessageHeader\",\"identifier\":\"1\",\"timestamp\":\"2020-01-01T00:00:00Z\","
+            + "\"event\":{\"system\":\"http://ggz.koppeltaal.nl/fhir/Koppeltaal/MessageEvents\",\"code\":\"CreateOrUpdateCarePlan\"},"
+            + "\"source\":{\"endpoint\":\"https://localhost\"}}}]}";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void estimateUsesContentLength() {
+        final MemoryBudget budget = new MemoryBudget(1024 * 1024);
+        final KoppeltaalBundle bundle = new KoppeltaalBundle(new AtomFeed());
+
+        assertEquals(0, budget.estimate(bundle, -1));
+        assertEquals(1000 * MemoryBudget.HEAP_BYTES_PER_WIRE_BYTE, budget.estimate(bundle, 1000));
+    }
+
+    @Test
+    public void contentLengthOfCompressedResponseIsNotUsed() throws Exception {
+        final byte[] body = CLAIM_RESPONSE.getBytes(StandardCharsets.UTF_8);
+        assertEquals(body.length, claimAndGetContentLength(new MockLowLevelHttpResponse().setContent(body)
+                .addHeader("Content-Length", String.valueOf(body.length))));
+
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream outputStream = new GZIPOutputStream(compressed)) {
+            outputStream.write(body);
+        }
+        assertEquals(-1, claimAndGetContentLength(new MockLowLevelHttpResponse().setContent(compressed.toByteArray()).setContentEncoding("gzip")
+                .addHeader("Content-Encoding", "gzip").addHeader("Content-Length", String.valueOf(compressed.size()))));
+    }
+
+    @Test
+    public void spilledCarePlanBundleIsReadBackAndDeletedOnClose() throws Exception {
+        final Path spillDirectory = folder.newFolder("spill").toPath();
+        final MemoryBudget budget = new MemoryBudget(1024 * 1024, 0, spillDirectory);
+        final KoppeltaalBundle bundle = SampleBundles.newCreateOrUpdateCarePlanBundle("spilled", "domain");
+
+        final MemoryBudget.Admission admission = budget.admit(bundle, -1);
+        assertTrue(admission.isSpilled());
+        assertEquals(1, budget.getSpilled());
+        // not reserved until it is loaded
+        assertEquals(0, budget.getInUse());
+        assertEquals(1, Files.list(spillDirectory).count());
+
+        final KoppeltaalBundle loaded = admission.getBundle();
+        assertEquals(admission.getEstimatedBytes(), budget.getInUse());
+        assertEquals(ids(bundle), ids(loaded));
+        assertEquals(activities(bundle), activities(loaded));
+        assertEquals(MessageLatencyTracker.getMessageId(bundle.getMessageHeader()), MessageLatencyTracker.getMessageId(loaded.getMessageHeader()));
+
+        admission.close();
+        assertEquals(0, budget.getInUse());
+        assertEquals(0, Files.list(spillDirectory).count());
+    }
+
+    @Test
+    public void consumerReservesMessageUntilItIsAcknowledged() throws Exception {
+        final AtomicLong inUseWhileHandled = new AtomicLong();
+        final AtomicLong inUseWhileAcknowledged = new AtomicLong();
+        final MemoryBudget budget = new MemoryBudget(1024 * 1024);
+        final KoppeltaalClient client = new KoppeltaalClient("https://localhost", "user", "password", Format.XML) {
+            @Override
+            public KoppeltaalBundle getNextNewAndClaim() {
+                final MessageHeader messageHeader = new MessageHeader();
+                messageHeader.setIdentifierSimple("1");
+                final AtomEntry<MessageHeader> headerEntry = new AtomEntry<>();
+                headerEntry.setId("https://localhost/FHIR/Koppeltaal/MessageHeader/1");
+                headerEntry.setResource(messageHeader);
+
+                final AtomFeed feed = new AtomFeed();
+                feed.getEntryList().add(headerEntry);
+                feed.getEntryList().add(new AtomEntry<MessageHeader>());
+                return new KoppeltaalBundle(feed);
+            }
+
+            @Override
+            public void updateMessageStatus(KoppeltaalMessageHeader header, ProcessingStatus status) throws IOException {
+                // not the FAILED status the consumer sets after the acknowledgement failed
+                if (status == ProcessingStatus.SUCCESS) {
+                    inUseWhileAcknowledged.set(budget.getInUse());
+                }
+                throw new IOException("Connection reset");
+            }
+        };
+        final MailboxConsumer consumer = new MailboxConsumer(client, bundle -> inUseWhileHandled.set(budget.getInUse()),
+                new MessageLatencyTracker(Duration.ofMinutes(1)), null, budget);
+
+        try {
+            consumer.processNext();
+            fail("Acknowledgement did not fail");
+        } catch (IOException e) {
+            // expected
+        }
+
+        // two entries, the client does not know the Content-Length
+        assertEquals(2 * MemoryBudget.HEAP_BYTES_PER_ENTRY, inUseWhileHandled.get());
+        assertEquals(2 * MemoryBudget.HEAP_BYTES_PER_ENTRY, inUseWhileAcknowledged.get());
+        // released, also when the acknowledgement failed
+        assertEquals(0, budget.getInUse());
+    }
+
+    @Test
+    public void reservationBlocksUntilClosed() throws Exception {
+        final MemoryBudget budget = new MemoryBudget(1000);
+        final MemoryBudget.Admission admission = budget.reserve(new KoppeltaalBundle(new AtomFeed()), 500);
+        assertEquals(2000, budget.getInUse());
+        assertFalse(budget.hasHeadroom());
+
+        final CountDownLatch admitted = new CountDownLatch(1);
+        final Thread waiter = new Thread(() -> {
+            try {
+                budget.awaitHeadroom();
+                admitted.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        waiter.start();
+        assertFalse(admitted.await(50, TimeUnit.MILLISECONDS));
+
+        admission.close();
+        admission.close();
+        assertTrue(admitted.await(1, TimeUnit.SECONDS));
+        assertEquals(0, budget.getInUse());
+        assertTrue(budget.hasHeadroom());
+    }
+
+    @Test
+    public void workersThatClaimTogetherStayWithinTheBudget() throws Exception {
+        final int entries = 10;
+        final long bundleBytes = entries * MemoryBudget.HEAP_BYTES_PER_ENTRY;
+        final MemoryBudget budget = new MemoryBudget(4 * bundleBytes, bundleBytes, Long.MAX_VALUE, null);
+
+        final int messages = 40;
+        final AtomicInteger claims = new AtomicInteger();
+        final AtomicInteger acknowledged = new AtomicInteger();
+        final AtomicInteger maxOutstanding = new AtomicInteger();
+        final AtomicLong maxInUse = new AtomicLong();
+        final KoppeltaalClient client = new KoppeltaalClient("https://localhost", "user", "password", Format.XML) {
+            @Override
+            public KoppeltaalBundle getNextNewAndClaim() {
+                final int claim = claims.incrementAndGet();
+                if (claim > messages) {
+                    return new KoppeltaalBundle(new AtomFeed());
+                }
+                maxOutstanding.accumulateAndGet(claim - acknowledged.get(), Math::max);
+                maxInUse.accumulateAndGet(budget.getInUse(), Math::max);
+                sleep(5);
+                return newBundle(String.valueOf(claim), entries);
+            }
+
+            @Override
+            public void updateMessageStatus(KoppeltaalMessageHeader header, ProcessingStatus status) {
+                acknowledged.incrementAndGet();
+            }
+        };
+        final MailboxConsumer consumer = new MailboxConsumer(client, bundle -> sleep(20), new MessageLatencyTracker(Duration.ofMinutes(1)), null, budget);
+
+        consumer.start(16, Duration.ofMillis(10));
+        try {
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (acknowledged.get() < messages && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+        } finally {
+            consumer.close();
+        }
+
+        assertEquals(messages, acknowledged.get());
+        assertTrue("outstanding " + maxOutstanding.get(), maxOutstanding.get() <= 4);
+        assertTrue("in use " + maxInUse.get(), maxInUse.get() <= budget.getMaxBytes());
+        assertEquals(0, budget.getInUse());
+    }
+
+    @Test
+    public void publisherDoesNotClaimWithoutHeadroom() throws Exception {
+        final AtomicBoolean claimed = new AtomicBoolean();
+        final KoppeltaalClient client = new KoppeltaalClient("https://localhost", "user", "password", Format.XML) {
+            @Override
+            public KoppeltaalBundle getNextNewAndClaim() {
+                claimed.set(true);
+                return new KoppeltaalBundle(new AtomFeed());
+            }
+        };
+        final MemoryBudget budget = new MemoryBudget(1000);
+        final MemoryBudget.Admission admission = budget.reserve(new KoppeltaalBundle(new AtomFeed()), 1000);
+
+        try (ClaimedMessagePublisher publisher = new ClaimedMessagePublisher(client, null, null, Duration.ofMillis(10), 1, budget)) {
+            publisher.subscribe(new Flow.Subscriber<ClaimedMessagePublisher.ClaimedMessage>() {
+                @Override
+                public void onSubscribe(Flow.Subscription subscription) {
+                    subscription.request(1);
+                }
+
+                @Override
+                public void onNext(ClaimedMessagePublisher.ClaimedMessage item) {
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                }
+
+                @Override
+                public void onComplete() {
+                }
+            });
+            Thread.sleep(100);
+            assertFalse(claimed.get());
+
+            admission.close();
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+            while (!claimed.get() && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(claimed.get());
+        }
+    }
+
+    private static KoppeltaalBundle newBundle(String messageId, int entries) {
+        final MessageHeader messageHeader = new MessageHeader();
+        messageHeader.setIdentifierSimple(messageId);
+        final AtomEntry<MessageHeader> headerEntry = new AtomEntry<>();
+        headerEntry.setId("https://localhost/FHIR/Koppeltaal/MessageHeader/" + messageId);
+        headerEntry.setResource(messageHeader);
+
+        final AtomFeed feed = new AtomFeed();
+        feed.getEntryList().add(headerEntry);
+        for (int i = 1; i < entries; i++) {
+            feed.getEntryList().add(new AtomEntry<MessageHeader>());
+        }
+        return new KoppeltaalBundle(feed);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static long claimAndGetContentLength(MockLowLevelHttpResponse response) throws IOException {
+        final MockHttpTransport server = new MockHttpTransport.Builder()
+                .setLowLevelHttpResponse(response.setContentType(Format.JSON.getMediaType()))
+                .build();
+        try (ExtendedKoppeltaalClient client = ExtendedKoppeltaalClient.builder("https://localhost", "user", "password")
+                .format(Format.JSON)
+                .jsonFeedCodec(true)
+                .transport(server)
+                .build()) {
+            assertEquals("1", MessageLatencyTracker.getMessageId(client.getNextNewAndClaim().getMessageHeader()));
+            return client.getLastContentLength();
+        }
+    }
+
+    private static List<String> ids(KoppeltaalBundle bundle) {
+        return bundle.getFeed().getEntryList().stream().map(AtomEntry::getId).collect(Collectors.toList());
+    }
+
+    /**
+     * @return the number of activities of every CarePlan in the bundle
+     */
+    private static List<Integer> activities(KoppeltaalBundle bundle) {
+        final List<Integer> activities = new ArrayList<>();
+        for (AtomEntry<? extends Resource> entry : bundle.getFeed().getEntryList()) {
+            if (entry.getResource() instanceof CarePlan) {
+                activities.add(((CarePlan) entry.getResource()).getActivity().size());
+            }
+        }
+        return activities;
+    }
+}
@@ -0,0 +1,12 @@
+package nl.headease.koppeltaal;
+
+import nl.koppeltaal.api.KoppeltaalBundle;
+
+/**
+ * Processes a claimed message bundle. When the handler throws, the message is marked as FAILED, otherwise as SUCCESS.
+ */
+@FunctionalInterface
+public interface MessageHandler {
+
+    void handle(KoppeltaalBundle bundle) throws Exception;
+}
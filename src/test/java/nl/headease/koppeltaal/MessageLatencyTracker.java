@@ -0,0 +1,188 @@
+package nl.headease.koppeltaal;
+
+import nl.koppeltaal.api.KoppeltaalBundle;
+import nl.koppeltaal.api.KoppeltaalMessageHeader;
+import org.hl7.fhir.instance.model.Coding;
+import org.hl7.fhir.instance.model.DateAndTime;
+import org.hl7.fhir.instance.model.MessageHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Tracks the life of a message from the moment it is posted until it is acknowledged, per {@link Stage} and per event.
+ * <p>
+ * Outbound bundles are stamped with {@link #stamp(KoppeltaalBundle)} when they are posted. When a message is claimed
+ * (a header returned by {@code getNextNewAndClaim} or {@code getMessageHeaders}) the queue wait is calculated from that
+ * stamp, or from the MessageHeader timestamp when the message was posted by another application.
+ * <p>
+ * Durations are recorded in {@link LatencyHistograms} keyed by {@code <event>/<stage>}, messages that take longer than
+ * the slow threshold end to end are logged with their full breakdown.
+ */
+public class MessageLatencyTracker {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MessageLatencyTracker.class);
+
+    private static final int DEFAULT_MAX_STAMPS = 100_000;
+
+    public enum Stage {
+        /** posted (or MessageHeader timestamp) until the claim request was sent */
+        QUEUE_WAIT,
+        CLAIM,
+        FETCH,
+        HANDLER,
+        ACK,
+        /** sum of all stages */
+        END_TO_END
+    }
+
+    private final LatencyHistograms<String> histograms = new LatencyHistograms<>();
+    private final Map<String, Long> postedAt;
+    private final long slowThresholdNanos;
+    private final long createdNanos = System.nanoTime();
+
+    public MessageLatencyTracker(Duration slowThreshold) {
+        this(slowThreshold, DEFAULT_MAX_STAMPS);
+    }
+
+    /**
+     * @param maxStamps the number of stamped messageIds kept, the oldest stamps are dropped first
+     */
+    public MessageLatencyTracker(Duration slowThreshold, int maxStamps) {
+        this.slowThresholdNanos = slowThreshold.toNanos();
+        this.postedAt = Collections.synchronizedMap(new LinkedHashMap<String, Long>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > maxStamps;
+            }
+        });
+    }
+
+    /**
+     * Records the current time as post time of the bundle, call right before {@code postMessage}.
+     */
+    public void stamp(KoppeltaalBundle bundle) {
+        final String messageId = getMessageId(bundle.getMessageHeader());
+        if (messageId != null) {
+            postedAt.put(messageId, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Starts a trace, call right before the claim request is sent.
+     */
+    public Trace begin() {
+        return new Trace();
+    }
+
+    public LatencyHistograms<String> getHistograms() {
+        return histograms;
+    }
+
+    public String report() {
+        return histograms.report(System.nanoTime() - createdNanos);
+    }
+
+    static String getMessageId(KoppeltaalMessageHeader header) {
+        final MessageHeader messageHeader = getMessageHeader(header);
+        return messageHeader == null ? null : messageHeader.getIdentifierSimple();
+    }
+
+    static String getEventCode(KoppeltaalMessageHeader header) {
+        final MessageHeader messageHeader = getMessageHeader(header);
+        final Coding event = messageHeader == null ? null : messageHeader.getEvent();
+        return event == null || event.getCodeSimple() == null ? "unknown" : event.getCodeSimple();
+    }
+
+    private static MessageHeader getMessageHeader(KoppeltaalMessageHeader header) {
+        return header == null || header.getEntry() == null ? null : header.getEntry().getResource();
+    }
+
+    /**
+     * The stages of a single message. Not thread safe, a message is processed by one thread at a time.
+     */
+    public class Trace {
+
+        private final long claimStartMillis = System.currentTimeMillis();
+        private final Map<Stage, Long> durations = new EnumMap<>(Stage.class);
+
+        private long lastMark = System.nanoTime();
+        private String messageId;
+        private String event = "unknown";
+
+        /**
+         * Marks the end of the claim and calculates the queue wait of the claimed message.
+         */
+        public Trace claimed(KoppeltaalMessageHeader header) {
+            messageId = MessageLatencyTracker.getMessageId(header);
+            event = getEventCode(header);
+
+            mark(Stage.CLAIM);
+
+            final Long stamped = messageId == null ? null : postedAt.remove(messageId);
+            final Long enqueued = stamped != null ? stamped : getTimestamp(header);
+            if (enqueued != null) {
+                record(Stage.QUEUE_WAIT, TimeUnit.MILLISECONDS.toNanos(claimStartMillis - enqueued));
+            }
+            return this;
+        }
+
+        /**
+         * Records the time since the previous mark as the duration of {@code stage}.
+         */
+        public Trace mark(Stage stage) {
+            final long now = System.nanoTime();
+            record(stage, now - lastMark);
+            lastMark = now;
+            return this;
+        }
+
+        /**
+         * Records the end to end duration and logs the breakdown when the message was slow.
+         *
+         * @param failed whether the message failed, failed messages are recorded as errors
+         */
+        public void finish(boolean failed) {
+            final long total = durations.values().stream().mapToLong(Long::longValue).sum();
+
+            if (failed) {
+                histograms.recordError(key(Stage.END_TO_END), total);
+            } else {
+                histograms.record(key(Stage.END_TO_END), total);
+            }
+
+            if (total >= slowThresholdNanos) {
+                LOG.warn("Slow message: {} ({}) took {} ms: {}", messageId, event, TimeUnit.NANOSECONDS.toMillis(total),
+                        durations.entrySet().stream()
+                                .map(entry -> entry.getKey() + "=" + TimeUnit.NANOSECONDS.toMillis(entry.getValue()) + "ms")
+                                .collect(Collectors.joining(", ")));
+            }
+        }
+
+        public String getMessageId() {
+            return messageId;
+        }
+
+        private void record(Stage stage, long nanos) {
+            durations.merge(stage, nanos, Long::sum);
+            histograms.record(key(stage), nanos);
+        }
+
+        private String key(Stage stage) {
+            return event + "/" + stage;
+        }
+
+        private Long getTimestamp(KoppeltaalMessageHeader header) {
+            final MessageHeader messageHeader = getMessageHeader(header);
+            final DateAndTime timestamp = messageHeader == null ? null : messageHeader.getTimestampSimple();
+            return timestamp == null ? null : timestamp.toCalendar().getTimeInMillis();
+        }
+    }
+}
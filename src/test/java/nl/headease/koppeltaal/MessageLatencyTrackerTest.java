@@ -0,0 +1,57 @@
+package nl.headease.koppeltaal;
+
+import nl.koppeltaal.api.KoppeltaalBundle;
+import nl.koppeltaal.api.KoppeltaalMessageHeader;
+import org.hl7.fhir.instance.model.AtomEntry;
+import org.hl7.fhir.instance.model.Coding;
+import org.hl7.fhir.instance.model.MessageHeader;
+import org.junit.Test;
+
+import java.time.Duration;
+
+import static nl.headease.koppeltaal.MessageLatencyTracker.Stage.*;
+import static org.junit.Assert.*;
+
+public class MessageLatencyTrackerTest {
+
+    @Test
+    public void recordsStagesPerEvent() {
+        final MessageLatencyTracker tracker = new MessageLatencyTracker(Duration.ofMinutes(1));
+        final KoppeltaalBundle bundle = DeadLetterStoreTest.message("1");
+        bundle.getMessageHeader().getEntry().getResource().setEvent(new Coding().setCodeSimple("CreateOrUpdateCarePlan"));
+        tracker.stamp(bundle);
+
+        final MessageLatencyTracker.Trace trace = tracker.begin().claimed(bundle.getMessageHeader());
+        trace.mark(FETCH).mark(HANDLER).mark(ACK).finish(false);
+
+        assertEquals("1", trace.getMessageId());
+        final LatencyHistograms<String> histograms = tracker.getHistograms();
+        for (MessageLatencyTracker.Stage stage : MessageLatencyTracker.Stage.values()) {
+            assertEquals(stage.name(), 1, histograms.snapshot("CreateOrUpdateCarePlan/" + stage).getTotalCount());
+        }
+        assertEquals(0, histograms.getErrorCount("CreateOrUpdateCarePlan/" + END_TO_END));
+    }
+
+    @Test
+    public void failedMessageIsRecordedAsError() {
+        final MessageLatencyTracker tracker = new MessageLatencyTracker(Duration.ofMinutes(1));
+
+        tracker.begin().claimed(DeadLetterStoreTest.message("1").getMessageHeader()).finish(true);
+
+        assertEquals(1, tracker.getHistograms().getErrorCount("unknown/" + END_TO_END));
+    }
+
+    @Test
+    public void headerWithoutEntryIsTracedAsUnknown() {
+        final MessageLatencyTracker tracker = new MessageLatencyTracker(Duration.ofMinutes(1));
+        final KoppeltaalMessageHeader header = new KoppeltaalMessageHeader(null);
+
+        assertNull(MessageLatencyTracker.getMessageId(header));
+        assertEquals("unknown", MessageLatencyTracker.getEventCode(header));
+        assertEquals("unknown", MessageLatencyTracker.getEventCode(new KoppeltaalMessageHeader(new AtomEntry<MessageHeader>())));
+
+        tracker.begin().claimed(header).finish(false);
+        assertEquals(1, tracker.getHistograms().snapshot("unknown/" + CLAIM).getTotalCount());
+        assertEquals(1, tracker.getHistograms().snapshot("unknown/" + END_TO_END).getTotalCount());
+    }
+}
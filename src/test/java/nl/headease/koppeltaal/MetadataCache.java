@@ -0,0 +1,79 @@
+package nl.headease.koppeltaal;
+
+import org.hl7.fhir.instance.model.Conformance;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Conformance statements (metadata) per server, shared by all clients connecting to that server. Concurrent requests
+ * for the same server wait for a single load, failed loads are not cached.
+ */
+public class MetadataCache {
+
+    @FunctionalInterface
+    public interface Loader {
+        Conformance load() throws IOException;
+    }
+
+    private static class Entry {
+        final CompletableFuture<Conformance> conformance = new CompletableFuture<>();
+        final long loadedAt = System.nanoTime();
+    }
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final long timeToLiveNanos;
+
+    public MetadataCache(Duration timeToLive) {
+        this.timeToLiveNanos = timeToLive.toNanos();
+    }
+
+    public Conformance get(String server, Loader loader) throws IOException {
+        final Entry created = new Entry();
+        final Entry entry = entries.compute(server, (key, current) ->
+                current == null || isExpired(current) ? created : current);
+
+        if (entry == created) {
+            try {
+                created.conformance.complete(loader.load());
+            } catch (IOException | RuntimeException e) {
+                entries.remove(server, created);
+                created.conformance.completeExceptionally(e);
+            }
+        }
+
+        try {
+            return entry.conformance.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for metadata of: " + server, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Unable to load metadata of: " + server, e.getCause());
+        }
+    }
+
+    /**
+     * Stores a conformance statement loaded elsewhere, e.g. from disk.
+     */
+    public void put(String server, Conformance conformance) {
+        final Entry entry = new Entry();
+        entry.conformance.complete(conformance);
+        entries.put(server, entry);
+    }
+
+    public void invalidate(String server) {
+        entries.remove(server);
+    }
+
+    private boolean isExpired(Entry entry) {
+        final boolean failed = entry.conformance.isCompletedExceptionally();
+        return failed || System.nanoTime() - entry.loadedAt > timeToLiveNanos;
+    }
+}
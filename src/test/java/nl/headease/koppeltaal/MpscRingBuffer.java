@@ -0,0 +1,94 @@
+package nl.headease.koppeltaal;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free queue for many producers and a single consumer. Each slot has a sequence number that tells the
+ * producers when the slot is free and the consumer when it is filled, so producers only contend on claiming a position.
+ */
+class MpscRingBuffer<T> {
+
+    private final int mask;
+    private final AtomicReferenceArray<T> items;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+
+    /** only used by the consumer */
+    private long head;
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    MpscRingBuffer(int capacity) {
+        final int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.mask = size - 1;
+        this.items = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * @return false when the buffer is full
+     */
+    boolean offer(T item) {
+        long position = tail.get();
+        while (true) {
+            final long sequence = sequences.get(index(position));
+            final long difference = sequence - position;
+
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                // the consumer has not taken the item of the previous round yet
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+
+        final int index = index(position);
+        items.set(index, item);
+        sequences.set(index, position + 1);
+        return true;
+    }
+
+    /**
+     * Consumer only.
+     *
+     * @return the next item, null when the buffer is empty
+     */
+    T poll() {
+        final int index = index(head);
+        if (sequences.get(index) != head + 1) {
+            return null;
+        }
+
+        final T item = items.get(index);
+        items.set(index, null);
+        sequences.set(index, head + mask + 1);
+        head++;
+        return item;
+    }
+
+    /**
+     * Consumer only.
+     */
+    boolean isEmpty() {
+        return sequences.get(index(head)) != head + 1;
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    private int index(long position) {
+        return (int) (position & mask);
+    }
+}
@@ -0,0 +1,245 @@
+package nl.headease.koppeltaal;
+
+import nl.koppeltaal.api.Event;
+import nl.koppeltaal.api.GetMessageParameters;
+import nl.koppeltaal.api.KoppeltaalBundle;
+import nl.koppeltaal.api.KoppeltaalClient;
+import nl.koppeltaal.api.ProcessingStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Claims messages per {@link Event} instead of whatever comes next, so urgent user messages and activity status updates
+ * do not wait behind a backlog of activity definitions and patients.
+ * <p>
+ * Every event has a lane with a weight. Lanes with a backlog share the claims by weighted fair queuing: a claim costs a
+ * lane {@code 1 / weight} of virtual time and the backlogged lane with the earliest virtual time claims next, so with
+ * weights 8 and 1 the urgent lane gets eight claims for every bulk claim, while the bulk lane keeps draining. A lane
+ * that was idle starts at the current virtual time, it does not get the turns it missed.
+ * <p>
+ * The backlog of a lane is probed with {@link KoppeltaalClient#getMessageHeaderSummary} (at most {@code probeLimit}
+ * headers, for a single patient with {@link KoppeltaalClient#getMessageHeaders(GetMessageParameters)}) when the lane
+ * seems drained, at most once every {@code probeInterval}. A probe that returned {@code probeLimit} headers only shows
+ * part of the backlog, that lane is probed again as soon as it counted down. Counting down the probed backlog is only
+ * an estimate, other consumers claim from the same mailbox, an empty claim marks the lane drained.
+ * <p>
+ * When no lane has a backlog the next message is claimed without event filter, as without this scheduler, so a message
+ * that arrives between probes is not left waiting; its lane is probed on the next claim.
+ */
+public class PriorityClaimScheduler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PriorityClaimScheduler.class);
+
+    public static final int DEFAULT_WEIGHT = 1;
+
+    private static class Lane {
+        final Event event;
+        final double cost;
+        double finish;
+        long backlog;
+        long nextProbe;
+        boolean probing;
+        /** the last probe returned probeLimit headers, there are probably more */
+        boolean saturated;
+        long claimed;
+
+        Lane(Event event, int weight) {
+            this.event = event;
+            this.cost = 1.0 / weight;
+        }
+    }
+
+    private final KoppeltaalClient client;
+    private final String patientUrl;
+    private final int probeLimit;
+    private final long probeIntervalNanos;
+    private final Map<Event, Lane> lanes = new EnumMap<>(Event.class);
+
+    private double virtualTime;
+
+    /**
+     * Claims the messages of all patients.
+     */
+    public PriorityClaimScheduler(KoppeltaalClient client, Map<Event, Integer> weights, int probeLimit, Duration probeInterval) {
+        this(client, null, weights, probeLimit, probeInterval);
+    }
+
+    /**
+     * @param patientUrl null for the messages of all patients
+     * @param weights    weight per event, events without weight get {@link #DEFAULT_WEIGHT}
+     */
+    public PriorityClaimScheduler(KoppeltaalClient client, String patientUrl, Map<Event, Integer> weights, int probeLimit, Duration probeInterval) {
+        this.client = client;
+        this.patientUrl = patientUrl;
+        this.probeLimit = probeLimit;
+        this.probeIntervalNanos = probeInterval.toNanos();
+
+        final long now = System.nanoTime();
+        for (Event event : Event.values()) {
+            final int weight = weights.getOrDefault(event, DEFAULT_WEIGHT);
+            if (weight <= 0) {
+                throw new IllegalArgumentException("Weight must be positive: " + event + "=" + weight);
+            }
+            final Lane lane = new Lane(event, weight);
+            lane.nextProbe = now;
+            lanes.put(event, lane);
+        }
+    }
+
+    /**
+     * @return urgent user messages and activity status updates weight 8, bulk activity definitions and patients 1 and
+     * the other events 2
+     */
+    public static Map<Event, Integer> defaultWeights() {
+        final Map<Event, Integer> weights = new EnumMap<>(Event.class);
+        for (Event event : Event.values()) {
+            weights.put(event, 2);
+        }
+        weights.put(Event.CREATE_OR_UPDATE_USER_MESSAGE, 8);
+        weights.put(Event.UPDATE_CARE_PLAN_ACTIVITY_STATUS, 8);
+        weights.put(Event.CREATE_OR_UPDATE_ACTIVITY_DEFINITION, 1);
+        weights.put(Event.CREATE_OR_UPDATE_PATIENT, 1);
+        return weights;
+    }
+
+    /**
+     * Claims the next message of the lane whose turn it is, or any message when no lane has a backlog.
+     *
+     * @return the claimed bundle, null when the mailbox is empty
+     */
+    public KoppeltaalBundle claimNext() throws IOException {
+        probeDrainedLanes();
+
+        // every lane that turns out empty is skipped, so this ends
+        for (int attempt = 0; attempt < lanes.size(); attempt++) {
+            final Lane lane = nextLane();
+            if (lane == null) {
+                break;
+            }
+
+            final KoppeltaalBundle claimed = client.getNextNewAndClaim(patientUrl, lane.event);
+            if (claimed.getFeed().getEntryList().isEmpty()) {
+                synchronized (this) {
+                    // claimed by another consumer
+                    lane.backlog = 0;
+                    lane.saturated = false;
+                    lane.nextProbe = System.nanoTime() + probeIntervalNanos;
+                }
+                continue;
+            }
+            synchronized (this) {
+                lane.claimed++;
+            }
+            return claimed;
+        }
+
+        final KoppeltaalBundle claimed = patientUrl == null ? client.getNextNewAndClaim() : client.getNextNewAndClaim(patientUrl, null);
+        if (claimed.getFeed().getEntryList().isEmpty()) {
+            return null;
+        }
+        final Lane lane = laneOf(claimed);
+        if (lane != null) {
+            synchronized (this) {
+                lane.claimed++;
+                // more may have arrived since the last probe
+                lane.nextProbe = System.nanoTime();
+            }
+        }
+        return claimed;
+    }
+
+    /**
+     * @return the estimated number of NEW messages of the event
+     */
+    public synchronized long getBacklog(Event event) {
+        return lanes.get(event).backlog;
+    }
+
+    /**
+     * @return the number of messages of the event claimed by this scheduler
+     */
+    public synchronized long getClaimed(Event event) {
+        return lanes.get(event).claimed;
+    }
+
+    /**
+     * Takes the turn of the backlogged lane with the earliest virtual time.
+     */
+    private synchronized Lane nextLane() {
+        Lane next = null;
+        double nextStart = 0;
+        for (Lane lane : lanes.values()) {
+            if (lane.backlog <= 0) {
+                continue;
+            }
+            final double start = Math.max(lane.finish, virtualTime);
+            if (next == null || start < nextStart) {
+                next = lane;
+                nextStart = start;
+            }
+        }
+        if (next == null) {
+            return null;
+        }
+
+        virtualTime = nextStart;
+        next.finish = nextStart + next.cost;
+        next.backlog--;
+        return next;
+    }
+
+    private void probeDrainedLanes() {
+        for (Lane lane : lanes.values()) {
+            synchronized (this) {
+                if (lane.backlog > 0 || lane.probing || (!lane.saturated && System.nanoTime() - lane.nextProbe < 0)) {
+                    continue;
+                }
+                lane.probing = true;
+            }
+
+            long backlog = 0;
+            try {
+                backlog = probe(lane.event);
+            } catch (IOException | RuntimeException e) {
+                LOG.warn("Unable to probe backlog of: " + lane.event, e);
+            }
+
+            synchronized (this) {
+                lane.backlog = backlog;
+                lane.saturated = backlog >= probeLimit;
+                lane.nextProbe = System.nanoTime() + probeIntervalNanos;
+                lane.probing = false;
+            }
+        }
+    }
+
+    /**
+     * @return the number of NEW messages of the event, at most probeLimit
+     */
+    private int probe(Event event) throws IOException {
+        if (patientUrl == null) {
+            return client.getMessageHeaderSummary(event, ProcessingStatus.NEW, probeLimit, null).getFeed().getEntryList().size();
+        }
+        // the summary has no patient filter
+        final GetMessageParameters parameters = new GetMessageParameters();
+        parameters.setPatientUrl(patientUrl);
+        parameters.setProcessingStatus(ProcessingStatus.NEW);
+        parameters.setEvent(event);
+        parameters.setCount(probeLimit);
+        return client.getMessageHeaders(parameters).getFeed().getEntryList().size();
+    }
+
+    private Lane laneOf(KoppeltaalBundle claimed) {
+        try {
+            return lanes.get(Event.eventFromString(claimed.getEvent().getCodeSimple()));
+        } catch (RuntimeException e) {
+            // no or an unknown event
+            return null;
+        }
+    }
+}
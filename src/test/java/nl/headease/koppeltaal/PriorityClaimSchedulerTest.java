@@ -0,0 +1,167 @@
+package nl.headease.koppeltaal;
+
+import nl.koppeltaal.api.*;
+import org.hl7.fhir.instance.model.AtomEntry;
+import org.hl7.fhir.instance.model.AtomFeed;
+import org.hl7.fhir.instance.model.Coding;
+import org.hl7.fhir.instance.model.MessageHeader;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class PriorityClaimSchedulerTest {
+
+    @Test
+    public void urgentLaneIsClaimedFirstWhileBulkKeepsDraining() throws Exception {
+        final Map<Event, Integer> mailbox = new EnumMap<>(Event.class);
+        mailbox.put(Event.CREATE_OR_UPDATE_ACTIVITY_DEFINITION, 100);
+        mailbox.put(Event.CREATE_OR_UPDATE_USER_MESSAGE, 16);
+        final List<Event> claims = new ArrayList<>();
+
+        final PriorityClaimScheduler scheduler = new PriorityClaimScheduler(mailboxClient(mailbox, claims), PriorityClaimScheduler.defaultWeights(), 50, Duration.ofMinutes(1));
+        for (int i = 0; i < 18; i++) {
+            assertNotNull(scheduler.claimNext());
+        }
+
+        assertEquals(16, scheduler.getClaimed(Event.CREATE_OR_UPDATE_USER_MESSAGE));
+        assertEquals(2, scheduler.getClaimed(Event.CREATE_OR_UPDATE_ACTIVITY_DEFINITION));
+        assertEquals(Event.CREATE_OR_UPDATE_USER_MESSAGE, claims.get(0));
+        assertEquals(Event.CREATE_OR_UPDATE_ACTIVITY_DEFINITION, claims.get(1));
+        assertEquals(48, scheduler.getBacklog(Event.CREATE_OR_UPDATE_ACTIVITY_DEFINITION));
+    }
+
+    @Test
+    public void emptyClaimSkipsTheLane() throws Exception {
+        final Map<Event, Integer> mailbox = new EnumMap<>(Event.class);
+        mailbox.put(Event.CREATE_OR_UPDATE_PATIENT, 2);
+        final List<Event> claims = new ArrayList<>();
+        final KoppeltaalClient client = mailboxClient(mailbox, claims);
+
+        final PriorityClaimScheduler scheduler = new PriorityClaimScheduler(client, PriorityClaimScheduler.defaultWeights(), 50, Duration.ofMinutes(1));
+        scheduler.claimNext();
+        // another consumer claims the other message after the probe
+        mailbox.put(Event.CREATE_OR_UPDATE_PATIENT, 0);
+
+        assertNull(scheduler.claimNext());
+        assertEquals(1, claims.size());
+        assertEquals(0, scheduler.getBacklog(Event.CREATE_OR_UPDATE_PATIENT));
+    }
+
+    @Test
+    public void saturatedProbeIsRepeatedWithoutWaitingForTheInterval() throws Exception {
+        final Map<Event, Integer> mailbox = new EnumMap<>(Event.class);
+        mailbox.put(Event.CREATE_OR_UPDATE_ACTIVITY_DEFINITION, 100);
+        mailbox.put(Event.CREATE_OR_UPDATE_USER_MESSAGE, 16);
+        final List<Event> claims = new ArrayList<>();
+
+        // the probes see 5 of the 16 urgent messages
+        final PriorityClaimScheduler scheduler = new PriorityClaimScheduler(mailboxClient(mailbox, claims), PriorityClaimScheduler.defaultWeights(), 5, Duration.ofMinutes(1));
+        for (int i = 0; i < 18; i++) {
+            assertNotNull(scheduler.claimNext());
+        }
+
+        assertEquals(16, scheduler.getClaimed(Event.CREATE_OR_UPDATE_USER_MESSAGE));
+        assertEquals(2, scheduler.getClaimed(Event.CREATE_OR_UPDATE_ACTIVITY_DEFINITION));
+    }
+
+    @Test
+    public void messageArrivingAfterTheLanesDrainedIsClaimedAtOnce() throws Exception {
+        final Map<Event, Integer> mailbox = new EnumMap<>(Event.class);
+        final List<Event> claims = new ArrayList<>();
+
+        final PriorityClaimScheduler scheduler = new PriorityClaimScheduler(mailboxClient(mailbox, claims), PriorityClaimScheduler.defaultWeights(), 50, Duration.ofMinutes(1));
+        assertNull(scheduler.claimNext());
+
+        // within the probe interval
+        mailbox.put(Event.CREATE_OR_UPDATE_USER_MESSAGE, 2);
+        assertNotNull(scheduler.claimNext());
+        assertEquals(1, scheduler.getClaimed(Event.CREATE_OR_UPDATE_USER_MESSAGE));
+
+        // the lane of the message is probed again on the next claim
+        assertNotNull(scheduler.claimNext());
+        assertEquals(Arrays.asList(Event.CREATE_OR_UPDATE_USER_MESSAGE, Event.CREATE_OR_UPDATE_USER_MESSAGE), claims);
+    }
+
+    @Test
+    public void patientScopedProbeFiltersOnThePatient() throws Exception {
+        final Map<Event, Integer> mailbox = new EnumMap<>(Event.class);
+        mailbox.put(Event.CREATE_OR_UPDATE_USER_MESSAGE, 3);
+        final List<Event> claims = new ArrayList<>();
+        final List<String> probedPatients = new ArrayList<>();
+        final KoppeltaalClient client = new KoppeltaalClient("https://localhost", "user", "password", Format.XML) {
+            @Override
+            public KoppeltaalBundle getMessageHeaderSummary(Event event, ProcessingStatus status, Integer count, OAuthTokenDetails tokenDetails) {
+                throw new AssertionError("The summary counts the messages of all patients");
+            }
+
+            @Override
+            public KoppeltaalBundle getMessageHeaders(GetMessageParameters parameters) {
+                probedPatients.add(parameters.getPatientUrl());
+                // one of the three is for the patient
+                return bundle(parameters.getEvent() == Event.CREATE_OR_UPDATE_USER_MESSAGE ? 1 : 0, parameters.getEvent());
+            }
+
+            @Override
+            public KoppeltaalBundle getNextNewAndClaim(String patientUrl, Event event) {
+                claims.add(event);
+                return bundle(claims.size() == 1 ? 1 : 0, event);
+            }
+        };
+
+        final PriorityClaimScheduler scheduler = new PriorityClaimScheduler(client, "Patient/1", PriorityClaimScheduler.defaultWeights(), 50, Duration.ofMinutes(1));
+        assertNotNull(scheduler.claimNext());
+
+        assertEquals(1, scheduler.getClaimed(Event.CREATE_OR_UPDATE_USER_MESSAGE));
+        assertEquals(0, scheduler.getBacklog(Event.CREATE_OR_UPDATE_USER_MESSAGE));
+        assertTrue(probedPatients.stream().allMatch("Patient/1"::equals));
+    }
+
+    private static KoppeltaalClient mailboxClient(Map<Event, Integer> mailbox, List<Event> claims) {
+        return new KoppeltaalClient("https://localhost", "user", "password", Format.XML) {
+            @Override
+            public KoppeltaalBundle getMessageHeaderSummary(Event event, ProcessingStatus status, Integer count, OAuthTokenDetails tokenDetails) {
+                return bundle(Math.min(mailbox.getOrDefault(event, 0), count), event);
+            }
+
+            @Override
+            public KoppeltaalBundle getNextNewAndClaim(String patientUrl, Event event) {
+                final int size = mailbox.getOrDefault(event, 0);
+                if (size == 0) {
+                    return bundle(0, event);
+                }
+                mailbox.put(event, size - 1);
+                claims.add(event);
+                return bundle(1, event);
+            }
+
+            @Override
+            public KoppeltaalBundle getNextNewAndClaim() {
+                for (Event event : mailbox.keySet()) {
+                    if (mailbox.get(event) > 0) {
+                        return getNextNewAndClaim(null, event);
+                    }
+                }
+                return bundle(0, null);
+            }
+        };
+    }
+
+    private static KoppeltaalBundle bundle(int entries, Event event) {
+        final AtomFeed feed = new AtomFeed();
+        for (int i = 0; i < entries; i++) {
+            final MessageHeader messageHeader = new MessageHeader();
+            messageHeader.setEvent(new Coding().setCodeSimple(event.toString()));
+            final AtomEntry<MessageHeader> entry = new AtomEntry<>();
+            entry.setResource(messageHeader);
+            feed.getEntryList().add(entry);
+        }
+        return new KoppeltaalBundle(feed);
+    }
+}
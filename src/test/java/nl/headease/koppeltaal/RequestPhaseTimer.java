@@ -0,0 +1,419 @@
+package nl.headease.koppeltaal;
+
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.util.StreamingContent;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Splits the time of every request of an {@link ExtendedKoppeltaalClient} into phases, to tell whether a slow call was
+ * spent in the network, at the server or in our own composing and parsing. Register it with
+ * {@link ExtendedKoppeltaalClient.Builder#phaseTimer(RequestPhaseTimer)}.
+ * <p>
+ * The phases are recorded per {@link ClientOperation} in {@link LatencyHistograms}, and committed as a
+ * {@link RequestPhasesEvent} JFR event per request:
+ * <ul>
+ *     <li>{@link Phase#CONNECT}: DNS and TCP connect of a new connection, only measured for https</li>
+ *     <li>{@link Phase#TLS}: the TLS handshake of a new connection</li>
+ *     <li>{@link Phase#COMPOSE}: composing the request body (the bodies are streamed, see {@link FhirStreamingContent})</li>
+ *     <li>{@link Phase#UPLOAD}: writing the request body to the connection</li>
+ *     <li>{@link Phase#TTFB}: from the request until the response headers, the server time and a round trip</li>
+ *     <li>{@link Phase#DOWNLOAD}: reading the response body from the connection</li>
+ *     <li>{@link Phase#PARSE}: parsing the response and the rest of the response handler</li>
+ * </ul>
+ * Connect and TLS are only seen with the SSL socket factory of {@link #newTransport()} (or {@link #wrap(SSLSocketFactory)}
+ * for a {@link NetHttpTransport} built elsewhere). Without it, and for reused connections, they count as time to first
+ * byte. Getting a connection from the keep-alive pool of {@code HttpURLConnection} is not separated, it takes no
+ * measurable time.
+ */
+public class RequestPhaseTimer implements ClientOperationListener {
+
+    public enum Phase {
+        CONNECT,
+        TLS,
+        COMPOSE,
+        UPLOAD,
+        TTFB,
+        DOWNLOAD,
+        PARSE
+    }
+
+    private final ConcurrentMap<ClientOperation, LatencyHistograms<Phase>> histograms = new ConcurrentHashMap<>();
+    private final ThreadLocal<Timing> current = new ThreadLocal<>();
+
+    /**
+     * @return a {@link NetHttpTransport} (the default transport of the connector) on which connect and TLS are measured
+     */
+    public HttpTransport newTransport() {
+        return new NetHttpTransport.Builder().setSslSocketFactory(wrap(HttpsURLConnection.getDefaultSSLSocketFactory())).build();
+    }
+
+    public HttpTransport wrap(HttpTransport transport) {
+        return new TimingTransport(transport);
+    }
+
+    /**
+     * Marks the end of the TCP connect and the TLS handshake of new connections. The factory does not create
+     * unconnected sockets, so {@code HttpsURLConnection} connects a plain socket first and layers TLS over it.
+     */
+    public SSLSocketFactory wrap(SSLSocketFactory factory) {
+        return new TimingSslSocketFactory(factory);
+    }
+
+    /**
+     * @return the phase histograms of the operation, empty when it was not executed
+     */
+    public LatencyHistograms<Phase> getHistograms(ClientOperation operation) {
+        return histograms.computeIfAbsent(operation, o -> new LatencyHistograms<>());
+    }
+
+    /**
+     * @return a {@link LatencyHistograms#report(long)} per operation
+     */
+    public String report(long elapsedNanos) {
+        final StringBuilder report = new StringBuilder();
+        new TreeMap<>(histograms).forEach((operation, phases) ->
+                report.append(operation).append(System.lineSeparator()).append(phases.report(elapsedNanos)));
+        return report.toString();
+    }
+
+    @Override
+    public void beforeRequest(String domain, ClientOperation operation, HttpRequest request) {
+        current.set(new Timing(domain, operation));
+    }
+
+    @Override
+    public void afterResponse(String domain, ClientOperation operation, HttpRequest request, long durationNanos) {
+        finish(true);
+    }
+
+    @Override
+    public void onError(String domain, ClientOperation operation, HttpRequest request, long durationNanos, IOException exception) {
+        finish(false);
+    }
+
+    private void finish(boolean success) {
+        final Timing timing = current.get();
+        current.remove();
+        if (timing == null) {
+            return;
+        }
+
+        final long end = System.nanoTime();
+        final long parse = timing.executeEnd == 0 ? 0 : Math.max(0, end - timing.executeEnd - timing.download);
+
+        final LatencyHistograms<Phase> phases = getHistograms(timing.operation);
+        final RequestPhasesEvent event = timing.event;
+        event.domain = timing.domain;
+        event.operation = timing.operation.name();
+        event.success = success;
+        event.connect = record(phases, Phase.CONNECT, timing.connect, success);
+        event.tls = record(phases, Phase.TLS, timing.tls, success);
+        event.compose = record(phases, Phase.COMPOSE, timing.compose, success);
+        event.upload = record(phases, Phase.UPLOAD, timing.upload, success);
+        event.ttfb = record(phases, Phase.TTFB, timing.ttfb, success);
+        event.download = record(phases, Phase.DOWNLOAD, timing.download, success);
+        event.parse = record(phases, Phase.PARSE, parse, success);
+        event.commit();
+    }
+
+    private static long record(LatencyHistograms<Phase> phases, Phase phase, long nanos, boolean success) {
+        if (success) {
+            phases.record(phase, nanos);
+        } else {
+            phases.recordError(phase, nanos);
+        }
+        return nanos;
+    }
+
+    /**
+     * The phases of one operation, summed over its exchanges (retries, redirects).
+     */
+    private static class Timing {
+
+        final String domain;
+        final ClientOperation operation;
+        final RequestPhasesEvent event = new RequestPhasesEvent();
+
+        long executeStart;
+        long executeEnd;
+        volatile long handshakeStart;
+        volatile long handshakeEnd;
+        long requestWritten;
+
+        long connect;
+        long tls;
+        long compose;
+        long upload;
+        long ttfb;
+        long download;
+
+        Timing(String domain, ClientOperation operation) {
+            this.domain = domain;
+            this.operation = operation;
+            event.begin();
+        }
+
+        void executed() {
+            executeEnd = System.nanoTime();
+            long requestSent = Math.max(executeStart, requestWritten);
+            if (handshakeStart != 0) {
+                connect += handshakeStart - executeStart;
+                // the handshake listener may not have run yet
+                final long handshaken = handshakeEnd == 0 ? handshakeStart : handshakeEnd;
+                tls += handshaken - handshakeStart;
+                requestSent = Math.max(requestSent, handshaken);
+            }
+            ttfb += Math.max(0, executeEnd - requestSent);
+        }
+    }
+
+    @Name("nl.headease.koppeltaal.RequestPhases")
+    @Label("Koppeltaal Request Phases")
+    @Category({"Koppeltaal", "Client"})
+    @Description("Time of a Koppeltaal client request per phase")
+    static class RequestPhasesEvent extends jdk.jfr.Event {
+
+        @Label("Domain")
+        String domain;
+
+        @Label("Operation")
+        String operation;
+
+        @Label("Success")
+        boolean success;
+
+        @Label("Connect")
+        @Timespan(Timespan.NANOSECONDS)
+        long connect;
+
+        @Label("TLS Handshake")
+        @Timespan(Timespan.NANOSECONDS)
+        long tls;
+
+        @Label("Compose")
+        @Timespan(Timespan.NANOSECONDS)
+        long compose;
+
+        @Label("Upload")
+        @Timespan(Timespan.NANOSECONDS)
+        long upload;
+
+        @Label("Time To First Byte")
+        @Timespan(Timespan.NANOSECONDS)
+        long ttfb;
+
+        @Label("Download")
+        @Timespan(Timespan.NANOSECONDS)
+        long download;
+
+        @Label("Parse")
+        @Timespan(Timespan.NANOSECONDS)
+        long parse;
+    }
+
+    private class TimingTransport extends ForwardingTransport {
+
+        TimingTransport(HttpTransport delegate) {
+            super(delegate);
+        }
+
+        @Override
+        protected LowLevelHttpRequest wrap(LowLevelHttpRequest request, String method, String url) {
+            final Timing timing = current.get();
+            return timing == null ? request : new TimingRequest(request, timing);
+        }
+    }
+
+    private static class TimingRequest extends ForwardingTransport.Request {
+
+        private final Timing timing;
+
+        TimingRequest(LowLevelHttpRequest delegate, Timing timing) {
+            super(delegate);
+            this.timing = timing;
+        }
+
+        @Override
+        protected StreamingContent wrapContent(StreamingContent content) {
+            return out -> {
+                final long start = System.nanoTime();
+                final TimingOutputStream stream = new TimingOutputStream(out);
+                content.writeTo(stream);
+                timing.requestWritten = System.nanoTime();
+                timing.upload += stream.nanos;
+                timing.compose += timing.requestWritten - start - stream.nanos;
+            };
+        }
+
+        @Override
+        public LowLevelHttpResponse execute() throws IOException {
+            timing.executeStart = System.nanoTime();
+            timing.handshakeStart = 0;
+            timing.handshakeEnd = 0;
+            timing.requestWritten = 0;
+            final LowLevelHttpResponse response = super.execute();
+            timing.executed();
+            return new TimingResponse(response, timing);
+        }
+    }
+
+    private static class TimingResponse extends ForwardingTransport.Response {
+
+        private final Timing timing;
+
+        TimingResponse(LowLevelHttpResponse delegate, Timing timing) {
+            super(delegate);
+            this.timing = timing;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            final InputStream content = delegate.getContent();
+            return content == null ? null : new TimingInputStream(content, timing);
+        }
+    }
+
+    /** time spent in the writes of the connection */
+    private static class TimingOutputStream extends FilterOutputStream {
+
+        long nanos;
+
+        TimingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            final long start = System.nanoTime();
+            out.write(b);
+            nanos += System.nanoTime() - start;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            final long start = System.nanoTime();
+            out.write(b, off, len);
+            nanos += System.nanoTime() - start;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            final long start = System.nanoTime();
+            out.flush();
+            nanos += System.nanoTime() - start;
+        }
+    }
+
+    /** time spent in the reads of the connection, the time in between is spent parsing */
+    private static class TimingInputStream extends FilterInputStream {
+
+        private final Timing timing;
+
+        TimingInputStream(InputStream in, Timing timing) {
+            super(in);
+            this.timing = timing;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final long start = System.nanoTime();
+            try {
+                return in.read();
+            } finally {
+                timing.download += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final long start = System.nanoTime();
+            try {
+                return in.read(b, off, len);
+            } finally {
+                timing.download += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            final long start = System.nanoTime();
+            try {
+                return in.skip(n);
+            } finally {
+                timing.download += System.nanoTime() - start;
+            }
+        }
+    }
+
+    private class TimingSslSocketFactory extends SSLSocketFactory {
+
+        private final SSLSocketFactory delegate;
+
+        TimingSslSocketFactory(SSLSocketFactory delegate) {
+            this.delegate = delegate;
+        }
+
+        /**
+         * Called by {@code HttpsURLConnection} after the plain socket connected, the handshake follows.
+         */
+        @Override
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+            final Socket sslSocket = delegate.createSocket(socket, host, port, autoClose);
+            final Timing timing = current.get();
+            if (timing != null && sslSocket instanceof SSLSocket) {
+                timing.handshakeStart = System.nanoTime();
+                ((SSLSocket) sslSocket).addHandshakeCompletedListener(event -> timing.handshakeEnd = System.nanoTime());
+            }
+            return sslSocket;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return delegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return delegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return delegate.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return delegate.createSocket(host, port, localHost, localPort);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return delegate.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            return delegate.createSocket(address, port, localAddress, localPort);
+        }
+    }
+}
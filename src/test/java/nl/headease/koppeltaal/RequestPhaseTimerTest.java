@@ -0,0 +1,80 @@
+package nl.headease.koppeltaal;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RequestPhaseTimerTest {
+
+    private static final GenericUrl URL = new GenericUrl("https://localhost/FHIR/Koppeltaal/Mailbox");
+
+    @Test
+    public void separatesServerTimeFromParseTime() throws Exception {
+        final RequestPhaseTimer timer = new RequestPhaseTimer();
+        final HttpRequest request = timer.wrap(slowServer(50)).createRequestFactory()
+                .buildPostRequest(URL, ByteArrayContent.fromString("application/xml", "<request/>"));
+
+        timer.beforeRequest("default", ClientOperation.POST_MESSAGE, request);
+        final HttpResponse response = request.execute();
+        try {
+            assertEquals("<response/>", response.parseAsString());
+            // a slow parser
+            Thread.sleep(30);
+        } finally {
+            response.disconnect();
+        }
+        timer.afterResponse("default", ClientOperation.POST_MESSAGE, request, 0);
+
+        final LatencyHistograms<RequestPhaseTimer.Phase> phases = timer.getHistograms(ClientOperation.POST_MESSAGE);
+        for (RequestPhaseTimer.Phase phase : RequestPhaseTimer.Phase.values()) {
+            assertEquals(phase.name(), 1, phases.snapshot(phase).getTotalCount());
+        }
+        assertTrue(phases.snapshot(RequestPhaseTimer.Phase.TTFB).getMaxValue() >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertTrue(phases.snapshot(RequestPhaseTimer.Phase.PARSE).getMaxValue() >= TimeUnit.MILLISECONDS.toNanos(30));
+        assertTrue(phases.snapshot(RequestPhaseTimer.Phase.DOWNLOAD).getMaxValue() < TimeUnit.MILLISECONDS.toNanos(30));
+        // plain transport, no new TLS connection seen
+        assertEquals(0, phases.snapshot(RequestPhaseTimer.Phase.TLS).getMaxValue());
+    }
+
+    @Test
+    public void requestsOutsideAnOperationAreNotTimed() throws Exception {
+        final RequestPhaseTimer timer = new RequestPhaseTimer();
+
+        timer.wrap(slowServer(0)).createRequestFactory().buildGetRequest(URL).execute().disconnect();
+        timer.afterResponse("default", ClientOperation.OTHER, null, 0);
+
+        assertEquals(0, timer.getHistograms(ClientOperation.OTHER).snapshot(RequestPhaseTimer.Phase.TTFB).getTotalCount());
+    }
+
+    private static MockHttpTransport slowServer(long millis) {
+        return new MockHttpTransport() {
+            @Override
+            public LowLevelHttpRequest buildRequest(String method, String url) {
+                return new MockLowLevelHttpRequest(url) {
+                    @Override
+                    public LowLevelHttpResponse execute() throws IOException {
+                        getContentAsString();
+                        try {
+                            Thread.sleep(millis);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        return new MockLowLevelHttpResponse().setContent("<response/>").setContentType("application/xml");
+                    }
+                };
+            }
+        };
+    }
+}
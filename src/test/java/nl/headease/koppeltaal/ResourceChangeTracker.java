@@ -0,0 +1,229 @@
+package nl.headease.koppeltaal;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Content hash per resource url of the resources that were sent, to leave unchanged resources out of the next message
+ * and to skip the message when nothing changed.
+ * <p>
+ * The hash is computed from the params objects the bundles are built from ({@code PatientParams},
+ * {@code CarePlanParams}, ...), by walking their fields. Versions in references ({@code /_history/}) are ignored, so
+ * a new version of an unchanged resource is not a change.
+ * <p>
+ * Usage, one {@link Delta} per message:
+ * <pre>
+ * ResourceChangeTracker.Delta delta = tracker.newDelta();
+ * boolean patientChanged = delta.include(patient.getUrl(), patient);
+ * ...
+ * if (!delta.isEmpty()) {
+ *     client.postMessage(bundle);
+ *     delta.commit();
+ * }
+ * </pre>
+ */
+public class ResourceChangeTracker {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /** guards against deep (cyclic) object graphs, params objects are shallow */
+    private static final int MAX_DEPTH = 16;
+
+    private static final ClassValue<MethodHandle[]> GETTERS = new ClassValue<MethodHandle[]>() {
+        @Override
+        protected MethodHandle[] computeValue(Class<?> type) {
+            return getters(type);
+        }
+    };
+
+    private final ConcurrentMap<String, Long> hashes = new ConcurrentHashMap<>();
+
+    public Delta newDelta() {
+        return new Delta();
+    }
+
+    /**
+     * @return true when the content differs from the content last committed for the resource
+     */
+    public boolean isChanged(String reference, Object... content) {
+        final Long hash = hashes.get(ResourceVersionRegistry.withoutVersion(reference));
+        return hash == null || hash != hash(content);
+    }
+
+    /**
+     * Forgets the resource, so it is included in the next message, e.g. when the server rejected the message.
+     */
+    public void forget(String reference) {
+        hashes.remove(ResourceVersionRegistry.withoutVersion(reference));
+    }
+
+    public int size() {
+        return hashes.size();
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the values of the objects and the objects they refer to.
+     */
+    public static long hash(Object... content) {
+        return hash(FNV_OFFSET_BASIS, content, 0);
+    }
+
+    private static long hash(long hash, Object value, int depth) {
+        if (value == null) {
+            return mix(hash, 0);
+        }
+        if (depth > MAX_DEPTH) {
+            throw new IllegalArgumentException("Object graph too deep to hash: " + value.getClass().getName());
+        }
+
+        if (value instanceof String) {
+            return mix(hash, ResourceVersionRegistry.withoutVersion((String) value));
+        }
+        if (value instanceof Number || value instanceof Boolean || value instanceof Character) {
+            return mix(hash, value.toString());
+        }
+        if (value instanceof Enum) {
+            return mix(hash, ((Enum<?>) value).name());
+        }
+        if (value instanceof Date) {
+            return mix(hash, ((Date) value).getTime());
+        }
+        if (value instanceof Collection) {
+            final Collection<?> collection = (Collection<?>) value;
+            hash = mix(hash, collection.size());
+            for (Object element : collection) {
+                hash = hash(hash, element, depth + 1);
+            }
+            return hash;
+        }
+        if (value instanceof Map) {
+            // order independent
+            long entries = 0;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                entries += hash(hash(FNV_OFFSET_BASIS, entry.getKey(), depth + 1), entry.getValue(), depth + 1);
+            }
+            return mix(hash, entries);
+        }
+        if (value.getClass().isArray()) {
+            final int length = Array.getLength(value);
+            hash = mix(hash, length);
+            for (int i = 0; i < length; i++) {
+                hash = hash(hash, Array.get(value, i), depth + 1);
+            }
+            return hash;
+        }
+        if (value.getClass().getName().startsWith("java.")) {
+            // not accessible by reflection
+            return mix(hash, value.toString());
+        }
+
+        hash = mix(hash, value.getClass().getName());
+        for (MethodHandle getter : GETTERS.get(value.getClass())) {
+            final Object fieldValue;
+            try {
+                fieldValue = getter.invokeExact(value);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException("Cannot read field of: " + value.getClass().getName(), e);
+            }
+            hash = hash(hash, fieldValue, depth + 1);
+        }
+        return hash;
+    }
+
+    private static long mix(long hash, String value) {
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+        }
+        // terminate, so "ab" + "c" differs from "a" + "bc"
+        return (hash ^ 0xff) * FNV_PRIME;
+    }
+
+    private static long mix(long hash, long value) {
+        for (int i = 0; i < 8; i++) {
+            hash = (hash ^ ((value >>> (i * 8)) & 0xff)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /** instance fields of the class and its superclasses, sorted by name for a stable hash */
+    private static MethodHandle[] getters(Class<?> type) {
+        final List<Field> fields = new ArrayList<>();
+        for (Class<?> current = type; current != null && current != Object.class; current = current.getSuperclass()) {
+            for (Field field : current.getDeclaredFields()) {
+                final int modifiers = field.getModifiers();
+                if (!Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers) && !field.isSynthetic()) {
+                    fields.add(field);
+                }
+            }
+        }
+        fields.sort(Comparator.comparing(Field::getName).thenComparing(field -> field.getDeclaringClass().getName()));
+
+        final MethodHandle[] getters = new MethodHandle[fields.size()];
+        for (int i = 0; i < getters.length; i++) {
+            final Field field = fields.get(i);
+            try {
+                field.setAccessible(true);
+                getters[i] = MethodHandles.lookup().unreflectGetter(field).asType(MethodType.methodType(Object.class, Object.class));
+            } catch (IllegalAccessException | RuntimeException e) {
+                throw new IllegalStateException("Cannot access field: " + field, e);
+            }
+        }
+        return getters;
+    }
+
+    /**
+     * The resources of one message. Not thread safe.
+     */
+    public class Delta {
+
+        private final Map<String, Long> changes = new LinkedHashMap<>();
+
+        /**
+         * @param reference url of the resource
+         * @param content   the params (and other objects) the resource is built from
+         * @return true when the resource changed and has to be included in the message
+         */
+        public boolean include(String reference, Object... content) {
+            final String resourceUrl = ResourceVersionRegistry.withoutVersion(reference);
+            final long hash = hash(content);
+            final Long previous = hashes.get(resourceUrl);
+            if (previous != null && previous == hash) {
+                return false;
+            }
+            changes.put(resourceUrl, hash);
+            return true;
+        }
+
+        /**
+         * @return true when no resource changed, the message can be skipped
+         */
+        public boolean isEmpty() {
+            return changes.isEmpty();
+        }
+
+        /**
+         * @return the urls of the changed resources
+         */
+        public Set<String> getChanged() {
+            return Collections.unmodifiableSet(changes.keySet());
+        }
+
+        /**
+         * Remembers the content of the changed resources, call after the message was accepted by the server.
+         */
+        public void commit() {
+            hashes.putAll(changes);
+        }
+    }
+}
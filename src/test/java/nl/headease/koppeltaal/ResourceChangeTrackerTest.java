@@ -0,0 +1,118 @@
+package nl.headease.koppeltaal;
+
+import nl.koppeltaal.api.KoppeltaalBundle;
+import nl.koppeltaal.api.model.*;
+import nl.koppeltaal.api.model.enums.CarePlanParticipantRole;
+import org.hl7.fhir.instance.model.AtomEntry;
+import org.hl7.fhir.instance.model.CarePlan;
+import org.hl7.fhir.instance.model.DateAndTime;
+import org.hl7.fhir.instance.model.Resource;
+import org.hl7.fhir.instance.model.ResourceType;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class ResourceChangeTrackerTest {
+
+    private static final String BASE_URL = "http://ggz.koppeltaal.nl/fhir/Koppeltaal";
+
+    @Test
+    public void includesOnlyChangedResources() {
+        final ResourceChangeTracker tracker = new ResourceChangeTracker();
+        final PatientParams patient = new PatientParams("patient", BASE_URL, "", new NameParams("Claes", "de Vries"));
+        final PractitionerParams practitioner = new PractitionerParams("practitioner", BASE_URL, "", new NameParams("John", "Doe"));
+
+        final ResourceChangeTracker.Delta first = tracker.newDelta();
+        assertTrue(first.include(patient.getUrl(), patient));
+        assertTrue(first.include(practitioner.getUrl(), practitioner));
+        first.commit();
+
+        final ResourceChangeTracker.Delta second = tracker.newDelta();
+        assertFalse(second.include(patient.getUrl(), new PatientParams("patient", BASE_URL, "", new NameParams("Claes", "de Vries"))));
+        assertTrue(second.include(practitioner.getUrl(), new PractitionerParams("practitioner", BASE_URL, "", new NameParams("Jane", "Doe"))));
+        assertEquals(Collections.singleton(practitioner.getUrl()), second.getChanged());
+    }
+
+    @Test
+    public void emptyWhenNothingChanged() {
+        final ResourceChangeTracker tracker = new ResourceChangeTracker();
+        final PatientParams patient = new PatientParams("patient", BASE_URL, "", new NameParams("Claes", "de Vries"));
+
+        tracker.newDelta().include(patient.getUrl(), patient);
+        // not committed, so still changed
+        final ResourceChangeTracker.Delta delta = tracker.newDelta();
+        assertTrue(delta.include(patient.getUrl(), patient));
+        delta.commit();
+
+        final ResourceChangeTracker.Delta unchanged = tracker.newDelta();
+        assertFalse(unchanged.include(patient.getUrl(), patient));
+        assertTrue(unchanged.isEmpty());
+        assertFalse(tracker.isChanged(patient.getUrl(), patient));
+
+        tracker.forget(patient.getUrl());
+        assertTrue(tracker.isChanged(patient.getUrl(), patient));
+    }
+
+    @Test
+    public void carePlanDeltaLeavesOutUnchangedResources() {
+        final ResourceChangeTracker tracker = new ResourceChangeTracker();
+        final PatientParams patient = new PatientParams("patient", BASE_URL, "", new NameParams("Claes", "de Vries"));
+        final PractitionerParams practitioner = new PractitionerParams("practitioner", BASE_URL, "", new NameParams("John", "Doe"));
+        final RelatedPersonParams relatedPerson = new RelatedPersonParams("related", BASE_URL, "", patient.getUrl(), new NameParams("Related", "Person"));
+        final CarePlanParams carePlan = new CarePlanParams("careplan", BASE_URL, "", CarePlan.CarePlanStatus.active);
+        final ActivityParams activity = new ActivityParams("activity", "definition", "Available", new DateAndTime(new Date(0)),
+                Collections.singletonList(new ParticipantParams(practitioner.getUrl(), null, CarePlanParticipantRole.CAREGIVER)), null);
+
+        final ResourceChangeTracker.Delta first = tracker.newDelta();
+        final Optional<KoppeltaalBundle> complete = SampleBundles.newCreateOrUpdateCarePlanDelta("1", "domain", first, carePlan, activity, patient, practitioner, relatedPerson);
+        assertTrue(complete.isPresent());
+        assertTrue(resourceTypes(complete.get()).containsAll(Arrays.asList(ResourceType.CarePlan, ResourceType.Patient, ResourceType.Practitioner, ResourceType.RelatedPerson)));
+        first.commit();
+
+        // only the practitioner changed, the CarePlan is the focus and always included
+        final PractitionerParams renamed = new PractitionerParams("practitioner", BASE_URL, "", new NameParams("Jane", "Doe"));
+        final ResourceChangeTracker.Delta second = tracker.newDelta();
+        final Optional<KoppeltaalBundle> delta = SampleBundles.newCreateOrUpdateCarePlanDelta("2", "domain", second, carePlan, activity, patient, renamed, relatedPerson);
+        assertTrue(delta.isPresent());
+        final Set<ResourceType> types = resourceTypes(delta.get());
+        assertTrue(types.contains(ResourceType.CarePlan));
+        assertTrue(types.contains(ResourceType.Practitioner));
+        assertFalse(types.contains(ResourceType.Patient));
+        assertFalse(types.contains(ResourceType.RelatedPerson));
+        second.commit();
+
+        final ResourceChangeTracker.Delta unchanged = tracker.newDelta();
+        assertFalse(SampleBundles.newCreateOrUpdateCarePlanDelta("3", "domain", unchanged, carePlan, activity, patient, renamed, relatedPerson).isPresent());
+    }
+
+    @Test
+    public void ignoresVersions() {
+        final PatientParams patient = new PatientParams("patient", BASE_URL, "1", new NameParams("Claes", "de Vries"));
+        final PatientParams newVersion = new PatientParams("patient", BASE_URL, "2", new NameParams("Claes", "de Vries"));
+
+        assertEquals(ResourceChangeTracker.hash(patient), ResourceChangeTracker.hash(newVersion));
+
+        final ResourceChangeTracker tracker = new ResourceChangeTracker();
+        final ResourceChangeTracker.Delta delta = tracker.newDelta();
+        delta.include(patient.getUrl(), patient);
+        delta.commit();
+        assertFalse(tracker.isChanged(newVersion.getUrl(), newVersion));
+    }
+
+    private static Set<ResourceType> resourceTypes(KoppeltaalBundle bundle) {
+        final Set<ResourceType> types = EnumSet.noneOf(ResourceType.class);
+        for (AtomEntry<? extends Resource> entry : bundle.getFeed().getEntryList()) {
+            types.add(entry.getResource().getResourceType());
+        }
+        return types;
+    }
+
+    @Test
+    public void hashDependsOnAllValues() {
+        assertNotEquals(ResourceChangeTracker.hash("ab", "c"), ResourceChangeTracker.hash("a", "bc"));
+        assertNotEquals(ResourceChangeTracker.hash(new NameParams("John", "Doe")), ResourceChangeTracker.hash(new NameParams("Doe", "John")));
+        assertNotEquals(ResourceChangeTracker.hash((Object) null), ResourceChangeTracker.hash(""));
+    }
+}
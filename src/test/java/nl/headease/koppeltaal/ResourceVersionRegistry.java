@@ -0,0 +1,169 @@
+package nl.headease.koppeltaal;
+
+import nl.koppeltaal.api.ResourceURL;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.AtomEntry;
+import org.hl7.fhir.instance.model.AtomFeed;
+import org.hl7.fhir.instance.model.MessageHeader;
+import org.hl7.fhir.instance.model.Resource;
+import org.hl7.fhir.instance.model.ResourceReference;
+import org.hl7.fhir.instance.model.ResourceType;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static nl.koppeltaal.api.ResourceURL.RESOURCE_VERSION_SEPARATOR;
+
+/**
+ * Latest known version of resources, by resource url without the version. Filled from the versioned references
+ * ({@code .../_history/<version>}) the server returns, e.g. in the response of a posted message or in a claimed
+ * message, so updates do not have to fetch a resource to know its version.
+ * <p>
+ * Used by {@link ExtendedKoppeltaalClient} with {@link ExtendedKoppeltaalClient.Builder#versionRegistry}, and by
+ * message builders with {@link #url(String, ResourceType, String)} and {@link #getVersion(String, ResourceType, String)}.
+ */
+public class ResourceVersionRegistry {
+
+    /** the version of a new resource, see {@link ResourceURL#create(String, ResourceType, String, String)} */
+    private static final String NO_VERSION = "";
+
+    private final ConcurrentMap<String, String> versions = new ConcurrentHashMap<>();
+
+    /**
+     * Records the version of a versioned reference, unless a newer version is known. References without a version are
+     * ignored.
+     */
+    public void record(String versionedReference) {
+        final int separator = StringUtils.indexOf(versionedReference, RESOURCE_VERSION_SEPARATOR);
+        if (separator < 0) {
+            return;
+        }
+
+        final String version = versionedReference.substring(separator + RESOURCE_VERSION_SEPARATOR.length());
+        if (!version.isEmpty()) {
+            versions.merge(versionedReference.substring(0, separator), version, ResourceVersionRegistry::newest);
+        }
+    }
+
+    /**
+     * Records the versions in a feed: the self links and ids of the entries and the references in message headers.
+     */
+    public void recordAll(AtomFeed feed) {
+        for (AtomEntry<? extends Resource> entry : feed.getEntryList()) {
+            final Map<String, String> links = entry.getLinks();
+            if (links != null) {
+                record(links.get("self"));
+            }
+            record(entry.getId());
+
+            if (entry.getResource() instanceof MessageHeader) {
+                for (ResourceReference reference : ((MessageHeader) entry.getResource()).getData()) {
+                    record(reference.getReferenceSimple());
+                }
+            }
+        }
+    }
+
+    public Optional<String> getVersion(String reference) {
+        return Optional.ofNullable(versions.get(withoutVersion(reference)));
+    }
+
+    /**
+     * @return the known version, or the version of a new resource
+     */
+    public String getVersion(String baseUrl, ResourceType resourceType, String id) {
+        return getVersion(ResourceURL.create(baseUrl, resourceType, id)).orElse(NO_VERSION);
+    }
+
+    /**
+     * @return the resource url with the known version
+     */
+    public String url(String baseUrl, ResourceType resourceType, String id) {
+        return ResourceURL.create(baseUrl, resourceType, id, getVersion(baseUrl, resourceType, id));
+    }
+
+    /**
+     * @return the reference with the known version, unchanged when no version is known
+     */
+    public String versioned(String reference) {
+        final String resourceUrl = withoutVersion(reference);
+        final String version = versions.get(resourceUrl);
+        return version == null ? reference : ResourceURL.create(resourceUrl, version);
+    }
+
+    /**
+     * Checks that the version of a versioned reference is the latest known version, without a request to the server.
+     *
+     * @throws ConflictException when a newer version is known
+     */
+    public void checkLatest(String versionedReference) throws ConflictException {
+        final int separator = StringUtils.indexOf(versionedReference, RESOURCE_VERSION_SEPARATOR);
+        if (separator < 0) {
+            return;
+        }
+
+        final String resourceUrl = versionedReference.substring(0, separator);
+        final String version = versionedReference.substring(separator + RESOURCE_VERSION_SEPARATOR.length());
+        final String latest = versions.get(resourceUrl);
+        if (latest != null && !latest.equals(version) && newest(latest, version).equals(latest)) {
+            throw new ConflictException(resourceUrl, version, latest);
+        }
+    }
+
+    /**
+     * Forgets the version, e.g. after an update of which the new version is unknown.
+     */
+    public void remove(String reference) {
+        versions.remove(withoutVersion(reference));
+    }
+
+    public int size() {
+        return versions.size();
+    }
+
+    static String withoutVersion(String reference) {
+        final int separator = StringUtils.indexOf(reference, RESOURCE_VERSION_SEPARATOR);
+        return separator < 0 ? reference : reference.substring(0, separator);
+    }
+
+    /** versions are numbers on the Koppeltaal server, other versions are assumed to be newer */
+    private static String newest(String current, String candidate) {
+        try {
+            return Long.parseLong(candidate) >= Long.parseLong(current) ? candidate : current;
+        } catch (NumberFormatException e) {
+            return candidate;
+        }
+    }
+
+    /**
+     * An update of a version that is not the latest known version.
+     */
+    public static class ConflictException extends IOException {
+
+        private final String resourceUrl;
+        private final String version;
+        private final String latestVersion;
+
+        ConflictException(String resourceUrl, String version, String latestVersion) {
+            super("Version " + version + " of " + resourceUrl + " is not the latest version " + latestVersion);
+            this.resourceUrl = resourceUrl;
+            this.version = version;
+            this.latestVersion = latestVersion;
+        }
+
+        public String getResourceUrl() {
+            return resourceUrl;
+        }
+
+        public String getVersion() {
+            return version;
+        }
+
+        public String getLatestVersion() {
+            return latestVersion;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package nl.headease.koppeltaal;
+
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import nl.koppeltaal.api.Format;
+import org.hl7.fhir.instance.model.ResourceType;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ResourceVersionRegistryTest {
+
+    private static final String BASE_URL = "http://ggz.koppeltaal.nl/fhir/Koppeltaal";
+    private static final String PATIENT_URL = BASE_URL + "/Patient/1";
+
+    @Test
+    public void keepsTheLatestVersion() {
+        final ResourceVersionRegistry registry = new ResourceVersionRegistry();
+
+        registry.record(PATIENT_URL + "/_history/2");
+        registry.record(PATIENT_URL + "/_history/1");
+        registry.record(PATIENT_URL);
+
+        assertEquals("2", registry.getVersion(PATIENT_URL).orElse(null));
+        assertEquals("2", registry.getVersion(PATIENT_URL + "/_history/1").orElse(null));
+        assertEquals("2", registry.getVersion(BASE_URL, ResourceType.Patient, "1"));
+        assertEquals(PATIENT_URL + "/_history/2", registry.url(BASE_URL, ResourceType.Patient, "1"));
+        assertEquals(PATIENT_URL + "/_history/2", registry.versioned(PATIENT_URL));
+    }
+
+    @Test
+    public void unknownResourcesHaveNoVersion() {
+        final ResourceVersionRegistry registry = new ResourceVersionRegistry();
+
+        assertFalse(registry.getVersion(PATIENT_URL).isPresent());
+        assertEquals("", registry.getVersion(BASE_URL, ResourceType.Patient, "1"));
+        assertEquals(PATIENT_URL, registry.url(BASE_URL, ResourceType.Patient, "1"));
+        assertEquals(PATIENT_URL, registry.versioned(PATIENT_URL));
+    }
+
+    @Test
+    public void detectsUpdatesOfOlderVersions() throws Exception {
+        final ResourceVersionRegistry registry = new ResourceVersionRegistry();
+        registry.record(PATIENT_URL + "/_history/3");
+
+        registry.checkLatest(PATIENT_URL + "/_history/3");
+        registry.checkLatest(PATIENT_URL + "/_history/4");
+        registry.checkLatest(PATIENT_URL);
+
+        try {
+            registry.checkLatest(PATIENT_URL + "/_history/2");
+            fail("Expected a conflict");
+        } catch (ResourceVersionRegistry.ConflictException e) {
+            assertEquals(PATIENT_URL, e.getResourceUrl());
+            assertEquals("2", e.getVersion());
+            assertEquals("3", e.getLatestVersion());
+        }
+    }
+
+    @Test
+    public void forgetsVersions() {
+        final ResourceVersionRegistry registry = new ResourceVersionRegistry();
+        registry.record(PATIENT_URL + "/_history/3");
+
+        registry.remove(PATIENT_URL + "/_history/3");
+
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void clientRecordsVersionsOfClaimedMessages() throws Exception {
+        final String claimResponse = "{\"resourceType\":\"Bundle\",\"entry\":[{\"id\":\"" + PATIENT_URL + "\","
+                + "\"link\":[{\"rel\":\"self\",\"href\":\"" + PATIENT_URL + "/_history/7\"}]}]}";
+        final MockHttpTransport server = new MockHttpTransport.Builder()
+                .setLowLevelHttpResponse(new MockLowLevelHttpResponse().setContent(claimResponse).setContentType(Format.JSON.getMediaType()))
+                .build();
+        final ResourceVersionRegistry registry = new ResourceVersionRegistry();
+
+        try (ExtendedKoppeltaalClient client = ExtendedKoppeltaalClient.builder("https://localhost", "user", "password")
+                .format(Format.JSON)
+                .jsonFeedCodec(true)
+                .transport(server)
+                .versionRegistry(registry)
+                .build()) {
+            client.getNextNewAndClaim();
+        }
+
+        assertEquals("7", registry.getVersion(PATIENT_URL).orElse(null));
+    }
+}
@@ -0,0 +1,189 @@
+package nl.headease.koppeltaal;
+
+import nl.koppeltaal.api.Event;
+import nl.koppeltaal.api.KoppeltaalBundle;
+import nl.koppeltaal.api.KoppeltaalBundleBuilder;
+import nl.koppeltaal.api.ResourceURL;
+import nl.koppeltaal.api.model.*;
+import nl.koppeltaal.api.model.enums.CarePlanActivityStatus;
+import nl.koppeltaal.api.model.enums.CarePlanParticipantRole;
+import nl.koppeltaal.api.model.enums.CareTeamStatus;
+import nl.koppeltaal.api.model.enums.MessageKind;
+import org.hl7.fhir.instance.model.CarePlan;
+import org.hl7.fhir.instance.model.DateAndTime;
+import org.hl7.fhir.instance.model.Identifier;
+import org.hl7.fhir.instance.model.Period;
+import org.hl7.fhir.instance.model.ResourceType;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import static nl.headease.koppeltaal.BaseTest.*;
+
+/**
+ * The message bundle shapes used by the integration tests, shared so that other tooling (load generation,
+ * benchmarks) posts exactly the same kind of traffic as the tests do.
+ */
+public final class SampleBundles {
+
+    private SampleBundles() {
+    }
+
+    /**
+     * CarePlan with a goal, an activity and a participant, together with its Patient, Practitioner and RelatedPerson.
+     */
+    public static KoppeltaalBundle newCreateOrUpdateCarePlanBundle(String messageId, String domain) {
+        PatientParams patient = newPatient();
+        CarePlanParams carePlan = newCarePlan();
+
+        List<ParticipantParams> participants = new ArrayList<>();
+        participants.add(new ParticipantParams("participant", null, CarePlanParticipantRole.CLIENT));
+
+        ActivityParams activity = new ActivityParams(UUID.randomUUID().toString(), UUID.randomUUID().toString(),
+                "Active", new DateAndTime(Calendar.getInstance()), participants, null);
+
+        PractitionerParams practitioner = newPractitioner("John", "Doe");
+
+        RelatedPersonParams relatedPerson = new RelatedPersonParams(UUID.randomUUID().toString(), BASE_URL, NEW_RESOURCE_VERSION,
+                patient.getUrl(), new NameParams("Related", "Person"));
+
+        return new KoppeltaalBundleBuilder(messageId, domain, APP_SOURCE_SOFTWARE, APP_SOURCE_ENDPOINT, APP_SOURCE_NAME, APP_SOURCE_VERSION, Event.CREATE_OR_UPDATE_CARE_PLAN, patient.getUrl(),
+                carePlan.getUrl())
+                .addCarePlan(carePlan).addGoal("1", "Activity goal", null)
+                .addActivity(activity)
+                .addParticipant("Assigner", practitioner.getUrl()).setPatientReference(patient.getUrl())
+                .and()
+                .addPatient(patient)
+                .and()
+                .addPractitioner(practitioner)
+                .addRelatedPerson(relatedPerson)
+                .build();
+    }
+
+    /**
+     * CarePlan with the given activity and a CareTeam identified by {@code careTeamIdentifier}.
+     */
+    public static KoppeltaalBundle newCreateOrUpdateCarePlanBundle(String messageId, String domain, ActivityParams activity, Identifier careTeamIdentifier) {
+        PatientParams patient = newPatient();
+        CarePlanParams carePlan = newCarePlan();
+
+        PractitionerParams practitioner = newPractitioner("John", "Doe");
+
+        CareTeamParams careTeam = new CareTeamParams(careTeamIdentifier.getValueSimple(), BASE_URL, CareTeamStatus.ACTIVE, "Team Awesome", newPeriod(), "", patient.getUrl(), UUID.randomUUID().toString());
+
+        return new KoppeltaalBundleBuilder(messageId, domain, APP_SOURCE_SOFTWARE, APP_SOURCE_ENDPOINT, APP_SOURCE_NAME, APP_SOURCE_VERSION, Event.CREATE_OR_UPDATE_CARE_PLAN, patient.getUrl(),
+                carePlan.getUrl())
+                .addCarePlan(carePlan)
+                .addGoal("1", "Activity goal", null)
+                .addActivity(activity)
+                .addParticipant("Assigner", practitioner.getUrl())
+                .setPatientReference(patient.getUrl())
+                .and()
+                .addPatient(patient)
+                .and()
+                .addPractitioner(practitioner)
+                .addCareTeam(careTeam)
+                .and()
+                .build();
+    }
+
+    /**
+     * CarePlan with the given activity, with only the Patient, Practitioner and RelatedPerson that changed since the
+     * last committed {@link ResourceChangeTracker.Delta}. The CarePlan, the focus of the message, is included when
+     * anything changed.
+     *
+     * @return empty when nothing changed
+     */
+    public static Optional<KoppeltaalBundle> newCreateOrUpdateCarePlanDelta(String messageId, String domain, ResourceChangeTracker.Delta delta,
+                                                                            CarePlanParams carePlan, ActivityParams activity, PatientParams patient,
+                                                                            PractitionerParams practitioner, RelatedPersonParams relatedPerson) {
+        delta.include(carePlan.getUrl(), carePlan, activity, practitioner.getUrl(), patient.getUrl());
+        final boolean patientChanged = delta.include(patient.getUrl(), patient);
+        final boolean practitionerChanged = delta.include(practitioner.getUrl(), practitioner);
+        final boolean relatedPersonChanged = delta.include(relatedPerson.getUrl(), relatedPerson);
+        if (delta.isEmpty()) {
+            return Optional.empty();
+        }
+
+        final KoppeltaalBundleBuilder builder = new KoppeltaalBundleBuilder(messageId, domain, APP_SOURCE_SOFTWARE, APP_SOURCE_ENDPOINT, APP_SOURCE_NAME, APP_SOURCE_VERSION,
+                Event.CREATE_OR_UPDATE_CARE_PLAN, patient.getUrl(), carePlan.getUrl())
+                .addCarePlan(carePlan).addGoal("1", "Activity goal", null)
+                .addActivity(activity)
+                .addParticipant("Assigner", practitioner.getUrl()).setPatientReference(patient.getUrl())
+                .and();
+        if (patientChanged) {
+            builder.addPatient(patient);
+        }
+        if (practitionerChanged) {
+            builder.addPractitioner(practitioner);
+        }
+        if (relatedPersonChanged) {
+            builder.addRelatedPerson(relatedPerson);
+        }
+        return Optional.of(builder.build());
+    }
+
+    /**
+     * CarePlanActivityStatus for a random activity and patient, status InProgress.
+     */
+    public static KoppeltaalBundle newUpdateCarePlanActivityStatus(String messageId, String domain) {
+        String patientUrl = ResourceURL.create(BASE_URL, ResourceType.Patient, UUID.randomUUID().toString(), NEW_RESOURCE_VERSION);
+        ActivityStatusParams activityStatus = new ActivityStatusParams(UUID.randomUUID().toString(), UUID.randomUUID().toString(), BASE_URL, NEW_RESOURCE_VERSION,
+                CarePlanActivityStatus.InProgress);
+
+        return new KoppeltaalBundleBuilder(messageId, domain, APP_SOURCE_SOFTWARE, APP_SOURCE_ENDPOINT, APP_SOURCE_NAME, APP_SOURCE_VERSION, Event.UPDATE_CARE_PLAN_ACTIVITY_STATUS, patientUrl,
+                activityStatus.getUrl()).addActivityStatus(activityStatus).and().build();
+    }
+
+    /**
+     * UserMessage (notification) from a Device to a Practitioner, with only the required fields.
+     */
+    public static KoppeltaalBundle newUserMessageBundle(String messageId, String domain) {
+        final String sendingApplicationUrl = ResourceURL.create(BASE_URL, ResourceType.Device, UUID.randomUUID().toString());
+        final PractitionerParams receivingPractitionerParams = newPractitioner("given", "family");
+
+        final UserMessageParams userMessageParams = new UserMessageParams(UUID.randomUUID().toString(), sendingApplicationUrl, receivingPractitionerParams.getId(), MessageKind.NOTIFICATION,
+                "integration-test-subject", "integration-test-content", BASE_URL);
+
+        final String patientUrl = ResourceURL.create(BASE_URL, ResourceType.Patient, UUID.randomUUID().toString());
+
+        return new KoppeltaalBundleBuilder(messageId, domain, APP_SOURCE_SOFTWARE, APP_SOURCE_ENDPOINT, APP_SOURCE_NAME, APP_SOURCE_VERSION, Event.CREATE_OR_UPDATE_USER_MESSAGE, patientUrl, userMessageParams.getUrl())
+                .addUserMessage(userMessageParams)
+                .and().addPractitioner(receivingPractitionerParams)
+                .build();
+    }
+
+    /**
+     * A one year period starting now.
+     */
+    public static Period newPeriod() {
+        DateAndTime start = DateAndTime.now();
+
+        DateAndTime end = DateAndTime.now();
+        end.add(Calendar.YEAR, 1);
+
+        Period period = new Period();
+        period.setStartSimple(start);
+        period.setEndSimple(end);
+
+        return period;
+    }
+
+    private static PatientParams newPatient() {
+        return new PatientParams(UUID.randomUUID().toString(), BASE_URL, NEW_RESOURCE_VERSION,
+                new NameParams("Claes", "de Vries"));
+    }
+
+    private static CarePlanParams newCarePlan() {
+        return new CarePlanParams(UUID.randomUUID().toString(), BASE_URL, NEW_RESOURCE_VERSION,
+                CarePlan.CarePlanStatus.active);
+    }
+
+    private static PractitionerParams newPractitioner(String given, String family) {
+        return new PractitionerParams(UUID.randomUUID().toString(), BASE_URL, NEW_RESOURCE_VERSION,
+                new NameParams(given, family));
+    }
+}
@@ -0,0 +1,195 @@
+package nl.headease.koppeltaal;
+
+import org.hl7.fhir.instance.model.CodeType;
+import org.hl7.fhir.instance.model.UriType;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded, lossy interner for the strings that repeat in parsed feeds: extension urls, code systems, codes and
+ * references (the patient, {@code BASE_URL} resources). Without it every entry of a feed holds its own copy.
+ * <p>
+ * The strings are kept in a fixed size hash table of which every string can take two slots; when both are taken a
+ * new string replaces one of them. The table never grows, so unique strings (ids, names) cannot fill the heap, and
+ * frequent strings win their slots back. No locks: concurrent lookups may both miss and store their own copy, the
+ * duplicate is only a lost optimization.
+ * <p>
+ * {@link #internStrings(Object)} replaces the strings in a parsed resource by their interned copy, it only walks
+ * classes of the FHIR model.
+ */
+public class StringInterner {
+
+    private static final String MODEL_PACKAGE = "org.hl7.fhir.instance.model.";
+
+    /** guards against deep (cyclic) object graphs, resources are not nested that deep */
+    private static final int MAX_DEPTH = 32;
+
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+
+    private static final ClassValue<FieldAccessor[]> FIELDS = new ClassValue<FieldAccessor[]>() {
+        @Override
+        protected FieldAccessor[] computeValue(Class<?> type) {
+            return findFields(type);
+        }
+    };
+
+    private static final class FieldAccessor {
+        final MethodHandle getter;
+        /** null for fields that are not strings */
+        final MethodHandle setter;
+
+        FieldAccessor(MethodHandle getter, MethodHandle setter) {
+            this.getter = getter;
+            this.setter = setter;
+        }
+    }
+
+    private final AtomicReferenceArray<String> table;
+    private final int mask;
+    private final int maxLength;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param capacity  number of slots, rounded up to a power of two
+     * @param maxLength longer strings are not interned
+     */
+    public StringInterner(int capacity, int maxLength) {
+        final int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.table = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * @return the interned copy of the value, or the value itself when it was not seen before (or was evicted)
+     */
+    public String intern(String value) {
+        if (value == null || value.length() > maxLength) {
+            return value;
+        }
+
+        final int hash = value.hashCode();
+        final int first = (hash ^ (hash >>> 16)) & mask;
+        final int second = (first + 1) & mask;
+
+        final String firstValue = table.get(first);
+        if (value.equals(firstValue)) {
+            hits.increment();
+            return firstValue;
+        }
+        final String secondValue = table.get(second);
+        if (value.equals(secondValue)) {
+            hits.increment();
+            return secondValue;
+        }
+
+        misses.increment();
+        if (firstValue == null) {
+            table.lazySet(first, value);
+        } else if (secondValue == null) {
+            table.lazySet(second, value);
+        } else {
+            table.lazySet((hash & 0x10000) == 0 ? first : second, value);
+        }
+        return value;
+    }
+
+    /**
+     * Replaces the urls, codes and references in the FHIR model object (and the objects it refers to) by their
+     * interned copies. Also takes a complete {@code AtomFeed}, for feeds parsed by the FHIR parsers.
+     */
+    public void internStrings(Object object) {
+        internStrings(object, 0);
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void internStrings(Object object, int depth) {
+        if (object == null || depth > MAX_DEPTH) {
+            return;
+        }
+        if (object instanceof List) {
+            for (Object element : (List<?>) object) {
+                internStrings(element, depth + 1);
+            }
+            return;
+        }
+        if (object instanceof Map) {
+            // links of feeds and entries
+            for (Map.Entry<?, Object> entry : ((Map<?, Object>) object).entrySet()) {
+                if (entry.getValue() instanceof String) {
+                    entry.setValue(intern((String) entry.getValue()));
+                } else {
+                    internStrings(entry.getValue(), depth + 1);
+                }
+            }
+            return;
+        }
+        if (!object.getClass().getName().startsWith(MODEL_PACKAGE) || object.getClass().isEnum()) {
+            return;
+        }
+
+        final boolean urlOrCode = object instanceof UriType || object instanceof CodeType;
+        for (FieldAccessor field : FIELDS.get(object.getClass())) {
+            try {
+                final Object value = (Object) field.getter.invokeExact(object);
+                if (field.setter == null) {
+                    internStrings(value, depth + 1);
+                } else if (value != null && (urlOrCode || ((String) value).startsWith("http"))) {
+                    final String interned = intern((String) value);
+                    if (interned != value) {
+                        field.setter.invokeExact(object, (Object) interned);
+                    }
+                }
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException("Cannot intern strings of: " + object.getClass().getName(), e);
+            }
+        }
+    }
+
+    /** instance fields of the class and its superclasses, final strings cannot be replaced and are left out */
+    private static FieldAccessor[] findFields(Class<?> type) {
+        final List<FieldAccessor> accessors = new ArrayList<>();
+        final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+        for (Class<?> current = type; current != null && current != Object.class; current = current.getSuperclass()) {
+            for (Field field : current.getDeclaredFields()) {
+                final int modifiers = field.getModifiers();
+                final boolean string = field.getType() == String.class;
+                if (Modifier.isStatic(modifiers) || field.isSynthetic() || field.getType().isPrimitive()
+                        || string && Modifier.isFinal(modifiers)) {
+                    continue;
+                }
+
+                field.setAccessible(true);
+                try {
+                    accessors.add(new FieldAccessor(lookup.unreflectGetter(field).asType(GETTER_TYPE),
+                            string ? lookup.unreflectSetter(field).asType(SETTER_TYPE) : null));
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException("Cannot access field: " + field, e);
+                }
+            }
+        }
+        return accessors.toArray(new FieldAccessor[0]);
+    }
+}
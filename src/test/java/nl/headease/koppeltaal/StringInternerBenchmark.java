@@ -0,0 +1,84 @@
+package nl.headease.koppeltaal;
+
+import org.hl7.fhir.instance.model.AtomEntry;
+import org.hl7.fhir.instance.model.AtomFeed;
+import org.hl7.fhir.instance.model.MessageHeader;
+import org.hl7.fhir.instance.model.Resource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.UUID;
+
+/**
+ * Measures the heap retained by a parsed header search with and without a {@link StringInterner} in the
+ * {@link JsonFeedCodec}. The headers are those of CarePlan messages of one patient, as a search on a patient returns.
+ * <p>
+ * Run from the IDE or with {@code exec:java}, preferably with a fixed heap ({@code -Xms1g -Xmx1g}); optional
+ * arguments: number of headers (default 5000) and number of parsed copies kept (default 4).
+ */
+public class StringInternerBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int headers = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        final int copies = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+        final byte[] json = newHeaderSearch(headers);
+        System.out.printf("Header search of %d headers, json %d bytes%n", headers, json.length);
+
+        final long plain = retained(new JsonFeedCodec(), json, copies);
+        final StringInterner interner = new StringInterner(1 << 16, 256);
+        final long interned = retained(new JsonFeedCodec(interner), json, copies);
+
+        System.out.printf("%-24s %12s%n", "case", "KB/feed");
+        System.out.printf("%-24s %12d%n", "plain", plain / 1024);
+        System.out.printf("%-24s %12d%n", "interned", interned / 1024);
+        System.out.printf("reduction %.1f%%, interner hits %d, misses %d%n", 100.0 * (plain - interned) / plain, interner.getHits(), interner.getMisses());
+    }
+
+    /**
+     * @return the heap retained per parsed feed
+     */
+    private static long retained(JsonFeedCodec codec, byte[] json, int copies) throws Exception {
+        // warm up, also fills the interner
+        codec.parse(new ByteArrayInputStream(json));
+
+        final long before = usedHeap();
+        final AtomFeed[] feeds = new AtomFeed[copies];
+        for (int i = 0; i < copies; i++) {
+            feeds[i] = codec.parse(new ByteArrayInputStream(json));
+        }
+        final long after = usedHeap();
+
+        // keep the feeds alive until measured
+        if (feeds[copies - 1].getEntryList().isEmpty()) {
+            throw new IllegalStateException("Empty feed");
+        }
+        return (after - before) / copies;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static byte[] newHeaderSearch(int headers) throws Exception {
+        final AtomFeed feed = new AtomFeed();
+        feed.setId(UUID.randomUUID().toString());
+        for (int i = 0; i < headers; i++) {
+            for (AtomEntry<? extends Resource> entry : SampleBundles.newCreateOrUpdateCarePlanBundle(UUID.randomUUID().toString(), "benchmark").getFeed().getEntryList()) {
+                if (entry.getResource() instanceof MessageHeader) {
+                    feed.getEntryList().add(entry);
+                }
+            }
+        }
+        feed.setTotalResults(feed.getEntryList().size());
+
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        new JsonFeedCodec().compose(outputStream, feed, false);
+        return outputStream.toByteArray();
+    }
+}
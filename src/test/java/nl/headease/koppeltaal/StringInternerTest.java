@@ -0,0 +1,51 @@
+package nl.headease.koppeltaal;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class StringInternerTest {
+
+    private static final String PATIENT = "http://ggz.koppeltaal.nl/fhir/Koppeltaal/Patient/1";
+
+    @Test
+    public void returnsTheFirstInstance() {
+        final StringInterner interner = new StringInterner(16, 64);
+        final String first = new String(PATIENT);
+        assertSame(first, interner.intern(first));
+        assertSame(first, interner.intern(new String(PATIENT)));
+        assertEquals(1, interner.getHits());
+
+        final String tooLong = PATIENT + PATIENT;
+        assertNotSame(tooLong, interner.intern(new String(tooLong)));
+        assertNull(interner.intern(null));
+    }
+
+    @Test
+    public void staysBounded() {
+        final StringInterner interner = new StringInterner(16, 64);
+        for (int i = 0; i < 10_000; i++) {
+            interner.intern(PATIENT + i);
+        }
+        assertEquals(10_000, interner.getMisses());
+
+        // the table keeps 16 strings, the most recent one is still found
+        final String recent = PATIENT + "recent";
+        interner.intern(recent);
+        assertSame(recent, interner.intern(new String(recent)));
+    }
+
+    @Test
+    public void internsLinks() {
+        final StringInterner interner = new StringInterner(16, 64);
+        final String self = interner.intern(new String(PATIENT));
+
+        final Map<String, String> links = new HashMap<>();
+        links.put("self", new String(PATIENT));
+        interner.internStrings(links);
+        assertSame(self, links.get("self"));
+    }
+}
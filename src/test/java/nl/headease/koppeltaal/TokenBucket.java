@@ -0,0 +1,80 @@
+package nl.headease.koppeltaal;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket with an adjustable rate. Callers reserve a token and wait until it is theirs, so waiting callers are
+ * served in order. The bucket can be blocked for a while, e.g. when the server sent a Retry-After.
+ */
+public class TokenBucket {
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final double burst;
+
+    private double ratePerSecond;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+    private long blockedUntil = lastRefill;
+
+    /**
+     * @param ratePerSecond the number of tokens added per second
+     * @param burst         the maximum number of tokens stored
+     */
+    public TokenBucket(double ratePerSecond, double burst) {
+        this.ratePerSecond = ratePerSecond;
+        this.burst = burst;
+        this.tokens = burst;
+    }
+
+    /**
+     * Takes a token, waits until it is available.
+     */
+    public void acquire() throws InterruptedException {
+        final long wait = reserve();
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    /**
+     * Takes a token without waiting for it.
+     *
+     * @return the nanoseconds until the token is available, 0 when it is available now
+     */
+    public synchronized long reserve() {
+        final long now = System.nanoTime();
+        refill(now);
+
+        tokens -= 1;
+
+        long wait = Math.max(0, blockedUntil - now);
+        if (tokens < 0) {
+            wait = Math.max(wait, (long) (-tokens / ratePerSecond * NANOS_PER_SECOND));
+        }
+        return wait;
+    }
+
+    public synchronized double getRate() {
+        return ratePerSecond;
+    }
+
+    public synchronized void setRate(double ratePerSecond) {
+        refill(System.nanoTime());
+        this.ratePerSecond = ratePerSecond;
+    }
+
+    /**
+     * No tokens are handed out before {@code nanoTime} (as in {@link System#nanoTime()}).
+     */
+    public synchronized void blockUntil(long nanoTime) {
+        if (nanoTime - blockedUntil > 0) {
+            blockedUntil = nanoTime;
+        }
+    }
+
+    private void refill(long now) {
+        tokens = Math.min(burst, tokens + (now - lastRefill) * ratePerSecond / NANOS_PER_SECOND);
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,49 @@
+package nl.headease.koppeltaal;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TokenBucketTest {
+
+    @Test
+    public void burstIsAvailableAtOnceThenTokensComeAtTheRate() {
+        final TokenBucket bucket = new TokenBucket(10, 2);
+
+        assertEquals(0, bucket.reserve());
+        assertEquals(0, bucket.reserve());
+
+        // the third token takes 1/10 s, the fourth waits behind it
+        final long third = bucket.reserve();
+        final long fourth = bucket.reserve();
+        assertTrue(third > TimeUnit.MILLISECONDS.toNanos(80) && third <= TimeUnit.MILLISECONDS.toNanos(100));
+        assertTrue(fourth > TimeUnit.MILLISECONDS.toNanos(180) && fourth <= TimeUnit.MILLISECONDS.toNanos(200));
+    }
+
+    @Test
+    public void lowerRateSpacesTokensFurther() {
+        final TokenBucket bucket = new TokenBucket(10, 1);
+        bucket.reserve();
+
+        bucket.setRate(2);
+
+        assertEquals(2, bucket.getRate(), 0);
+        assertTrue(bucket.reserve() > TimeUnit.MILLISECONDS.toNanos(400));
+    }
+
+    @Test
+    public void blockedBucketHandsOutNoTokens() throws Exception {
+        final TokenBucket bucket = new TokenBucket(1000, 10);
+        bucket.blockUntil(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100));
+        // an earlier time does not shorten the block
+        bucket.blockUntil(System.nanoTime());
+
+        assertTrue(bucket.reserve() > TimeUnit.MILLISECONDS.toNanos(80));
+
+        final long start = System.nanoTime();
+        bucket.acquire();
+        assertTrue(System.nanoTime() - start > TimeUnit.MILLISECONDS.toNanos(50));
+    }
+}
@@ -0,0 +1,402 @@
+package nl.headease.koppeltaal;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.util.StreamingContent;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Records all HTTP exchanges of a transport, with their timing, to a file that {@link TrafficReplayer} plays back.
+ * Benchmarks can then run against production shaped traffic instead of the synthetic bundles of {@link SampleBundles}.
+ * <p>
+ * Wrap the transport with {@link #wrap(HttpTransport)}, or use
+ * {@link ExtendedKoppeltaalClient.Builder#trafficRecorder(TrafficRecorder)}. Unlike {@link WireCapture} the complete
+ * bodies are recorded: the response is read before it is handed to the client, so recording adds the body transfer to
+ * the time of {@code execute()}.
+ * <p>
+ * Bodies are stored decoded (without gzip) and pass the {@link Scrubber} first, to replace personal data. Request
+ * headers are not recorded, they contain the credentials. Whatever the scrubber, the values of credential and cookie
+ * response headers are replaced by {@value #REDACTED}, as are the tokens, codes and secrets in the urls, headers and
+ * bodies of the OAuth2 endpoints. The file is a gzipped stream of binary records, see
+ * {@link #read(Path)}.
+ */
+public class TrafficRecorder implements Closeable {
+
+    private static final int MAGIC = 0x4b545452;
+    private static final int VERSION = 1;
+
+    static final String REDACTED = "***";
+
+    private static final Set<String> CREDENTIAL_HEADERS = Set.of("authorization", "proxy-authorization", "cookie", "set-cookie");
+    private static final String CREDENTIALS = "access_token|refresh_token|id_token|code|client_secret|password";
+    /** a credential in a JSON body, as returned by the token endpoint */
+    private static final Pattern JSON_CREDENTIAL = Pattern.compile("(\"(?:" + CREDENTIALS + ")\"\\s*:\\s*\")[^\"]*");
+    /** a credential in a form body, query or redirect */
+    private static final Pattern FORM_CREDENTIAL = Pattern.compile("((?:^|[?&#])(?:" + CREDENTIALS + ")=)[^&#]*");
+
+    /**
+     * Replaces personal data in the urls, response headers and bodies before they are recorded.
+     */
+    @FunctionalInterface
+    public interface Scrubber {
+
+        Scrubber NONE = (url, body) -> body;
+
+        /**
+         * @param url the (scrubbed) url of the exchange
+         * @return the body to record, may be null
+         */
+        String scrubBody(String url, String body);
+
+        default String scrubUrl(String url) {
+            return url;
+        }
+
+        /**
+         * @return the value of the response header to record, by default the scrubbed url of Location and
+         * Content-Location
+         */
+        default String scrubHeader(String name, String value) {
+            if ("Location".equalsIgnoreCase(name) || "Content-Location".equalsIgnoreCase(name)) {
+                return value == null ? null : scrubUrl(value);
+            }
+            return value;
+        }
+    }
+
+    private final DataOutputStream out;
+    private final Scrubber scrubber;
+    private final long start = System.nanoTime();
+
+    private long recorded;
+
+    public TrafficRecorder(Path file, Scrubber scrubber) throws IOException {
+        this.out = new DataOutputStream(new GZIPOutputStream(new BufferedOutputStream(Files.newOutputStream(file)), 64 * 1024));
+        this.scrubber = scrubber;
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+    }
+
+    public HttpTransport wrap(HttpTransport transport) {
+        return new RecordingTransport(transport);
+    }
+
+    public synchronized long getRecorded() {
+        return recorded;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * @return the exchanges of the file, in the order they completed
+     */
+    public static List<Exchange> read(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new GZIPInputStream(new BufferedInputStream(Files.newInputStream(file)), 64 * 1024))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a traffic recording: " + file);
+            }
+
+            final List<Exchange> exchanges = new ArrayList<>();
+            while (true) {
+                final long startNanos;
+                try {
+                    startNanos = in.readLong();
+                } catch (EOFException e) {
+                    return exchanges;
+                }
+                final long durationNanos = in.readLong();
+                final String method = readString(in);
+                final String url = readString(in);
+                final String requestContentType = readString(in);
+                final String requestBody = readString(in);
+                final int statusCode = in.readInt();
+                final String reasonPhrase = readString(in);
+                final String responseContentType = readString(in);
+                final int headerCount = in.readInt();
+                final List<String> headers = new ArrayList<>(headerCount * 2);
+                for (int i = 0; i < headerCount * 2; i++) {
+                    headers.add(readString(in));
+                }
+                final String responseBody = readString(in);
+                exchanges.add(new Exchange(startNanos, durationNanos, method, url, requestContentType, requestBody,
+                        statusCode, reasonPhrase, responseContentType, headers, responseBody));
+            }
+        }
+    }
+
+    private synchronized void write(Exchange exchange) throws IOException {
+        out.writeLong(exchange.startNanos);
+        out.writeLong(exchange.durationNanos);
+        writeString(out, exchange.method);
+        writeString(out, exchange.url);
+        writeString(out, exchange.requestContentType);
+        writeString(out, exchange.requestBody);
+        out.writeInt(exchange.statusCode);
+        writeString(out, exchange.reasonPhrase);
+        writeString(out, exchange.responseContentType);
+        out.writeInt(exchange.headers.size() / 2);
+        for (String header : exchange.headers) {
+            writeString(out, header);
+        }
+        writeString(out, exchange.responseBody);
+        recorded++;
+    }
+
+    /** writeUTF() is limited to 64 KB */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static boolean isOAuth(String url) {
+        return url.contains("/OAuth2/");
+    }
+
+    /**
+     * @return the value without the tokens, codes and secrets of the OAuth2 endpoints
+     */
+    static String redactCredentials(String value) {
+        if (value == null) {
+            return null;
+        }
+        final String redacted = JSON_CREDENTIAL.matcher(value).replaceAll("$1" + REDACTED);
+        return FORM_CREDENTIAL.matcher(redacted).replaceAll("$1" + REDACTED);
+    }
+
+    private static String decode(byte[] bytes, String contentEncoding) throws IOException {
+        if (bytes == null) {
+            return null;
+        }
+        if (contentEncoding == null || !contentEncoding.contains("gzip")) {
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        try (InputStream inputStream = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+            return new String(readAll(inputStream), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static byte[] readAll(InputStream inputStream) throws IOException {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        for (int length; (length = inputStream.read(buffer)) != -1; ) {
+            outputStream.write(buffer, 0, length);
+        }
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * A recorded exchange. The headers are the response headers as name, value pairs, without the content encoding and
+     * length (the body is stored decoded).
+     */
+    public static class Exchange {
+
+        private final long startNanos;
+        private final long durationNanos;
+        private final String method;
+        private final String url;
+        private final String requestContentType;
+        private final String requestBody;
+        private final int statusCode;
+        private final String reasonPhrase;
+        private final String responseContentType;
+        private final List<String> headers;
+        private final String responseBody;
+
+        Exchange(long startNanos, long durationNanos, String method, String url, String requestContentType, String requestBody,
+                 int statusCode, String reasonPhrase, String responseContentType, List<String> headers, String responseBody) {
+            this.startNanos = startNanos;
+            this.durationNanos = durationNanos;
+            this.method = method;
+            this.url = url;
+            this.requestContentType = requestContentType;
+            this.requestBody = requestBody;
+            this.statusCode = statusCode;
+            this.reasonPhrase = reasonPhrase;
+            this.responseContentType = responseContentType;
+            this.headers = headers;
+            this.responseBody = responseBody;
+        }
+
+        /**
+         * @return start of the request, relative to the start of the recording
+         */
+        public long getStartNanos() {
+            return startNanos;
+        }
+
+        /**
+         * @return time until the response body was read
+         */
+        public long getDurationNanos() {
+            return durationNanos;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public String getRequestContentType() {
+            return requestContentType;
+        }
+
+        public String getRequestBody() {
+            return requestBody;
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        public String getReasonPhrase() {
+            return reasonPhrase;
+        }
+
+        public String getResponseContentType() {
+            return responseContentType;
+        }
+
+        public List<String> getHeaders() {
+            return headers;
+        }
+
+        public String getResponseBody() {
+            return responseBody;
+        }
+
+        @Override
+        public String toString() {
+            return method + " " + url + " " + statusCode;
+        }
+    }
+
+    private class RecordingTransport extends ForwardingTransport {
+
+        RecordingTransport(HttpTransport delegate) {
+            super(delegate);
+        }
+
+        @Override
+        protected LowLevelHttpRequest wrap(LowLevelHttpRequest request, String method, String url) {
+            return new RecordingRequest(request, method, url);
+        }
+    }
+
+    private class RecordingRequest extends ForwardingTransport.Request {
+
+        private final String method;
+        private final String url;
+        /** null when the request has no content */
+        private ByteArrayOutputStream requestBody;
+
+        RecordingRequest(LowLevelHttpRequest delegate, String method, String url) {
+            super(delegate);
+            this.method = method;
+            this.url = url;
+        }
+
+        @Override
+        protected StreamingContent wrapContent(StreamingContent content) {
+            requestBody = new ByteArrayOutputStream();
+            return out -> {
+                requestBody.reset();
+                content.writeTo(new FilterOutputStream(out) {
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        out.write(b, off, len);
+                        requestBody.write(b, off, len);
+                    }
+
+                    @Override
+                    public void write(int b) throws IOException {
+                        out.write(b);
+                        requestBody.write(b);
+                    }
+                });
+            };
+        }
+
+        @Override
+        public LowLevelHttpResponse execute() throws IOException {
+            final long startNanos = System.nanoTime();
+            final LowLevelHttpResponse response = super.execute();
+            final byte[] responseBody;
+            try (InputStream responseContent = response.getContent()) {
+                responseBody = responseContent == null ? null : readAll(responseContent);
+            }
+            final long durationNanos = System.nanoTime() - startNanos;
+
+            final boolean oauth = isOAuth(url);
+            final List<String> headers = new ArrayList<>();
+            for (int i = 0; i < response.getHeaderCount(); i++) {
+                final String name = response.getHeaderName(i);
+                if (!"Content-Encoding".equalsIgnoreCase(name) && !"Content-Length".equalsIgnoreCase(name)) {
+                    headers.add(name);
+                    headers.add(CREDENTIAL_HEADERS.contains(name.toLowerCase(Locale.ROOT)) ? REDACTED
+                            : redact(oauth, scrubber.scrubHeader(name, response.getHeaderValue(i))));
+                }
+            }
+
+            final String recordedUrl = redact(oauth, scrubber.scrubUrl(url));
+            write(new Exchange(startNanos - start, durationNanos, method, recordedUrl, getContentType(),
+                    redact(oauth, scrubber.scrubBody(recordedUrl, decode(requestBody == null ? null : requestBody.toByteArray(), getContentEncoding()))),
+                    response.getStatusCode(), response.getReasonPhrase(), response.getContentType(), headers,
+                    redact(oauth, scrubber.scrubBody(recordedUrl, decode(responseBody, response.getContentEncoding())))));
+
+            return new BufferedResponse(response, responseBody);
+        }
+
+        private String redact(boolean oauth, String value) {
+            return oauth ? redactCredentials(value) : value;
+        }
+    }
+
+    /** the response with the body that was already read */
+    private static class BufferedResponse extends ForwardingTransport.Response {
+
+        private final byte[] body;
+
+        BufferedResponse(LowLevelHttpResponse delegate, byte[] body) {
+            super(delegate);
+            this.body = body;
+        }
+
+        @Override
+        public InputStream getContent() {
+            return body == null ? null : new ByteArrayInputStream(body);
+        }
+    }
+}
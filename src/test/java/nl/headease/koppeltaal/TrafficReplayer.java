@@ -0,0 +1,318 @@
+package nl.headease.koppeltaal;
+
+import com.google.api.client.http.*;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays back a recording of {@link TrafficRecorder}, in two ways:
+ * <ul>
+ *     <li>{@link #stub(double)} is a transport that answers the requests of a client with the recorded responses, to
+ *     benchmark the client (connector versions, settings) without a server</li>
+ *     <li>{@link #drive(HttpTransport, String, HttpRequestInitializer, double, int)} sends the recorded requests to a
+ *     server, on the recorded schedule</li>
+ * </ul>
+ * The speed is a factor on the recorded timing: 1 replays in real time, 10 ten times faster and
+ * {@link #MAX_SPEED} as fast as possible.
+ * <p>
+ * Run {@link #main(String[])} with {@code exec:java} to drive a recording against the server of
+ * {@code KoppeltaalClientTest.properties}; arguments: the recording, the speed (default 1) and the concurrency
+ * (default 32).
+ */
+public class TrafficReplayer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TrafficReplayer.class);
+
+    public static final double MAX_SPEED = Double.POSITIVE_INFINITY;
+
+    private final List<TrafficRecorder.Exchange> exchanges;
+
+    public TrafficReplayer(List<TrafficRecorder.Exchange> exchanges) {
+        this.exchanges = new ArrayList<>(exchanges);
+        this.exchanges.sort(Comparator.comparingLong(TrafficRecorder.Exchange::getStartNanos));
+    }
+
+    public static TrafficReplayer load(Path file) throws IOException {
+        return new TrafficReplayer(TrafficRecorder.read(file));
+    }
+
+    public List<TrafficRecorder.Exchange> getExchanges() {
+        return Collections.unmodifiableList(exchanges);
+    }
+
+    /**
+     * A transport that answers with the recorded responses, ignoring the server of the url. A request gets the
+     * response recorded for the same method, path and query, or else for the same method and path; requests that
+     * match the same recordings get them in recorded order, round robin. Other requests get a 404.
+     *
+     * @param speed the recorded duration of the exchange is divided by the speed, {@link #MAX_SPEED} answers at once
+     */
+    public HttpTransport stub(double speed) {
+        final Map<String, List<TrafficRecorder.Exchange>> byPathAndQuery = new HashMap<>();
+        final Map<String, List<TrafficRecorder.Exchange>> byPath = new HashMap<>();
+        for (TrafficRecorder.Exchange exchange : exchanges) {
+            final URI uri = URI.create(exchange.getUrl());
+            byPathAndQuery.computeIfAbsent(key(exchange.getMethod(), uri.getRawPath(), uri.getRawQuery()), k -> new ArrayList<>()).add(exchange);
+            byPath.computeIfAbsent(key(exchange.getMethod(), uri.getRawPath(), null), k -> new ArrayList<>()).add(exchange);
+        }
+        return new StubTransport(byPathAndQuery, byPath, speed);
+    }
+
+    /**
+     * Sends the recorded requests to the server, open loop: a request starts at its recorded (scaled) time, also when
+     * earlier requests did not finish. Latencies are measured from that intended start, so time spent waiting for a
+     * free worker is part of the measurement (like {@link LoadGenerator}).
+     *
+     * @param baseUrl     replaces the scheme, host and port of the recorded urls
+     * @param initializer sets the credentials, the recording has none; may be null
+     */
+    public Report drive(HttpTransport transport, String baseUrl, HttpRequestInitializer initializer, double speed, int concurrency) throws InterruptedException {
+        final HttpRequestFactory requestFactory = transport.createRequestFactory(initializer);
+        final URI base = URI.create(baseUrl);
+        final Report report = new Report();
+
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(concurrency, concurrency,
+                0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+
+        final long start = System.nanoTime();
+        final long firstNanos = exchanges.isEmpty() ? 0 : exchanges.get(0).getStartNanos();
+        try {
+            for (TrafficRecorder.Exchange exchange : exchanges) {
+                final long intendedStart = speed == MAX_SPEED ? System.nanoTime() : start + (long) ((exchange.getStartNanos() - firstNanos) / speed);
+                parkUntil(intendedStart);
+                executor.execute(() -> send(requestFactory, base, exchange, intendedStart, report));
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+
+        report.durationNanos = System.nanoTime() - start;
+        LOG.info("Replayed {} requests at speed {}: {}\n{}", exchanges.size(), speed, report, report.histograms.report(report.durationNanos));
+        return report;
+    }
+
+    private static void send(HttpRequestFactory requestFactory, URI base, TrafficRecorder.Exchange exchange, long intendedStart, Report report) {
+        final String key = operation(exchange);
+        try {
+            final URI recorded = URI.create(exchange.getUrl());
+            final GenericUrl url = new GenericUrl(base.getScheme() + "://" + base.getRawAuthority()
+                    + (recorded.getRawQuery() == null ? recorded.getRawPath() : recorded.getRawPath() + '?' + recorded.getRawQuery()));
+            final HttpContent content = exchange.getRequestBody() == null ? null
+                    : new ByteArrayContent(exchange.getRequestContentType(), exchange.getRequestBody().getBytes(StandardCharsets.UTF_8));
+
+            final HttpResponse response = requestFactory.buildRequest(exchange.getMethod(), url, content)
+                    .setThrowExceptionOnExecuteError(false)
+                    .execute();
+            try {
+                response.parseAsString();
+            } finally {
+                response.disconnect();
+            }
+
+            report.histograms.record(key, System.nanoTime() - intendedStart);
+            if (response.getStatusCode() != exchange.getStatusCode()) {
+                report.statusMismatches.increment();
+            }
+        } catch (Exception e) {
+            LOG.warn("Replay failed for: " + exchange, e);
+            report.histograms.recordError(key, System.nanoTime() - intendedStart);
+            report.errors.increment();
+        }
+    }
+
+    private static void parkUntil(long deadline) {
+        for (long remaining; (remaining = deadline - System.nanoTime()) > 0; ) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    private static String key(String method, String path, String query) {
+        return query == null ? method + ' ' + path : method + ' ' + path + '?' + query;
+    }
+
+    /**
+     * @return method and path of the exchange, with the path segments that contain digits (ids, versions) replaced
+     */
+    private static String operation(TrafficRecorder.Exchange exchange) {
+        final StringBuilder operation = new StringBuilder(exchange.getMethod()).append(' ');
+        for (String segment : URI.create(exchange.getUrl()).getRawPath().split("/")) {
+            if (!segment.isEmpty()) {
+                operation.append('/').append(segment.chars().anyMatch(Character::isDigit) ? "{id}" : segment);
+            }
+        }
+        return operation.toString();
+    }
+
+    public static void main(String[] args) throws Exception {
+        final TrafficReplayer replayer = load(Paths.get(args[0]));
+        final double speed = args.length > 1 ? Double.parseDouble(args[1]) : 1;
+        final int concurrency = args.length > 2 ? Integer.parseInt(args[2]) : 32;
+
+        final Properties properties = BaseTest.loadTestProperties();
+        final HttpRequestInitializer initializer = request -> request.getHeaders().setBasicAuthentication(
+                properties.getProperty("username"), properties.getProperty("password"));
+
+        final HttpTransport transport = new NetHttpTransport();
+        try {
+            System.out.println(replayer.drive(transport, properties.getProperty("server"), initializer, speed, concurrency));
+        } finally {
+            transport.shutdown();
+        }
+    }
+
+    public static class Report {
+
+        private final LatencyHistograms<String> histograms = new LatencyHistograms<>();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder statusMismatches = new LongAdder();
+        private long durationNanos;
+
+        public LatencyHistograms<String> getHistograms() {
+            return histograms;
+        }
+
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        /**
+         * @return number of responses with another status code than recorded
+         */
+        public long getStatusMismatches() {
+            return statusMismatches.sum();
+        }
+
+        public long getDurationNanos() {
+            return durationNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "errors: " + getErrors() + ", status mismatches: " + getStatusMismatches() + ", duration: " + TimeUnit.NANOSECONDS.toMillis(durationNanos) + " ms";
+        }
+    }
+
+    private static class StubTransport extends HttpTransport {
+
+        private final Map<String, List<TrafficRecorder.Exchange>> byPathAndQuery;
+        private final Map<String, List<TrafficRecorder.Exchange>> byPath;
+        private final double speed;
+        private final ConcurrentMap<List<TrafficRecorder.Exchange>, AtomicInteger> next = new ConcurrentHashMap<>();
+
+        StubTransport(Map<String, List<TrafficRecorder.Exchange>> byPathAndQuery, Map<String, List<TrafficRecorder.Exchange>> byPath, double speed) {
+            this.byPathAndQuery = byPathAndQuery;
+            this.byPath = byPath;
+            this.speed = speed;
+        }
+
+        @Override
+        protected LowLevelHttpRequest buildRequest(String method, String url) {
+            return new LowLevelHttpRequest() {
+                @Override
+                public void addHeader(String name, String value) {
+                }
+
+                @Override
+                public LowLevelHttpResponse execute() throws IOException {
+                    if (getStreamingContent() != null) {
+                        // consume the request body, like a server
+                        getStreamingContent().writeTo(OutputStream.nullOutputStream());
+                    }
+
+                    final URI uri = URI.create(url);
+                    List<TrafficRecorder.Exchange> candidates = byPathAndQuery.get(key(method, uri.getRawPath(), uri.getRawQuery()));
+                    if (candidates == null) {
+                        candidates = byPath.get(key(method, uri.getRawPath(), null));
+                    }
+                    if (candidates == null) {
+                        return new StubResponse(null);
+                    }
+
+                    final int index = next.computeIfAbsent(candidates, k -> new AtomicInteger()).getAndIncrement();
+                    final TrafficRecorder.Exchange exchange = candidates.get(Math.floorMod(index, candidates.size()));
+                    if (speed != MAX_SPEED) {
+                        LockSupport.parkNanos((long) (exchange.getDurationNanos() / speed));
+                    }
+                    return new StubResponse(exchange);
+                }
+            };
+        }
+    }
+
+    private static class StubResponse extends LowLevelHttpResponse {
+
+        /** null for a 404 */
+        private final TrafficRecorder.Exchange exchange;
+
+        StubResponse(TrafficRecorder.Exchange exchange) {
+            this.exchange = exchange;
+        }
+
+        @Override
+        public InputStream getContent() {
+            return exchange == null || exchange.getResponseBody() == null ? null
+                    : new ByteArrayInputStream(exchange.getResponseBody().getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public String getContentEncoding() {
+            return null;
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public String getContentType() {
+            return exchange == null ? null : exchange.getResponseContentType();
+        }
+
+        @Override
+        public String getStatusLine() {
+            return exchange == null ? "HTTP/1.1 404 Not Found" : "HTTP/1.1 " + exchange.getStatusCode() + " " + exchange.getReasonPhrase();
+        }
+
+        @Override
+        public int getStatusCode() {
+            return exchange == null ? 404 : exchange.getStatusCode();
+        }
+
+        @Override
+        public String getReasonPhrase() {
+            return exchange == null ? "Not Found" : exchange.getReasonPhrase();
+        }
+
+        @Override
+        public int getHeaderCount() {
+            return exchange == null ? 0 : exchange.getHeaders().size() / 2;
+        }
+
+        @Override
+        public String getHeaderName(int index) {
+            return exchange.getHeaders().get(index * 2);
+        }
+
+        @Override
+        public String getHeaderValue(int index) {
+            return exchange.getHeaders().get(index * 2 + 1);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package nl.headease.koppeltaal;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToIntFunction;
+
+import static org.junit.Assert.*;
+
+public class TrafficReplayerTest {
+
+    private static final GenericUrl URL = new GenericUrl("https://server/FHIR/Koppeltaal/Mailbox");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recordsScrubbedExchanges() throws Exception {
+        final Path file = record();
+
+        final List<TrafficRecorder.Exchange> exchanges = TrafficRecorder.read(file);
+        assertEquals(2, exchanges.size());
+
+        final TrafficRecorder.Exchange exchange = exchanges.get(0);
+        assertEquals("POST", exchange.getMethod());
+        assertEquals(URL.build(), exchange.getUrl());
+        assertEquals("<patient>***</patient>", exchange.getRequestBody());
+        assertEquals(200, exchange.getStatusCode());
+        assertEquals("<response>1</response>", exchange.getResponseBody());
+        assertEquals("application/xml", exchange.getResponseContentType());
+        assertTrue(exchange.getDurationNanos() >= 0);
+    }
+
+    @Test
+    public void scrubsHeadersAndAlwaysRedactsCredentials() throws Exception {
+        final Path file = folder.getRoot().toPath().resolve("traffic.bin.gz");
+        final TrafficRecorder.Scrubber scrubber = new TrafficRecorder.Scrubber() {
+            @Override
+            public String scrubBody(String url, String body) {
+                return body;
+            }
+
+            @Override
+            public String scrubUrl(String url) {
+                return url.replace("Patient/jan", "Patient/***");
+            }
+        };
+        final MockHttpTransport server = new MockHttpTransport() {
+            @Override
+            public LowLevelHttpRequest buildRequest(String method, String url) {
+                return new MockLowLevelHttpRequest(url) {
+                    @Override
+                    public LowLevelHttpResponse execute() throws IOException {
+                        // writes the request body
+                        getContentAsString();
+                        if (url.contains("/OAuth2/")) {
+                            return new MockLowLevelHttpResponse().setContentType("application/json")
+                                    .setContent("{\"access_token\":\"secret-access\",\"token_type\":\"Bearer\",\"refresh_token\": \"secret-refresh\"}");
+                        }
+                        return new MockLowLevelHttpResponse().setContent("<response/>").setContentType("application/xml")
+                                .addHeader("Location", "https://server/FHIR/Koppeltaal/Patient/jan/_history/1")
+                                .addHeader("Set-Cookie", "session=secret-session")
+                                .addHeader("ETag", "W/\"1\"");
+                    }
+                };
+            }
+        };
+
+        try (TrafficRecorder recorder = new TrafficRecorder(file, scrubber)) {
+            final HttpRequestFactory requestFactory = recorder.wrap(server).createRequestFactory();
+            post(requestFactory, new GenericUrl("https://server/FHIR/Koppeltaal/Patient/jan"), "<patient/>");
+            post(requestFactory, new GenericUrl("https://server/OAuth2/Koppeltaal/Token"), "grant_type=refresh_token&refresh_token=secret-refresh");
+        }
+
+        final List<TrafficRecorder.Exchange> exchanges = TrafficRecorder.read(file);
+        assertEquals("https://server/FHIR/Koppeltaal/Patient/***", exchanges.get(0).getUrl());
+        assertEquals(List.of("Location", "https://server/FHIR/Koppeltaal/Patient/***/_history/1", "Set-Cookie", "***", "ETag", "W/\"1\""),
+                exchanges.get(0).getHeaders());
+
+        final TrafficRecorder.Exchange token = exchanges.get(1);
+        assertEquals("grant_type=refresh_token&refresh_token=***", token.getRequestBody());
+        assertEquals("{\"access_token\":\"***\",\"token_type\":\"Bearer\",\"refresh_token\": \"***\"}", token.getResponseBody());
+    }
+
+    @Test
+    public void stubAnswersWithRecordedResponses() throws Exception {
+        final TrafficReplayer replayer = TrafficReplayer.load(record());
+        final HttpRequestFactory requestFactory = replayer.stub(TrafficReplayer.MAX_SPEED).createRequestFactory();
+
+        // another server, the same path
+        final GenericUrl url = new GenericUrl("http://localhost:8080/FHIR/Koppeltaal/Mailbox");
+        assertEquals("<response>1</response>", post(requestFactory, url, "other"));
+        assertEquals("<response>2</response>", post(requestFactory, url, "other"));
+        assertEquals("<response>1</response>", post(requestFactory, url, "other"));
+
+        final HttpResponse response = requestFactory.buildGetRequest(new GenericUrl("http://localhost:8080/unknown"))
+                .setThrowExceptionOnExecuteError(false).execute();
+        assertEquals(404, response.getStatusCode());
+    }
+
+    @Test
+    public void drivesRecordedRequestsAgainstServer() throws Exception {
+        final TrafficReplayer replayer = TrafficReplayer.load(record());
+        final AtomicInteger received = new AtomicInteger();
+
+        final TrafficReplayer.Report report = replayer.drive(server(body -> received.incrementAndGet()),
+                "http://localhost:8080", null, TrafficReplayer.MAX_SPEED, 2);
+
+        assertEquals(2, received.get());
+        assertEquals(0, report.getErrors());
+        assertEquals(0, report.getStatusMismatches());
+    }
+
+    private Path record() throws IOException {
+        final Path file = folder.getRoot().toPath().resolve("traffic.bin.gz");
+        final AtomicInteger responses = new AtomicInteger();
+        final TrafficRecorder.Scrubber scrubber = (url, body) -> body.replaceAll("<patient>[^<]*</patient>", "<patient>***</patient>");
+
+        try (TrafficRecorder recorder = new TrafficRecorder(file, scrubber)) {
+            final HttpRequestFactory requestFactory = recorder.wrap(server(body -> responses.incrementAndGet())).createRequestFactory();
+            assertEquals("<response>1</response>", post(requestFactory, URL, "<patient>Jan Jansen</patient>"));
+            assertEquals("<response>2</response>", post(requestFactory, URL, "<patient>Piet Jansen</patient>"));
+            assertEquals(2, recorder.getRecorded());
+        }
+        return file;
+    }
+
+    private static String post(HttpRequestFactory requestFactory, GenericUrl url, String body) throws IOException {
+        final HttpResponse response = requestFactory.buildPostRequest(url, ByteArrayContent.fromString("application/xml", body)).execute();
+        try {
+            return response.parseAsString();
+        } finally {
+            response.disconnect();
+        }
+    }
+
+    /**
+     * @param handler numbers the responses
+     */
+    private static MockHttpTransport server(ToIntFunction<String> handler) {
+        return new MockHttpTransport() {
+            @Override
+            public LowLevelHttpRequest buildRequest(String method, String url) {
+                return new MockLowLevelHttpRequest(url) {
+                    @Override
+                    public LowLevelHttpResponse execute() throws IOException {
+                        final int number = handler.applyAsInt(getContentAsString());
+                        return new MockLowLevelHttpResponse().setContent("<response>" + number + "</response>").setContentType("application/xml");
+                    }
+                };
+            }
+        };
+    }
+}
@@ -0,0 +1,400 @@
+package nl.headease.koppeltaal;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.util.StreamingContent;
+
+import java.io.*;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Predicate;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Captures recent HTTP exchanges (request and response bodies) at the transport, in a ring buffer of fixed size.
+ * Unlike a {@code LogRecordingHandler} on the {@code HttpTransport} logger the memory use is bounded: older exchanges
+ * are overwritten and bodies are cut off at a maximum size.
+ * <p>
+ * Wrap the transport with {@link #wrap(HttpTransport)}, or use
+ * {@link ExtendedKoppeltaalClient.Builder#wireCapture(WireCapture)}. Only a sample of the requests is captured, the
+ * others go to the transport without any overhead. The client tags a captured exchange with the ids of the messages it
+ * sent or received ({@link #tag(String, AuditLog.Direction)}), to look it up by message id.
+ * <p>
+ * Request headers are not captured, they contain the credentials.
+ */
+public class WireCapture {
+
+    private final int mask;
+    private final double sampleRate;
+    private final int maxBodyBytes;
+
+    private final AtomicReferenceArray<Exchange> exchanges;
+    private final AtomicLong sequence = new AtomicLong();
+    private final ConcurrentMap<String, Exchange> index = new ConcurrentHashMap<>();
+
+    /**
+     * the exchange of the last request of the thread, for {@link #tag}; weak, so exchanges that are overwritten in the
+     * ring buffer are not kept alive by idle threads
+     */
+    private final ThreadLocal<WeakReference<Exchange>> current = new ThreadLocal<>();
+
+    /**
+     * @param capacity     number of exchanges kept, rounded up to a power of two
+     * @param sampleRate   fraction of the requests to capture, 1 to capture all
+     * @param maxBodyBytes request and response bodies are cut off at this size
+     */
+    public WireCapture(int capacity, double sampleRate, int maxBodyBytes) {
+        final int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.mask = size - 1;
+        this.exchanges = new AtomicReferenceArray<>(size);
+        this.sampleRate = sampleRate;
+        this.maxBodyBytes = maxBodyBytes;
+    }
+
+    public HttpTransport wrap(HttpTransport transport) {
+        return new CapturingTransport(transport);
+    }
+
+    /**
+     * Indexes the exchange of the last request of the current thread by the message id and direction, nothing when that
+     * request was not captured.
+     */
+    public void tag(String messageId, AuditLog.Direction direction) {
+        final WeakReference<Exchange> reference = current.get();
+        final Exchange exchange = reference == null ? null : reference.get();
+        if (exchange == null || messageId == null) {
+            return;
+        }
+
+        final String key = key(messageId, direction);
+        exchange.addKey(key);
+        index.put(key, exchange);
+        if (exchange.evicted) {
+            index.remove(key, exchange);
+        }
+    }
+
+    /**
+     * @return the last captured exchange that sent or received the message
+     */
+    public Optional<Exchange> get(String messageId, AuditLog.Direction direction) {
+        return Optional.ofNullable(index.get(key(messageId, direction)));
+    }
+
+    /**
+     * @return the newest captured exchange that matches
+     */
+    public Optional<Exchange> findLast(Predicate<Exchange> predicate) {
+        final long last = sequence.get() - 1;
+        for (long i = last; i >= 0 && i > last - exchanges.length(); i--) {
+            final Exchange exchange = exchanges.get((int) (i & mask));
+            if (exchange != null && exchange.sequence == i && predicate.test(exchange)) {
+                return Optional.of(exchange);
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * @return the captured exchanges, oldest first
+     */
+    public List<Exchange> getExchanges() {
+        final List<Exchange> result = new ArrayList<>();
+        final long last = sequence.get() - 1;
+        for (long i = Math.max(0, last - exchanges.length() + 1); i <= last; i++) {
+            final Exchange exchange = exchanges.get((int) (i & mask));
+            if (exchange != null && exchange.sequence == i) {
+                result.add(exchange);
+            }
+        }
+        return result;
+    }
+
+    private void publish(Exchange exchange) {
+        final Exchange evicted = exchanges.getAndSet((int) (exchange.sequence & mask), exchange);
+        if (evicted != null) {
+            evicted.evicted = true;
+            for (String key : evicted.getKeys()) {
+                index.remove(key, evicted);
+            }
+        }
+        current.set(new WeakReference<>(exchange));
+    }
+
+    boolean sample() {
+        return sampleRate >= 1 || ThreadLocalRandom.current().nextDouble() < sampleRate;
+    }
+
+    private static String key(String messageId, AuditLog.Direction direction) {
+        return messageId + '/' + direction;
+    }
+
+    public static class Exchange {
+
+        private final long sequence;
+        private final long timestamp = System.currentTimeMillis();
+        private final String method;
+        private final String url;
+        private final CappedBuffer requestBody;
+        private final CappedBuffer responseBody;
+        private final List<String> keys = new ArrayList<>(2);
+
+        private volatile String requestContentEncoding;
+        private volatile int statusCode = -1;
+        private volatile String responseContentEncoding;
+        private volatile long durationNanos = -1;
+        private volatile String error;
+        private volatile boolean evicted;
+
+        Exchange(long sequence, String method, String url, int maxBodyBytes) {
+            this.sequence = sequence;
+            this.method = method;
+            this.url = url;
+            this.requestBody = new CappedBuffer(maxBodyBytes);
+            this.responseBody = new CappedBuffer(maxBodyBytes);
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        /**
+         * @return the status code, -1 when no response was received (yet)
+         */
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        /**
+         * @return time until the response headers were received, -1 when no response was received (yet)
+         */
+        public long getDurationNanos() {
+            return durationNanos;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        public boolean isRequestBodyTruncated() {
+            return requestBody.truncated;
+        }
+
+        public boolean isResponseBodyTruncated() {
+            return responseBody.truncated;
+        }
+
+        public String getRequestBodyAsString() {
+            return decode(requestBody, requestContentEncoding);
+        }
+
+        /**
+         * @return the part of the response body that was read by the client
+         */
+        public String getResponseBodyAsString() {
+            return decode(responseBody, responseContentEncoding);
+        }
+
+        private synchronized void addKey(String key) {
+            keys.add(key);
+        }
+
+        private synchronized List<String> getKeys() {
+            return new ArrayList<>(keys);
+        }
+
+        private static String decode(CappedBuffer body, String contentEncoding) {
+            final byte[] bytes = body.toByteArray();
+            if (contentEncoding != null && contentEncoding.contains("gzip") && !body.truncated) {
+                try (InputStream inputStream = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+                    final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(bytes.length * 4);
+                    final byte[] buffer = new byte[8192];
+                    for (int length; (length = inputStream.read(buffer)) != -1; ) {
+                        outputStream.write(buffer, 0, length);
+                    }
+                    return new String(outputStream.toByteArray(), StandardCharsets.UTF_8);
+                } catch (IOException e) {
+                    // keep the raw bytes
+                }
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    /** the first {@code max} bytes written */
+    private static class CappedBuffer {
+        private final int max;
+        private byte[] bytes = new byte[0];
+        private int length;
+        private volatile boolean truncated;
+
+        CappedBuffer(int max) {
+            this.max = max;
+        }
+
+        synchronized void write(byte[] source, int offset, int count) {
+            final int accepted = Math.min(count, max - length);
+            if (accepted < count) {
+                truncated = true;
+            }
+            if (accepted <= 0) {
+                return;
+            }
+            if (length + accepted > bytes.length) {
+                bytes = java.util.Arrays.copyOf(bytes, Math.min(max, Math.max(length + accepted, bytes.length * 2)));
+            }
+            System.arraycopy(source, offset, bytes, length, accepted);
+            length += accepted;
+        }
+
+        synchronized byte[] toByteArray() {
+            return java.util.Arrays.copyOf(bytes, length);
+        }
+    }
+
+    private class CapturingTransport extends ForwardingTransport {
+
+        CapturingTransport(HttpTransport delegate) {
+            super(delegate);
+        }
+
+        @Override
+        protected LowLevelHttpRequest wrap(LowLevelHttpRequest request, String method, String url) {
+            // the previous exchange of the thread is not the exchange of this request
+            current.remove();
+            if (!sample()) {
+                return request;
+            }
+            return new CapturingRequest(request, new Exchange(sequence.getAndIncrement(), method, url, maxBodyBytes));
+        }
+    }
+
+    private class CapturingRequest extends ForwardingTransport.Request {
+
+        private final Exchange exchange;
+
+        CapturingRequest(LowLevelHttpRequest delegate, Exchange exchange) {
+            super(delegate);
+            this.exchange = exchange;
+        }
+
+        @Override
+        protected StreamingContent wrapContent(StreamingContent content) {
+            exchange.requestContentEncoding = getContentEncoding();
+            return out -> content.writeTo(new TeeOutputStream(out, exchange.requestBody));
+        }
+
+        @Override
+        public LowLevelHttpResponse execute() throws IOException {
+            publish(exchange);
+
+            final long start = System.nanoTime();
+            try {
+                final LowLevelHttpResponse response = super.execute();
+                exchange.durationNanos = System.nanoTime() - start;
+                exchange.statusCode = response.getStatusCode();
+                exchange.responseContentEncoding = response.getContentEncoding();
+                return new CapturingResponse(response, exchange);
+            } catch (IOException | RuntimeException e) {
+                exchange.error = e.toString();
+                throw e;
+            }
+        }
+    }
+
+    private static class CapturingResponse extends ForwardingTransport.Response {
+
+        private final Exchange exchange;
+
+        CapturingResponse(LowLevelHttpResponse delegate, Exchange exchange) {
+            super(delegate);
+            this.exchange = exchange;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            final InputStream content = delegate.getContent();
+            return content == null ? null : new TeeInputStream(content, exchange.responseBody);
+        }
+    }
+
+    private static class TeeOutputStream extends FilterOutputStream {
+
+        private final CappedBuffer copy;
+
+        TeeOutputStream(OutputStream out, CappedBuffer copy) {
+            super(out);
+            this.copy = copy;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            copy.write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            copy.write(b, off, len);
+        }
+    }
+
+    private static class TeeInputStream extends FilterInputStream {
+
+        private final CappedBuffer copy;
+
+        TeeInputStream(InputStream in, CappedBuffer copy) {
+            super(in);
+            this.copy = copy;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = in.read();
+            if (b != -1) {
+                copy.write(new byte[]{(byte) b}, 0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int count = in.read(b, off, len);
+            if (count > 0) {
+                copy.write(b, off, count);
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // read instead of skip, to keep the copy complete
+            final byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            final int count = read(buffer, 0, buffer.length);
+            return Math.max(count, 0);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package nl.headease.koppeltaal;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import nl.koppeltaal.api.Format;
+import nl.koppeltaal.api.KoppeltaalMessageHeader;
+import nl.koppeltaal.api.ProcessingStatus;
+import org.hl7.fhir.instance.model.AtomEntry;
+import org.hl7.fhir.instance.model.MessageHeader;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class WireCaptureTest {
+
+    private static final GenericUrl URL = new GenericUrl("https://localhost/FHIR/Koppeltaal/Mailbox");
+
+    @Test
+    public void capturesRequestAndResponseBodies() throws Exception {
+        final WireCapture wireCapture = new WireCapture(4, 1, 1024);
+
+        post(wireCapture.wrap(transport("<response/>")).createRequestFactory(), "<request/>");
+
+        final WireCapture.Exchange exchange = wireCapture.findLast(e -> true).orElseThrow(AssertionError::new);
+        assertEquals("POST", exchange.getMethod());
+        assertEquals(URL.build(), exchange.getUrl());
+        assertEquals(200, exchange.getStatusCode());
+        assertEquals("<request/>", exchange.getRequestBodyAsString());
+        assertEquals("<response/>", exchange.getResponseBodyAsString());
+        assertFalse(exchange.isRequestBodyTruncated());
+    }
+
+    @Test
+    public void keepsTheLastExchangesAndEvictsTheirTags() throws Exception {
+        final WireCapture wireCapture = new WireCapture(2, 1, 1024);
+        final HttpRequestFactory requestFactory = wireCapture.wrap(transport("")).createRequestFactory();
+
+        post(requestFactory, "first");
+        wireCapture.tag("message-1", AuditLog.Direction.SENT);
+        assertEquals("first", wireCapture.get("message-1", AuditLog.Direction.SENT).map(WireCapture.Exchange::getRequestBodyAsString).orElse(null));
+        assertFalse(wireCapture.get("message-1", AuditLog.Direction.RECEIVED).isPresent());
+
+        post(requestFactory, "second");
+        post(requestFactory, "third");
+
+        assertEquals(2, wireCapture.getExchanges().size());
+        assertEquals("second", wireCapture.getExchanges().get(0).getRequestBodyAsString());
+        assertFalse(wireCapture.get("message-1", AuditLog.Direction.SENT).isPresent());
+        assertFalse(wireCapture.findLast(e -> "first".equals(e.getRequestBodyAsString())).isPresent());
+    }
+
+    @Test
+    public void clientTagsClaimedMessageAndNotAFailedStatusUpdate() throws Exception {
+        final String claimResponse = "{\"resourceType\":\"Bundle\",\"entry\":[{\"id\":\"https://localhost/FHIR/Koppeltaal/MessageHeader/2\","
+                + "\"content\":{\"resourceType\":\"MessageHeader\",\"identifier\":\"2\",\"timestamp\":\"2020-01-01T00:00:00Z\","
+                + "\"event\":{\"system\":\"http://ggz.koppeltaal.nl/fhir/Koppeltaal/MessageEvents\",\"code\":\"CreateOrUpdateCarePlan\"},"
+                + "\"source\":{\"endpoint\":\"https://localhost\"}}}]}";
+        final MockHttpTransport server = new MockHttpTransport.Builder()
+                .setLowLevelHttpResponse(new MockLowLevelHttpResponse().setContent(claimResponse).setContentType(Format.JSON.getMediaType()))
+                .build();
+        final WireCapture wireCapture = new WireCapture(4, 1, 1024);
+
+        try (ExtendedKoppeltaalClient client = ExtendedKoppeltaalClient.builder("https://localhost", "user", "password")
+                .format(Format.JSON)
+                .jsonFeedCodec(true)
+                .transport(server)
+                .wireCapture(wireCapture)
+                .build()) {
+            // the request of a header without url cannot be created
+            final MessageHeader messageHeader = new MessageHeader();
+            messageHeader.setIdentifierSimple("1");
+            final AtomEntry<MessageHeader> headerEntry = new AtomEntry<>();
+            headerEntry.setResource(messageHeader);
+            try {
+                client.updateMessageStatus(new KoppeltaalMessageHeader(headerEntry), ProcessingStatus.SUCCESS);
+                fail("Status update without url succeeded");
+            } catch (RuntimeException e) {
+                // expected
+            }
+
+            client.getNextNewAndClaim();
+        }
+
+        assertTrue(wireCapture.get("2", AuditLog.Direction.RECEIVED).isPresent());
+        assertFalse(wireCapture.get("1", AuditLog.Direction.SENT).isPresent());
+    }
+
+    @Test
+    public void doesNotTagAnExchangeOfAnEarlierRequest() throws Exception {
+        final WireCapture wireCapture = new WireCapture(4, 0.5, 1024) {
+            private boolean sampled;
+
+            @Override
+            boolean sample() {
+                // every other request
+                sampled = !sampled;
+                return sampled;
+            }
+        };
+        final HttpRequestFactory requestFactory = wireCapture.wrap(transport("")).createRequestFactory();
+
+        post(requestFactory, "first");
+        wireCapture.tag("message-1", AuditLog.Direction.SENT);
+        post(requestFactory, "second");
+        wireCapture.tag("message-2", AuditLog.Direction.SENT);
+        post(requestFactory, "third");
+        wireCapture.tag("message-3", AuditLog.Direction.SENT);
+
+        assertEquals(2, wireCapture.getExchanges().size());
+        assertEquals("first", wireCapture.get("message-1", AuditLog.Direction.SENT).map(WireCapture.Exchange::getRequestBodyAsString).orElse(null));
+        assertFalse(wireCapture.get("message-2", AuditLog.Direction.SENT).isPresent());
+        assertEquals("third", wireCapture.get("message-3", AuditLog.Direction.SENT).map(WireCapture.Exchange::getRequestBodyAsString).orElse(null));
+    }
+
+    @Test
+    public void truncatesBodies() throws Exception {
+        final WireCapture wireCapture = new WireCapture(2, 1, 4);
+
+        post(wireCapture.wrap(transport("")).createRequestFactory(), "0123456789");
+
+        final WireCapture.Exchange exchange = wireCapture.findLast(e -> true).orElseThrow(AssertionError::new);
+        assertEquals("0123", exchange.getRequestBodyAsString());
+        assertTrue(exchange.isRequestBodyTruncated());
+    }
+
+    @Test
+    public void capturesNothingWithoutSampling() throws Exception {
+        final WireCapture wireCapture = new WireCapture(2, 0, 1024);
+
+        post(wireCapture.wrap(transport("")).createRequestFactory(), "body");
+
+        assertTrue(wireCapture.getExchanges().isEmpty());
+    }
+
+    private static void post(HttpRequestFactory requestFactory, String body) throws IOException {
+        final HttpResponse response = requestFactory.buildPostRequest(URL, ByteArrayContent.fromString("application/xml", body)).execute();
+        try {
+            response.parseAsString();
+        } finally {
+            response.disconnect();
+        }
+    }
+
+    private static MockHttpTransport transport(String responseBody) {
+        return new MockHttpTransport() {
+            @Override
+            public LowLevelHttpRequest buildRequest(String method, String url) {
+                return new MockLowLevelHttpRequest(url) {
+                    @Override
+                    public LowLevelHttpResponse execute() throws IOException {
+                        // write the request body, like a real transport
+                        getContentAsString();
+                        return new MockLowLevelHttpResponse().setContent(responseBody).setContentType("application/xml");
+                    }
+                };
+            }
+        };
+    }
+}